@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool;
+
+import static com.android.tools.build.bundletool.testing.DeviceFactory.abis;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.density;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.locales;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.mergeSpecs;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.sdkVersion;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.bundle.Devices.DeviceSpec;
+import com.android.bundle.Targeting.ScreenDensity.DensityAlias;
+import com.android.tools.build.bundletool.commands.BuildApksCommand;
+import com.android.tools.build.bundletool.commands.ExtractApksCommand;
+import com.android.tools.build.bundletool.commands.GetSizeCommand;
+import com.android.tools.build.bundletool.commands.GetSizeCommand.GetSizeSubcommand;
+import com.android.tools.build.bundletool.flags.Flag;
+import com.android.tools.build.bundletool.flags.FlagParser;
+import com.android.tools.build.bundletool.flags.ParsedFlags;
+import com.android.tools.build.bundletool.model.AbiName;
+import com.android.tools.build.bundletool.model.GetSizeRequest.Dimension;
+import com.android.tools.build.bundletool.testing.Aapt2Helper;
+import com.android.tools.build.bundletool.testing.SyntheticBundleGenerator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Generates a synthetic App Bundle with {@link SyntheticBundleGenerator}, runs build-apks,
+ * extract-apks and get-size on it and prints, as JSON, what each command cost.
+ *
+ * <p>For each command the report contains:
+ *
+ * <ul>
+ *   <li>wall time;
+ *   <li>CPU time of the JVM, which excludes the aapt2 child process;
+ *   <li>peak heap, summed over the heap memory pools;
+ *   <li>bytes allocated by the main thread and the threads of the executor given to build-apks,
+ *       which misses threads bundletool creates on its own;
+ *   <li>bytes of the command outputs, and bytes written by the process when the OS reports it.
+ * </ul>
+ *
+ * <p>Run it with {@code ./gradlew macroBenchmark -PmacroBenchmarkArgs="--modules=50 ..."}.
+ */
+public final class MacroBenchmarkMain {
+
+  private static final Flag<Path> OUTPUT_DIRECTORY_FLAG = Flag.path("output-dir");
+  private static final Flag<Integer> MODULES_FLAG = Flag.positiveInteger("modules");
+  private static final Flag<Integer> DRAWABLES_FLAG = Flag.nonNegativeInteger("drawables");
+  private static final Flag<Integer> STRINGS_FLAG = Flag.nonNegativeInteger("strings");
+  private static final Flag<ImmutableList<String>> LANGUAGES_FLAG = Flag.stringList("languages");
+  private static final Flag<ImmutableList<String>> ABIS_FLAG = Flag.stringList("abis");
+  private static final Flag<Integer> NATIVE_LIBRARY_SIZE_KB_FLAG =
+      Flag.nonNegativeInteger("native-library-size-kb");
+  private static final Flag<Integer> DEX_COUNT_FLAG = Flag.positiveInteger("dex-count");
+  private static final Flag<Integer> ASSET_PACKS_FLAG = Flag.nonNegativeInteger("asset-packs");
+  private static final Flag<Integer> ASSET_PACK_SIZE_KB_FLAG =
+      Flag.nonNegativeInteger("asset-pack-size-kb");
+  private static final Flag<Integer> THREADS_FLAG = Flag.positiveInteger("threads");
+
+  private static final DeviceSpec DEVICE_SPEC =
+      mergeSpecs(
+          sdkVersion(30),
+          abis("arm64-v8a", "armeabi-v7a"),
+          density(DensityAlias.XXHDPI),
+          locales("en-US"));
+
+  private final com.sun.management.ThreadMXBean threadBean =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  private final com.sun.management.OperatingSystemMXBean osBean =
+      (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+  private final List<Thread> measuredThreads = new ArrayList<>();
+
+  public static void main(String[] args) throws IOException {
+    ParsedFlags flags = new FlagParser().parse(args);
+    Path outputDirectory = OUTPUT_DIRECTORY_FLAG.getRequiredValue(flags);
+    SyntheticBundleGenerator.Builder generator = SyntheticBundleGenerator.builder();
+    MODULES_FLAG.getValue(flags).ifPresent(generator::setModuleCount);
+    DRAWABLES_FLAG.getValue(flags).ifPresent(generator::setDrawableCount);
+    STRINGS_FLAG.getValue(flags).ifPresent(generator::setStringCount);
+    LANGUAGES_FLAG.getValue(flags).ifPresent(generator::setLanguages);
+    ABIS_FLAG
+        .getValue(flags)
+        .map(abis -> abis.stream().map(MacroBenchmarkMain::toAbiName).collect(toImmutableSet()))
+        .ifPresent(generator::setAbis);
+    NATIVE_LIBRARY_SIZE_KB_FLAG
+        .getValue(flags)
+        .ifPresent(sizeKb -> generator.setNativeLibrarySize(sizeKb * 1024));
+    DEX_COUNT_FLAG.getValue(flags).ifPresent(generator::setDexCount);
+    ASSET_PACKS_FLAG.getValue(flags).ifPresent(generator::setAssetPackCount);
+    ASSET_PACK_SIZE_KB_FLAG
+        .getValue(flags)
+        .ifPresent(sizeKb -> generator.setAssetPackSize(sizeKb * 1024));
+    int threads =
+        THREADS_FLAG.getValue(flags).orElse(Runtime.getRuntime().availableProcessors());
+    flags.checkNoUnknownFlags();
+
+    new MacroBenchmarkMain().run(generator.build(), outputDirectory, threads, System.out);
+  }
+
+  private void run(
+      SyntheticBundleGenerator generator, Path outputDirectory, int threads, PrintStream report)
+      throws IOException {
+    Files.createDirectories(outputDirectory);
+    Path bundlePath = outputDirectory.resolve("synthetic.aab");
+    Path apksPath = outputDirectory.resolve("synthetic.apks");
+    Path extractedApksDirectory = outputDirectory.resolve("extracted");
+    Files.deleteIfExists(bundlePath);
+    Files.deleteIfExists(apksPath);
+    Files.createDirectories(extractedApksDirectory);
+
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(threads, measuredThreadFactory()));
+    try {
+      List<String> results = new ArrayList<>();
+      results.add(
+          measure(
+              "generate",
+              () -> {
+                try {
+                  generator.writeTo(bundlePath);
+                } catch (IOException e) {
+                  throw new UncheckedIOException(e);
+                }
+                return bundlePath;
+              }));
+      results.add(
+          measure(
+              "build-apks",
+              () ->
+                  BuildApksCommand.builder()
+                      .setBundlePath(bundlePath)
+                      .setOutputFile(apksPath)
+                      .setAapt2Command(Aapt2Helper.getAapt2Command())
+                      .setExecutorService(executorService)
+                      .build()
+                      .execute()));
+      results.add(
+          measure(
+              "extract-apks",
+              () -> {
+                ExtractApksCommand.builder()
+                    .setApksArchivePath(apksPath)
+                    .setDeviceSpec(DEVICE_SPEC)
+                    .setOutputDirectory(extractedApksDirectory)
+                    .build()
+                    .execute();
+                return extractedApksDirectory;
+              }));
+      results.add(
+          measure(
+              "get-size",
+              () -> {
+                GetSizeCommand.builder()
+                    .setApksArchivePath(apksPath)
+                    .setGetSizeSubCommand(GetSizeSubcommand.TOTAL)
+                    .setDimensions(
+                        ImmutableSet.of(
+                            Dimension.SDK,
+                            Dimension.ABI,
+                            Dimension.SCREEN_DENSITY,
+                            Dimension.LANGUAGE))
+                    .build()
+                    .getSizeTotal(new PrintStream(ByteStreams.nullOutputStream()));
+                return apksPath;
+              }));
+      report.printf("{\"bundle\": %s,%n", toJson(generator));
+      report.printf(" \"commands\": [%n  %s]}%n", String.join(",\n  ", results));
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  /**
+   * Runs {@code command} and returns its metrics as a JSON object. The command returns the path of
+   * its output, file or directory.
+   */
+  private String measure(String name, Supplier<Path> command) {
+    System.gc();
+    ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+    Map<Long, Long> allocatedBytesBefore = allocatedBytesPerThread();
+    Optional<Long> processWrittenBytesBefore = processWrittenBytes();
+    long cpuTimeBefore = osBean.getProcessCpuTime();
+    long wallTimeBefore = System.nanoTime();
+
+    Path output = command.get();
+
+    long wallTimeNanos = System.nanoTime() - wallTimeBefore;
+    long cpuTimeNanos = osBean.getProcessCpuTime() - cpuTimeBefore;
+    long peakHeapBytes =
+        ManagementFactory.getMemoryPoolMXBeans().stream()
+            .filter(pool -> pool.getType().equals(MemoryType.HEAP))
+            .mapToLong(pool -> pool.getPeakUsage().getUsed())
+            .sum();
+    long allocatedBytes =
+        allocatedBytesPerThread().entrySet().stream()
+            .mapToLong(
+                entry -> entry.getValue() - allocatedBytesBefore.getOrDefault(entry.getKey(), 0L))
+            .sum();
+    Optional<Long> processWrittenBytes =
+        processWrittenBytes().flatMap(after -> processWrittenBytesBefore.map(b -> after - b));
+
+    return String.format(
+        Locale.ROOT,
+        "{\"command\": \"%s\", \"wallTimeMs\": %d, \"cpuTimeMs\": %d, \"peakHeapBytes\": %d,"
+            + " \"allocatedBytes\": %d, \"outputBytes\": %d, \"processWrittenBytes\": %s}",
+        name,
+        wallTimeNanos / 1_000_000,
+        cpuTimeNanos / 1_000_000,
+        peakHeapBytes,
+        allocatedBytes,
+        sizeOf(output),
+        processWrittenBytes.map(String::valueOf).orElse("null"));
+  }
+
+  private ThreadFactory measuredThreadFactory() {
+    ThreadFactory defaultThreadFactory = Executors.defaultThreadFactory();
+    return runnable -> {
+      Thread thread = defaultThreadFactory.newThread(runnable);
+      thread.setDaemon(true);
+      synchronized (measuredThreads) {
+        measuredThreads.add(thread);
+      }
+      return thread;
+    };
+  }
+
+  private Map<Long, Long> allocatedBytesPerThread() {
+    Map<Long, Long> allocatedBytes = new HashMap<>();
+    synchronized (measuredThreads) {
+      for (Thread thread : measuredThreads) {
+        allocatedBytes.put(thread.getId(), threadBean.getThreadAllocatedBytes(thread.getId()));
+      }
+    }
+    Thread mainThread = Thread.currentThread();
+    allocatedBytes.put(mainThread.getId(), threadBean.getThreadAllocatedBytes(mainThread.getId()));
+    // Threads which have not started yet or have terminated are reported as -1.
+    allocatedBytes.values().removeIf(bytes -> bytes < 0);
+    return allocatedBytes;
+  }
+
+  /** Bytes the process has written to storage, as reported by Linux. */
+  private static Optional<Long> processWrittenBytes() {
+    Path procIo = Paths.get("/proc/self/io");
+    if (!Files.isReadable(procIo)) {
+      return Optional.empty();
+    }
+    try {
+      return Files.readAllLines(procIo, UTF_8).stream()
+          .filter(line -> line.startsWith("write_bytes:"))
+          .map(line -> Long.parseLong(line.substring("write_bytes:".length()).trim()))
+          .findFirst();
+    } catch (IOException e) {
+      return Optional.empty();
+    }
+  }
+
+  private static long sizeOf(Path path) {
+    try (Stream<Path> files = Files.walk(path)) {
+      return files
+          .filter(Files::isRegularFile)
+          .mapToLong(
+              file -> {
+                try {
+                  return Files.size(file);
+                } catch (IOException e) {
+                  throw new UncheckedIOException(e);
+                }
+              })
+          .sum();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static String toJson(SyntheticBundleGenerator generator) {
+    return String.format(
+        Locale.ROOT,
+        "{\"modules\": %d, \"drawables\": %d, \"strings\": %d, \"languages\": %d, \"abis\": %d,"
+            + " \"nativeLibrarySizeBytes\": %d, \"dexCount\": %d, \"assetPacks\": %d,"
+            + " \"assetPackSizeBytes\": %d}",
+        generator.getModuleCount(),
+        generator.getDrawableCount(),
+        generator.getStringCount(),
+        generator.getLanguages().size(),
+        generator.getAbis().size(),
+        generator.getNativeLibrarySize(),
+        generator.getDexCount(),
+        generator.getAssetPackCount(),
+        generator.getAssetPackSize());
+  }
+
+  private static AbiName toAbiName(String platformName) {
+    return AbiName.fromPlatformName(platformName)
+        .orElseThrow(
+            () -> new IllegalArgumentException("Unrecognized ABI: '" + platformName + "'."));
+  }
+
+  private MacroBenchmarkMain() {}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.device;
+
+import static com.android.tools.build.bundletool.testing.DeviceFactory.abis;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.density;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.locales;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.mergeSpecs;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.sdkVersion;
+
+import com.android.bundle.Commands.BuildApksResult;
+import com.android.bundle.Targeting.ScreenDensity.DensityAlias;
+import com.android.tools.build.bundletool.device.ApkMatcher.GeneratedApk;
+import com.android.tools.build.bundletool.testing.BenchmarkFixtures;
+import com.google.common.collect.ImmutableList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks of {@link ApkMatcher#getMatchingApks}, run by extract-apks and install-apks. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ApkMatcherBenchmark {
+
+  @Param({"1", "50"})
+  public int moduleCount;
+
+  private ApkMatcher apkMatcher;
+  private BuildApksResult buildApksResult;
+
+  @Setup
+  public void setUp() {
+    apkMatcher =
+        new ApkMatcher(
+            mergeSpecs(
+                sdkVersion(30),
+                abis("arm64-v8a", "armeabi-v7a"),
+                density(DensityAlias.XXHDPI),
+                locales("en-US", "fr-FR")));
+    buildApksResult =
+        BenchmarkFixtures.buildApksResult(BenchmarkFixtures.splitApkVariant(moduleCount));
+  }
+
+  @Benchmark
+  public ImmutableList<GeneratedApk> getMatchingApks() {
+    return apkMatcher.getMatchingApks(buildApksResult);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.device;
+
+import com.android.bundle.Commands.Variant;
+import com.android.tools.build.bundletool.commands.GetSizeCommand;
+import com.android.tools.build.bundletool.commands.GetSizeCommand.GetSizeSubcommand;
+import com.android.tools.build.bundletool.model.ConfigurationSizes;
+import com.android.tools.build.bundletool.model.GetSizeRequest.Dimension;
+import com.android.tools.build.bundletool.model.version.BundleToolVersion;
+import com.android.tools.build.bundletool.testing.BenchmarkFixtures;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of {@link AbstractSizeAggregator#getSizesPerConfiguration}, which matches the APKs of
+ * a variant for every combination of the requested dimensions in get-size.
+ *
+ * <p>The method is protected, so it is measured through {@link VariantTotalSizeAggregator}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SizeAggregatorBenchmark {
+
+  @Param({"1", "20"})
+  public int moduleCount;
+
+  private Variant variant;
+  private ImmutableMap<String, Long> apkSizes;
+  private GetSizeCommand getSizeCommand;
+
+  @Setup
+  public void setUp() {
+    variant = BenchmarkFixtures.splitApkVariant(moduleCount);
+    apkSizes = BenchmarkFixtures.apkSizes(variant);
+    getSizeCommand =
+        GetSizeCommand.builder()
+            .setApksArchivePath(Paths.get("benchmark.apks"))
+            .setGetSizeSubCommand(GetSizeSubcommand.TOTAL)
+            .setDimensions(
+                ImmutableSet.of(Dimension.ABI, Dimension.SCREEN_DENSITY, Dimension.LANGUAGE))
+            .build();
+  }
+
+  @Benchmark
+  public ConfigurationSizes getSizesPerConfiguration() {
+    return new VariantTotalSizeAggregator(
+            apkSizes, BundleToolVersion.getCurrentVersion(), variant, getSizeCommand)
+        .getSize();
+  }
+}
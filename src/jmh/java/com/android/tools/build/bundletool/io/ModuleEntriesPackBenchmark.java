@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.zipflinger.ZipSource;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of {@link ModuleEntriesPack#select}, called for every APK to pick its entries from the
+ * packs of compressed entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ModuleEntriesPackBenchmark {
+
+  @Param({"100", "10000"})
+  public int entryCount;
+
+  private Path tempDirectory;
+  private ImmutableList<ModuleEntry> entries;
+  private ModuleEntriesPack pack;
+
+  @Setup
+  public void setUp() throws Exception {
+    tempDirectory = Files.createTempDirectory("module-entries-pack-benchmark");
+    entries =
+        IntStream.range(0, entryCount)
+            .mapToObj(
+                i ->
+                    ModuleEntry.builder()
+                        .setPath(ZipPath.create(String.format("res/raw/file_%d.txt", i)))
+                        .setContent(
+                            ByteSource.wrap(String.format("content %d", i).getBytes(UTF_8)))
+                        .build())
+            .collect(toImmutableList());
+    ModuleEntriesPacker packer = new ModuleEntriesPacker(tempDirectory.resolve("pack.zip"), "a");
+    entries.forEach(packer::add);
+    pack = packer.pack(Zipper.uncompressedZip());
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    MoreFiles.deleteRecursively(tempDirectory, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  @Benchmark
+  public ZipSource select() {
+    return pack.select(entries, entry -> entry.getPath().toString());
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of {@link Zipper#compressedZip}, compressing the entries of all splits of a bundle.
+ *
+ * <p>Entries mimic a module: many small compressible files, e.g. XML files, and a few large ones
+ * compressed on the executor service, e.g. dex files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ZipperBenchmark {
+
+  private static final int SMALL_ENTRY_COUNT = 500;
+  private static final int SMALL_ENTRY_SIZE = 4 * 1024;
+  private static final int LARGE_ENTRY_COUNT = 4;
+  private static final int LARGE_ENTRY_SIZE = 2 * 1024 * 1024;
+
+  @Param({"1", "4"})
+  public int threadCount;
+
+  private Path tempDirectory;
+  private Path outputZip;
+  private ListeningExecutorService executorService;
+  private ImmutableMap<String, ByteSource> entries;
+
+  @Setup
+  public void setUp() throws Exception {
+    tempDirectory = Files.createTempDirectory("zipper-benchmark");
+    outputZip = tempDirectory.resolve("output.zip");
+    executorService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
+
+    Random random = new Random(/* seed= */ 0);
+    ImmutableMap.Builder<String, ByteSource> entries = ImmutableMap.builder();
+    for (int i = 0; i < SMALL_ENTRY_COUNT; i++) {
+      entries.put(
+          String.format("res/layout/layout_%d.xml", i),
+          ByteSource.wrap(compressibleBytes(random, SMALL_ENTRY_SIZE)));
+    }
+    for (int i = 0; i < LARGE_ENTRY_COUNT; i++) {
+      entries.put(
+          String.format("classes%d.dex", i + 1),
+          ByteSource.wrap(compressibleBytes(random, LARGE_ENTRY_SIZE)));
+    }
+    this.entries = entries.build();
+  }
+
+  @Setup(Level.Invocation)
+  public void deleteOutputZip() throws Exception {
+    Files.deleteIfExists(outputZip);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    executorService.shutdownNow();
+    MoreFiles.deleteRecursively(tempDirectory, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  @Benchmark
+  public Path compressedZip() {
+    Zipper.compressedZip(
+            executorService, MemoryBudget.createDefault(), Deflater.DEFAULT_COMPRESSION)
+        .zip(outputZip, entries);
+    return outputZip;
+  }
+
+  /** Returns bytes drawn from a small alphabet, which compress about as well as code does. */
+  private static byte[] compressibleBytes(Random random, int size) {
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) {
+      bytes[i] = (byte) ('a' + random.nextInt(16));
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.model;
+
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteSource;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks of {@link ModuleEntry#getContentSha256Hash}, used to compare and cache entries. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ModuleEntryBenchmark {
+
+  @Param({"1024", "1048576"})
+  public int contentSize;
+
+  private ZipPath path;
+  private ByteSource content;
+
+  @Setup
+  public void setUp() {
+    byte[] bytes = new byte[contentSize];
+    new Random(/* seed= */ 0).nextBytes(bytes);
+    path = ZipPath.create("assets/data.bin");
+    content = ByteSource.wrap(bytes);
+  }
+
+  @Benchmark
+  public HashCode getContentSha256Hash() {
+    // The hash is memoized, so a new entry is needed for each invocation.
+    return ModuleEntry.builder().setPath(path).setContent(content).build().getContentSha256Hash();
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.model;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks of {@link ZipPath}, created for every entry of every module and split. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ZipPathBenchmark {
+
+  private static final String ENTRY_PATH = "res/drawable-xxhdpi-v4/ic_launcher_foreground.png";
+
+  private ZipPath directory;
+  private ZipPath fileName;
+
+  @Setup
+  public void setUp() {
+    directory = ZipPath.create("res/drawable-xxhdpi-v4");
+    fileName = ZipPath.create("ic_launcher_foreground.png");
+  }
+
+  @Benchmark
+  public ZipPath create() {
+    return ZipPath.create(ENTRY_PATH);
+  }
+
+  @Benchmark
+  public ZipPath resolve() {
+    return directory.resolve(fileName);
+  }
+
+  @Benchmark
+  public ZipPath resolveString() {
+    return directory.resolve("ic_launcher_foreground.png");
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.model.utils;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.android.aapt.Resources.ConfigValue;
+import com.android.aapt.Resources.Entry;
+import com.android.aapt.Resources.ResourceTable;
+import com.android.tools.build.bundletool.model.ResourceTableEntry;
+import com.android.tools.build.bundletool.testing.BenchmarkFixtures;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of {@link ResourcesUtils#filterResourceTable}, called by the resource splitters for
+ * every split they generate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ResourcesUtilsBenchmark {
+
+  @Param({"100", "2000"})
+  public int resourceCount;
+
+  private ResourceTable resourceTable;
+
+  @Setup
+  public void setUp() {
+    resourceTable =
+        BenchmarkFixtures.resourceTable(
+            /* drawableCount= */ resourceCount, /* stringCount= */ resourceCount);
+  }
+
+  @Benchmark
+  public ResourceTable filterResourceTable_keepAll() {
+    return ResourcesUtils.filterResourceTable(
+        resourceTable,
+        /* removeEntryPredicate= */ entry -> false,
+        /* configValuesFilterFn= */ ResourceTableEntry::getEntry);
+  }
+
+  @Benchmark
+  public ResourceTable filterResourceTable_keepOneDensity() {
+    return ResourcesUtils.filterResourceTable(
+        resourceTable,
+        /* removeEntryPredicate= */ entry -> false,
+        /* configValuesFilterFn= */ entry -> keepDensity(entry, ResourcesUtils.XXHDPI_VALUE));
+  }
+
+  private static Entry keepDensity(ResourceTableEntry entry, int density) {
+    return entry.getEntry().toBuilder()
+        .clearConfigValue()
+        .addAllConfigValue(
+            entry.getEntry().getConfigValueList().stream()
+                .filter(configValue -> hasDensity(configValue, density))
+                .collect(toImmutableList()))
+        .build();
+  }
+
+  private static boolean hasDensity(ConfigValue configValue, int density) {
+    int configDensity = configValue.getConfig().getDensity();
+    return configDensity == 0 || configDensity == density;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.splitters;
+
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.model.version.BundleToolVersion;
+import com.android.tools.build.bundletool.testing.BenchmarkFixtures;
+import com.google.common.collect.ImmutableCollection;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks of {@link ScreenDensityResourcesSplitter}, splitting the resources of a module. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ScreenDensityResourcesSplitterBenchmark {
+
+  @Param({"100", "2000"})
+  public int drawableCount;
+
+  private ScreenDensityResourcesSplitter splitter;
+  private ModuleSplit resourcesSplit;
+
+  @Setup
+  public void setUp() {
+    splitter =
+        new ScreenDensityResourcesSplitter(
+            BundleToolVersion.getCurrentVersion(),
+            /* pinWholeResourceToMaster= */ resourceId -> false,
+            /* pinLowestBucketOfResourceToMaster= */ resourceId -> false,
+            /* pinLowestBucketOfStylesToMaster= */ false);
+    resourcesSplit =
+        ModuleSplit.forResources(
+            BenchmarkFixtures.moduleWithResources(
+                "base", drawableCount, /* stringCount= */ drawableCount));
+  }
+
+  @Benchmark
+  public ImmutableCollection<ModuleSplit> split() {
+    return splitter.split(resourcesSplit);
+  }
+}
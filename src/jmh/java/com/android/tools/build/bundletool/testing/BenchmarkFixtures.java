@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.testing;
+
+import static com.android.tools.build.bundletool.testing.ApksArchiveHelpers.createApkDescription;
+import static com.android.tools.build.bundletool.testing.ApksArchiveHelpers.createMasterApkDescription;
+import static com.android.tools.build.bundletool.testing.ApksArchiveHelpers.createSplitApkSet;
+import static com.android.tools.build.bundletool.testing.ApksArchiveHelpers.createVariant;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.apkAbiTargeting;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.apkDensityTargeting;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.apkLanguageTargeting;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.lPlusVariantTargeting;
+import static com.google.common.collect.ImmutableMap.toImmutableMap;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static java.util.function.Function.identity;
+
+import com.android.aapt.Resources.ResourceTable;
+import com.android.bundle.Commands.ApkDescription;
+import com.android.bundle.Commands.ApkSet;
+import com.android.bundle.Commands.BuildApksResult;
+import com.android.bundle.Commands.Variant;
+import com.android.bundle.Config.Bundletool;
+import com.android.bundle.Targeting.Abi.AbiAlias;
+import com.android.bundle.Targeting.ApkTargeting;
+import com.android.bundle.Targeting.ScreenDensity.DensityAlias;
+import com.android.tools.build.bundletool.model.BundleModule;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.model.utils.ResourcesUtils;
+import com.android.tools.build.bundletool.model.version.BundleToolVersion;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+/**
+ * Synthetic inputs of the benchmarks, built with the test utilities.
+ *
+ * <p>Fixtures are deterministic so that results of different runs can be compared.
+ */
+public final class BenchmarkFixtures {
+
+  public static final String PACKAGE_NAME = "com.example.benchmark";
+
+  public static final ImmutableList<AbiAlias> ABIS =
+      ImmutableList.of(AbiAlias.ARMEABI_V7A, AbiAlias.ARM64_V8A, AbiAlias.X86, AbiAlias.X86_64);
+
+  public static final ImmutableList<DensityAlias> DENSITIES =
+      ImmutableList.of(
+          DensityAlias.LDPI,
+          DensityAlias.MDPI,
+          DensityAlias.HDPI,
+          DensityAlias.XHDPI,
+          DensityAlias.XXHDPI,
+          DensityAlias.XXXHDPI);
+
+  public static final ImmutableList<String> LANGUAGES =
+      ImmutableList.of("de", "en", "es", "fr", "it", "ja", "ko", "pt", "ru", "zh");
+
+  /**
+   * Returns a resource table with {@code drawableCount} drawables available in each of {@link
+   * #DENSITIES} and {@code stringCount} strings translated in each of {@link #LANGUAGES}.
+   */
+  public static ResourceTable resourceTable(int drawableCount, int stringCount) {
+    ResourceTableBuilder table = new ResourceTableBuilder().addPackage(PACKAGE_NAME);
+    for (int i = 0; i < drawableCount; i++) {
+      table.addDrawableResourceForMultipleDensities(
+          drawableName(i), drawablePathByDensity(drawableName(i)));
+    }
+    for (int i = 0; i < stringCount; i++) {
+      String stringName = String.format("string_%d", i);
+      table.addStringResourceForMultipleLocales(
+          stringName,
+          ImmutableSet.<String>builder().add("").addAll(LANGUAGES).build().stream()
+              .collect(toImmutableMap(identity(), locale -> stringName + "_" + locale)));
+    }
+    return table.build();
+  }
+
+  /** Returns a module with the resources of {@link #resourceTable} and their files. */
+  public static BundleModule moduleWithResources(
+      String moduleName, int drawableCount, int stringCount) {
+    BundleModuleBuilder module =
+        new BundleModuleBuilder(moduleName)
+            .setResourceTable(resourceTable(drawableCount, stringCount))
+            .setManifest(androidManifest(PACKAGE_NAME));
+    for (int i = 0; i < drawableCount; i++) {
+      drawablePathByDensity(drawableName(i)).values().forEach(module::addFile);
+    }
+    return module.build();
+  }
+
+  /**
+   * Returns a split APK variant of {@code moduleCount} modules, each of them having a master split
+   * and splits for each of {@link #ABIS}, {@link #DENSITIES} and {@link #LANGUAGES}.
+   */
+  public static Variant splitApkVariant(int moduleCount) {
+    ImmutableList.Builder<ApkSet> apkSets = ImmutableList.builder();
+    for (int i = 0; i < moduleCount; i++) {
+      apkSets.add(splitApkSet(i == 0 ? "base" : String.format("feature%d", i)));
+    }
+    return createVariant(lPlusVariantTargeting(), apkSets.build().toArray(new ApkSet[0]));
+  }
+
+  /** Returns the result of build-apks containing only the given variant. */
+  public static BuildApksResult buildApksResult(Variant variant) {
+    return BuildApksResult.newBuilder()
+        .addVariant(variant)
+        .setBundletool(
+            Bundletool.newBuilder().setVersion(BundleToolVersion.getCurrentVersion().toString()))
+        .build();
+  }
+
+  /** Returns a deterministic size for each APK of the variant, keyed by APK path. */
+  public static ImmutableMap<String, Long> apkSizes(Variant variant) {
+    return variant.getApkSetList().stream()
+        .flatMap(apkSet -> apkSet.getApkDescriptionList().stream())
+        .map(ApkDescription::getPath)
+        .collect(toImmutableMap(identity(), path -> 1000L + (path.hashCode() & 0xFFFF)));
+  }
+
+  private static ApkSet splitApkSet(String moduleName) {
+    ImmutableList.Builder<ApkDescription> apks = ImmutableList.builder();
+    apks.add(
+        createMasterApkDescription(
+            ApkTargeting.getDefaultInstance(), apkPath(moduleName, "master")));
+    for (AbiAlias abi : ABIS) {
+      apks.add(
+          createApkDescription(
+              apkAbiTargeting(abi, alternatives(ABIS, abi)),
+              apkPath(moduleName, abi.name().toLowerCase()),
+              /* isMasterSplit= */ false));
+    }
+    for (DensityAlias density : DENSITIES) {
+      apks.add(
+          createApkDescription(
+              apkDensityTargeting(density, alternatives(DENSITIES, density)),
+              apkPath(moduleName, density.name().toLowerCase()),
+              /* isMasterSplit= */ false));
+    }
+    for (String language : LANGUAGES) {
+      apks.add(
+          createApkDescription(
+              apkLanguageTargeting(language),
+              apkPath(moduleName, language),
+              /* isMasterSplit= */ false));
+    }
+    return createSplitApkSet(moduleName, apks.build().toArray(new ApkDescription[0]));
+  }
+
+  private static <T> ImmutableSet<T> alternatives(ImmutableList<T> values, T value) {
+    return Sets.difference(ImmutableSet.copyOf(values), ImmutableSet.of(value)).stream()
+        .collect(toImmutableSet());
+  }
+
+  private static ZipPath apkPath(String moduleName, String suffix) {
+    return ZipPath.create(String.format("splits/%s-%s.apk", moduleName, suffix));
+  }
+
+  private static String drawableName(int index) {
+    return String.format("image_%d", index);
+  }
+
+  private static ImmutableMap<Integer, String> drawablePathByDensity(String drawableName) {
+    return DENSITIES.stream()
+        .collect(
+            toImmutableMap(
+                ResourcesUtils.DENSITY_ALIAS_TO_DPI_MAP::get,
+                density ->
+                    String.format(
+                        "res/drawable-%s/%s.png", density.name().toLowerCase(), drawableName)));
+  }
+
+  private BenchmarkFixtures() {}
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.testing;
+
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifestForAssetModule;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifestForFeature;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withInstallTimeDelivery;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withMinSdkVersion;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.nativeDirectoryTargeting;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.nativeLibraries;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.targetedNativeDirectory;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableMap.toImmutableMap;
+import static java.util.function.Function.identity;
+
+import com.android.bundle.Files.TargetedNativeDirectory;
+import com.android.bundle.Targeting.ScreenDensity.DensityAlias;
+import com.android.tools.build.bundletool.TestData;
+import com.android.tools.build.bundletool.io.AppBundleSerializer;
+import com.android.tools.build.bundletool.model.AbiName;
+import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.model.BundleModule;
+import com.android.tools.build.bundletool.model.utils.ResourcesUtils;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generates App Bundles of configurable size, to reproduce performance issues without sharing
+ * production bundles.
+ *
+ * <p>The bundle has a base module and feature modules, each of them with drawables available in
+ * each of {@link BenchmarkFixtures#DENSITIES}, translated strings, native libraries and dex files,
+ * and install-time asset packs. Content is pseudo-random but deterministic, so that bundles
+ * generated with the same parameters are identical.
+ */
+@AutoValue
+public abstract class SyntheticBundleGenerator {
+
+  private static final String DEX_TEST_DATA = "testdata/dex/classes.dex";
+
+  /** Number of resource packages available to modules, as package IDs go from 0x7F down to 0x02. */
+  private static final int MAX_MODULE_COUNT = 0x7F - 0x02 + 1;
+
+  /** Number of modules including the base module. */
+  public abstract int getModuleCount();
+
+  /** Number of drawables of each module, each of them available in every density. */
+  public abstract int getDrawableCount();
+
+  /** Number of strings of each module, each of them translated in every language. */
+  public abstract int getStringCount();
+
+  public abstract ImmutableList<String> getLanguages();
+
+  /** ABIs for which each module has a native library. */
+  public abstract ImmutableSet<AbiName> getAbis();
+
+  public abstract int getResourceFileSize();
+
+  public abstract int getNativeLibrarySize();
+
+  /** Number of dex files of each module. */
+  public abstract int getDexCount();
+
+  public abstract int getAssetPackCount();
+
+  public abstract int getAssetPackSize();
+
+  public static Builder builder() {
+    return new AutoValue_SyntheticBundleGenerator.Builder()
+        .setModuleCount(10)
+        .setDrawableCount(100)
+        .setStringCount(100)
+        .setLanguages(BenchmarkFixtures.LANGUAGES)
+        .setAbis(ImmutableSet.of(AbiName.ARMEABI_V7A, AbiName.ARM64_V8A, AbiName.X86_64))
+        .setResourceFileSize(1024)
+        .setNativeLibrarySize(256 * 1024)
+        .setDexCount(1)
+        .setAssetPackCount(1)
+        .setAssetPackSize(1024 * 1024);
+  }
+
+  /** Builder for the {@link SyntheticBundleGenerator}. */
+  @AutoValue.Builder
+  public abstract static class Builder {
+    public abstract Builder setModuleCount(int moduleCount);
+
+    public abstract Builder setDrawableCount(int drawableCount);
+
+    public abstract Builder setStringCount(int stringCount);
+
+    public abstract Builder setLanguages(ImmutableList<String> languages);
+
+    public abstract Builder setAbis(ImmutableSet<AbiName> abis);
+
+    public abstract Builder setResourceFileSize(int resourceFileSize);
+
+    public abstract Builder setNativeLibrarySize(int nativeLibrarySize);
+
+    public abstract Builder setDexCount(int dexCount);
+
+    public abstract Builder setAssetPackCount(int assetPackCount);
+
+    public abstract Builder setAssetPackSize(int assetPackSize);
+
+    abstract SyntheticBundleGenerator autoBuild();
+
+    public SyntheticBundleGenerator build() {
+      SyntheticBundleGenerator generator = autoBuild();
+      checkArgument(
+          generator.getModuleCount() >= 1 && generator.getModuleCount() <= MAX_MODULE_COUNT,
+          "Module count must be between 1 and %s, got %s.",
+          MAX_MODULE_COUNT,
+          generator.getModuleCount());
+      checkArgument(generator.getDexCount() >= 1, "A module must have at least one dex file.");
+      return generator;
+    }
+  }
+
+  /** Generates the App Bundle. */
+  public AppBundle generate() {
+    AppBundleBuilder appBundle = new AppBundleBuilder();
+    for (int i = 0; i < getModuleCount(); i++) {
+      appBundle.addModule(generateModule(i));
+    }
+    for (int i = 0; i < getAssetPackCount(); i++) {
+      appBundle.addModule(generateAssetPack(i));
+    }
+    return appBundle.build();
+  }
+
+  /** Generates the App Bundle and writes it to {@code outputPath}. */
+  public void writeTo(Path outputPath) throws IOException {
+    new AppBundleSerializer().writeToDisk(generate(), outputPath);
+  }
+
+  private BundleModule generateModule(int moduleIndex) {
+    String moduleName = moduleIndex == 0 ? "base" : String.format("feature%d", moduleIndex);
+    Random random = new Random(/* seed= */ moduleIndex);
+    BundleModuleBuilder module =
+        new BundleModuleBuilder(moduleName)
+            .setManifest(
+                moduleIndex == 0
+                    ? androidManifest(BenchmarkFixtures.PACKAGE_NAME, withMinSdkVersion(21))
+                    : androidManifestForFeature(
+                        BenchmarkFixtures.PACKAGE_NAME, withInstallTimeDelivery()));
+
+    // Each module needs its own package ID, otherwise resource IDs clash between modules.
+    ResourceTableBuilder resourceTable =
+        new ResourceTableBuilder().addPackage(BenchmarkFixtures.PACKAGE_NAME, 0x7F - moduleIndex);
+    for (int i = 0; i < getDrawableCount(); i++) {
+      String drawableName = String.format("%s_image_%d", moduleName, i);
+      ImmutableMap<Integer, String> pathByDensity =
+          BenchmarkFixtures.DENSITIES.stream()
+              .collect(
+                  toImmutableMap(
+                      ResourcesUtils.DENSITY_ALIAS_TO_DPI_MAP::get,
+                      density -> drawablePath(density, drawableName)));
+      resourceTable.addDrawableResourceForMultipleDensities(drawableName, pathByDensity);
+      for (String path : pathByDensity.values()) {
+        module.addFile(path, randomBytes(random, getResourceFileSize()));
+      }
+    }
+    ImmutableList<String> locales =
+        ImmutableList.<String>builder().add("").addAll(getLanguages()).build();
+    for (int i = 0; i < getStringCount(); i++) {
+      String stringName = String.format("%s_string_%d", moduleName, i);
+      resourceTable.addStringResourceForMultipleLocales(
+          stringName,
+          locales.stream().collect(toImmutableMap(identity(), locale -> stringName + locale)));
+    }
+    module.setResourceTable(resourceTable.build());
+
+    if (!getAbis().isEmpty()) {
+      for (AbiName abi : getAbis()) {
+        module.addFile(
+            String.format("lib/%s/lib%s.so", abi.getPlatformName(), moduleName),
+            randomBytes(random, getNativeLibrarySize()));
+      }
+      module.setNativeConfig(
+          nativeLibraries(
+              getAbis().stream()
+                  .map(
+                      abi ->
+                          targetedNativeDirectory(
+                              "lib/" + abi.getPlatformName(),
+                              nativeDirectoryTargeting(abi.toProto())))
+                  .toArray(TargetedNativeDirectory[]::new)));
+    }
+
+    // Dex files of split APKs are not parsed, so all modules can use the same valid dex file.
+    byte[] dex = TestData.readBytes(DEX_TEST_DATA);
+    for (int i = 0; i < getDexCount(); i++) {
+      module.addFile(i == 0 ? "dex/classes.dex" : String.format("dex/classes%d.dex", i + 1), dex);
+    }
+    return module.build();
+  }
+
+  private BundleModule generateAssetPack(int assetPackIndex) {
+    String assetPackName = String.format("assetpack%d", assetPackIndex);
+    return new BundleModuleBuilder(assetPackName)
+        .setManifest(
+            androidManifestForAssetModule(
+                BenchmarkFixtures.PACKAGE_NAME, withInstallTimeDelivery()))
+        .addFile(
+            String.format("assets/%s/data.bin", assetPackName),
+            // Asset packs are usually made of already compressed content.
+            randomBytes(new Random(/* seed= */ -1 - assetPackIndex), getAssetPackSize()))
+        .build();
+  }
+
+  private static String drawablePath(DensityAlias density, String drawableName) {
+    return String.format("res/drawable-%s/%s.jpg", density.name().toLowerCase(), drawableName);
+  }
+
+  private static byte[] randomBytes(Random random, int size) {
+    byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -26,6 +26,7 @@ import com.android.tools.build.bundletool.commands.GetDeviceSpecCommand;
 import com.android.tools.build.bundletool.commands.GetSizeCommand;
 import com.android.tools.build.bundletool.commands.InstallApksCommand;
 import com.android.tools.build.bundletool.commands.InstallMultiApksCommand;
+import com.android.tools.build.bundletool.commands.ServeCommand;
 import com.android.tools.build.bundletool.commands.ValidateBundleCommand;
 import com.android.tools.build.bundletool.commands.VersionCommand;
 import com.android.tools.build.bundletool.device.AdbServer;
@@ -51,20 +52,29 @@ public class BundleToolMain {
 
   /** Parses the flags and routes to the appropriate command handler. */
   static void main(String[] args, Runtime runtime) {
+    int exitCode;
+    // The ADB bridge cannot be restarted once closed, so it is only closed on exit.
+    try (AdbServer adbServer = DdmlibAdbServer.getInstance()) {
+      exitCode = run(ImmutableList.copyOf(args), adbServer);
+    }
+    // Takes care of shutting down non-daemon threads in internal thread pools.
+    runtime.exit(exitCode);
+  }
+
+  /** Parses the flags and runs the appropriate command handler, returning its exit code. */
+  private static int run(ImmutableList<String> args, AdbServer adbServer) {
     final ParsedFlags flags;
     try {
-      flags = new FlagParser().parse(args);
+      flags = new FlagParser().parse(args.toArray(new String[0]));
     } catch (FlagParser.FlagParseException e) {
       System.err.println("Error while parsing the flags: " + e.getMessage());
-      runtime.exit(1);
-      return;
+      return 1;
     }
     Optional<String> command = flags.getMainCommand();
     if (!command.isPresent()) {
       System.err.println("Error: You have to specify a command.");
       help();
-      runtime.exit(1);
-      return;
+      return 1;
     }
 
     try {
@@ -73,28 +83,19 @@ public class BundleToolMain {
           BuildBundleCommand.fromFlags(flags).execute();
           break;
         case BuildApksCommand.COMMAND_NAME:
-          try (AdbServer adbServer = DdmlibAdbServer.getInstance()) {
-            BuildApksCommand.fromFlags(flags, adbServer).execute();
-          }
+          BuildApksCommand.fromFlags(flags, adbServer).execute();
           break;
         case ExtractApksCommand.COMMAND_NAME:
           ExtractApksCommand.fromFlags(flags).execute();
           break;
         case GetDeviceSpecCommand.COMMAND_NAME:
-          // We have to destroy ddmlib resources at the end of the command.
-          try (AdbServer adbServer = DdmlibAdbServer.getInstance()) {
-            GetDeviceSpecCommand.fromFlags(flags, adbServer).execute();
-          }
+          GetDeviceSpecCommand.fromFlags(flags, adbServer).execute();
           break;
         case InstallApksCommand.COMMAND_NAME:
-          try (AdbServer adbServer = DdmlibAdbServer.getInstance()) {
-            InstallApksCommand.fromFlags(flags, adbServer).execute();
-          }
+          InstallApksCommand.fromFlags(flags, adbServer).execute();
           break;
         case InstallMultiApksCommand.COMMAND_NAME:
-          try (AdbServer adbServer = DdmlibAdbServer.getInstance()) {
-            InstallMultiApksCommand.fromFlags(flags, adbServer).execute();
-          }
+          InstallMultiApksCommand.fromFlags(flags, adbServer).execute();
           break;
         case ValidateBundleCommand.COMMAND_NAME:
           ValidateBundleCommand.fromFlags(flags).execute();
@@ -112,13 +113,18 @@ public class BundleToolMain {
           AddTransparencyCommand.fromFlags(flags).execute();
           break;
         case CheckTransparencyCommand.COMMAND_NAME:
-          try (AdbServer adbServer = DdmlibAdbServer.getInstance()) {
-            CheckTransparencyCommand.fromFlags(flags, adbServer).execute();
-          }
+          CheckTransparencyCommand.fromFlags(flags, adbServer).execute();
+          break;
+        case ServeCommand.COMMAND_NAME:
+          ServeCommand.fromFlags(
+                  flags, System.in, System.out, requestArgs -> run(requestArgs, adbServer))
+              .execute();
           break;
         case HELP_CMD:
           if (flags.getSubCommand().isPresent()) {
-            help(flags.getSubCommand().get(), runtime);
+            if (!printHelp(flags.getSubCommand().get())) {
+              return 1;
+            }
           } else {
             help();
           }
@@ -126,19 +132,15 @@ public class BundleToolMain {
         default:
           System.err.printf("Error: Unrecognized command '%s'.%n%n%n", command.get());
           help();
-          runtime.exit(1);
-          return;
+          return 1;
       }
     } catch (Exception e) {
       System.err.println(
           "[BT:" + BundleToolVersion.getCurrentVersion() + "] Error: " + e.getMessage());
       e.printStackTrace();
-      runtime.exit(1);
-      return;
+      return 1;
     }
-
-    // Takes care of shutting down non-daemon threads in internal thread pools.
-    runtime.exit(0);
+    return 0;
   }
 
   /** Displays a general help. */
@@ -154,7 +156,8 @@ public class BundleToolMain {
             ValidateBundleCommand.help(),
             DumpCommand.help(),
             GetSizeCommand.help(),
-            VersionCommand.help());
+            VersionCommand.help(),
+            ServeCommand.help());
 
     System.out.println("Synopsis: bundletool <command> ...");
     System.out.println();
@@ -165,6 +168,13 @@ public class BundleToolMain {
 
   /** Displays help about a given command. */
   public static void help(String commandName, Runtime runtime) {
+    if (!printHelp(commandName)) {
+      runtime.exit(1);
+    }
+  }
+
+  /** Displays help about a given command, returning false if the command is not recognized. */
+  private static boolean printHelp(String commandName) {
     CommandHelp commandHelp;
     switch (commandName) {
       case BuildBundleCommand.COMMAND_NAME:
@@ -200,13 +210,16 @@ public class BundleToolMain {
       case CheckTransparencyCommand.COMMAND_NAME:
         commandHelp = CheckTransparencyCommand.help();
         break;
+      case ServeCommand.COMMAND_NAME:
+        commandHelp = ServeCommand.help();
+        break;
       default:
         System.err.printf("Error: Unrecognized command '%s'.%n%n%n", commandName);
         help();
-        runtime.exit(1);
-        return;
+        return false;
     }
 
     commandHelp.printDetails(System.out);
+    return true;
   }
 }
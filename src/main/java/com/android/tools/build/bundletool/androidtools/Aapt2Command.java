@@ -17,9 +17,12 @@
 package com.android.tools.build.bundletool.androidtools;
 
 import com.android.tools.build.bundletool.androidtools.CommandExecutor.CommandOptions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.util.Optional;
 
 /** Exposes aapt2 commands used by Bundle Tool. */
 public interface Aapt2Command {
@@ -33,9 +36,46 @@ public interface Aapt2Command {
     throw new UnsupportedOperationException("Not implemented");
   }
 
+  /**
+   * Returns the version of aapt2, if known.
+   *
+   * <p>Output of aapt2 commands is only reused across invocations if the version is known.
+   */
+  default Optional<String> getVersion() {
+    return Optional.empty();
+  }
+
+  /**
+   * Releases the resources held by this command, such as long-lived aapt2 processes.
+   *
+   * <p>The command must not be used afterwards.
+   */
+  default void close() {}
+
+  /**
+   * Creates an {@link Aapt2Command} which runs commands on long-lived "aapt2 daemon" processes
+   * instead of starting a new aapt2 process for each command.
+   *
+   * <p>Daemons are started on demand, one per concurrently executed command up to {@code
+   * maxDaemons}, usually the number of threads executing aapt2 commands. They are stopped once
+   * they have been idle for a while, or when the command is closed.
+   */
+  static Aapt2Command createDaemonPoolFromExecutablePath(Path aapt2Path, int maxDaemons) {
+    return new Aapt2DaemonPool(aapt2Path, maxDaemons);
+  }
+
   static Aapt2Command createFromExecutablePath(Path aapt2Path) {
     return new Aapt2Command() {
       private final Duration timeoutMillis = Duration.ofMinutes(5);
+      private final Supplier<String> version =
+          Suppliers.memoize(
+              () ->
+                  String.join(
+                      "\n",
+                      new DefaultCommandExecutor()
+                          .executeAndCapture(
+                              ImmutableList.of(aapt2Path.toString(), "version"),
+                              CommandOptions.builder().setTimeout(timeoutMillis).build())));
 
       @Override
       public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
@@ -75,6 +115,11 @@ public interface Aapt2Command {
                 ImmutableList.of(aapt2Path.toString(), "dump", "badging", apkPath.toString()),
                 CommandOptions.builder().setTimeout(timeoutMillis).build());
       }
+
+      @Override
+      public Optional<String> getVersion() {
+        return Optional.of(version.get());
+      }
     };
   }
 }
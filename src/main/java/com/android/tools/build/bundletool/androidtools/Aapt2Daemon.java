@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.androidtools;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.stream.Collectors.joining;
+
+import com.android.tools.build.bundletool.model.exceptions.CommandExecutionException;
+import com.android.tools.build.bundletool.model.utils.files.BufferedIo;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A long-lived "aapt2 daemon" process which executes aapt2 commands sent over its standard input.
+ *
+ * <p>Each command is sent as one argument per line followed by an empty line. The daemon prints
+ * "Ready" once started, and "Done" after each command, preceded by "Error" if the command failed.
+ *
+ * <p>Not thread-safe: only one command can be executed at a time.
+ */
+final class Aapt2Daemon {
+  private static final String READY_LINE = "Ready";
+  private static final String DONE_LINE = "Done";
+  private static final String ERROR_LINE = "Error";
+  private static final String QUIT_COMMAND = "quit";
+
+  private static final Duration STARTUP_TIMEOUT = Duration.ofMinutes(1);
+  private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(5);
+
+  private final Process process;
+  private final Writer processInput;
+  /** Lines of the process output, an empty value marks the end of the output. */
+  private final BlockingQueue<Optional<String>> processOutput = new LinkedBlockingQueue<>();
+
+  private volatile long lastUsedNanos = System.nanoTime();
+
+  private Aapt2Daemon(Process process) {
+    this.process = process;
+    this.processInput = new OutputStreamWriter(process.getOutputStream(), UTF_8);
+  }
+
+  /** Starts a new daemon process and waits until it is ready to accept commands. */
+  static Aapt2Daemon start(Path aapt2Path)
+      throws IOException, TimeoutException, InterruptedException {
+    Process process =
+        new ProcessBuilder(aapt2Path.toString(), "daemon").redirectErrorStream(true).start();
+    Aapt2Daemon daemon = new Aapt2Daemon(process);
+    Thread outputReader =
+        new Thread(daemon::readProcessOutput, "aapt2-daemon-output-" + process.hashCode());
+    outputReader.setDaemon(true);
+    outputReader.start();
+
+    try {
+      ImmutableList<String> output = daemon.readOutputUntil(READY_LINE, STARTUP_TIMEOUT);
+      if (!Iterables.getLast(output, "").equals(READY_LINE)) {
+        throw new IOException("aapt2 daemon exited during startup: " + output);
+      }
+    } catch (IOException | TimeoutException | InterruptedException | RuntimeException e) {
+      daemon.destroy();
+      throw e;
+    }
+    return daemon;
+  }
+
+  /**
+   * Executes a single aapt2 command.
+   *
+   * <p>The daemon can only be used afterwards if the command completed or aapt2 reported its
+   * failure. In all other cases the reply to the command may still be pending.
+   *
+   * @throws CommandExecutionException if aapt2 reported a failure of the command, the daemon can
+   *     still be used afterwards
+   * @throws IOException if the daemon process is no longer usable
+   * @throws TimeoutException if the command did not complete within {@code timeout}
+   * @throws InterruptedException if interrupted while waiting for the reply to the command
+   */
+  void execute(ImmutableList<String> arguments, Duration timeout)
+      throws IOException, TimeoutException, InterruptedException {
+    lastUsedNanos = System.nanoTime();
+    for (String argument : arguments) {
+      processInput.write(argument);
+      processInput.write('\n');
+    }
+    processInput.write('\n');
+    processInput.flush();
+
+    ImmutableList<String> output = readOutputUntil(DONE_LINE, timeout);
+    lastUsedNanos = System.nanoTime();
+    if (!Iterables.getLast(output, "").equals(DONE_LINE)) {
+      throw new IOException(
+          String.format("aapt2 daemon exited while executing command %s: %s", arguments, output));
+    }
+    if (output.contains(ERROR_LINE)) {
+      throw CommandExecutionException.builder()
+          .withInternalMessage(
+              "Command '%s' didn't terminate successfully:\n%s",
+              arguments,
+              output.stream()
+                  .filter(line -> !line.equals(ERROR_LINE) && !line.equals(DONE_LINE))
+                  .collect(joining("\n")))
+          .build();
+    }
+  }
+
+  boolean isAlive() {
+    return process.isAlive();
+  }
+
+  /** Returns the value of {@link System#nanoTime()} when the daemon was used last time. */
+  long getLastUsedNanos() {
+    return lastUsedNanos;
+  }
+
+  /** Asks the daemon to quit, forcibly terminating it if it does not quit in time. */
+  void stop() {
+    try {
+      processInput.write(QUIT_COMMAND + "\n\n");
+      processInput.close();
+      if (process.waitFor(SHUTDOWN_TIMEOUT.toMillis(), MILLISECONDS)) {
+        return;
+      }
+    } catch (IOException e) {
+      // The process is already gone or not responding, terminate it below.
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    destroy();
+  }
+
+  void destroy() {
+    process.destroyForcibly();
+  }
+
+  /**
+   * Returns lines printed by the process up to and including {@code lastLine}, or up to the end of
+   * the output if the process exited before.
+   */
+  private ImmutableList<String> readOutputUntil(String lastLine, Duration timeout)
+      throws TimeoutException, InterruptedException {
+    ImmutableList.Builder<String> output = ImmutableList.builder();
+    long deadlineNanos = System.nanoTime() + timeout.toNanos();
+    while (true) {
+      Optional<String> line = processOutput.poll(deadlineNanos - System.nanoTime(), NANOSECONDS);
+      if (line == null) {
+        throw new TimeoutException("aapt2 daemon did not respond in " + timeout);
+      }
+      if (!line.isPresent()) {
+        // Keep the end-of-output marker for subsequent reads.
+        processOutput.add(line);
+        return output.build();
+      }
+      output.add(line.get());
+      if (line.get().equals(lastLine)) {
+        return output.build();
+      }
+    }
+  }
+
+  private void readProcessOutput() {
+    try (BufferedReader reader = BufferedIo.reader(process.getInputStream())) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        processOutput.add(Optional.of(line));
+      }
+    } catch (IOException e) {
+      // Treated as the end of the output, the daemon is discarded by the pool.
+    } finally {
+      processOutput.add(Optional.empty());
+    }
+  }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.androidtools;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.android.tools.build.bundletool.model.exceptions.CommandExecutionException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.Nullable;
+
+/**
+ * {@link Aapt2Command} which executes commands on a pool of long-lived "aapt2 daemon" processes,
+ * avoiding the cost of starting a new aapt2 process for each command.
+ *
+ * <p>Daemons are started lazily, only when all running daemons are busy, up to a maximum number of
+ * daemons, usually the number of threads executing aapt2 commands. Commands wait for a daemon to
+ * become available beyond that. Daemons which have not been used for a while are stopped, all of
+ * them are stopped when the pool is closed.
+ *
+ * <p>A daemon whose process died is discarded and the command is retried once on a new daemon. A
+ * daemon is only reused after it replied to its command, it is discarded if the command was
+ * interrupted or timed out.
+ */
+final class Aapt2DaemonPool implements Aapt2Command {
+  private static final Duration COMMAND_TIMEOUT = Duration.ofMinutes(5);
+  private static final Duration KEEP_ALIVE = Duration.ofSeconds(30);
+  private static final int MAX_ATTEMPTS = 2;
+
+  /** Stops idle daemons of all pools. */
+  private static final ScheduledExecutorService idleDaemonsReaper =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("aapt2-daemon-reaper").build());
+
+  private final Path aapt2Path;
+  private final int maxDaemons;
+  private final Aapt2Command fallbackCommand;
+
+  /** Idle daemons, the most recently used first. Also guards the fields below. */
+  private final Deque<Aapt2Daemon> idleDaemons = new ArrayDeque<>();
+
+  /** Number of daemons which are idle, busy or being started. */
+  private int daemonCount = 0;
+
+  private boolean closed = false;
+
+  /** Pending sweep stopping daemons idle for too long, at most one per pool. */
+  @Nullable private ScheduledFuture<?> pendingSweep;
+
+  Aapt2DaemonPool(Path aapt2Path, int maxDaemons) {
+    checkArgument(maxDaemons > 0, "The maximum number of aapt2 daemons must be positive.");
+    this.aapt2Path = aapt2Path;
+    this.maxDaemons = maxDaemons;
+    this.fallbackCommand = Aapt2Command.createFromExecutablePath(aapt2Path);
+  }
+
+  @Override
+  public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
+    execute(
+        ImmutableList.of(
+            "convert",
+            "--output-format",
+            "binary",
+            "-o",
+            binaryApk.toString(),
+            protoApk.toString()));
+  }
+
+  @Override
+  public void optimizeToSparseResourceTables(Path originalApk, Path outputApk) {
+    execute(
+        ImmutableList.of(
+            "optimize",
+            "--enable-sparse-encoding",
+            "-o",
+            outputApk.toString(),
+            originalApk.toString()));
+  }
+
+  @Override
+  public ImmutableList<String> dumpBadging(Path apkPath) {
+    // Output of the command is needed, which the daemon protocol mixes with its own messages.
+    return fallbackCommand.dumpBadging(apkPath);
+  }
+
+  @Override
+  public Optional<String> getVersion() {
+    return fallbackCommand.getVersion();
+  }
+
+  /** Stops all daemons. Daemons executing a command are stopped once the command completes. */
+  @Override
+  public void close() {
+    ImmutableList<Aapt2Daemon> daemonsToStop;
+    synchronized (idleDaemons) {
+      closed = true;
+      if (pendingSweep != null) {
+        pendingSweep.cancel(/* mayInterruptIfRunning= */ false);
+        pendingSweep = null;
+      }
+      daemonsToStop = ImmutableList.copyOf(idleDaemons);
+      idleDaemons.clear();
+      daemonCount -= daemonsToStop.size();
+      idleDaemons.notifyAll();
+    }
+    daemonsToStop.forEach(Aapt2Daemon::stop);
+  }
+
+  private void execute(ImmutableList<String> arguments) {
+    for (int attempt = 1; ; attempt++) {
+      Aapt2Daemon daemon = acquireDaemon();
+      try {
+        daemon.execute(arguments, COMMAND_TIMEOUT);
+        releaseDaemon(daemon);
+        return;
+      } catch (CommandExecutionException e) {
+        // aapt2 replied with an error, the daemon is ready for the next command.
+        releaseDaemon(daemon);
+        throw e;
+      } catch (InterruptedException e) {
+        // The reply to the command is still pending, it must not be read by the next command.
+        discardDaemon(daemon);
+        Thread.currentThread().interrupt();
+        throw CommandExecutionException.builder()
+            .withInternalMessage("Interrupted while executing aapt2 command: %s", arguments)
+            .withCause(e)
+            .build();
+      } catch (TimeoutException e) {
+        discardDaemon(daemon);
+        throw CommandExecutionException.builder()
+            .withInternalMessage("Command timed out: %s", arguments)
+            .withCause(e)
+            .build();
+      } catch (IOException e) {
+        discardDaemon(daemon);
+        if (attempt == MAX_ATTEMPTS) {
+          throw CommandExecutionException.builder()
+              .withInternalMessage("Error when executing aapt2 command: %s", arguments)
+              .withCause(e)
+              .build();
+        }
+      } catch (RuntimeException e) {
+        discardDaemon(daemon);
+        throw e;
+      }
+    }
+  }
+
+  private Aapt2Daemon acquireDaemon() {
+    synchronized (idleDaemons) {
+      while (true) {
+        checkState(!closed, "The aapt2 daemon pool is closed.");
+        while (!idleDaemons.isEmpty()) {
+          Aapt2Daemon daemon = idleDaemons.removeFirst();
+          if (daemon.isAlive()) {
+            return daemon;
+          }
+          daemon.destroy();
+          daemonCount--;
+        }
+        if (daemonCount < maxDaemons) {
+          daemonCount++;
+          break;
+        }
+        try {
+          idleDaemons.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw CommandExecutionException.builder()
+              .withInternalMessage("Interrupted while waiting for an aapt2 daemon.")
+              .withCause(e)
+              .build();
+        }
+      }
+    }
+    try {
+      return Aapt2Daemon.start(aapt2Path);
+    } catch (IOException | TimeoutException | InterruptedException | RuntimeException e) {
+      if (e instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (idleDaemons) {
+        daemonCount--;
+        idleDaemons.notifyAll();
+      }
+      throw CommandExecutionException.builder()
+          .withInternalMessage("Failed to start aapt2 daemon: %s", aapt2Path)
+          .withCause(e)
+          .build();
+    }
+  }
+
+  private void releaseDaemon(Aapt2Daemon daemon) {
+    synchronized (idleDaemons) {
+      if (!closed) {
+        idleDaemons.addFirst(daemon);
+        idleDaemons.notifyAll();
+        if (pendingSweep == null) {
+          scheduleSweep(KEEP_ALIVE.toNanos());
+        }
+        return;
+      }
+      daemonCount--;
+    }
+    daemon.stop();
+  }
+
+  /** Destroys a daemon which can no longer be used, making room for a new one. */
+  private void discardDaemon(Aapt2Daemon daemon) {
+    daemon.destroy();
+    synchronized (idleDaemons) {
+      daemonCount--;
+      idleDaemons.notifyAll();
+    }
+  }
+
+  /** Must be called while holding the lock on {@link #idleDaemons}. */
+  private void scheduleSweep(long delayNanos) {
+    pendingSweep = idleDaemonsReaper.schedule(this::stopIdleDaemons, delayNanos, NANOSECONDS);
+  }
+
+  private void stopIdleDaemons() {
+    long idleSinceNanos = System.nanoTime() - KEEP_ALIVE.toNanos();
+    ImmutableList.Builder<Aapt2Daemon> daemonsToStop = ImmutableList.builder();
+    synchronized (idleDaemons) {
+      pendingSweep = null;
+      // Least recently used daemons are at the end of the queue.
+      Iterator<Aapt2Daemon> daemons = idleDaemons.descendingIterator();
+      while (daemons.hasNext()) {
+        Aapt2Daemon daemon = daemons.next();
+        if (daemon.getLastUsedNanos() - idleSinceNanos > 0) {
+          break;
+        }
+        daemons.remove();
+        daemonCount--;
+        daemonsToStop.add(daemon);
+      }
+      if (!closed && !idleDaemons.isEmpty()) {
+        // Sweeps again once the least recently used of the remaining daemons becomes stale.
+        scheduleSweep(idleDaemons.getLast().getLastUsedNanos() - idleSinceNanos);
+      }
+    }
+    daemonsToStop.build().forEach(Aapt2Daemon::stop);
+  }
+}
@@ -23,6 +23,7 @@ import static com.android.tools.build.bundletool.commands.BuildApksCommand.ApkBu
 import static com.android.tools.build.bundletool.commands.BuildApksCommand.OutputFormat.APK_SET;
 import static com.android.tools.build.bundletool.commands.BuildApksCommand.OutputFormat.DIRECTORY;
 import static com.android.tools.build.bundletool.commands.CommandUtils.ANDROID_SERIAL_VARIABLE;
+import static com.android.tools.build.bundletool.commands.ExtractApksCommand.ALL_MODULES_SHORTCUT;
 import static com.android.tools.build.bundletool.model.utils.BundleParser.getModulesZip;
 import static com.android.tools.build.bundletool.model.utils.SdkToolsLocator.ANDROID_HOME_VARIABLE;
 import static com.android.tools.build.bundletool.model.utils.SdkToolsLocator.SYSTEM_PATH_VARIABLE;
@@ -32,6 +33,7 @@ import static com.android.tools.build.bundletool.model.utils.files.FilePrecondit
 import static com.android.tools.build.bundletool.model.utils.files.FilePreconditions.checkFileHasExtension;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
 
 import com.android.apksig.SigningCertificateLineage;
 import com.android.apksig.apk.ApkFormatException;
@@ -48,9 +50,11 @@ import com.android.tools.build.bundletool.device.DeviceSpecParser;
 import com.android.tools.build.bundletool.flags.Flag;
 import com.android.tools.build.bundletool.flags.ParsedFlags;
 import com.android.tools.build.bundletool.io.TempDirectory;
+import com.android.tools.build.bundletool.io.Tracer;
 import com.android.tools.build.bundletool.model.ApkListener;
 import com.android.tools.build.bundletool.model.ApkModifier;
 import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.model.BundleModuleName;
 import com.android.tools.build.bundletool.model.KeystoreProperties;
 import com.android.tools.build.bundletool.model.OptimizationDimension;
 import com.android.tools.build.bundletool.model.Password;
@@ -62,7 +66,9 @@ import com.android.tools.build.bundletool.model.SourceStamp;
 import com.android.tools.build.bundletool.model.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.model.exceptions.InvalidBundleException;
 import com.android.tools.build.bundletool.model.exceptions.InvalidCommandException;
+import com.android.tools.build.bundletool.model.utils.BundleZipReader;
 import com.android.tools.build.bundletool.model.utils.DefaultSystemEnvironmentProvider;
+import com.android.tools.build.bundletool.model.utils.ModuleDependenciesUtils;
 import com.android.tools.build.bundletool.model.utils.SystemEnvironmentProvider;
 import com.android.tools.build.bundletool.model.utils.files.FileUtils;
 import com.android.tools.build.bundletool.preprocessors.AppBundlePreprocessorManager;
@@ -79,6 +85,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.io.Closer;
 import com.google.common.io.MoreFiles;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -95,6 +102,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Optional;
 import java.util.concurrent.Executors;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.zip.ZipException;
@@ -106,6 +114,8 @@ public abstract class BuildApksCommand {
 
   private static final int DEFAULT_THREAD_POOL_SIZE = 4;
 
+  private static final int DEFAULT_MAX_CONCURRENT_DEX_MERGES = 2;
+
   public static final String COMMAND_NAME = "build-apks";
 
   private static final Logger logger = Logger.getLogger(BuildApksCommand.class.getName());
@@ -173,6 +183,30 @@ public abstract class BuildApksCommand {
 
   private static final Flag<Path> P7ZIP_PATH_FLAG = Flag.path("7zip");
 
+  private static final Flag<Path> COMPRESSION_CACHE_DIR_FLAG = Flag.path("compression-cache-dir");
+
+  private static final Flag<Boolean> REUSE_BUNDLE_COMPRESSION_FLAG =
+      Flag.booleanFlag("reuse-bundle-compression");
+
+  private static final Flag<Boolean> AAPT2_DAEMONS_FLAG = Flag.booleanFlag("aapt2-daemons");
+
+  private static final Flag<Path> AAPT2_CACHE_DIR_FLAG = Flag.path("aapt2-cache-dir");
+
+  private static final Flag<Boolean> IN_PROCESS_RESOURCE_CONVERSION_FLAG =
+      Flag.booleanFlag("in-process-resource-conversion");
+
+  private static final Flag<Path> INCREMENTAL_FROM_FLAG = Flag.path("incremental-from");
+
+  private static final Flag<Integer> MAX_CONCURRENT_DEX_MERGES_FLAG =
+      Flag.positiveInteger("max-concurrent-dex-merges");
+
+  private static final Flag<Path> DEX_MERGING_CACHE_DIR_FLAG = Flag.path("dex-merging-cache-dir");
+
+  private static final Flag<Integer> TASK_MEMORY_BUDGET_MB_FLAG =
+      Flag.positiveInteger("task-memory-budget-mb");
+
+  private static final Flag<Path> TRACE_OUTPUT_FLAG = Flag.path("trace-output");
+
   // Signing-related flags: should match flags from apksig library.
   private static final Flag<Path> KEYSTORE_FLAG = Flag.path("ks");
   private static final Flag<String> KEY_ALIAS_FLAG = Flag.string("ks-key-alias");
@@ -244,6 +278,14 @@ public abstract class BuildApksCommand {
 
   public abstract Optional<Aapt2Command> getAapt2Command();
 
+  /**
+   * Whether the {@link Aapt2Command} has been created by bundletool, otherwise provided by the
+   * client.
+   *
+   * <p>If true, the {@link Aapt2Command} is closed at the end of execution of this command.
+   */
+  abstract boolean isAapt2CommandCreatedByBundleTool();
+
   public abstract Optional<SigningConfiguration> getSigningConfiguration();
 
   public abstract Optional<SigningConfigurationProvider> getSigningConfigurationProvider();
@@ -258,6 +300,9 @@ public abstract class BuildApksCommand {
 
   abstract boolean isExecutorServiceCreatedByBundleTool();
 
+  /** Number of threads of the executor service, if created by bundletool with --max-threads. */
+  abstract Optional<Integer> getInternalExecutorServiceThreads();
+
   public abstract OutputFormat getOutputFormat();
 
 
@@ -279,6 +324,38 @@ public abstract class BuildApksCommand {
 
   public abstract Optional<P7ZipCommand> getP7ZipCommand();
 
+  public abstract Optional<Path> getCompressionCacheDirectory();
+
+  public abstract boolean getReuseBundleCompression();
+
+  public abstract boolean getAapt2DaemonsEnabled();
+
+  public abstract Optional<Path> getAapt2CacheDirectory();
+
+  /**
+   * Maximum number of aapt2 daemons, so that there are no more daemons than tasks which can run in
+   * parallel.
+   */
+  int getMaxAapt2Daemons() {
+    if (isExecutorServiceCreatedByBundleTool()) {
+      return getInternalExecutorServiceThreads().orElse(DEFAULT_THREAD_POOL_SIZE);
+    }
+    // The parallelism of an executor service provided by the client is unknown.
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  public abstract boolean getInProcessResourceConversion();
+
+  public abstract Optional<Path> getIncrementalFromApkSet();
+
+  public abstract int getMaxConcurrentDexMerges();
+
+  public abstract Optional<Path> getDexMergingCacheDirectory();
+
+  public abstract Optional<Integer> getTaskMemoryBudgetMegabytes();
+
+  public abstract Optional<Path> getTraceOutput();
+
   public abstract ImmutableSet<Path> getRuntimeEnabledSdkBundlePaths();
 
   public abstract Optional<String> getAppStorePackageName();
@@ -291,6 +368,11 @@ public abstract class BuildApksCommand {
         .setGenerateOnlyForConnectedDevice(false)
         .setOutputFormat(APK_SET)
         .setVerbose(false)
+        .setReuseBundleCompression(false)
+        .setAapt2DaemonsEnabled(false)
+        .setAapt2CommandCreatedByBundleTool(false)
+        .setInProcessResourceConversion(false)
+        .setMaxConcurrentDexMerges(DEFAULT_MAX_CONCURRENT_DEX_MERGES)
         .setOptimizationDimensions(ImmutableSet.of())
         .setModules(ImmutableSet.of())
         .setExtraValidators(ImmutableList.of())
@@ -352,6 +434,14 @@ public abstract class BuildApksCommand {
      */
     public abstract Builder setGenerateOnlyForConnectedDevice(boolean onlyForConnectedDevice);
 
+    /**
+     * Sets the names of the modules to include in the generated APK Set in modes {@code universal}
+     * and {@code system}.
+     *
+     * <p>In {@code universal} mode, the other modules are not read whenever they cannot affect the
+     * generated APKs. Only the paths of their files are then validated, so that an unrequested
+     * module whose manifest or protos are invalid does not make the command fail.
+     */
     public abstract Builder setModules(ImmutableSet<String> modules);
 
     /** Sets the {@link DeviceSpec} for which the only the matching APKs will be generated. */
@@ -393,6 +483,14 @@ public abstract class BuildApksCommand {
     /** Provides a wrapper around the execution of the aapt2 command. */
     public abstract Builder setAapt2Command(Aapt2Command aapt2Command);
 
+    /**
+     * Sets whether the {@link Aapt2Command} has been created by bundletool, otherwise provided by
+     * the client.
+     *
+     * <p>If true, the {@link Aapt2Command} is closed at the end of execution of this command.
+     */
+    abstract Builder setAapt2CommandCreatedByBundleTool(boolean value);
+
     /**
      * Sets the signing configuration to be used for all generated APKs.
      *
@@ -449,6 +547,8 @@ public abstract class BuildApksCommand {
      */
     abstract Builder setExecutorServiceCreatedByBundleTool(boolean value);
 
+    abstract Builder setInternalExecutorServiceThreads(int threads);
+
     /**
      * If false will extract the APK set to the output directory without creating the final archive.
      *
@@ -501,6 +601,104 @@ public abstract class BuildApksCommand {
     /** Provides a wrapper around the execution of the 7zip commands. */
     public abstract Builder setP7ZipCommand(P7ZipCommand value);
 
+    /**
+     * Sets the directory of the persistent cache of compressed entries.
+     *
+     * <p>Optional. If set, compressed form of entries is stored in this directory and reused by
+     * subsequent invocations instead of compressing the same content again. The directory can be
+     * shared between invocations running in parallel.
+     */
+    public abstract Builder setCompressionCacheDirectory(Path compressionCacheDirectory);
+
+    /**
+     * Sets whether entries which are already deflated inside the bundle should be copied into APKs
+     * in their compressed form as-is instead of being decompressed and compressed again.
+     *
+     * <p>Optional, defaults to {@code false}. Entries are then compressed with the compression
+     * level used when the bundle was built, which may differ from the level bundletool uses. Has no
+     * effect if the bundle requires 7zip compression.
+     */
+    public abstract Builder setReuseBundleCompression(boolean reuseBundleCompression);
+
+    /**
+     * Sets whether aapt2 extracted from the bundletool jar runs as a pool of long-lived daemon
+     * processes instead of a new process per command.
+     *
+     * <p>Optional, defaults to {@code false}. There are at most as many daemons as threads of the
+     * executor service. Has no effect if an {@link Aapt2Command} is set explicitly, use {@link
+     * Aapt2Command#createDaemonPoolFromExecutablePath} in that case.
+     */
+    public abstract Builder setAapt2DaemonsEnabled(boolean aapt2DaemonsEnabled);
+
+    /**
+     * Sets the directory of the persistent cache of APKs converted by aapt2.
+     *
+     * <p>Optional. If set, resources of splits whose manifest and resources are unchanged since a
+     * previous invocation are not converted by aapt2 again. The cache is only used if the version
+     * of aapt2 is known, see {@link Aapt2Command#getVersion}. The directory can be shared between
+     * invocations running in parallel.
+     */
+    public abstract Builder setAapt2CacheDirectory(Path aapt2CacheDirectory);
+
+    /**
+     * Sets whether resources are converted from proto to binary format in-process instead of by
+     * aapt2.
+     *
+     * <p>Optional, defaults to {@code false}. The output is identical to the output of aapt2.
+     * Splits with resources which are not supported in-process (e.g. locale qualifiers, sparse
+     * encoding, overlayables) are still converted by aapt2.
+     */
+    public abstract Builder setInProcessResourceConversion(boolean inProcessResourceConversion);
+
+    /**
+     * Sets the APK set produced by a previous invocation, from which APKs whose inputs are
+     * unchanged are copied instead of being generated again.
+     *
+     * <p>Optional. If set, the fingerprint of the inputs of each APK is stored in the generated
+     * APK set, so that it can itself be passed to a later invocation. Inputs of an APK include the
+     * content of the split, the signing configuration and the versions of bundletool and aapt2.
+     * All APKs are generated if the previous APK set does not exist, was not generated with this
+     * option or if the version of aapt2 is unknown, see {@link Aapt2Command#getVersion}.
+     */
+    public abstract Builder setIncrementalFromApkSet(Path previousApkSet);
+
+    /**
+     * Sets the maximum number of dex merges run at the same time when generating standalone APKs.
+     *
+     * <p>Optional, defaults to 2. Dex files are merged with D8 for APKs targeting pre-L devices,
+     * and each merge holds all classes of the app in memory.
+     */
+    public abstract Builder setMaxConcurrentDexMerges(int maxConcurrentDexMerges);
+
+    /**
+     * Sets the directory of the persistent cache of merged dex files.
+     *
+     * <p>Optional. If set, dex files of standalone APKs targeting pre-L devices are not merged
+     * again when the dex files, main dex list, proguard map, minSdkVersion and debuggable flag are
+     * unchanged since a previous invocation. The cache is only used if the version of the dex
+     * merger is known. The directory can be shared between invocations running in parallel.
+     */
+    public abstract Builder setDexMergingCacheDirectory(Path dexMergingCacheDirectory);
+
+    /**
+     * Sets the heap memory, in megabytes, that memory-intensive tasks running concurrently on the
+     * executor service may use, such as compression of large entries and resource conversion.
+     *
+     * <p>Optional, defaults to half of the maximum heap size. Tasks wait for memory to be released
+     * when their estimated footprint does not fit into the budget, so that a high number of
+     * threads does not lead to an {@link OutOfMemoryError}.
+     */
+    public abstract Builder setTaskMemoryBudgetMegabytes(int taskMemoryBudgetMegabytes);
+
+    /**
+     * Sets the file where the time spent in each phase of the command and in each per-APK task is
+     * written, in the Chrome trace event format.
+     *
+     * <p>Optional. The trace can be opened in {@code chrome://tracing} or Perfetto to see which
+     * phases are on the critical path and how busy the threads of the executor service are.
+     */
+    public abstract Builder setTraceOutput(Path traceOutput);
+
     /**
      * Provides paths to {@link SdkBundle}s for the runtime-enabled SDKs that the {@link AppBundle}
      * depends on. Each file must have extension ".asb".
@@ -533,6 +731,23 @@ public abstract class BuildApksCommand {
           .ifPresent(this::setMinSdkForAdditionalVariantWithV3Rotation);
 
       BuildApksCommand command = autoBuild();
+      if (command.getTaskMemoryBudgetMegabytes().isPresent()
+          && command.getTaskMemoryBudgetMegabytes().get() < 1) {
+        throw InvalidCommandException.builder()
+            .withInternalMessage(
+                "The task memory budget must be positive, got %d MB.",
+                command.getTaskMemoryBudgetMegabytes().get())
+            .build();
+      }
+
+      if (command.getMaxConcurrentDexMerges() < 1) {
+        throw InvalidCommandException.builder()
+            .withInternalMessage(
+                "The maximum number of concurrent dex merges must be positive, got %d.",
+                command.getMaxConcurrentDexMerges())
+            .build();
+      }
+
       if (!command.getOptimizationDimensions().isEmpty()
           && !command.getApkBuildMode().equals(DEFAULT)) {
         throw InvalidCommandException.builder()
@@ -663,11 +878,37 @@ public abstract class BuildApksCommand {
     // Optional arguments.
     OUTPUT_FORMAT_FLAG.getValue(flags).ifPresent(buildApksCommand::setOutputFormat);
     OVERWRITE_OUTPUT_FLAG.getValue(flags).ifPresent(buildApksCommand::setOverwriteOutput);
+    AAPT2_DAEMONS_FLAG.getValue(flags).ifPresent(buildApksCommand::setAapt2DaemonsEnabled);
+    boolean aapt2DaemonsEnabled = AAPT2_DAEMONS_FLAG.getValue(flags).orElse(false);
     AAPT2_PATH_FLAG
         .getValue(flags)
         .ifPresent(
-            aapt2Path ->
-                buildApksCommand.setAapt2Command(Aapt2Command.createFromExecutablePath(aapt2Path)));
+            aapt2Path -> {
+              if (aapt2DaemonsEnabled) {
+                int maxDaemons = MAX_THREADS_FLAG.getValue(flags).orElse(DEFAULT_THREAD_POOL_SIZE);
+                buildApksCommand
+                    .setAapt2Command(
+                        Aapt2Command.createDaemonPoolFromExecutablePath(aapt2Path, maxDaemons))
+                    .setAapt2CommandCreatedByBundleTool(true);
+              } else {
+                buildApksCommand.setAapt2Command(Aapt2Command.createFromExecutablePath(aapt2Path));
+              }
+            });
+    AAPT2_CACHE_DIR_FLAG.getValue(flags).ifPresent(buildApksCommand::setAapt2CacheDirectory);
+    IN_PROCESS_RESOURCE_CONVERSION_FLAG
+        .getValue(flags)
+        .ifPresent(buildApksCommand::setInProcessResourceConversion);
+    INCREMENTAL_FROM_FLAG.getValue(flags).ifPresent(buildApksCommand::setIncrementalFromApkSet);
+    MAX_CONCURRENT_DEX_MERGES_FLAG
+        .getValue(flags)
+        .ifPresent(buildApksCommand::setMaxConcurrentDexMerges);
+    DEX_MERGING_CACHE_DIR_FLAG
+        .getValue(flags)
+        .ifPresent(buildApksCommand::setDexMergingCacheDirectory);
+    TASK_MEMORY_BUDGET_MB_FLAG
+        .getValue(flags)
+        .ifPresent(buildApksCommand::setTaskMemoryBudgetMegabytes);
+    TRACE_OUTPUT_FLAG.getValue(flags).ifPresent(buildApksCommand::setTraceOutput);
 
     BUILD_MODE_FLAG.getValue(flags).ifPresent(buildApksCommand::setApkBuildMode);
     LOCAL_TESTING_MODE_FLAG.getValue(flags).ifPresent(buildApksCommand::setLocalTestingMode);
@@ -677,7 +918,8 @@ public abstract class BuildApksCommand {
             maxThreads ->
                 buildApksCommand
                     .setExecutorService(createInternalExecutorService(maxThreads))
-                    .setExecutorServiceCreatedByBundleTool(true));
+                    .setExecutorServiceCreatedByBundleTool(true)
+                    .setInternalExecutorServiceThreads(maxThreads));
     OPTIMIZE_FOR_FLAG.getValue(flags).ifPresent(buildApksCommand::setOptimizationDimensions);
 
     populateSigningConfigurationFromFlags(buildApksCommand, flags, out, systemEnvironmentProvider);
@@ -734,6 +976,13 @@ public abstract class BuildApksCommand {
                   P7ZipCommand.defaultP7ZipCommand(p7zipPath, numThreads));
             });
 
+    COMPRESSION_CACHE_DIR_FLAG
+        .getValue(flags)
+        .ifPresent(buildApksCommand::setCompressionCacheDirectory);
+    REUSE_BUNDLE_COMPRESSION_FLAG
+        .getValue(flags)
+        .ifPresent(buildApksCommand::setReuseBundleCompression);
+
     RUNTIME_ENABLED_SDK_BUNDLE_LOCATIONS_FLAG
         .getValue(flags)
         .ifPresent(buildApksCommand::setRuntimeEnabledSdkBundlePaths);
@@ -755,31 +1004,68 @@ public abstract class BuildApksCommand {
       FileUtils.createDirectories(outputDirectory);
     }
 
-    try (TempDirectory tempDir = new TempDirectory(getClass().getSimpleName());
-        ZipFile bundleZip = new ZipFile(getBundlePath().toFile());
+    Tracer tracer = getTraceOutput().isPresent() ? Tracer.create() : Tracer.disabled();
+    try (Tracer.Span commandSpan = tracer.startSpan("build-apks");
+        TempDirectory tempDir = new TempDirectory(getClass().getSimpleName());
+        BundleZipReader bundleZip = BundleZipReader.open(getBundlePath());
         Closer closer = Closer.create()) {
       AppBundleValidator bundleValidator = AppBundleValidator.create(getExtraValidators());
-      bundleValidator.validateFile(bundleZip);
+      try (Tracer.Span span = tracer.startSpan("validate-bundle-file")) {
+        bundleValidator.validateFile(bundleZip);
+      }
 
-      AppBundle appBundle = AppBundle.buildFromZip(bundleZip);
-      bundleValidator.validate(appBundle);
+      AppBundle appBundle;
+      try (Tracer.Span span = tracer.startSpan("read-bundle")) {
+        appBundle = AppBundle.buildFromZip(bundleZip);
+        span.addArg("modules", appBundle.getModuleNames().size());
+      }
+      if (onlyRequestedModulesAffectOutput(appBundle, bundleZip)) {
+        ImmutableSet<BundleModuleName> requestedModules =
+            ModuleDependenciesUtils.getModuleNamesIncludingDependencies(
+                appBundle,
+                getModules().stream().map(BundleModuleName::create).collect(toImmutableSet()));
+        // Other modules are never parsed nor preprocessed, so only the paths of their files are
+        // validated, on top of their zip entries and the presence of their manifest.
+        try (Tracer.Span span = tracer.startSpan("validate-unrequested-module-files")) {
+          bundleValidator.validateModuleFiles(
+              bundleZip,
+              Sets.difference(appBundle.getModuleNames(), requestedModules).immutableCopy());
+        }
+        appBundle = appBundle.toBuilder().retainModules(requestedModules).build();
+      }
+      try (Tracer.Span span = tracer.startSpan("validate-bundle")) {
+        bundleValidator.validate(appBundle);
+      }
 
-      ImmutableMap<String, SdkBundle> sdkBundles =
-          getValidatedSdkBundlesByPackageName(closer, tempDir);
-      validateSdkBundlesMatchAppBundleDependencies(appBundle, sdkBundles);
+      ImmutableMap<String, SdkBundle> sdkBundles;
+      try (Tracer.Span span = tracer.startSpan("validate-sdk-bundles")) {
+        sdkBundles = getValidatedSdkBundlesByPackageName(closer, tempDir);
+        validateSdkBundlesMatchAppBundleDependencies(appBundle, sdkBundles);
+      }
 
-      AppBundlePreprocessorManager appBundlePreprocessorManager =
-          DaggerAppBundlePreprocessorComponent.builder().setBuildApksCommand(this).build().create();
-      AppBundle preprocessedAppBundle = appBundlePreprocessorManager.processAppBundle(appBundle);
+      AppBundle preprocessedAppBundle;
+      try (Tracer.Span span = tracer.startSpan("preprocess-bundle")) {
+        AppBundlePreprocessorManager appBundlePreprocessorManager =
+            DaggerAppBundlePreprocessorComponent.builder()
+                .setBuildApksCommand(this)
+                .build()
+                .create();
+        preprocessedAppBundle = appBundlePreprocessorManager.processAppBundle(appBundle);
+      }
 
-      BuildApksManager buildApksManager =
+      BuildApksManagerComponent buildApksManagerComponent =
           DaggerBuildApksManagerComponent.builder()
               .setBuildApksCommand(this)
               .setTempDirectory(tempDir)
               .setAppBundle(preprocessedAppBundle)
-              .build()
-              .create();
-      buildApksManager.execute();
+              .setTracer(tracer)
+              .build();
+      if (getAapt2DaemonsEnabled()
+          && (!getAapt2Command().isPresent() || isAapt2CommandCreatedByBundleTool())) {
+        // Stops the aapt2 daemons before the temporary directory holding aapt2 is deleted.
+        closer.register(buildApksManagerComponent.aapt2Command()::close);
+      }
+      buildApksManagerComponent.create().execute();
     } catch (ZipException e) {
       throw InvalidBundleException.builder()
           .withCause(e)
@@ -792,11 +1078,46 @@ public abstract class BuildApksCommand {
       if (isExecutorServiceCreatedByBundleTool()) {
         getExecutorService().shutdown();
       }
+      // The trace is also written when the command fails, since it shows how far it got.
+      if (getTraceOutput().isPresent()) {
+        writeTrace(tracer, getTraceOutput().get());
+      }
     }
 
     return getOutputFile();
   }
 
+  private static void writeTrace(Tracer tracer, Path traceOutput) {
+    try {
+      tracer.writeTo(traceOutput);
+    } catch (IOException e) {
+      // Not thrown, so that it doesn't hide an exception thrown by the command.
+      logger.log(Level.WARNING, "Failed to write the trace to '" + traceOutput + "'.", e);
+    }
+  }
+
+  /**
+   * Returns whether only the requested modules and their dependencies can affect the generated
+   * APKs.
+   *
+   * <p>This is the case of universal APKs built from a subset of the modules, unless the other
+   * modules can still change the output: runtime-enabled SDK dependencies are matched against all
+   * modules, unsigned embedded APKs must all be found and 32-bit RenderScript bitcode in any module
+   * drops all 64-bit native libraries.
+   *
+   * <p>The other modules are then only validated from the paths of their files, as documented in
+   * the help of the --modules flag.
+   */
+  private boolean onlyRequestedModulesAffectOutput(
+      AppBundle appBundle, BundleZipReader bundleZip) {
+    return getApkBuildMode().equals(UNIVERSAL)
+        && !getModules().isEmpty()
+        && !getModules().contains(ALL_MODULES_SHORTCUT)
+        && getRuntimeEnabledSdkBundlePaths().isEmpty()
+        && appBundle.getBundleConfig().getUnsignedEmbeddedApkConfigList().isEmpty()
+        && bundleZip.getEntries().stream().noneMatch(entry -> entry.getName().endsWith(".bc"));
+  }
+
   private void validateInput() {
     checkFileExistsAndReadable(getBundlePath());
 
@@ -817,6 +1138,19 @@ public abstract class BuildApksCommand {
         break;
     }
 
+    if (getIncrementalFromApkSet().isPresent()
+        && getIncrementalFromApkSet()
+            .get()
+            .toAbsolutePath()
+            .normalize()
+            .equals(getOutputFile().toAbsolutePath().normalize())) {
+      throw InvalidCommandException.builder()
+          .withInternalMessage(
+              "The previous APK set passed with '%s' cannot also be the output file.",
+              INCREMENTAL_FROM_FLAG.getName())
+          .build();
+    }
+
     if (getGenerateOnlyForConnectedDevice()) {
       checkArgument(
           getAdbServer().isPresent(),
@@ -993,6 +1327,92 @@ public abstract class BuildApksCommand {
                 .setOptional(true)
                 .setDescription("Path to the aapt2 binary to use.")
                 .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(AAPT2_DAEMONS_FLAG.getName())
+                .setOptional(true)
+                .setDescription(
+                    "If set, aapt2 runs as a pool of long-lived daemon processes instead of a new"
+                        + " process per converted APK, which saves the startup cost of aapt2 for"
+                        + " App Bundles generating many APKs.")
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(AAPT2_CACHE_DIR_FLAG.getName())
+                .setExampleValue("path/to/cache")
+                .setOptional(true)
+                .setDescription(
+                    "Path to the directory where APKs converted by aapt2 are cached between"
+                        + " invocations. If set, splits whose manifest and resources are unchanged"
+                        + " since a previous invocation are not converted by aapt2 again. Least"
+                        + " recently used APKs are removed when the cache exceeds its maximum"
+                        + " size.")
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(IN_PROCESS_RESOURCE_CONVERSION_FLAG.getName())
+                .setOptional(true)
+                .setDescription(
+                    "If set, the manifest and resources of APKs are converted to binary format"
+                        + " by bundletool itself instead of by aapt2, producing identical output."
+                        + " APKs with resources not supported by this conversion (e.g. locale"
+                        + " qualifiers or sparse encoding) are still converted by aapt2.")
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(INCREMENTAL_FROM_FLAG.getName())
+                .setExampleValue("path/to/previous.apks")
+                .setOptional(true)
+                .setDescription(
+                    "Path to the APK set generated by a previous invocation with this flag. APKs"
+                        + " whose inputs (content, signing configuration, versions of bundletool"
+                        + " and aapt2) are unchanged are copied from it instead of being generated"
+                        + " again. All APKs are generated if the file does not exist.")
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(MAX_CONCURRENT_DEX_MERGES_FLAG.getName())
+                .setExampleValue("num-merges")
+                .setOptional(true)
+                .setDescription(
+                    "Sets the maximum number of dex merges run at the same time when generating"
+                        + " standalone APKs for pre-L devices (default: %d). Each merge holds all"
+                        + " the classes of the app in memory.",
+                    DEFAULT_MAX_CONCURRENT_DEX_MERGES)
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(DEX_MERGING_CACHE_DIR_FLAG.getName())
+                .setExampleValue("path/to/cache")
+                .setOptional(true)
+                .setDescription(
+                    "Path to the directory where dex files merged for standalone APKs are cached"
+                        + " between invocations. If set, dex files which are unchanged since a"
+                        + " previous invocation are not merged again. Least recently used merges"
+                        + " are removed when the cache exceeds its maximum size.")
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(TASK_MEMORY_BUDGET_MB_FLAG.getName())
+                .setExampleValue("megabytes")
+                .setOptional(true)
+                .setDescription(
+                    "Heap memory in megabytes that memory-intensive tasks running in parallel"
+                        + " (compression of large entries, resource conversion) may use. Tasks"
+                        + " wait for memory to be released rather than exceed it, which allows"
+                        + " using many threads on large App Bundles (default: half of the maximum"
+                        + " heap size).")
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(TRACE_OUTPUT_FLAG.getName())
+                .setExampleValue("path/to/trace.json")
+                .setOptional(true)
+                .setDescription(
+                    "Path to the file where the time spent in each phase of the command and in"
+                        + " the generation of each APK is written, in the Chrome trace event"
+                        + " format. The trace can be opened in chrome://tracing or Perfetto.")
+                .build())
         .addFlag(
             FlagDescription.builder()
                 .setFlagName(BUILD_MODE_FLAG.getName())
@@ -1210,8 +1630,13 @@ public abstract class BuildApksCommand {
                 .setExampleValue("base,module1,module2")
                 .setOptional(true)
                 .setDescription(
-                    "List of module names to include in the generated APK Set in modes %s and %s.",
-                    UNIVERSAL.getLowerCaseName(), SYSTEM.getLowerCaseName())
+                    "List of module names to include in the generated APK Set in modes %s and %s."
+                        + " In mode %s, modules which are neither listed nor required by the"
+                        + " listed modules are usually not read, so only the paths of their files"
+                        + " are validated.",
+                    UNIVERSAL.getLowerCaseName(),
+                    SYSTEM.getLowerCaseName(),
+                    UNIVERSAL.getLowerCaseName())
                 .build())
         .addFlag(
             FlagDescription.builder()
@@ -1241,6 +1666,28 @@ public abstract class BuildApksCommand {
                     "Path to the 7zip binary to use. Mandatory if Android App Bundle requires 7zip"
                         + " compression.")
                 .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(COMPRESSION_CACHE_DIR_FLAG.getName())
+                .setExampleValue("path/to/cache")
+                .setOptional(true)
+                .setDescription(
+                    "Path to the directory where compressed entries are cached between"
+                        + " invocations. If set, entries whose content is unchanged since a"
+                        + " previous invocation are not compressed again. Least recently used"
+                        + " entries are removed when the cache exceeds its maximum size.")
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(REUSE_BUNDLE_COMPRESSION_FLAG.getName())
+                .setOptional(true)
+                .setDescription(
+                    "If set, entries which are already deflated inside the Android App Bundle are"
+                        + " copied into the generated APKs without being compressed again. This"
+                        + " speeds up the command but the compression level of these entries is"
+                        + " the one used when the bundle was built. Ignored if the bundle requires"
+                        + " 7zip compression.")
+                .build())
         .addFlag(
             FlagDescription.builder()
                 .setFlagName(CREATE_STAMP_FLAG.getName())
@@ -21,6 +21,7 @@ import static com.android.tools.build.bundletool.commands.ExtractApksCommand.ALL
 import static com.android.tools.build.bundletool.model.version.VersionGuardedFeature.RESOURCES_REFERENCED_IN_MANIFEST_TO_MASTER_SPLIT;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
 
 import com.android.bundle.Commands.LocalTestingInfo;
 import com.android.bundle.Config.BundleConfig;
@@ -31,8 +32,13 @@ import com.android.tools.build.bundletool.commands.BuildApksCommand.SystemApkOpt
 import com.android.tools.build.bundletool.device.ApkMatcher;
 import com.android.tools.build.bundletool.io.ApkSerializerManager;
 import com.android.tools.build.bundletool.io.ApkSetWriter;
+import com.android.tools.build.bundletool.io.ConcurrencyUtils;
+import com.android.tools.build.bundletool.io.MemoryBudget;
+import com.android.tools.build.bundletool.io.ModuleSplitSerializer;
 import com.android.tools.build.bundletool.io.TempDirectory;
+import com.android.tools.build.bundletool.io.Tracer;
 import com.android.tools.build.bundletool.mergers.BundleModuleMerger;
+import com.android.tools.build.bundletool.mergers.ModuleSplitsToShardMerger;
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.BundleModuleName;
@@ -62,11 +68,17 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 import com.google.common.io.MoreFiles;
 import com.google.common.io.RecursiveDeleteOption;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
 import java.util.stream.Stream;
 import javax.inject.Inject;
 
@@ -80,10 +92,14 @@ public final class BuildApksManager {
   private final TempDirectory tempDir;
 
   private final ApkSerializerManager apkSerializerManager;
+  private final ModuleSplitSerializer moduleSplitSerializer;
   private final SplitApksGenerator splitApksGenerator;
   private final ShardedApksFacade shardedApksFacade;
   private final ApkOptimizations apkOptimizations;
   private final ArchivedApksGenerator archivedApksGenerator;
+  private final ModuleSplitsToShardMerger shardsMerger;
+  private final MemoryBudget memoryBudget;
+  private final Tracer tracer;
 
   @Inject
   BuildApksManager(
@@ -93,10 +109,14 @@ public final class BuildApksManager {
       Optional<DeviceSpec> deviceSpec,
       TempDirectory tempDir,
       ApkSerializerManager apkSerializerManager,
+      ModuleSplitSerializer moduleSplitSerializer,
       SplitApksGenerator splitApksGenerator,
       ShardedApksFacade shardedApksFacade,
       ApkOptimizations apkOptimizations,
-      ArchivedApksGenerator archivedApksGenerator) {
+      ArchivedApksGenerator archivedApksGenerator,
+      ModuleSplitsToShardMerger shardsMerger,
+      MemoryBudget memoryBudget,
+      Tracer tracer) {
     this.appBundle = appBundle;
     this.command = command;
     this.bundletoolVersion = bundletoolVersion;
@@ -104,77 +124,138 @@ public final class BuildApksManager {
     this.tempDir = tempDir;
     this.splitApksGenerator = splitApksGenerator;
     this.apkSerializerManager = apkSerializerManager;
+    this.moduleSplitSerializer = moduleSplitSerializer;
     this.shardedApksFacade = shardedApksFacade;
     this.apkOptimizations = apkOptimizations;
     this.archivedApksGenerator = archivedApksGenerator;
+    this.shardsMerger = shardsMerger;
+    this.memoryBudget = memoryBudget;
+    this.tracer = tracer;
   }
 
   public void execute() throws IOException {
-    ImmutableSet<BundleModuleName> permanentlyFusedModules = ImmutableSet.of();
     ImmutableSet<BundleModule> requestedModules =
         command.getModules().isEmpty()
             ? ImmutableSet.of()
             : ModuleDependenciesUtils.getModulesIncludingDependencies(
                 appBundle, getBundleModules(appBundle, command.getModules()));
 
-    GeneratedApks.Builder generatedApksBuilder = GeneratedApks.builder();
-    GeneratedAssetSlices.Builder generatedAssetSlices = GeneratedAssetSlices.builder();
-
     boolean enableUniversalAsFallbackForSplits = false;
     boolean enableInstallTimeNonRemovableModules = false;
     ApksToGenerate apksToGenerate =
         new ApksToGenerate(
             appBundle, command.getApkBuildMode(), enableUniversalAsFallbackForSplits, deviceSpec);
 
-    // Split APKs
-    if (apksToGenerate.generateSplitApks()) {
-      AppBundle mergedAppBundle =
-          BundleModuleMerger.mergeNonRemovableInstallTimeModules(
-              appBundle, enableInstallTimeNonRemovableModules);
-      AppBundleValidator bundleValidator = AppBundleValidator.create(command.getExtraValidators());
-      bundleValidator.validate(mergedAppBundle);
-      generatedApksBuilder.setSplitApks(generateSplitApks(mergedAppBundle));
+    // APKs of each type only depend on the App Bundle, so they are generated concurrently. They
+    // run on their own threads rather than on the executor service of the command, since some of
+    // them wait for tasks they submit to it.
+    ListeningExecutorService phasesExecutorService =
+        MoreExecutors.listeningDecorator(
+            Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("build-apks-phase-%d")
+                    .build()));
+    GeneratedApks.Builder generatedApksBuilder = GeneratedApks.builder();
+    GeneratedAssetSlices.Builder generatedAssetSlices = GeneratedAssetSlices.builder();
+    ImmutableSet<BundleModuleName> permanentlyFusedModules;
+    try {
+      // Split APKs
+      ListenableFuture<AppBundle> mergedAppBundle =
+          apksToGenerate.generateSplitApks()
+              ? phasesExecutorService.submit(
+                  () -> {
+                    try (Tracer.Span span = tracer.startSpan("merge-install-time-modules")) {
+                      AppBundle bundle =
+                          BundleModuleMerger.mergeNonRemovableInstallTimeModules(
+                              appBundle, enableInstallTimeNonRemovableModules);
+                      AppBundleValidator.create(command.getExtraValidators()).validate(bundle);
+                      return bundle;
+                    }
+                  })
+              : immediateFuture(appBundle);
+      ListenableFuture<ImmutableList<ModuleSplit>> splitApks =
+          apksToGenerate.generateSplitApks()
+              ? phasesExecutorService.submit(
+                  () -> {
+                    AppBundle bundle = ConcurrencyUtils.waitFor(mergedAppBundle);
+                    return trace("generate-split-apks", () -> generateSplitApks(bundle));
+                  })
+              : immediateFuture(ImmutableList.of());
+
+      // Instant APKs
+      ListenableFuture<ImmutableList<ModuleSplit>> instantApks =
+          apksToGenerate.generateInstantApks()
+              ? phasesExecutorService.submit(
+                  () -> trace("generate-instant-apks", () -> generateInstantApks(appBundle)))
+              : immediateFuture(ImmutableList.of());
+
+      // Standalone APKs, or Universal APK which is a special type of standalone, with no
+      // optimization dimensions.
+      ListenableFuture<ImmutableList<ModuleSplit>> standaloneApks;
+      if (apksToGenerate.generateUniversalApk()) {
+        ImmutableList<BundleModule> modulesToFuse =
+            requestedModules.isEmpty()
+                ? modulesToFuse(getModulesForStandaloneApks(appBundle))
+                : requestedModules.asList();
+        standaloneApks =
+            phasesExecutorService.submit(
+                () ->
+                    trace(
+                        "generate-universal-apk",
+                        () ->
+                            shardedApksFacade.generateSplits(
+                                modulesToFuse,
+                                ApkOptimizations.getOptimizationsForUniversalApk())));
+      } else if (apksToGenerate.generateStandaloneApks()) {
+        standaloneApks =
+            phasesExecutorService.submit(
+                () -> trace("generate-standalone-apks", () -> generateStandaloneApks(appBundle)));
+      } else {
+        standaloneApks = immediateFuture(ImmutableList.of());
+      }
+
+      // System APKs
+      ListenableFuture<ImmutableList<ModuleSplit>> systemApks =
+          apksToGenerate.generateSystemApks()
+              ? phasesExecutorService.submit(
+                  () ->
+                      trace(
+                          "generate-system-apks",
+                          () -> generateSystemApks(appBundle, requestedModules)))
+              : immediateFuture(ImmutableList.of());
+
+      // Archived APKs
+      ListenableFuture<ImmutableList<ModuleSplit>> archivedApks =
+          apksToGenerate.generateArchivedApks()
+              ? phasesExecutorService.submit(
+                  () -> trace("generate-archived-apks", () -> generateArchivedApks(appBundle)))
+              : immediateFuture(ImmutableList.of());
+
+      // Asset Slices
+      ListenableFuture<ImmutableList<ModuleSplit>> assetSlices =
+          apksToGenerate.generateAssetSlices()
+              ? phasesExecutorService.submit(
+                  () -> trace("generate-asset-slices", () -> generateAssetSlices(appBundle)))
+              : immediateFuture(ImmutableList.of());
+
+      // Failures are reported in the order in which the APKs used to be generated.
+      generatedApksBuilder.setSplitApks(ConcurrencyUtils.waitFor(splitApks));
       permanentlyFusedModules =
-          Sets.difference(appBundle.getModules().keySet(), mergedAppBundle.getModules().keySet())
+          Sets.difference(
+                  appBundle.getModules().keySet(),
+                  ConcurrencyUtils.waitFor(mergedAppBundle).getModules().keySet())
               .immutableCopy();
+      generatedApksBuilder.setInstantApks(ConcurrencyUtils.waitFor(instantApks));
+      generatedApksBuilder.setStandaloneApks(ConcurrencyUtils.waitFor(standaloneApks));
+      generatedApksBuilder.setSystemApks(ConcurrencyUtils.waitFor(systemApks));
+      generatedApksBuilder.setArchivedApks(ConcurrencyUtils.waitFor(archivedApks));
+      generatedAssetSlices.setAssetSlices(ConcurrencyUtils.waitFor(assetSlices));
+    } finally {
+      phasesExecutorService.shutdownNow();
     }
-
-    // Instant APKs
-    if (apksToGenerate.generateInstantApks()) {
-      generatedApksBuilder.setInstantApks(generateInstantApks(appBundle));
-    }
-
-    // Standalone APKs
-    if (apksToGenerate.generateStandaloneApks()) {
-      generatedApksBuilder.setStandaloneApks(generateStandaloneApks(appBundle));
-    }
-
-    // Universal APK
-    if (apksToGenerate.generateUniversalApk()) {
-      // Note: Universal APK is a special type of standalone, with no optimization dimensions.
-      ImmutableList<BundleModule> modulesToFuse =
-          requestedModules.isEmpty()
-              ? modulesToFuse(getModulesForStandaloneApks(appBundle))
-              : requestedModules.asList();
-      generatedApksBuilder.setStandaloneApks(
-          shardedApksFacade.generateSplits(
-              modulesToFuse, ApkOptimizations.getOptimizationsForUniversalApk()));
-    }
-
-    // System APKs
-    if (apksToGenerate.generateSystemApks()) {
-      generatedApksBuilder.setSystemApks(generateSystemApks(appBundle, requestedModules));
-    }
-
-    // Archived APKs
-    if (apksToGenerate.generateArchivedApks()) {
-      generatedApksBuilder.setArchivedApks(generateArchivedApks(appBundle));
-    }
-
-    // Asset Slices
-    if (apksToGenerate.generateAssetSlices()) {
-      generatedAssetSlices.setAssetSlices(generateAssetSlices(appBundle));
-    }
+    // Shards of all phases are merged by now, so the dex merging cache is trimmed once per command.
+    shardsMerger.trimDexMergingCache();
 
     // Populate alternative targeting based on variant targeting of all APKs.
     GeneratedApks generatedApks =
@@ -186,22 +267,24 @@ public final class BuildApksManager {
 
     // A variant is a set of APKs. One device is guaranteed to receive only APKs from the same. This
     // is why we are processing new entries like split.xml for each variant separately.
-    generatedApks =
-        GeneratedApks.fromModuleSplits(
-            generatedApks.getAllApksGroupedByOrderedVariants().asMap().entrySet().stream()
-                .map(
-                    keySplit -> {
-                      SplitsXmlInjector splitsXmlInjector = new SplitsXmlInjector();
-                      ImmutableList<ModuleSplit> moduleSplits =
-                          splitsXmlInjector.process(keySplit.getKey(), keySplit.getValue());
-                      LocaleConfigXmlInjector localeConfigXmlInjector =
-                          new LocaleConfigXmlInjector();
-                      moduleSplits =
-                          localeConfigXmlInjector.process(keySplit.getKey(), moduleSplits);
-                      return moduleSplits;
-                    })
-                .flatMap(Collection::stream)
-                .collect(toImmutableList()));
+    try (Tracer.Span span = tracer.startSpan("inject-variant-xmls")) {
+      generatedApks =
+          GeneratedApks.fromModuleSplits(
+              generatedApks.getAllApksGroupedByOrderedVariants().asMap().entrySet().stream()
+                  .map(
+                      keySplit -> {
+                        SplitsXmlInjector splitsXmlInjector = new SplitsXmlInjector();
+                        ImmutableList<ModuleSplit> moduleSplits =
+                            splitsXmlInjector.process(keySplit.getKey(), keySplit.getValue());
+                        LocaleConfigXmlInjector localeConfigXmlInjector =
+                            new LocaleConfigXmlInjector();
+                        moduleSplits =
+                            localeConfigXmlInjector.process(keySplit.getKey(), moduleSplits);
+                        return moduleSplits;
+                      })
+                  .flatMap(Collection::stream)
+                  .collect(toImmutableList()));
+    }
 
     if (deviceSpec.isPresent()) {
       // It is easier to fully check device compatibility once the splits have been generated (in
@@ -215,13 +298,30 @@ public final class BuildApksManager {
     }
 
     // Create variants and serialize APKs.
-    apkSerializerManager.serializeApkSet(
-        createApkSetWriter(tempDir.getPath()),
-        generatedApks,
-        generatedAssetSlices.build(),
-        deviceSpec,
-        getLocalTestingInfo(appBundle),
-        permanentlyFusedModules);
+    try (Tracer.Span span = tracer.startSpan("serialize-apk-set")) {
+      apkSerializerManager.serializeApkSet(
+          createApkSetWriter(tempDir.getPath()),
+          generatedApks,
+          generatedAssetSlices.build(),
+          deviceSpec,
+          getLocalTestingInfo(appBundle),
+          permanentlyFusedModules);
+      span.addArg("output", command.getOutputFile().toString());
+    }
+    // APKs and asset slices are all packed by now, so the compression cache is trimmed once per
+    // command.
+    moduleSplitSerializer.trimCompressionCache();
+    memoryBudget.logStatistics();
+  }
+
+  /** Runs a phase generating APKs in a span named {@code name}. */
+  private <T extends Collection<ModuleSplit>> T trace(String name, Callable<T> phase)
+      throws Exception {
+    try (Tracer.Span span = tracer.startSpan(name)) {
+      T apks = phase.call();
+      span.addArg("apks", apks.size());
+      return apks;
+    }
   }
 
   private ImmutableList<ModuleSplit> generateStandaloneApks(AppBundle appBundle) {
@@ -339,6 +439,10 @@ public final class BuildApksManager {
 
     apkGenerationConfiguration.setSuffixStrippings(apkOptimizations.getSuffixStrippings());
 
+    // Splits that would be filtered out when serializing the APKs for the device are not even
+    // generated.
+    deviceSpec.ifPresent(apkGenerationConfiguration::setDeviceSpec);
+
     command
         .getMinSdkForAdditionalVariantWithV3Rotation()
         .ifPresent(apkGenerationConfiguration::setMinSdkForAdditionalVariantWithV3Rotation);
@@ -15,7 +15,9 @@
  */
 package com.android.tools.build.bundletool.commands;
 
+import com.android.tools.build.bundletool.androidtools.Aapt2Command;
 import com.android.tools.build.bundletool.io.TempDirectory;
+import com.android.tools.build.bundletool.io.Tracer;
 import com.android.tools.build.bundletool.model.AppBundle;
 import dagger.BindsInstance;
 import dagger.Component;
@@ -26,6 +28,9 @@ import dagger.Component;
 public interface BuildApksManagerComponent {
   BuildApksManager create();
 
+  /** The aapt2 command used by the {@link BuildApksManager}, closed once it has run. */
+  Aapt2Command aapt2Command();
+
   /** Builder for the {@link BuildApksManagerComponent}. */
   @Component.Builder
   interface Builder {
@@ -39,5 +44,8 @@ public interface BuildApksManagerComponent {
 
     @BindsInstance
     Builder setAppBundle(AppBundle appBundle);
+
+    @BindsInstance
+    Builder setTracer(Tracer tracer);
   }
 }
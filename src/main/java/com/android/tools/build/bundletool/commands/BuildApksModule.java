@@ -25,6 +25,7 @@ import com.android.tools.build.bundletool.commands.BuildApksCommand.ApkBuildMode
 import com.android.tools.build.bundletool.device.AdbServer;
 import com.android.tools.build.bundletool.device.DeviceAnalyzer;
 import com.android.tools.build.bundletool.io.ApkSerializerModule;
+import com.android.tools.build.bundletool.io.MemoryBudget;
 import com.android.tools.build.bundletool.model.ApkListener;
 import com.android.tools.build.bundletool.model.ApkModifier;
 import com.android.tools.build.bundletool.model.DefaultSigningConfigurationProvider;
@@ -40,7 +41,9 @@ import dagger.Module;
 import dagger.Provides;
 import java.io.PrintStream;
 import java.lang.annotation.Retention;
+import java.nio.file.Path;
 import java.util.Optional;
+import java.util.concurrent.Semaphore;
 import javax.inject.Qualifier;
 
 /** Dagger module for the build-apks command. */
@@ -84,12 +87,70 @@ public final class BuildApksModule {
     return command.getExecutorService();
   }
 
+  @CommandScoped
+  @Provides
+  static MemoryBudget provideMemoryBudget(BuildApksCommand command) {
+    return command
+        .getTaskMemoryBudgetMegabytes()
+        .map(megabytes -> MemoryBudget.create(megabytes * 1024L * 1024L))
+        .orElseGet(MemoryBudget::createDefault);
+  }
+
   @CommandScoped
   @Provides
   static Optional<P7ZipCommand> provideP7ZipCommand(BuildApksCommand command) {
     return command.getP7ZipCommand();
   }
 
+  @CommandScoped
+  @Provides
+  @CompressionCacheDirectory
+  static Optional<Path> provideCompressionCacheDirectory(BuildApksCommand command) {
+    return command.getCompressionCacheDirectory();
+  }
+
+  @CommandScoped
+  @Provides
+  @Aapt2CacheDirectory
+  static Optional<Path> provideAapt2CacheDirectory(BuildApksCommand command) {
+    return command.getAapt2CacheDirectory();
+  }
+
+  @CommandScoped
+  @Provides
+  @InProcessResourceConversion
+  static boolean provideInProcessResourceConversion(BuildApksCommand command) {
+    return command.getInProcessResourceConversion();
+  }
+
+  @CommandScoped
+  @Provides
+  @IncrementalFromApkSet
+  static Optional<Path> provideIncrementalFromApkSet(BuildApksCommand command) {
+    return command.getIncrementalFromApkSet();
+  }
+
+  @CommandScoped
+  @Provides
+  @DexMergingPermits
+  static Semaphore provideDexMergingPermits(BuildApksCommand command) {
+    return new Semaphore(command.getMaxConcurrentDexMerges());
+  }
+
+  @CommandScoped
+  @Provides
+  @DexMergingCacheDirectory
+  static Optional<Path> provideDexMergingCacheDirectory(BuildApksCommand command) {
+    return command.getDexMergingCacheDirectory();
+  }
+
+  @CommandScoped
+  @Provides
+  @ReuseBundleCompression
+  static boolean provideReuseBundleCompression(BuildApksCommand command) {
+    return command.getReuseBundleCompression();
+  }
+
   @CommandScoped
   @Provides
   static Optional<ApkListener> provideApkListener(BuildApksCommand command) {
@@ -174,6 +235,62 @@ public final class BuildApksModule {
   @Retention(RUNTIME)
   public @interface VerboseLogs {}
 
+  /**
+   * Qualifying annotation of an {@code Optional<Path>} for the directory of the persistent cache of
+   * compressed entries.
+   */
+  @Qualifier
+  @Retention(RUNTIME)
+  public @interface CompressionCacheDirectory {}
+
+  /**
+   * Qualifying annotation of an {@code Optional<Path>} for the directory of the persistent cache of
+   * APKs converted by aapt2.
+   */
+  @Qualifier
+  @Retention(RUNTIME)
+  public @interface Aapt2CacheDirectory {}
+
+  /**
+   * Qualifying annotation of a {@code boolean} on whether resources are converted to binary format
+   * in-process when supported, instead of by aapt2.
+   */
+  @Qualifier
+  @Retention(RUNTIME)
+  public @interface InProcessResourceConversion {}
+
+  /**
+   * Qualifying annotation of an {@code Optional<Path>} for the APK set produced by a previous
+   * invocation, from which unchanged APKs are reused.
+   */
+  @Qualifier
+  @Retention(RUNTIME)
+  public @interface IncrementalFromApkSet {}
+
+  /**
+   * Qualifying annotation of a {@link Semaphore} bounding the number of dex merges running at the
+   * same time across the command.
+   */
+  @Qualifier
+  @Retention(RUNTIME)
+  public @interface DexMergingPermits {}
+
+  /**
+   * Qualifying annotation of an {@code Optional<Path>} for the directory of the persistent cache of
+   * merged dex files.
+   */
+  @Qualifier
+  @Retention(RUNTIME)
+  public @interface DexMergingCacheDirectory {}
+
+  /**
+   * Qualifying annotation of a {@code boolean} on whether compressed entries of the bundle are
+   * copied into APKs without recompression.
+   */
+  @Qualifier
+  @Retention(RUNTIME)
+  public @interface ReuseBundleCompression {}
+
   /** Qualifying annotation of a {@code SigningConfiguration} for the APK signing configuration. */
   @Qualifier
   @Retention(RUNTIME)
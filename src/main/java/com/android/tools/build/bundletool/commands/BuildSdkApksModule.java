@@ -23,8 +23,10 @@ import com.android.tools.build.bundletool.androidtools.Aapt2Command;
 import com.android.tools.build.bundletool.androidtools.P7ZipCommand;
 import com.android.tools.build.bundletool.commands.BuildApksCommand.ApkBuildMode;
 import com.android.tools.build.bundletool.io.ApkSerializer;
+import com.android.tools.build.bundletool.io.MemoryBudget;
 import com.android.tools.build.bundletool.io.ModuleSplitSerializer;
 import com.android.tools.build.bundletool.io.TempDirectory;
+import com.android.tools.build.bundletool.io.Tracer;
 import com.android.tools.build.bundletool.model.ApkListener;
 import com.android.tools.build.bundletool.model.ApkModifier;
 import com.android.tools.build.bundletool.model.Bundle;
@@ -39,6 +41,7 @@ import dagger.Binds;
 import dagger.BindsOptionalOf;
 import dagger.Module;
 import dagger.Provides;
+import java.nio.file.Path;
 import java.util.Optional;
 
 /** Dagger module for the build-sdk-apks command. */
@@ -95,6 +98,18 @@ public abstract class BuildSdkApksModule {
     return command.getExecutorService();
   }
 
+  // Android SDK Bundles are small and the component is not command scoped, so each consumer gets
+  // its own default memory budget.
+  @Provides
+  static MemoryBudget provideMemoryBudget() {
+    return MemoryBudget.createDefault();
+  }
+
+  @Provides
+  static Tracer provideTracer() {
+    return Tracer.disabled();
+  }
+
   @BindsOptionalOf
   abstract ApkListener bindOptionalApkListener();
 
@@ -104,6 +119,18 @@ public abstract class BuildSdkApksModule {
   @BindsOptionalOf
   abstract P7ZipCommand bindOptionalP7ZipCommand();
 
+  @BindsOptionalOf
+  @BuildApksModule.CompressionCacheDirectory
+  abstract Path bindOptionalCompressionCacheDirectory();
+
+  @BindsOptionalOf
+  @BuildApksModule.Aapt2CacheDirectory
+  abstract Path bindOptionalAapt2CacheDirectory();
+
+  @BindsOptionalOf
+  @BuildApksModule.IncrementalFromApkSet
+  abstract Path bindOptionalIncrementalFromApkSet();
+
   @Provides
   static ApkOptimizations provideApkOptimizations() {
     return ApkOptimizations.getOptimizationsForUniversalApk();
@@ -126,6 +153,18 @@ public abstract class BuildSdkApksModule {
     return command.getVerbose();
   }
 
+  @Provides
+  @BuildApksModule.InProcessResourceConversion
+  static boolean provideInProcessResourceConversion() {
+    return false;
+  }
+
+  @Provides
+  @BuildApksModule.ReuseBundleCompression
+  static boolean provideReuseBundleCompression() {
+    return false;
+  }
+
   @Binds
   abstract ApkSerializer apkSerializerHelper(ModuleSplitSerializer apkSerializerHelper);
 }
@@ -32,7 +32,12 @@ public abstract class BundletoolModule {
   static Aapt2Command provideAapt2Command(BuildApksCommand command, TempDirectory tempDir) {
     return command
         .getAapt2Command()
-        .orElseGet(() -> CommandUtils.extractAapt2FromJar(tempDir.getPath()));
+        .orElseGet(
+            () ->
+                command.getAapt2DaemonsEnabled()
+                    ? CommandUtils.extractAapt2DaemonPoolFromJar(
+                        tempDir.getPath(), command.getMaxAapt2Daemons())
+                    : CommandUtils.extractAapt2FromJar(tempDir.getPath()));
   }
 
   @Binds
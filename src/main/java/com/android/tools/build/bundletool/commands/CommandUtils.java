@@ -24,6 +24,7 @@ import com.android.tools.build.bundletool.model.utils.SdkToolsLocator;
 import com.android.tools.build.bundletool.model.utils.SystemEnvironmentProvider;
 import java.nio.file.Path;
 import java.util.Optional;
+import java.util.function.Function;
 
 final class CommandUtils {
   static final String ANDROID_SERIAL_VARIABLE = "ANDROID_SERIAL";
@@ -60,9 +61,24 @@ final class CommandUtils {
   }
 
   static Aapt2Command extractAapt2FromJar(Path tempDir) {
+    return extractAapt2FromJar(tempDir, Aapt2Command::createFromExecutablePath);
+  }
+
+  /**
+   * Extracts aapt2 from the bundletool jar and runs it as a pool of at most {@code maxDaemons}
+   * daemon processes, which must be closed once no longer needed.
+   */
+  static Aapt2Command extractAapt2DaemonPoolFromJar(Path tempDir, int maxDaemons) {
+    return extractAapt2FromJar(
+        tempDir,
+        aapt2Path -> Aapt2Command.createDaemonPoolFromExecutablePath(aapt2Path, maxDaemons));
+  }
+
+  private static Aapt2Command extractAapt2FromJar(
+      Path tempDir, Function<Path, Aapt2Command> aapt2CommandFactory) {
     return new SdkToolsLocator()
         .extractAapt2(tempDir)
-        .map(Aapt2Command::createFromExecutablePath)
+        .map(aapt2CommandFactory)
         .orElseThrow(
             () ->
                 CommandExecutionException.builder()
@@ -29,8 +29,8 @@ import com.android.tools.build.bundletool.model.ResourceTableEntry;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.model.exceptions.InvalidBundleException;
 import com.android.tools.build.bundletool.model.exceptions.InvalidCommandException;
+import com.android.tools.build.bundletool.model.utils.BundleZipReader;
 import com.android.tools.build.bundletool.model.utils.ResourcesUtils;
-import com.android.tools.build.bundletool.model.utils.ZipUtils;
 import com.android.tools.build.bundletool.model.utils.xmlproto.XmlProtoNode;
 import com.android.tools.build.bundletool.model.utils.xmlproto.XmlProtoPrintUtils;
 import com.android.tools.build.bundletool.xml.XPathResolver;
@@ -49,9 +49,7 @@ import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Optional;
 import java.util.function.Predicate;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
@@ -103,9 +101,11 @@ final class DumpManager {
 
   void printResources(Predicate<ResourceTableEntry> resourcePredicate, boolean printValues) {
     ImmutableList<ResourceTable> resourceTables;
-    try (ZipFile zipFile = new ZipFile(bundlePath.toFile())) {
+    try (BundleZipReader zipFile = BundleZipReader.open(bundlePath)) {
       resourceTables =
-          ZipUtils.allFileEntriesPaths(zipFile)
+          zipFile.getEntries().stream()
+              .filter(entry -> !entry.isDirectory())
+              .map(BundleZipReader.Entry::getPath)
               .filter(path -> path.endsWith(SpecialModuleEntry.RESOURCE_TABLE.getPath()))
               .map(path -> extractAndParse(zipFile, path, ResourceTable::parseFrom))
               .collect(toImmutableList());
@@ -127,7 +127,7 @@ final class DumpManager {
   }
 
   void printBundleConfig() {
-    try (ZipFile zipFile = new ZipFile(bundlePath.toFile())) {
+    try (BundleZipReader zipFile = BundleZipReader.open(bundlePath)) {
       BundleConfig bundleConfig =
           extractAndParse(zipFile, ZipPath.create("BundleConfig.pb"), BundleConfig::parseFrom);
       printStream.println(JsonFormat.printer().print(bundleConfig));
@@ -162,7 +162,7 @@ final class DumpManager {
 
   private static <T> T extractAndParse(
       Path bundlePath, ZipPath filePath, ProtoParser<T> protoParser) {
-    try (ZipFile zipFile = new ZipFile(bundlePath.toFile())) {
+    try (BundleZipReader zipFile = BundleZipReader.open(bundlePath)) {
       return extractAndParse(zipFile, filePath, protoParser);
     } catch (ZipException e) {
       throw InvalidBundleException.builder()
@@ -175,15 +175,17 @@ final class DumpManager {
   }
 
   private static <T> T extractAndParse(
-      ZipFile zipFile, ZipPath filePath, ProtoParser<T> protoParser) {
-    ZipEntry fileEntry = zipFile.getEntry(filePath.toString());
-    if (fileEntry == null) {
-      throw InvalidBundleException.builder()
-          .withUserMessage("File '%s' not found.", filePath)
-          .build();
-    }
-
-    try (InputStream inputStream = zipFile.getInputStream(fileEntry)) {
+      BundleZipReader zipFile, ZipPath filePath, ProtoParser<T> protoParser) {
+    BundleZipReader.Entry fileEntry =
+        zipFile
+            .getEntry(filePath.toString())
+            .orElseThrow(
+                () ->
+                    InvalidBundleException.builder()
+                        .withUserMessage("File '%s' not found.", filePath)
+                        .build());
+
+    try (InputStream inputStream = fileEntry.asByteSource().openStream()) {
       return protoParser.parse(inputStream);
     } catch (IOException e) {
       throw new UncheckedIOException(
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.commands;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.tools.build.bundletool.commands.CommandHelp.CommandDescription;
+import com.android.tools.build.bundletool.commands.CommandHelp.FlagDescription;
+import com.android.tools.build.bundletool.flags.Flag;
+import com.android.tools.build.bundletool.flags.ParsedFlags;
+import com.android.tools.build.bundletool.model.exceptions.InvalidCommandException;
+import com.android.tools.build.bundletool.model.utils.ParsedFileCache;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.Optional;
+
+/**
+ * Command running other bundletool commands sent as requests by a client, in the same JVM.
+ *
+ * <p>Running many short commands in the same JVM saves its startup, class loading and JIT warm-up
+ * for each of them, and keeps the state shared between commands warm: the ADB bridge, and the
+ * table of contents of APK sets and device specs parsed by previous commands.
+ *
+ * <p>Requests are read from the input stream and responses written to the output stream, both
+ * framed as follows, with integers in big-endian order and strings encoded in UTF-8:
+ *
+ * <ul>
+ *   <li>Request: the number of arguments, followed by each argument as its length in bytes and its
+ *       bytes. The arguments are the same as the ones passed to bundletool on the command line,
+ *       e.g. {@code ["extract-apks", "--apks=app.apks", ...]}. The server stops when the input
+ *       stream is closed, or on a request with no arguments. A malformed request, e.g. with a
+ *       negative or too large length, is answered with an error and stops the server, since the
+ *       following requests can't be found anymore.
+ *   <li>Response: the exit code of the command, followed by its standard output and standard error
+ *       as their length in bytes and their bytes.
+ * </ul>
+ *
+ * <p>Requests are run one at a time, commands parallelizing their work internally.
+ */
+@AutoValue
+public abstract class ServeCommand {
+
+  public static final String COMMAND_NAME = "serve";
+
+  private static final Flag<Integer> CACHE_SIZE_MB_FLAG = Flag.positiveInteger("cache-size-mb");
+
+  private static final int DEFAULT_CACHE_SIZE_MB = 256;
+
+  /** Maximum number of arguments of a request. */
+  private static final int MAX_ARG_COUNT = 100_000;
+
+  /** Maximum total size in bytes of the arguments of a request. */
+  private static final int MAX_REQUEST_BYTES = 64 * 1024 * 1024;
+
+  /** Runs a bundletool command, as if invoked from the command line. */
+  public interface CommandRunner {
+    /** Runs the command with the given arguments and returns its exit code. */
+    int run(ImmutableList<String> args);
+  }
+
+  abstract InputStream getInputStream();
+
+  abstract OutputStream getOutputStream();
+
+  abstract CommandRunner getCommandRunner();
+
+  /** Maximum total size of the files whose parsed content is kept in memory between commands. */
+  public abstract int getCacheSizeMegabytes();
+
+  public static Builder builder() {
+    return new AutoValue_ServeCommand.Builder().setCacheSizeMegabytes(DEFAULT_CACHE_SIZE_MB);
+  }
+
+  /** Builder for the {@link ServeCommand}. */
+  @AutoValue.Builder
+  public abstract static class Builder {
+    /** Sets the stream from which requests are read. */
+    public abstract Builder setInputStream(InputStream inputStream);
+
+    /** Sets the stream to which responses are written. */
+    public abstract Builder setOutputStream(OutputStream outputStream);
+
+    /** Sets how the commands of the requests are run. */
+    public abstract Builder setCommandRunner(CommandRunner commandRunner);
+
+    /**
+     * Sets the maximum total size of the files, e.g. APK sets or device specs, whose parsed content
+     * is kept in memory between commands.
+     *
+     * <p>Defaults to 256 MB.
+     */
+    public abstract Builder setCacheSizeMegabytes(int cacheSizeMegabytes);
+
+    abstract ServeCommand autoBuild();
+
+    public ServeCommand build() {
+      ServeCommand command = autoBuild();
+      if (command.getCacheSizeMegabytes() < 1) {
+        throw InvalidCommandException.builder()
+            .withInternalMessage(
+                "The cache size must be positive, got %d MB.", command.getCacheSizeMegabytes())
+            .build();
+      }
+      return command;
+    }
+  }
+
+  public static ServeCommand fromFlags(
+      ParsedFlags flags,
+      InputStream inputStream,
+      OutputStream outputStream,
+      CommandRunner commandRunner) {
+    ServeCommand.Builder command =
+        builder()
+            .setInputStream(inputStream)
+            .setOutputStream(outputStream)
+            .setCommandRunner(commandRunner);
+    CACHE_SIZE_MB_FLAG.getValue(flags).ifPresent(command::setCacheSizeMegabytes);
+
+    flags.checkNoUnknownFlags();
+
+    return command.build();
+  }
+
+  public void execute() {
+    DataInputStream requests = new DataInputStream(getInputStream());
+    DataOutputStream responses = new DataOutputStream(getOutputStream());
+    ParsedFileCache.enable((long) getCacheSizeMegabytes() * 1024 * 1024);
+    PrintStream originalOut = System.out;
+    PrintStream originalErr = System.err;
+    try {
+      while (true) {
+        Optional<ImmutableList<String>> request;
+        try {
+          request = readRequest(requests);
+        } catch (MalformedRequestException e) {
+          writeResponse(
+              responses,
+              /* exitCode= */ 1,
+              new byte[0],
+              String.format("Error: %s%n", e.getMessage()).getBytes(UTF_8));
+          return;
+        }
+        if (!request.isPresent()) {
+          return;
+        }
+        ByteArrayOutputStream commandOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream commandErr = new ByteArrayOutputStream();
+        int exitCode;
+        // Commands print to the standard streams, which must not interleave with the responses.
+        System.setOut(new PrintStream(commandOut, /* autoFlush= */ true, UTF_8.name()));
+        System.setErr(new PrintStream(commandErr, /* autoFlush= */ true, UTF_8.name()));
+        try {
+          exitCode = runCommand(request.get());
+        } finally {
+          System.out.flush();
+          System.err.flush();
+          System.setOut(originalOut);
+          System.setErr(originalErr);
+        }
+        writeResponse(responses, exitCode, commandOut.toByteArray(), commandErr.toByteArray());
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error while serving requests.", e);
+    } finally {
+      ParsedFileCache.disable();
+    }
+  }
+
+  private int runCommand(ImmutableList<String> args) {
+    if (args.get(0).equals(COMMAND_NAME)) {
+      System.err.println("Error: The serve command cannot be run from a request.");
+      return 1;
+    }
+    try {
+      return getCommandRunner().run(args);
+    } catch (RuntimeException e) {
+      // A failing command must not stop the server.
+      System.err.println("Error: " + e.getMessage());
+      return 1;
+    }
+  }
+
+  /**
+   * Reads the next request, or returns empty if the server should stop.
+   *
+   * <p>Lengths are checked before anything is allocated, so that a malformed request can't exhaust
+   * the memory of the server.
+   */
+  private static Optional<ImmutableList<String>> readRequest(DataInputStream requests)
+      throws IOException, MalformedRequestException {
+    int argCount;
+    try {
+      argCount = requests.readInt();
+    } catch (EOFException e) {
+      return Optional.empty();
+    }
+    if (argCount == 0) {
+      return Optional.empty();
+    }
+    if (argCount < 0 || argCount > MAX_ARG_COUNT) {
+      throw new MalformedRequestException(
+          String.format(
+              "Malformed request: the number of arguments must be between 0 and %d, got %d.",
+              MAX_ARG_COUNT, argCount));
+    }
+    ImmutableList.Builder<String> args = ImmutableList.builder();
+    int remainingBytes = MAX_REQUEST_BYTES;
+    for (int i = 0; i < argCount; i++) {
+      byte[] arg = readBytes(requests, remainingBytes);
+      remainingBytes -= arg.length;
+      args.add(new String(arg, UTF_8));
+    }
+    return Optional.of(args.build());
+  }
+
+  private static byte[] readBytes(DataInputStream requests, int maxLength)
+      throws IOException, MalformedRequestException {
+    int length = requests.readInt();
+    if (length < 0 || length > maxLength) {
+      throw new MalformedRequestException(
+          String.format(
+              "Malformed request: the length of an argument must be between 0 and %d bytes, got"
+                  + " %d.",
+              maxLength, length));
+    }
+    byte[] bytes = new byte[length];
+    requests.readFully(bytes);
+    return bytes;
+  }
+
+  private static void writeResponse(
+      DataOutputStream responses, int exitCode, byte[] commandOut, byte[] commandErr)
+      throws IOException {
+    responses.writeInt(exitCode);
+    responses.writeInt(commandOut.length);
+    responses.write(commandOut);
+    responses.writeInt(commandErr.length);
+    responses.write(commandErr);
+    responses.flush();
+  }
+
+  /** Thrown when the input can't be parsed into requests. */
+  private static final class MalformedRequestException extends Exception {
+    MalformedRequestException(String message) {
+      super(message);
+    }
+  }
+
+  public static CommandHelp help() {
+    return CommandHelp.builder()
+        .setCommandName(COMMAND_NAME)
+        .setCommandDescription(
+            CommandDescription.builder()
+                .setShortDescription(
+                    "Runs bundletool commands sent by a client on the standard input, keeping the"
+                        + " JVM and caches warm between them.")
+                .addAdditionalParagraph(
+                    "Each request is the number of arguments of a bundletool command followed by"
+                        + " each argument, as a 32-bit big-endian length and UTF-8 bytes. Each"
+                        + " response written on the standard output is the exit code of the"
+                        + " command followed by its standard output and standard error, each as a"
+                        + " 32-bit big-endian length and bytes. The server stops when the standard"
+                        + " input is closed, on a request with no arguments, or after answering a"
+                        + " malformed request with an error.")
+                .addAdditionalParagraph(
+                    "The parsed table of contents of APK sets and parsed device specs are kept"
+                        + " between commands. App Bundles are not: each command reads them again,"
+                        + " since their modules are read from a memory mapping of the bundle"
+                        + " which is released once the command completes.")
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(CACHE_SIZE_MB_FLAG.getName())
+                .setExampleValue("256")
+                .setOptional(true)
+                .setDescription(
+                    "Maximum total size in megabytes of the parsed content of files, e.g. of APK"
+                        + " sets or device specs, kept in memory between commands. Defaults to"
+                        + " %d.",
+                    DEFAULT_CACHE_SIZE_MB)
+                .build())
+        .build();
+  }
+}
@@ -27,13 +27,13 @@ import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.BundleModuleName;
 import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.exceptions.CommandExecutionException;
+import com.android.tools.build.bundletool.model.utils.BundleZipReader;
 import com.android.tools.build.bundletool.validation.AppBundleValidator;
 import com.google.auto.value.AutoValue;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Map.Entry;
-import java.util.zip.ZipFile;
 
 /** Validates and prints information about the bundle or returns AppBundle object. */
 @AutoValue
@@ -72,7 +72,7 @@ public abstract class ValidateBundleCommand {
   public void execute() throws CommandExecutionException {
     validateInput();
 
-    try (ZipFile bundleZip = new ZipFile(getBundlePath().toFile())) {
+    try (BundleZipReader bundleZip = BundleZipReader.open(getBundlePath())) {
       AppBundleValidator bundleValidator = AppBundleValidator.create();
 
       bundleValidator.validateFile(bundleZip);
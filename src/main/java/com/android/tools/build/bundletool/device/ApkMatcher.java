@@ -315,6 +315,17 @@ public class ApkMatcher {
         && matchesApkTargeting(moduleSplit.getApkTargeting());
   }
 
+  /**
+   * Returns whether the APK targeting of a given split matches the device, regardless of its
+   * variant targeting.
+   *
+   * @throws IncompatibleDeviceException if the device is not compatible with the APK targeting
+   */
+  public boolean matchesModuleSplitByApkTargeting(ModuleSplit moduleSplit) {
+    checkCompatibleWithApkTargeting(moduleSplit.getApkTargeting());
+    return matchesApkTargeting(moduleSplit.getApkTargeting());
+  }
+
   /**
    * Checks if a device is compatible with targeting of a given split, considering the targeting
    * alternatives.
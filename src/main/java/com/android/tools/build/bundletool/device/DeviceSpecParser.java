@@ -18,6 +18,7 @@ package com.android.tools.build.bundletool.device;
 
 import com.android.bundle.Devices.DeviceSpec;
 import com.android.tools.build.bundletool.model.exceptions.InvalidDeviceSpecException;
+import com.android.tools.build.bundletool.model.utils.ParsedFileCache;
 import com.android.tools.build.bundletool.model.utils.files.BufferedIo;
 import com.google.common.io.MoreFiles;
 import com.google.protobuf.util.JsonFormat;
@@ -57,12 +58,17 @@ public class DeviceSpecParser {
           .withUserMessage("Expected .json extension for the device spec file.")
           .build();
     }
-    try (Reader deviceSpecReader = BufferedIo.reader(deviceSpecFile)) {
-      return parseDeviceSpecInternal(deviceSpecReader, canSkipFields);
-    } catch (IOException e) {
-      throw new UncheckedIOException(
-          String.format("Error while reading the device spec file '%s'.", deviceSpecFile), e);
-    }
+    return ParsedFileCache.get(
+        deviceSpecFile,
+        canSkipFields ? "partial-device-spec" : "device-spec",
+        file -> {
+          try (Reader deviceSpecReader = BufferedIo.reader(file)) {
+            return parseDeviceSpecInternal(deviceSpecReader, canSkipFields);
+          } catch (IOException e) {
+            throw new UncheckedIOException(
+                String.format("Error while reading the device spec file '%s'.", file), e);
+          }
+        });
   }
 
   private static DeviceSpec parseDeviceSpecInternal(Reader deviceSpecReader, boolean canSkipFields)
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.model.utils.files.DiskLruCache;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * On-disk cache of APKs produced by aapt2 which is shared between bundletool invocations.
+ *
+ * <p>Each cached APK is the result of converting (and optionally optimizing) a partial proto APK.
+ * It is keyed by the SHA-256 of the aapt2 version, the aapt2 commands executed and the paths and
+ * content of all entries of the proto APK, so the proto APK itself doesn't need to be written when
+ * the result is already cached.
+ *
+ * <p>The size of the cache is bounded, least recently used APKs are removed by {@link #trim()}.
+ */
+final class Aapt2ConversionCache {
+
+  /**
+   * Maximum total size of the cache on disk.
+   *
+   * <p>Can be overridden using the system property "bundletool.aapt2.cache.maxsize".
+   */
+  static final long MAX_CACHE_SIZE_BYTES =
+      DiskLruCache.readSizeProperty("bundletool.aapt2.cache.maxsize", 1024L * 1024 * 1024);
+
+  private static final String CACHED_APK_EXTENSION = ".apk";
+
+  private final DiskLruCache cache;
+  private final String aapt2Version;
+
+  Aapt2ConversionCache(Path cacheDirectory, String aapt2Version) {
+    this(cacheDirectory, aapt2Version, MAX_CACHE_SIZE_BYTES);
+  }
+
+  Aapt2ConversionCache(Path cacheDirectory, String aapt2Version, long maxCacheSizeBytes) {
+    this.cache = new DiskLruCache(cacheDirectory, CACHED_APK_EXTENSION, maxCacheSizeBytes);
+    this.aapt2Version = aapt2Version;
+  }
+
+  /**
+   * Computes the key of the conversion of a proto APK with the given entries.
+   *
+   * @param entriesByApkPath entries of the proto APK, keyed by their path inside the APK
+   * @param optimizeToSparseResourceTables whether the converted APK is optimized using sparse
+   *     encoding of resource tables
+   */
+  HashCode computeKey(
+      Map<String, ModuleEntry> entriesByApkPath, boolean optimizeToSparseResourceTables) {
+    Hasher hasher =
+        Hashing.sha256()
+            .newHasher()
+            .putString(aapt2Version, UTF_8)
+            .putBoolean(optimizeToSparseResourceTables);
+    // Sorted to not depend on the order of entries in the split.
+    List<Map.Entry<String, ModuleEntry>> entries =
+        entriesByApkPath.entrySet().stream()
+            .sorted(Map.Entry.comparingByKey())
+            .collect(Collectors.toList());
+    for (Map.Entry<String, ModuleEntry> entry : entries) {
+      hasher
+          .putString(entry.getKey(), UTF_8)
+          .putByte((byte) 0)
+          .putBytes(entry.getValue().getContentSha256Hash().asBytes());
+    }
+    return hasher.hash();
+  }
+
+  /**
+   * Copies the cached APK with the given key to {@code outputApk}.
+   *
+   * @return whether the APK was present in the cache
+   */
+  boolean copyTo(HashCode key, Path outputApk) {
+    Optional<Path> cachedApkPath = cache.lookup(key.toString());
+    if (!cachedApkPath.isPresent()) {
+      return false;
+    }
+    try {
+      Files.copy(cachedApkPath.get(), outputApk, StandardCopyOption.REPLACE_EXISTING);
+      return true;
+    } catch (IOException e) {
+      // The APK was evicted concurrently by another process.
+      return false;
+    }
+  }
+
+  /** Stores {@code convertedApk} as the result of the conversion with the given key. */
+  void store(HashCode key, Path convertedApk) {
+    cache.store(key.toString(), path -> Files.copy(convertedApk, path));
+  }
+
+  /**
+   * Removes least recently used APKs until the total size of the cache fits into the maximum cache
+   * size.
+   */
+  void trim() {
+    cache.trim();
+  }
+}
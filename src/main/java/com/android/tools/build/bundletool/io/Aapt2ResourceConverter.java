@@ -17,11 +17,19 @@ package com.android.tools.build.bundletool.io;
 
 import static com.android.tools.build.bundletool.model.BundleModule.MANIFEST_FILENAME;
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.ImmutableMap.toImmutableMap;
 import static com.google.common.collect.Streams.stream;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 
+import com.android.aapt.Resources.ConfigValue;
+import com.android.aapt.Resources.FileReference;
+import com.android.aapt.Resources.ResourceTable;
+import com.android.aapt.Resources.XmlNode;
 import com.android.bundle.Config.BundleConfig;
 import com.android.bundle.Config.ResourceOptimizations.SparseEncoding;
 import com.android.tools.build.bundletool.androidtools.Aapt2Command;
+import com.android.tools.build.bundletool.commands.BuildApksModule.Aapt2CacheDirectory;
+import com.android.tools.build.bundletool.commands.BuildApksModule.InProcessResourceConversion;
 import com.android.tools.build.bundletool.model.BundleModule.SpecialModuleEntry;
 import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.ModuleSplit;
@@ -29,14 +37,19 @@ import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.model.utils.ZipUtils;
 import com.android.zipflinger.ZipArchive;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Streams;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Stream;
 import java.util.zip.ZipFile;
@@ -47,15 +60,24 @@ class Aapt2ResourceConverter {
 
   private final Aapt2Command aapt2Command;
   private final boolean enableSparseEncoding;
-  private final ListeningExecutorService executorService;
+  private final MemoryBudget memoryBudget;
+  private final Tracer tracer;
+  private final Optional<Path> cacheDirectory;
+  private final boolean inProcessResourceConversion;
 
   @Inject
   Aapt2ResourceConverter(
       Aapt2Command aapt2Command,
-      ListeningExecutorService executorService,
-      BundleConfig bundleConfig) {
+      MemoryBudget memoryBudget,
+      Tracer tracer,
+      BundleConfig bundleConfig,
+      @Aapt2CacheDirectory Optional<Path> cacheDirectory,
+      @InProcessResourceConversion boolean inProcessResourceConversion) {
     this.aapt2Command = aapt2Command;
-    this.executorService = executorService;
+    this.memoryBudget = memoryBudget;
+    this.tracer = tracer;
+    this.cacheDirectory = cacheDirectory;
+    this.inProcessResourceConversion = inProcessResourceConversion;
     this.enableSparseEncoding =
         bundleConfig
             .getOptimizations()
@@ -67,11 +89,18 @@ class Aapt2ResourceConverter {
   /**
    * Converts module splits from proto format to binary format via invoking 'aapt2 convert'.
    *
-   * <p>Returns a list of {@link ModuleSplit} with converted entries in the same order as in
-   * original {@code allSplits} list.
+   * <p>Returns a future of the list of {@link ModuleSplit} with converted entries in the same order
+   * as in original {@code allSplits} list. Only the resource entries are packed before returning,
+   * splits are converted in the background as part of {@code tasks}.
+   *
+   * <p>If the cache directory is set and the version of aapt2 is known, splits whose resources
+   * were already converted by a previous invocation are not converted again.
+   *
+   * <p>If in-process conversion is enabled, splits whose resources are supported by {@link
+   * BinaryXmlWriter} and {@link ResourceTableChunkWriter} are converted without invoking aapt2.
    */
-  public ImmutableList<ModuleSplit> convert(
-      Collection<ModuleSplit> allSplits, SerializationFilesManager filesManager) {
+  public ListenableFuture<ImmutableList<ModuleSplit>> convert(
+      Collection<ModuleSplit> allSplits, SerializationFilesManager filesManager, TaskGroup tasks) {
     // Uncompress all resource entries we have in module splits and store them in uncompressed
     // form inside special zip pack. This is done because we may have the same entry duplicated
     // in multiple splits to uncompress them only once.
@@ -84,37 +113,125 @@ class Aapt2ResourceConverter {
                 ApkSerializerHelper.requiresAapt2Conversion(
                     ApkSerializerHelper.toApkEntryPath(entry.getPath())))
         .forEach(packer::add);
-    ModuleEntriesPack allResourcesUncompressedPack = packer.pack(Zipper.uncompressedZip());
+    ModuleEntriesPack allResourcesUncompressedPack;
+    try (Tracer.Span span = tracer.startSpan("pack-resource-entries")) {
+      allResourcesUncompressedPack = packer.pack(Zipper.uncompressedZip());
+    }
 
+    // Results of a different aapt2 could differ, so they can't be cached without knowing its
+    // version.
+    Optional<Aapt2ConversionCache> cache =
+        cacheDirectory.flatMap(
+            directory ->
+                aapt2Command
+                    .getVersion()
+                    .map(version -> new Aapt2ConversionCache(directory, version)));
     ResourceConverter resourceConverter =
-        new ResourceConverter(filesManager, allResourcesUncompressedPack);
+        new ResourceConverter(filesManager, allResourcesUncompressedPack, cache);
 
     ImmutableList<ListenableFuture<ModuleSplit>> binarySplitFutures =
         allSplits.stream()
             .map(
                 split ->
-                    executorService.submit(() -> resourceConverter.convertResourcesToBinary(split)))
+                    tasks.submit(
+                        () ->
+                            memoryBudget.call(
+                                estimateConversionBytes(split),
+                                () -> {
+                                  try (Tracer.Span span =
+                                      tracer
+                                          .startSpan("convert-resources")
+                                          .addArg("module", split.getModuleName().getName())
+                                          .addArg("splitType", split.getSplitType().name())
+                                          .addArg("entries", split.getEntries().size())) {
+                                    return resourceConverter.convertResourcesToBinary(split);
+                                  }
+                                })))
             .collect(toImmutableList());
-    return ConcurrencyUtils.waitForAll(binarySplitFutures);
+    return Futures.transform(
+        Futures.allAsList(binarySplitFutures),
+        binarySplits -> {
+          cache.ifPresent(Aapt2ConversionCache::trim);
+          return ImmutableList.copyOf(binarySplits);
+        },
+        directExecutor());
+  }
+
+  /**
+   * Estimates the memory needed to convert the resources of the split, dominated by its resource
+   * table and manifest which are held in memory in both proto and binary formats.
+   */
+  private static long estimateConversionBytes(ModuleSplit split) {
+    long protoBytes =
+        split.getResourceTable().map(ResourceTable::getSerializedSize).orElse(0)
+            + split.getAndroidManifest().getManifestRoot().getProto().getSerializedSize();
+    return 2 * protoBytes;
+  }
+
+  /** Returns the version of aapt2 converting resources, if known. */
+  Optional<String> getAapt2Version() {
+    return aapt2Command.getVersion();
+  }
+
+  /** Returns whether supported resources are converted in-process instead of by aapt2. */
+  boolean isInProcessResourceConversion() {
+    return inProcessResourceConversion;
   }
 
   private class ResourceConverter {
 
     private final SerializationFilesManager filesManager;
     private final ModuleEntriesPack packWithResourceEntries;
+    private final Optional<Aapt2ConversionCache> cache;
 
     ResourceConverter(
-        SerializationFilesManager filesManager, ModuleEntriesPack packWithResourceEntries) {
+        SerializationFilesManager filesManager,
+        ModuleEntriesPack packWithResourceEntries,
+        Optional<Aapt2ConversionCache> cache) {
       this.filesManager = filesManager;
       this.packWithResourceEntries = packWithResourceEntries;
+      this.cache = cache;
     }
 
     /** Converts resources in split from proto to binary format. */
     public ModuleSplit convertResourcesToBinary(ModuleSplit split) {
       try {
-        Path protoApkPath = writePartialProtoApk(split);
-        Path binaryApkPath = convertAndOptimizeProtoApk(split, protoApkPath);
+        ImmutableMap<String, ModuleEntry> entriesToConvert =
+            split.getEntries().stream()
+                .filter(
+                    entry ->
+                        ApkSerializerHelper.requiresAapt2Conversion(
+                            ApkSerializerHelper.toApkEntryPath(entry.getPath())))
+                .collect(
+                    toImmutableMap(
+                        entry -> ApkSerializerHelper.toApkEntryPath(entry.getPath()).toString(),
+                        entry -> entry));
+        boolean optimizeToSparseResourceTables =
+            enableSparseEncoding && split.getResourceTable().isPresent();
+
+        if (inProcessResourceConversion && !optimizeToSparseResourceTables) {
+          Optional<ModuleSplit> binarySplit = convertInProcess(split, entriesToConvert);
+          if (binarySplit.isPresent()) {
+            return binarySplit.get();
+          }
+        }
+
+        Optional<HashCode> cacheKey =
+            cache.map(c -> c.computeKey(entriesToConvert, optimizeToSparseResourceTables));
+        if (cacheKey.isPresent()) {
+          Path binaryApkPath = filesManager.getNextAapt2BinaryApkPath();
+          if (cache.get().copyTo(cacheKey.get(), binaryApkPath)) {
+            return withConvertedEntries(split, binaryApkPath);
+          }
+        }
+
+        Path protoApkPath = writePartialProtoApk(entriesToConvert);
+        Path binaryApkPath =
+            convertAndOptimizeProtoApk(protoApkPath, optimizeToSparseResourceTables);
         Files.delete(protoApkPath);
+        if (cacheKey.isPresent()) {
+          cache.get().store(cacheKey.get(), binaryApkPath);
+        }
 
         return withConvertedEntries(split, binaryApkPath);
       } catch (IOException e) {
@@ -122,20 +239,101 @@ class Aapt2ResourceConverter {
       }
     }
 
+    /**
+     * Converts resources of the split to binary format without invoking aapt2.
+     *
+     * <p>Returns empty if any of the resources is not supported, in which case the whole split must
+     * be converted by aapt2.
+     */
+    private Optional<ModuleSplit> convertInProcess(
+        ModuleSplit split, ImmutableMap<String, ModuleEntry> entriesToConvert) throws IOException {
+      ImmutableList.Builder<ModuleEntry> binaryEntries = ImmutableList.builder();
+      Optional<byte[]> binaryManifest =
+          BinaryXmlWriter.write(
+              split.getAndroidManifest().getManifestRoot().getProto(), /* utf16= */ true);
+      if (!binaryManifest.isPresent()) {
+        return Optional.empty();
+      }
+      binaryEntries.add(
+          ModuleEntry.builder()
+              .setContent(ByteSource.wrap(binaryManifest.get()))
+              .setPath(SpecialModuleEntry.ANDROID_MANIFEST.getPath())
+              .setForceUncompressed(false)
+              .build());
+
+      if (split.getResourceTable().isPresent()) {
+        ResourceTable resourceTable = split.getResourceTable().get();
+        Optional<byte[]> binaryResourceTable = ResourceTableChunkWriter.write(resourceTable);
+        if (!binaryResourceTable.isPresent()) {
+          return Optional.empty();
+        }
+        binaryEntries.add(
+            ModuleEntry.builder()
+                .setContent(ByteSource.wrap(binaryResourceTable.get()))
+                .setPath(SpecialModuleEntry.RESOURCE_TABLE.getPath())
+                .setForceUncompressed(true)
+                .build());
+
+        // Like aapt2, only files referenced from the resource table are kept.
+        Map<String, FileReference> referencedFiles = new HashMap<>();
+        for (FileReference file : getFileReferences(resourceTable)) {
+          if (!entriesToConvert.containsKey(file.getPath())
+              || referencedFiles.put(file.getPath(), file) != null) {
+            return Optional.empty();
+          }
+        }
+        // Converted entries are rebuilt from the original ones, which keeps their order and flags.
+        for (ModuleEntry entry : split.getEntries()) {
+          String path = ApkSerializerHelper.toApkEntryPath(entry.getPath()).toString();
+          FileReference file = referencedFiles.get(path);
+          if (file == null) {
+            continue;
+          }
+          ModuleEntry.Builder binaryEntry = entry.toBuilder().setPath(ZipPath.create(path));
+          if (file.getType().equals(FileReference.Type.PROTO_XML)) {
+            Optional<byte[]> binaryXml =
+                BinaryXmlWriter.write(
+                    XmlNode.parseFrom(entry.getContent().read()), /* utf16= */ false);
+            if (!binaryXml.isPresent()) {
+              return Optional.empty();
+            }
+            // The content no longer matches the entry of the bundle.
+            binaryEntry
+                .setContent(ByteSource.wrap(binaryXml.get()))
+                .setBundleLocation(Optional.empty());
+          }
+          binaryEntries.add(binaryEntry.build());
+        }
+      }
+
+      split.getEntries().stream()
+          .filter(
+              entry ->
+                  !ApkSerializerHelper.requiresAapt2Conversion(
+                      ApkSerializerHelper.toApkEntryPath(entry.getPath())))
+          .forEach(binaryEntries::add);
+      return Optional.of(split.toBuilder().setEntries(binaryEntries.build()).build());
+    }
+
+    private ImmutableList<FileReference> getFileReferences(ResourceTable resourceTable) {
+      return resourceTable.getPackageList().stream()
+          .flatMap(pkg -> pkg.getTypeList().stream())
+          .flatMap(type -> type.getEntryList().stream())
+          .flatMap(entry -> entry.getConfigValueList().stream())
+          .map(ConfigValue::getValue)
+          .filter(value -> value.getItem().hasFile())
+          .map(value -> value.getItem().getFile())
+          .collect(toImmutableList());
+    }
+
     /** Writes APK with only resource entries in proto format. */
-    private Path writePartialProtoApk(ModuleSplit split) throws IOException {
+    private Path writePartialProtoApk(ImmutableMap<String, ModuleEntry> entriesToConvert)
+        throws IOException {
       Path protoApkPath = filesManager.getNextAapt2ProtoApkPath();
       try (ZipArchive protoApk = new ZipArchive(protoApkPath)) {
-        ImmutableList<ModuleEntry> entriesToConvert =
-            split.getEntries().stream()
-                .filter(
-                    entry ->
-                        ApkSerializerHelper.requiresAapt2Conversion(
-                            ApkSerializerHelper.toApkEntryPath(entry.getPath())))
-                .collect(toImmutableList());
         protoApk.add(
             packWithResourceEntries.select(
-                entriesToConvert,
+                entriesToConvert.values().asList(),
                 entry -> ApkSerializerHelper.toApkEntryPath(entry.getPath()).toString()));
       }
       return protoApkPath;
@@ -144,9 +342,10 @@ class Aapt2ResourceConverter {
     /**
      * Invokes 'aapt2' convert and optimize. Returns path to APK with resources in binary format.
      */
-    private Path convertAndOptimizeProtoApk(ModuleSplit split, Path protoApkPath) {
+    private Path convertAndOptimizeProtoApk(
+        Path protoApkPath, boolean optimizeToSparseResourceTables) {
       Path binaryApkPath = filesManager.getNextAapt2BinaryApkPath();
-      if (enableSparseEncoding && split.getResourceTable().isPresent()) {
+      if (optimizeToSparseResourceTables) {
         Path interimApkPath = filesManager.getNextAapt2BinaryApkPath();
         aapt2Command.convertApkProtoToBinary(protoApkPath, interimApkPath);
         aapt2Command.optimizeToSparseResourceTables(interimApkPath, binaryApkPath);
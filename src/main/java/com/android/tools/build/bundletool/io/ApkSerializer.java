@@ -49,8 +49,17 @@ public abstract class ApkSerializer {
     return serialize(outputDirectory, ImmutableMap.of(relativePath, moduleSplit)).get(relativePath);
   }
 
+  public ImmutableMap<ZipPath, ApkDescription> serialize(
+      Path outputDirectory, ImmutableMap<ZipPath, ModuleSplit> splitsByRelativePath) {
+    return serialize(ApkSetWriter.directory(outputDirectory), splitsByRelativePath);
+  }
+
+  /**
+   * Serializes APKs under {@link ApkSetWriter#getSplitsDirectory()} and adds each of them to the
+   * {@code apkSetWriter} once it is complete.
+   */
   public abstract ImmutableMap<ZipPath, ApkDescription> serialize(
-      Path outputDirectory, ImmutableMap<ZipPath, ModuleSplit> splitsByRelativePath);
+      ApkSetWriter apkSetWriter, ImmutableMap<ZipPath, ModuleSplit> splitsByRelativePath);
 
   protected void notifyApkSerialized(
       ApkDescription apkDescription, ModuleSplit.SplitType splitType) {
@@ -61,6 +61,7 @@ import com.android.tools.build.bundletool.model.BundleModuleName;
 import com.android.tools.build.bundletool.model.GeneratedApks;
 import com.android.tools.build.bundletool.model.GeneratedAssetSlices;
 import com.android.tools.build.bundletool.model.ManifestDeliveryElement;
+import com.android.tools.build.bundletool.model.ManifestMutator;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.ModuleSplit.SplitType;
 import com.android.tools.build.bundletool.model.OptimizationDimension;
@@ -69,17 +70,20 @@ import com.android.tools.build.bundletool.model.VariantKey;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.model.version.BundleToolVersion;
 import com.android.tools.build.bundletool.optimizations.ApkOptimizations;
+import com.google.auto.value.AutoValue;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.protobuf.Int32Value;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.nio.file.Path;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -97,6 +101,7 @@ public class ApkSerializerManager {
   private final ApkPathManager apkPathManager;
   private final ApkOptimizations apkOptimizations;
   private final ApkSerializer apkSerializer;
+  private final ListeningExecutorService executorService;
 
   @Inject
   public ApkSerializerManager(
@@ -107,7 +112,8 @@ public class ApkSerializerManager {
       ApkBuildMode apkBuildMode,
       ApkPathManager apkPathManager,
       ApkOptimizations apkOptimizations,
-      ApkSerializer apkSerializer) {
+      ApkSerializer apkSerializer,
+      ListeningExecutorService executorService) {
     this.bundle = bundle;
     this.apkModifier = apkModifier.orElse(ApkModifier.NO_OP);
     this.firstVariantNumber = firstVariantNumber.orElse(0);
@@ -115,6 +121,7 @@ public class ApkSerializerManager {
     this.apkPathManager = apkPathManager;
     this.apkOptimizations = apkOptimizations;
     this.apkSerializer = apkSerializer;
+    this.executorService = executorService;
   }
 
   /** Serialize App Bundle APKs. */
@@ -128,7 +135,7 @@ public class ApkSerializerManager {
     try {
       BuildApksResult toc =
           serializeApkSetContent(
-              apkSetWriter.getSplitsDirectory(),
+              apkSetWriter,
               generatedApks,
               generatedAssetSlices,
               deviceSpec,
@@ -138,31 +145,34 @@ public class ApkSerializerManager {
       return toc;
     } catch (IOException e) {
       throw new UncheckedIOException(e);
+    } finally {
+      apkSetWriter.close();
     }
   }
 
   /** Serialize SDK Bundle APKs. */
   public void serializeSdkApkSet(ApkSetWriter apkSetWriter, GeneratedApks generatedApks) {
     try {
-      BuildSdkApksResult toc =
-          serializeSdkApkSetContent(apkSetWriter.getSplitsDirectory(), generatedApks);
+      BuildSdkApksResult toc = serializeSdkApkSetContent(apkSetWriter, generatedApks);
       apkSetWriter.writeApkSet(toc);
     } catch (IOException e) {
       throw new UncheckedIOException(e);
+    } finally {
+      apkSetWriter.close();
     }
   }
 
   private BuildApksResult serializeApkSetContent(
-      Path outputDirectory,
+      ApkSetWriter apkSetWriter,
       GeneratedApks generatedApks,
       GeneratedAssetSlices generatedAssetSlices,
       Optional<DeviceSpec> deviceSpec,
       LocalTestingInfo localTestingInfo,
       ImmutableSet<BundleModuleName> permanentlyFusedModules) {
     ImmutableList<Variant> allVariantsWithTargeting =
-        serializeApks(outputDirectory, generatedApks, deviceSpec);
+        serializeApks(apkSetWriter, generatedApks, deviceSpec);
     ImmutableList<AssetSliceSet> allAssetSliceSets =
-        serializeAssetSlices(outputDirectory, generatedAssetSlices, deviceSpec);
+        serializeAssetSlices(apkSetWriter, generatedAssetSlices, deviceSpec);
     // Finalize the output archive.
     BuildApksResult.Builder apksResult =
         BuildApksResult.newBuilder()
@@ -186,9 +196,9 @@ public class ApkSerializerManager {
   }
 
   private BuildSdkApksResult serializeSdkApkSetContent(
-      Path outputDirectory, GeneratedApks generatedApks) {
+      ApkSetWriter apkSetWriter, GeneratedApks generatedApks) {
     ImmutableList<Variant> allVariantsWithTargeting =
-        serializeApks(outputDirectory, generatedApks, /* deviceSpec= */ Optional.empty());
+        serializeApks(apkSetWriter, generatedApks, /* deviceSpec= */ Optional.empty());
     SdkBundle sdkBundle = (SdkBundle) bundle;
     return BuildSdkApksResult.newBuilder()
         .setPackageName(sdkBundle.getPackageName())
@@ -207,7 +217,7 @@ public class ApkSerializerManager {
 
   @VisibleForTesting
   ImmutableList<Variant> serializeApks(
-      Path outputDirectory, GeneratedApks generatedApks, Optional<DeviceSpec> deviceSpec) {
+      ApkSetWriter apkSetWriter, GeneratedApks generatedApks, Optional<DeviceSpec> deviceSpec) {
     validateInput(generatedApks, apkBuildMode);
 
     // Running with system APK mode generates a fused APK and additional unmatched language splits.
@@ -245,14 +255,19 @@ public class ApkSerializerManager {
                                 entry.getValue(), variantNumberByVariantKey.get(entry.getKey())))));
 
     // After variant targeting of APKs are cleared, there might be duplicate APKs
-    // which are removed and the distinct APKs are then serialized in parallel.
-    ImmutableBiMap<ZipPath, ModuleSplit> splitsByRelativePath =
+    // which are removed and the distinct APKs are then serialized in parallel. Duplicates are
+    // found by their fingerprints, computed in parallel beforehand.
+    computeFingerprints(finalSplitsByVariant.values());
+    ImmutableMap<DistinctSplitKey, ModuleSplit> distinctSplitsByKey =
         finalSplitsByVariant.values().stream()
-            .distinct()
+            .collect(
+                toImmutableMap(DistinctSplitKey::of, identity(), (split, duplicate) -> split));
+    ImmutableBiMap<ZipPath, ModuleSplit> splitsByRelativePath =
+        distinctSplitsByKey.values().stream()
             .collect(toImmutableBiMap(apkPathManager::getApkPath, identity()));
 
     ImmutableMap<ZipPath, ApkDescription> apkDescriptionsByRelativePath =
-        apkSerializer.serialize(outputDirectory, splitsByRelativePath);
+        apkSerializer.serialize(apkSetWriter, splitsByRelativePath);
 
     // Build the result proto.
     ImmutableList.Builder<Variant> variants = ImmutableList.builder();
@@ -272,6 +287,7 @@ public class ApkSerializerManager {
                 .setModuleMetadata(bundle.getModule(moduleName).getModuleMetadata())
                 .addAllApkDescription(
                     splitsByModuleName.get(moduleName).stream()
+                        .map(split -> distinctSplitsByKey.get(DistinctSplitKey.of(split)))
                         .map(split -> splitsByRelativePath.inverse().get(split))
                         .map(apkDescriptionsByRelativePath::get)
                         .collect(toImmutableList())));
@@ -284,7 +300,7 @@ public class ApkSerializerManager {
 
   @VisibleForTesting
   ImmutableList<AssetSliceSet> serializeAssetSlices(
-      Path outputDirectory,
+      ApkSetWriter apkSetWriter,
       GeneratedAssetSlices generatedAssetSlices,
       Optional<DeviceSpec> deviceSpec) {
 
@@ -300,7 +316,7 @@ public class ApkSerializerManager {
             .collect(toImmutableMap(apkPathManager::getApkPath, identity()));
 
     ImmutableMap<ZipPath, ApkDescription> apkDescriptionsByRelativePath =
-        apkSerializer.serialize(outputDirectory, assetSplitsByRelativePath);
+        apkSerializer.serialize(apkSetWriter, assetSplitsByRelativePath);
 
     ImmutableMap<BundleModuleName, ImmutableList<ApkDescription>> serializedApksByModuleName =
         assetSplitsByRelativePath.keySet().stream()
@@ -400,6 +416,29 @@ public class ApkSerializerManager {
     }
   }
 
+  private void computeFingerprints(ImmutableCollection<ModuleSplit> splits) {
+    ConcurrencyUtils.waitForAll(
+        splits.stream()
+            .map(split -> executorService.submit(split::getFingerprint))
+            .collect(toImmutableList()));
+  }
+
+  /**
+   * Identifies splits serialized as the same APK: splits with the same fingerprint and the same
+   * master manifest mutators, which are not part of the fingerprint.
+   */
+  @AutoValue
+  abstract static class DistinctSplitKey {
+    abstract HashCode getFingerprint();
+
+    abstract ImmutableList<ManifestMutator> getMasterManifestMutators();
+
+    static DistinctSplitKey of(ModuleSplit split) {
+      return new AutoValue_ApkSerializerManager_DistinctSplitKey(
+          split.getFingerprint(), split.getMasterManifestMutators());
+    }
+  }
+
   private ModuleSplit modifyApk(ModuleSplit moduleSplit, int variantNumber) {
     ApkModifier.ApkDescription apkDescription =
         ApkModifier.ApkDescription.builder()
@@ -15,59 +15,129 @@
  */
 package com.android.tools.build.bundletool.io;
 
+import static com.android.tools.build.bundletool.model.utils.FileNames.APK_FINGERPRINTS_FILE;
 import static com.android.tools.build.bundletool.model.utils.FileNames.TABLE_OF_CONTENTS_FILE;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 
 import com.android.bundle.Commands.ApkDescription;
 import com.android.bundle.Commands.BuildApksResult;
 import com.android.bundle.Commands.BuildSdkApksResult;
+import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.zipflinger.BytesSource;
 import com.android.zipflinger.LargeFileSource;
 import com.android.zipflinger.ZipArchive;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Stream;
 import java.util.zip.Deflater;
+import javax.annotation.Nullable;
 
 /** Interface for ApkSet writer. */
-public interface ApkSetWriter {
+public interface ApkSetWriter extends AutoCloseable {
 
   Path getSplitsDirectory();
 
+  /**
+   * Notifies the writer that the APK with the given path relative to {@link #getSplitsDirectory()}
+   * is fully written and signed, so it may be moved into the APK set right away.
+   *
+   * <p>Must not be called concurrently.
+   */
+  default void addApk(ZipPath relativePath) throws IOException {}
+
+  /**
+   * Records the fingerprint of the inputs of the APK with the given path relative to {@link
+   * #getSplitsDirectory()}.
+   *
+   * <p>Fingerprints are stored in the APK set next to the table of contents, so that APKs can be
+   * reused by a later incremental build. Nothing is stored if no fingerprint is recorded.
+   *
+   * <p>Must not be called concurrently.
+   */
+  void addApkFingerprint(ZipPath relativePath, HashCode fingerprint);
+
   void writeApkSet(BuildApksResult toc) throws IOException;
 
   void writeApkSet(BuildSdkApksResult toc) throws IOException;
 
+  /** Removes the partially written APK set if {@code writeApkSet} has not completed. */
+  @Override
+  default void close() {}
+
   /** Creates ApkSet writer which stores all splits uncompressed inside output directory. */
   static ApkSetWriter directory(Path outputDirectory) {
     return new ApkSetWriter() {
+      private final Map<ZipPath, HashCode> apkFingerprints = new HashMap<>();
+
       @Override
       public Path getSplitsDirectory() {
         return outputDirectory;
       }
 
+      @Override
+      public void addApkFingerprint(ZipPath relativePath, HashCode fingerprint) {
+        apkFingerprints.put(relativePath, fingerprint);
+      }
+
       @Override
       public void writeApkSet(BuildApksResult toc) throws IOException {
+        writeApkFingerprints();
         Files.write(getSplitsDirectory().resolve(TABLE_OF_CONTENTS_FILE), toc.toByteArray());
       }
 
       @Override
       public void writeApkSet(BuildSdkApksResult toc) throws IOException {
+        writeApkFingerprints();
         Files.write(getSplitsDirectory().resolve(TABLE_OF_CONTENTS_FILE), toc.toByteArray());
       }
+
+      private void writeApkFingerprints() throws IOException {
+        if (!apkFingerprints.isEmpty()) {
+          Files.write(
+              getSplitsDirectory().resolve(APK_FINGERPRINTS_FILE),
+              IncrementalApkSet.serializeFingerprints(apkFingerprints));
+        }
+      }
     };
   }
 
-  /** Creates ApkSet writer which stores all splits as ZIP archive. */
+  /**
+   * Creates ApkSet writer which stores all splits as ZIP archive.
+   *
+   * <p>APKs are appended to the archive as soon as they are added and removed from the temp
+   * directory, so that only APKs which are still being serialized occupy space there. The table of
+   * contents is only known once all APKs are serialized, so it is the last entry of the archive,
+   * after the fingerprints of the APKs.
+   */
   static ApkSetWriter zip(Path tempDirectory, Path outputFile) {
     return new ApkSetWriter() {
+      private final Set<String> addedApks = new HashSet<>();
+      private final Map<ZipPath, HashCode> apkFingerprints = new HashMap<>();
+      @Nullable private ZipArchive zipArchive;
+      private boolean completed = false;
+
       @Override
       public Path getSplitsDirectory() {
         return tempDirectory;
       }
 
+      @Override
+      public void addApk(ZipPath relativePath) throws IOException {
+        addApk(relativePath.toString());
+      }
+
+      @Override
+      public void addApkFingerprint(ZipPath relativePath, HashCode fingerprint) {
+        apkFingerprints.put(relativePath, fingerprint);
+      }
+
       @Override
       public void writeApkSet(BuildApksResult toc) throws IOException {
         Stream<ApkDescription> apks =
@@ -100,21 +170,61 @@ public interface ApkSetWriter {
         zipApkSet(apkRelativePaths, toc.toByteArray());
       }
 
+      @Override
+      public void close() {
+        if (zipArchive == null || completed) {
+          return;
+        }
+        try {
+          zipArchive.close();
+        } catch (IOException ignored) {
+          // The archive is removed regardless, the original failure is reported to the caller.
+        }
+        try {
+          Files.deleteIfExists(outputFile);
+        } catch (IOException ignored) {
+          // Best effort, the original failure is reported to the caller.
+        }
+      }
+
       private void zipApkSet(ImmutableSet<String> apkRelativePaths, byte[] tocBytes)
           throws IOException {
-        try (ZipArchive zipArchive = new ZipArchive(outputFile)) {
-          zipArchive.add(
-              new BytesSource(tocBytes, TABLE_OF_CONTENTS_FILE, Deflater.NO_COMPRESSION));
+        // APKs which were not added while being serialized are added now.
+        for (String relativePath : apkRelativePaths) {
+          addApk(relativePath);
+        }
+        if (!apkFingerprints.isEmpty()) {
+          getZipArchive()
+              .add(
+                  new BytesSource(
+                      IncrementalApkSet.serializeFingerprints(apkFingerprints),
+                      APK_FINGERPRINTS_FILE,
+                      Deflater.DEFAULT_COMPRESSION));
+        }
+        getZipArchive()
+            .add(new BytesSource(tocBytes, TABLE_OF_CONTENTS_FILE, Deflater.NO_COMPRESSION));
+        getZipArchive().close();
+        completed = true;
+      }
 
-          for (String relativePath : apkRelativePaths) {
-            zipArchive.add(
+      private void addApk(String relativePath) throws IOException {
+        if (!addedApks.add(relativePath)) {
+          return;
+        }
+        Path apkPath = getSplitsDirectory().resolve(relativePath);
+        getZipArchive()
+            .add(
                 new LargeFileSource(
-                    getSplitsDirectory().resolve(relativePath),
-                    /* tmpStorage= */ null,
-                    relativePath,
-                    Deflater.NO_COMPRESSION));
-          }
+                    apkPath, /* tmpStorage= */ null, relativePath, Deflater.NO_COMPRESSION));
+        // The APK is now stored in the APK set, free up space in the temp directory.
+        Files.delete(apkPath);
+      }
+
+      private ZipArchive getZipArchive() throws IOException {
+        if (zipArchive == null) {
+          zipArchive = new ZipArchive(outputFile);
         }
+        return zipArchive;
       }
     };
   }
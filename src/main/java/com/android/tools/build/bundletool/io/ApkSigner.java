@@ -16,10 +16,20 @@
 package com.android.tools.build.bundletool.io;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
-import com.android.apksig.ApkSigner.SignerConfig;
+import com.android.apksig.ApkSignerEngine;
+import com.android.apksig.ApkSignerEngine.InputJarEntryInstructions.OutputPolicy;
+import com.android.apksig.ApkSignerEngine.InspectJarEntryRequest;
+import com.android.apksig.ApkSignerEngine.OutputApkSigningBlockRequest2;
+import com.android.apksig.ApkSignerEngine.OutputJarSignatureRequest;
+import com.android.apksig.DefaultApkSignerEngine;
+import com.android.apksig.DefaultApkSignerEngine.SignerConfig;
 import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.apk.ApkUtils.ZipSections;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+import com.android.apksig.zip.ZipFormatException;
 import com.android.bundle.Commands.SigningDescription;
 import com.android.tools.build.bundletool.commands.BuildApksModule.ApkSigningConfigProvider;
 import com.android.tools.build.bundletool.commands.BuildApksModule.StampSigningConfig;
@@ -32,18 +42,34 @@ import com.android.tools.build.bundletool.model.SigningConfigurationProvider.Apk
 import com.android.tools.build.bundletool.model.WearApkLocator;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.model.exceptions.CommandExecutionException;
+import com.android.zipflinger.BytesSource;
+import com.android.zipflinger.ZipArchive;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
 import com.google.errorprone.annotations.CheckReturnValue;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import javax.inject.Inject;
 
 /** Signs APKs. */
@@ -51,6 +77,14 @@ class ApkSigner {
   /** Name identifying uniquely the {@link SignerConfig}. */
   private static final String SIGNER_CONFIG_NAME = "BNDLTOOL";
 
+  /** Offset of the "offset of start of central directory" field in the ZIP End of Central Dir. */
+  private static final int EOCD_CENTRAL_DIRECTORY_OFFSET_FIELD_OFFSET = 16;
+
+  private static final int INSPECT_BUFFER_SIZE = 64 * 1024;
+
+  /** Entry holding the SHA-256 of the source stamp certificate, verified against the stamp. */
+  private static final String SOURCE_STAMP_CERTIFICATE_HASH_ENTRY_NAME = "stamp-cert-sha256";
+
   private final Optional<SigningConfigurationProvider> signingConfigProvider;
   private final Optional<SigningConfiguration> sourceStampSigningConfig;
   private final TempDirectory tempDirectory;
@@ -65,6 +99,12 @@ class ApkSigner {
     this.tempDirectory = tempDirectory;
   }
 
+  /**
+   * Signs the APK in place.
+   *
+   * <p>Only the JAR signature files and the APK Signing Block are written, the entries already
+   * present in the APK are read but never copied.
+   */
   public Optional<SigningDescription> signApk(Path apkPath, ModuleSplit split) {
     if (!signingConfigProvider.isPresent()) {
       return Optional.empty();
@@ -73,34 +113,35 @@ class ApkSigner {
     ApksigSigningConfiguration signingConfig =
         signingConfigProvider.get().getSigningConfiguration(ApkDescription.fromModuleSplit(split));
 
-    try (TempDirectory tempDirectory = new TempDirectory(getClass().getSimpleName())) {
-      Path signedApkPath = tempDirectory.getPath().resolve("signed.apk");
-      com.android.apksig.ApkSigner.Builder apkSigner =
-          new com.android.apksig.ApkSigner.Builder(
+    try {
+      DefaultApkSignerEngine.Builder signerEngine =
+          new DefaultApkSignerEngine.Builder(
                   signingConfig.getSignerConfigs().stream()
                       .map(ApkSigner::convertToApksigSignerConfig)
-                      .collect(toImmutableList()))
-              .setInputApk(apkPath.toFile())
-              .setOutputApk(signedApkPath.toFile())
+                      .collect(toImmutableList()),
+                  split.getAndroidManifest().getEffectiveMinSdkVersion())
               .setV1SigningEnabled(signingConfig.getV1SigningEnabled())
               .setV2SigningEnabled(signingConfig.getV2SigningEnabled())
               .setV3SigningEnabled(signingConfig.getV3SigningEnabled())
-              .setOtherSignersSignaturesPreserved(false)
-              .setMinSdkVersion(split.getAndroidManifest().getEffectiveMinSdkVersion());
+              .setOtherSignersSignaturesPreserved(false);
       signingConfig
           .getSigningCertificateLineage()
-          .ifPresent(apkSigner::setSigningCertificateLineage);
-
-
+          .ifPresent(signerEngine::setSigningCertificateLineage);
       sourceStampSigningConfig
           .map(SigningConfiguration::getSignerConfig)
           .map(ApkSigner::convertToApksigSignerConfig)
-          .ifPresent(apkSigner::setSourceStampSignerConfig);
-      apkSigner.build().sign();
-      Files.move(signedApkPath, apkPath, REPLACE_EXISTING);
+          .ifPresent(signerEngine::setStampSignerConfig);
+
+      try (ApkSignerEngine engine = signerEngine.build()) {
+        signJarEntries(apkPath, engine, getSourceStampCertificateHash());
+        signZipSections(apkPath, engine);
+        engine.outputDone();
+      }
       return Optional.of(signingDescription(signingConfig));
     } catch (IOException
+        | CertificateEncodingException
         | ApkFormatException
+        | ZipFormatException
         | NoSuchAlgorithmException
         | InvalidKeyException
         | SignatureException e) {
@@ -111,6 +152,211 @@ class ApkSigner {
     }
   }
 
+  /** Returns the description of how {@link #signApk} signs the APK of the split. */
+  public Optional<SigningDescription> getSigningDescription(ModuleSplit split) {
+    return signingConfigProvider.map(
+        provider ->
+            signingDescription(
+                provider.getSigningConfiguration(ApkDescription.fromModuleSplit(split))));
+  }
+
+  /**
+   * Returns a fingerprint of everything which determines how {@link #signApk} signs the APK of the
+   * split: certificates of the signers and of the signing certificate lineage, enabled signature
+   * schemes and the source stamp signer.
+   *
+   * <p>Private keys are identified by their certificates and are not part of the fingerprint.
+   */
+  public HashCode getSigningFingerprint(ModuleSplit split) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putBoolean(signingConfigProvider.isPresent());
+    if (signingConfigProvider.isPresent()) {
+      ApksigSigningConfiguration signingConfig =
+          signingConfigProvider
+              .get()
+              .getSigningConfiguration(ApkDescription.fromModuleSplit(split));
+      hasher.putInt(signingConfig.getSignerConfigs().size());
+      signingConfig
+          .getSignerConfigs()
+          .forEach(signerConfig -> putCertificates(hasher, signerConfig.getCertificates()));
+      hasher.putBoolean(signingConfig.getSigningCertificateLineage().isPresent());
+      signingConfig
+          .getSigningCertificateLineage()
+          .ifPresent(lineage -> putCertificates(hasher, lineage.getCertificatesInLineage()));
+      hasher
+          .putBoolean(signingConfig.getV1SigningEnabled())
+          .putBoolean(signingConfig.getV2SigningEnabled())
+          .putBoolean(signingConfig.getV3SigningEnabled())
+          .putInt(signingConfig.getRotationMinSdkVersion().orElse(0));
+    }
+    hasher.putBoolean(sourceStampSigningConfig.isPresent());
+    sourceStampSigningConfig.ifPresent(
+        stampConfig -> putCertificates(hasher, stampConfig.getSignerConfig().getCertificates()));
+    return hasher.hash();
+  }
+
+  private static void putCertificates(Hasher hasher, List<X509Certificate> certificates) {
+    hasher.putInt(certificates.size());
+    for (X509Certificate certificate : certificates) {
+      try {
+        byte[] encodedCertificate = certificate.getEncoded();
+        hasher.putInt(encodedCertificate.length).putBytes(encodedCertificate);
+      } catch (CertificateEncodingException e) {
+        throw CommandExecutionException.builder()
+            .withCause(e)
+            .withInternalMessage("Unable to encode signing certificate.")
+            .build();
+      }
+    }
+  }
+
+  /** Returns the SHA-256 of the source stamp certificate, if the APK is stamped. */
+  private Optional<byte[]> getSourceStampCertificateHash() throws CertificateEncodingException {
+    if (!sourceStampSigningConfig.isPresent()) {
+      return Optional.empty();
+    }
+    X509Certificate stampCertificate =
+        sourceStampSigningConfig.get().getSignerConfig().getCertificates().get(0);
+    return Optional.of(Hashing.sha256().hashBytes(stampCertificate.getEncoded()).asBytes());
+  }
+
+  /**
+   * Feeds entries of the APK to the signer engine, then replaces signature files of the APK with
+   * the JAR signature files computed by the engine, if any.
+   *
+   * <p>The source stamp certificate hash entry, if any, is written before the JAR signature files
+   * are computed, so that it is covered by the V1 signature like the other entries.
+   */
+  private static void signJarEntries(
+      Path apkPath, ApkSignerEngine engine, Optional<byte[]> sourceStampCertificateHash)
+      throws IOException, ApkFormatException, NoSuchAlgorithmException, InvalidKeyException,
+          SignatureException {
+    ImmutableList.Builder<String> entriesToRemove = ImmutableList.builder();
+    try (ZipFile apkZip = new ZipFile(apkPath.toFile())) {
+      for (ZipEntry entry : Collections.list(apkZip.entries())) {
+        if (entry.getName().equals(SOURCE_STAMP_CERTIFICATE_HASH_ENTRY_NAME)) {
+          // Replaced by the hash of the current stamp certificate, if any.
+          entriesToRemove.add(entry.getName());
+          continue;
+        }
+        if (!engine.inputJarEntry(entry.getName()).getOutputPolicy().equals(OutputPolicy.OUTPUT)) {
+          entriesToRemove.add(entry.getName());
+          continue;
+        }
+        InspectJarEntryRequest inspectRequest = engine.outputJarEntry(entry.getName());
+        if (inspectRequest != null) {
+          try (InputStream entryContent = apkZip.getInputStream(entry)) {
+            byte[] buffer = new byte[INSPECT_BUFFER_SIZE];
+            int read;
+            while ((read = entryContent.read(buffer)) != -1) {
+              inspectRequest.getDataSink().consume(buffer, 0, read);
+            }
+          }
+          inspectRequest.done();
+        }
+      }
+    }
+
+    if (sourceStampCertificateHash.isPresent()) {
+      engine.inputJarEntry(SOURCE_STAMP_CERTIFICATE_HASH_ENTRY_NAME);
+      inspectJarEntry(
+          engine, SOURCE_STAMP_CERTIFICATE_HASH_ENTRY_NAME, sourceStampCertificateHash.get());
+    }
+
+    OutputJarSignatureRequest jarSignatureRequest = engine.outputJarEntries();
+    if (jarSignatureRequest == null
+        && entriesToRemove.build().isEmpty()
+        && !sourceStampCertificateHash.isPresent()) {
+      return;
+    }
+    try (ZipArchive apkArchive = new ZipArchive(apkPath)) {
+      for (String entryName : entriesToRemove.build()) {
+        apkArchive.delete(entryName);
+      }
+      if (sourceStampCertificateHash.isPresent()) {
+        apkArchive.add(
+            new BytesSource(
+                sourceStampCertificateHash.get(),
+                SOURCE_STAMP_CERTIFICATE_HASH_ENTRY_NAME,
+                Deflater.NO_COMPRESSION));
+      }
+      if (jarSignatureRequest != null) {
+        for (OutputJarSignatureRequest.JarEntry jarEntry :
+            jarSignatureRequest.getAdditionalJarEntries()) {
+          apkArchive.add(
+              new BytesSource(
+                  jarEntry.getData(), jarEntry.getName(), Deflater.DEFAULT_COMPRESSION));
+          inspectJarEntry(engine, jarEntry.getName(), jarEntry.getData());
+        }
+      }
+    }
+    if (jarSignatureRequest != null) {
+      jarSignatureRequest.done();
+    }
+  }
+
+  /** Lets the signer engine inspect an entry written to the APK, if it needs to. */
+  private static void inspectJarEntry(ApkSignerEngine engine, String entryName, byte[] data)
+      throws IOException {
+    InspectJarEntryRequest inspectRequest = engine.outputJarEntry(entryName);
+    if (inspectRequest != null) {
+      inspectRequest.getDataSink().consume(data, 0, data.length);
+      inspectRequest.done();
+    }
+  }
+
+  /**
+   * Inserts the APK Signing Block computed by the signer engine right before the central directory
+   * of the APK, if any.
+   */
+  private static void signZipSections(Path apkPath, ApkSignerEngine engine)
+      throws IOException, ZipFormatException, NoSuchAlgorithmException, InvalidKeyException,
+          SignatureException {
+    try (RandomAccessFile apkFile = new RandomAccessFile(apkPath.toFile(), "rw")) {
+      DataSource apk = DataSources.asDataSource(apkFile);
+      ZipSections zipSections = ApkUtils.findZipSections(apk);
+      long centralDirOffset = zipSections.getZipCentralDirectoryOffset();
+      byte[] centralDir =
+          toByteArray(
+              apk.getByteBuffer(
+                  centralDirOffset, (int) zipSections.getZipCentralDirectorySizeBytes()));
+      byte[] eocd = toByteArray(zipSections.getZipEndOfCentralDirectory());
+
+      OutputApkSigningBlockRequest2 signingBlockRequest =
+          engine.outputZipSections2(
+              apk.slice(0, centralDirOffset),
+              DataSources.asDataSource(ByteBuffer.wrap(centralDir)),
+              DataSources.asDataSource(ByteBuffer.wrap(eocd)));
+      if (signingBlockRequest == null) {
+        return;
+      }
+
+      byte[] signingBlock = signingBlockRequest.getApkSigningBlock();
+      int padding = signingBlockRequest.getPaddingSizeBeforeApkSigningBlock();
+      ByteBuffer.wrap(eocd)
+          .order(ByteOrder.LITTLE_ENDIAN)
+          .putInt(
+              EOCD_CENTRAL_DIRECTORY_OFFSET_FIELD_OFFSET,
+              Ints.checkedCast(centralDirOffset + padding + signingBlock.length));
+
+      // Entries stay where they are, only the central directory is moved to make room for the
+      // signing block.
+      apkFile.seek(centralDirOffset);
+      apkFile.write(new byte[padding]);
+      apkFile.write(signingBlock);
+      apkFile.write(centralDir);
+      apkFile.write(eocd);
+      apkFile.setLength(apkFile.getFilePointer());
+      signingBlockRequest.done();
+    }
+  }
+
+  private static byte[] toByteArray(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
   private SigningDescription signingDescription(ApksigSigningConfiguration signingConfig) {
     boolean usesKeyRotation =
         signingConfig
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.io.ResourceStringPool.LOW_PRIORITY;
+
+import com.android.aapt.Resources.Item;
+import com.android.aapt.Resources.XmlAttribute;
+import com.android.aapt.Resources.XmlElement;
+import com.android.aapt.Resources.XmlNamespace;
+import com.android.aapt.Resources.XmlNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.util.Comparator;
+import java.util.Optional;
+
+/**
+ * Converts XML files from proto format to the binary format, producing the same output as "aapt2
+ * convert".
+ *
+ * <p>Only the subset of XML files which is common in app bundles is supported: files with text
+ * content or with attributes whose value needs escaping are left to aapt2.
+ */
+final class BinaryXmlWriter {
+
+  private static final int RES_XML_TYPE = 0x0003;
+  private static final int RES_XML_START_NAMESPACE_TYPE = 0x0100;
+  private static final int RES_XML_END_NAMESPACE_TYPE = 0x0101;
+  private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+  private static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+  private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+
+  private static final int XML_HEADER_SIZE = 8;
+  private static final int NODE_HEADER_SIZE = 16;
+  private static final int ATTRIBUTE_EXT_SIZE = 20;
+  private static final int ATTRIBUTE_SIZE = 20;
+
+  private static final int ID_ATTRIBUTE_RESOURCE_ID = 0x010100d0;
+  /** Namespace of attributes only used at build time, which are not written. */
+  private static final String TOOLS_NAMESPACE_URI = "http://schemas.android.com/tools";
+
+  /**
+   * Attributes with a resource id come first, ordered by id, followed by other attributes ordered
+   * by namespace and name.
+   */
+  private static final Comparator<XmlAttribute> ATTRIBUTE_ORDER =
+      Comparator.<XmlAttribute, Boolean>comparing(attribute -> attribute.getResourceId() == 0)
+          .thenComparing(XmlAttribute::getResourceId, Integer::compareUnsigned)
+          .thenComparing(XmlAttribute::getNamespaceUri)
+          .thenComparing(XmlAttribute::getName);
+
+  private final ResourceStringPool pool;
+  private final ResourceChunkBuffer nodes = new ResourceChunkBuffer();
+
+  private BinaryXmlWriter(boolean utf16) {
+    this.pool = new ResourceStringPool(/* utf8= */ !utf16);
+  }
+
+  /**
+   * Converts the XML file.
+   *
+   * @param utf16 whether strings are encoded in UTF-16, which aapt2 uses for the manifest, or in
+   *     UTF-8, which aapt2 uses for XML files in "res/"
+   * @return the file in binary format, or empty if the file isn't supported and must be converted
+   *     by aapt2
+   */
+  static Optional<byte[]> write(XmlNode root, boolean utf16) {
+    try {
+      return Optional.of(new BinaryXmlWriter(utf16).writeDocument(root));
+    } catch (UnsupportedResourceException e) {
+      return Optional.empty();
+    }
+  }
+
+  private byte[] writeDocument(XmlNode root) {
+    if (!root.hasElement()) {
+      throw new UnsupportedResourceException("Root node is not an element.");
+    }
+    writeElement(root.getElement(), root.getSource().getLineNumber());
+
+    pool.sort();
+    ResourceChunkBuffer document = new ResourceChunkBuffer(nodes.size() + 1024);
+    int documentStart = document.startChunk(RES_XML_TYPE, XML_HEADER_SIZE);
+    pool.writeTo(document);
+
+    // Resource ids of attributes, indexed by the indices of their names in the pool.
+    int resourceMapStart = document.startChunk(RES_XML_RESOURCE_MAP_TYPE, 8);
+    for (ResourceStringPool.Ref string : pool.getStrings()) {
+      if (string.getPriority() == LOW_PRIORITY) {
+        break;
+      }
+      document.putInt((int) string.getPriority());
+    }
+    document.finishChunk(resourceMapStart);
+
+    document.append(nodes);
+    document.finishChunk(documentStart);
+    document.resolveStringRefs();
+    return document.toByteArray();
+  }
+
+  private void writeElement(XmlElement element, int lineNumber) {
+    ImmutableList<XmlNamespace> namespaces =
+        element.getNamespaceDeclarationList().stream()
+            .filter(namespace -> !namespace.getUri().equals(TOOLS_NAMESPACE_URI))
+            .collect(ImmutableList.toImmutableList());
+    for (XmlNamespace namespace : namespaces) {
+      writeNamespace(namespace, RES_XML_START_NAMESPACE_TYPE);
+    }
+
+    ImmutableList<XmlAttribute> attributes =
+        element.getAttributeList().stream()
+            .filter(attribute -> !attribute.getNamespaceUri().equals(TOOLS_NAMESPACE_URI))
+            .sorted(ATTRIBUTE_ORDER)
+            .collect(ImmutableList.toImmutableList());
+    int startChunk = startNode(RES_XML_START_ELEMENT_TYPE, lineNumber);
+    putNullableString(element.getNamespaceUri());
+    putNullableString(element.getName());
+    nodes.putShort(ATTRIBUTE_EXT_SIZE);
+    nodes.putShort(ATTRIBUTE_SIZE);
+    nodes.putShort(attributes.size());
+    int specialIndicesOffset = nodes.size();
+    // Indices of the "id", "class" and "style" attributes, written below.
+    nodes.putZeros(6);
+    for (int i = 0; i < attributes.size(); i++) {
+      XmlAttribute attribute = attributes.get(i);
+      // Indices are 1-based, 0 meaning that the attribute is absent.
+      if (attribute.getResourceId() == ID_ATTRIBUTE_RESOURCE_ID) {
+        nodes.putShortAt(specialIndicesOffset, i + 1);
+      } else if (attribute.getNamespaceUri().isEmpty()) {
+        if (attribute.getName().equals("class")) {
+          nodes.putShortAt(specialIndicesOffset + 2, i + 1);
+        } else if (attribute.getName().equals("style")) {
+          nodes.putShortAt(specialIndicesOffset + 4, i + 1);
+        }
+      }
+      writeAttribute(attribute);
+    }
+    nodes.finishChunk(startChunk);
+
+    for (XmlNode child : element.getChildList()) {
+      if (child.hasElement()) {
+        writeElement(child.getElement(), child.getSource().getLineNumber());
+      } else if (!isWhitespace(child.getText())) {
+        throw new UnsupportedResourceException("Text nodes are not supported.");
+      }
+    }
+
+    int endChunk = startNode(RES_XML_END_ELEMENT_TYPE, lineNumber);
+    putNullableString(element.getNamespaceUri());
+    nodes.putStringRef(pool.makeRef(element.getName(), LOW_PRIORITY));
+    nodes.finishChunk(endChunk);
+
+    for (XmlNamespace namespace : Lists.reverse(namespaces)) {
+      writeNamespace(namespace, RES_XML_END_NAMESPACE_TYPE);
+    }
+  }
+
+  private void writeNamespace(XmlNamespace namespace, int chunkType) {
+    int chunkStart = startNode(chunkType, namespace.getSource().getLineNumber());
+    nodes.putStringRef(pool.makeRef(namespace.getPrefix(), LOW_PRIORITY));
+    nodes.putStringRef(pool.makeRef(namespace.getUri(), LOW_PRIORITY));
+    nodes.finishChunk(chunkStart);
+  }
+
+  private void writeAttribute(XmlAttribute attribute) {
+    putNullableString(attribute.getNamespaceUri());
+    int resourceId = attribute.getResourceId();
+    if (resourceId == 0) {
+      nodes.putStringRef(pool.makeRef(attribute.getName(), LOW_PRIORITY));
+    } else {
+      if ((resourceId & 0xff000000) == 0 || (resourceId & 0x00ff0000) == 0) {
+        throw new UnsupportedResourceException("Unsupported attribute id: 0x%08x", resourceId);
+      }
+      // The priority of the name places it in the pool at the index of the resource id in the
+      // resource map.
+      nodes.putStringRef(pool.makeRef(attribute.getName(), Integer.toUnsignedLong(resourceId)));
+    }
+
+    Optional<String> text;
+    if (attribute.hasCompiledItem()) {
+      Item item = attribute.getCompiledItem();
+      text = item.hasStr() ? Optional.of(item.getStr().getValue()) : Optional.empty();
+      if (!text.isPresent()) {
+        // Raw value of attributes with compiled values is not kept.
+        nodes.putInt(-1);
+        ResourceTableChunkWriter.writeNonStringItem(nodes, item);
+        return;
+      }
+    } else {
+      if (attribute.getValue().matches(".*[\\\\\"'].*")) {
+        // aapt2 would interpret escape sequences and quotes.
+        throw new UnsupportedResourceException("Unsupported attribute value.");
+      }
+      text = Optional.of(attribute.getValue());
+    }
+    ResourceStringPool.Ref textRef = pool.makeRef(text.get(), LOW_PRIORITY);
+    nodes.putStringRef(textRef);
+    nodes.putStringResValue(textRef);
+  }
+
+  private int startNode(int chunkType, int lineNumber) {
+    int chunkStart = nodes.startChunk(chunkType, NODE_HEADER_SIZE);
+    nodes.putInt(lineNumber);
+    // No comment.
+    nodes.putInt(-1);
+    return chunkStart;
+  }
+
+  /** Writes a reference to the string, or -1 if the string is empty. */
+  private void putNullableString(String value) {
+    if (value.isEmpty()) {
+      nodes.putInt(-1);
+    } else {
+      nodes.putStringRef(pool.makeRef(value, LOW_PRIORITY));
+    }
+  }
+
+  private static boolean isWhitespace(String text) {
+    return text.chars().allMatch(c -> " \t\n\u000b\f\r".indexOf(c) >= 0);
+  }
+}
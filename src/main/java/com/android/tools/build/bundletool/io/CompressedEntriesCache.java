@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.model.utils.files.DiskLruCache;
+import com.android.zipflinger.ZipArchive;
+import com.android.zipflinger.ZipMap;
+import com.android.zipflinger.ZipSource;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.zip.Deflater;
+
+/**
+ * On-disk cache of compressed module entries which is shared between bundletool invocations.
+ *
+ * <p>Each cached entry is stored as a zip archive with a single entry, so that its compressed
+ * bytes can be copied as-is into a {@link ModuleEntriesPack} using {@link ZipSource}. Entries are
+ * keyed by the SHA-256 of their uncompressed content and by the compression profile (algorithm and
+ * level) used to compress them.
+ *
+ * <p>The size of the cache is bounded, least recently used entries are removed by {@link
+ * #trim()}.
+ */
+final class CompressedEntriesCache {
+
+  /**
+   * Maximum total size of the cache on disk.
+   *
+   * <p>Can be overridden using the system property "bundletool.compression.cache.maxsize".
+   */
+  static final long MAX_CACHE_SIZE_BYTES =
+      DiskLruCache.readSizeProperty(
+          "bundletool.compression.cache.maxsize", 2L * 1024 * 1024 * 1024);
+
+  /**
+   * Size of an entry below which copying it from the cache is not faster than compressing it.
+   *
+   * <p>Can be overridden using the system property "bundletool.compression.cache.minentrysize".
+   */
+  static final long MIN_CACHEABLE_ENTRY_SIZE_BYTES =
+      DiskLruCache.readSizeProperty("bundletool.compression.cache.minentrysize", 1024L);
+
+  /** Name of the single entry inside each cached zip archive. */
+  private static final String CACHED_ENTRY_NAME = "entry";
+
+  private static final String CACHED_ENTRY_EXTENSION = ".zip";
+
+  /** Name of the compression profile for entries compressed by the 7zip tool. */
+  static final String P7ZIP_PROFILE = "7zip";
+
+  private final DiskLruCache cache;
+
+  CompressedEntriesCache(Path cacheDirectory) {
+    this(cacheDirectory, MAX_CACHE_SIZE_BYTES);
+  }
+
+  CompressedEntriesCache(Path cacheDirectory, long maxCacheSizeBytes) {
+    this.cache = new DiskLruCache(cacheDirectory, CACHED_ENTRY_EXTENSION, maxCacheSizeBytes);
+  }
+
+  /** Name of the compression profile for entries compressed by deflate with the given level. */
+  static String deflateProfile(int compressionLevel) {
+    return "deflate"
+        + (compressionLevel == Deflater.DEFAULT_COMPRESSION ? 6 : compressionLevel);
+  }
+
+  /** Whether the entry is large enough to be worth storing in the cache. */
+  static boolean isCacheable(ModuleEntry entry) {
+    return entry
+        .getContent()
+        .sizeIfKnown()
+        .transform(size -> size >= MIN_CACHEABLE_ENTRY_SIZE_BYTES)
+        .or(true);
+  }
+
+  /**
+   * Returns path to a zip archive containing the compressed form of the content with the given
+   * hash, if it is present in the cache.
+   *
+   * <p>The returned archive has the single entry which can be selected using {@link
+   * #select(Path, String)}.
+   */
+  Optional<Path> lookup(HashCode contentHash, String compressionProfile) {
+    return cache.lookup(getCachedEntryKey(contentHash, compressionProfile));
+  }
+
+  /**
+   * Creates a {@link ZipSource} which selects the cached entry under the name {@code newName}.
+   *
+   * @throws IOException if the cached entry can no longer be read, e.g. because it has been removed
+   *     by a concurrent invocation trimming the cache since it was looked up
+   */
+  static ZipSource select(Path cachedEntryPath, String newName) throws IOException {
+    ZipSource source = new ZipSource(cachedEntryPath);
+    source.select(CACHED_ENTRY_NAME, newName);
+    return source;
+  }
+
+  /**
+   * Stores entry {@code entryName} from the already compressed {@code pack} as the compressed
+   * form of the content with the given hash.
+   */
+  void store(HashCode contentHash, String compressionProfile, ZipMap pack, String entryName) {
+    cache.store(
+        getCachedEntryKey(contentHash, compressionProfile),
+        path -> {
+          try (ZipArchive archive = new ZipArchive(path)) {
+            ZipSource source = new ZipSource(pack);
+            source.select(entryName, CACHED_ENTRY_NAME);
+            archive.add(source);
+          }
+        });
+  }
+
+  /**
+   * Removes least recently used entries until the total size of the cache fits into the maximum
+   * cache size.
+   */
+  void trim() {
+    cache.trim();
+  }
+
+  private static String getCachedEntryKey(HashCode contentHash, String compressionProfile) {
+    return contentHash + "-" + compressionProfile;
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.model.utils.FileNames.APK_FINGERPRINTS_FILE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.model.exceptions.InvalidCommandException;
+import com.android.tools.build.bundletool.model.utils.BundleZipReader;
+import com.android.tools.build.bundletool.model.utils.files.FileUtils;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.common.io.MoreFiles;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.ZipException;
+import javax.annotation.Nullable;
+
+/**
+ * APK set produced by a previous build-apks invocation, from which APKs whose inputs are unchanged
+ * are copied instead of being serialized again.
+ *
+ * <p>The fingerprints of the inputs of the APKs are stored in the {@value
+ * com.android.tools.build.bundletool.model.utils.FileNames#APK_FINGERPRINTS_FILE} file of the APK
+ * set, one line per APK made of the hex-encoded fingerprint and the path of the APK.
+ */
+final class IncrementalApkSet implements Closeable {
+
+  private static final Splitter LINE_SPLITTER = Splitter.on('\n').omitEmptyStrings();
+  private static final Splitter FIELD_SPLITTER = Splitter.on(' ').limit(2);
+
+  @Nullable private final BundleZipReader apkSetZip;
+  private final ImmutableMap<HashCode, String> apkPathsByFingerprint;
+
+  private IncrementalApkSet(
+      @Nullable BundleZipReader apkSetZip, ImmutableMap<HashCode, String> apkPathsByFingerprint) {
+    this.apkSetZip = apkSetZip;
+    this.apkPathsByFingerprint = apkPathsByFingerprint;
+  }
+
+  /** Returns an APK set from which no APK can be reused. */
+  static IncrementalApkSet empty() {
+    return new IncrementalApkSet(/* apkSetZip= */ null, ImmutableMap.of());
+  }
+
+  /**
+   * Opens the APK set produced by a previous invocation.
+   *
+   * <p>No APK can be reused if the APK set does not exist or was not built in incremental mode.
+   *
+   * @throws InvalidCommandException if the APK set is a directory or not a valid zip file
+   */
+  static IncrementalApkSet open(Path apkSetPath) {
+    if (!Files.exists(apkSetPath)) {
+      return empty();
+    }
+    if (Files.isDirectory(apkSetPath)) {
+      throw InvalidCommandException.builder()
+          .withInternalMessage(
+              "The previous APK set '%s' is a directory, only APK set files can be used for"
+                  + " incremental builds.",
+              apkSetPath)
+          .build();
+    }
+    BundleZipReader apkSetZip;
+    try {
+      apkSetZip = BundleZipReader.open(apkSetPath);
+    } catch (ZipException e) {
+      throw InvalidCommandException.builder()
+          .withCause(e)
+          .withInternalMessage("The previous APK set '%s' is not a valid zip file.", apkSetPath)
+          .build();
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Failed to read the previous APK set '%s'.", apkSetPath), e);
+    }
+
+    try {
+      return new IncrementalApkSet(apkSetZip, readFingerprints(apkSetZip));
+    } catch (IOException e) {
+      closeQuietly(apkSetZip);
+      throw new UncheckedIOException(
+          String.format("Failed to read the previous APK set '%s'.", apkSetPath), e);
+    } catch (RuntimeException e) {
+      closeQuietly(apkSetZip);
+      throw e;
+    }
+  }
+
+  private static ImmutableMap<HashCode, String> readFingerprints(BundleZipReader apkSetZip)
+      throws IOException {
+    Optional<BundleZipReader.Entry> fingerprintsEntry = apkSetZip.getEntry(APK_FINGERPRINTS_FILE);
+    if (!fingerprintsEntry.isPresent()) {
+      return ImmutableMap.of();
+    }
+    Map<HashCode, String> apkPathsByFingerprint = new HashMap<>();
+    for (String line :
+        LINE_SPLITTER.split(fingerprintsEntry.get().asByteSource().asCharSource(UTF_8).read())) {
+      List<String> fingerprintAndPath = FIELD_SPLITTER.splitToList(line);
+      apkPathsByFingerprint.putIfAbsent(
+          HashCode.fromString(fingerprintAndPath.get(0)), fingerprintAndPath.get(1));
+    }
+    return ImmutableMap.copyOf(apkPathsByFingerprint);
+  }
+
+  private static void closeQuietly(BundleZipReader apkSetZip) {
+    try {
+      apkSetZip.close();
+    } catch (IOException ignored) {
+      // The original failure is reported to the caller.
+    }
+  }
+
+  /**
+   * Copies the APK built from inputs with the given fingerprint to {@code outputPath}.
+   *
+   * <p>Returns {@code false} if there is no such APK in the APK set.
+   */
+  boolean copyApk(HashCode fingerprint, Path outputPath) {
+    Optional<BundleZipReader.Entry> apkEntry = findApk(fingerprint);
+    if (!apkEntry.isPresent()) {
+      return false;
+    }
+    FileUtils.createDirectories(outputPath.getParent());
+    try {
+      apkEntry.get().asByteSource().copyTo(MoreFiles.asByteSink(outputPath));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return true;
+  }
+
+  /** Returns whether the APK set contains an APK built from inputs with the given fingerprint. */
+  boolean hasApk(HashCode fingerprint) {
+    return findApk(fingerprint).isPresent();
+  }
+
+  private Optional<BundleZipReader.Entry> findApk(HashCode fingerprint) {
+    String apkPath = apkPathsByFingerprint.get(fingerprint);
+    if (apkSetZip == null || apkPath == null) {
+      return Optional.empty();
+    }
+    return apkSetZip.getEntry(apkPath);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (apkSetZip != null) {
+      apkSetZip.close();
+    }
+  }
+
+  /** Serializes the fingerprints of the APKs of an APK set, keyed by relative path of the APK. */
+  static byte[] serializeFingerprints(Map<ZipPath, HashCode> fingerprintsByApkPath) {
+    StringBuilder fingerprints = new StringBuilder();
+    ImmutableSortedMap.copyOf(fingerprintsByApkPath)
+        .forEach(
+            (apkPath, fingerprint) ->
+                fingerprints.append(fingerprint).append(' ').append(apkPath).append('\n'));
+    return fingerprints.toString().getBytes(UTF_8);
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounds the heap memory used by tasks running concurrently on the executor service of a command.
+ *
+ * <p>Each task declares an estimate of the memory it needs, and is only started once the estimate
+ * fits into the budget next to the tasks already running. Tasks are admitted in the order they
+ * asked for memory, so that large tasks are not starved by small ones. A task whose estimate
+ * exceeds the whole budget runs alone.
+ *
+ * <p>Tasks must not wait for other tasks admitted by the same budget, otherwise they can deadlock.
+ */
+public final class MemoryBudget {
+
+  private static final Logger logger = Logger.getLogger(MemoryBudget.class.getName());
+
+  /** Memory is accounted for in units of 1 KiB, so that budgets up to 2 TiB fit into an int. */
+  private static final long UNIT_BYTES = 1024;
+
+  private final long budgetBytes;
+  private final int budgetUnits;
+  private final Semaphore availableUnits;
+
+  private final AtomicLong admittedTasks = new AtomicLong();
+  private final AtomicLong queuedTasks = new AtomicLong();
+  private final AtomicLong totalQueueingNanos = new AtomicLong();
+  private final AtomicLong reservedBytes = new AtomicLong();
+  private final AtomicLong peakReservedBytes = new AtomicLong();
+
+  private MemoryBudget(long budgetBytes) {
+    checkArgument(budgetBytes > 0, "The memory budget must be positive, got %s.", budgetBytes);
+    this.budgetBytes = budgetBytes;
+    this.budgetUnits =
+        (int) Math.min(Integer.MAX_VALUE, (budgetBytes + UNIT_BYTES - 1) / UNIT_BYTES);
+    this.availableUnits = new Semaphore(budgetUnits, /* fair= */ true);
+  }
+
+  /** Creates a budget of the given number of bytes. */
+  public static MemoryBudget create(long budgetBytes) {
+    return new MemoryBudget(budgetBytes);
+  }
+
+  /** Creates a budget of half of the maximum heap size of the JVM. */
+  public static MemoryBudget createDefault() {
+    return new MemoryBudget(Runtime.getRuntime().maxMemory() / 2);
+  }
+
+  /**
+   * Runs {@code task} in the calling thread once {@code estimatedBytes} fit into the budget, and
+   * releases them once it completes.
+   *
+   * @throws InterruptedException if the calling thread is interrupted while waiting for memory, in
+   *     which case {@code task} is not run
+   */
+  public <T> T call(long estimatedBytes, Callable<T> task) throws Exception {
+    int units = toUnits(estimatedBytes);
+    long reservedBytesOfTask = (long) units * UNIT_BYTES;
+    // Timed tryAcquire respects the fairness of the semaphore, unlike the untimed one.
+    if (!availableUnits.tryAcquire(units, 0, TimeUnit.NANOSECONDS)) {
+      long queueingStart = System.nanoTime();
+      availableUnits.acquire(units);
+      queuedTasks.incrementAndGet();
+      totalQueueingNanos.addAndGet(System.nanoTime() - queueingStart);
+    }
+    admittedTasks.incrementAndGet();
+    peakReservedBytes.accumulateAndGet(reservedBytes.addAndGet(reservedBytesOfTask), Math::max);
+    try {
+      return task.call();
+    } finally {
+      reservedBytes.addAndGet(-reservedBytesOfTask);
+      availableUnits.release(units);
+    }
+  }
+
+  /** Returns the number of tasks admitted so far. */
+  public long getAdmittedTaskCount() {
+    return admittedTasks.get();
+  }
+
+  /** Returns the number of admitted tasks which had to wait for memory to be released. */
+  public long getQueuedTaskCount() {
+    return queuedTasks.get();
+  }
+
+  /** Returns the total time admitted tasks waited for memory to be released. */
+  public Duration getTotalQueueingTime() {
+    return Duration.ofNanos(totalQueueingNanos.get());
+  }
+
+  /** Returns the largest amount of memory reserved at the same time so far. */
+  public long getPeakReservedBytes() {
+    return peakReservedBytes.get();
+  }
+
+  /** Logs how much tasks waited for memory so far, at level {@link Level#FINE}. */
+  public void logStatistics() {
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine(
+          String.format(
+              "Memory budget of %d MiB: %d tasks admitted, %d queued for %d ms in total, peak of"
+                  + " %d MiB reserved.",
+              budgetBytes / (1024 * 1024),
+              getAdmittedTaskCount(),
+              getQueuedTaskCount(),
+              getTotalQueueingTime().toMillis(),
+              getPeakReservedBytes() / (1024 * 1024)));
+    }
+  }
+
+  private int toUnits(long bytes) {
+    // Tasks larger than the budget are capped to it, so that they run alone rather than never.
+    return (int) Math.max(1, Math.min(budgetUnits, (bytes + UNIT_BYTES - 1) / UNIT_BYTES));
+  }
+}
@@ -15,25 +15,33 @@
  */
 package com.android.tools.build.bundletool.io;
 
+import static com.google.common.base.Preconditions.checkState;
+
 import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.ModuleEntry.ModuleEntryBundleLocation;
+import com.android.zipflinger.ZipArchive;
 import com.android.zipflinger.ZipMap;
+import com.android.zipflinger.ZipSource;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
 import com.google.common.io.ByteSource;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Optional;
 
 /** Class to build {@link ModuleEntriesPack}. */
 class ModuleEntriesPacker {
   private final String namePrefix;
   private final Path outputZip;
   private final IdentityHashMap<ModuleEntry, String> entryNameByModuleEntry;
-  private final Map<String, ByteSource> contentByEntryName;
+  private final Map<String, ModuleEntry> moduleEntryByEntryName;
   private final Map<ModuleEntryBundleLocation, String> assignedEntryNameByBundleLocation;
 
   private final NameAssigner nameAssigner;
@@ -43,7 +51,7 @@ class ModuleEntriesPacker {
     this.outputZip = outputZip;
     nameAssigner = new NameAssigner(namePrefix);
     entryNameByModuleEntry = Maps.newIdentityHashMap();
-    contentByEntryName = Maps.newHashMap();
+    moduleEntryByEntryName = Maps.newHashMap();
     assignedEntryNameByBundleLocation = Maps.newHashMap();
   }
 
@@ -61,7 +69,7 @@ class ModuleEntriesPacker {
             ? assignedByBundleLocation(entry)
             : nameAssigner.nextName();
     entryNameByModuleEntry.put(entry, entryName);
-    contentByEntryName.putIfAbsent(entryName, entry.getContent());
+    moduleEntryByEntryName.putIfAbsent(entryName, entry);
     return this;
   }
 
@@ -71,17 +79,140 @@ class ModuleEntriesPacker {
    */
   public ModuleEntriesPack pack(Zipper zipper) {
     try {
-      zipper.zip(outputZip, ImmutableMap.copyOf(contentByEntryName));
+      ImmutableMap<String, ByteSource> contentByEntryName =
+          ImmutableMap.copyOf(
+              Maps.transformValues(moduleEntryByEntryName, ModuleEntry::getContent));
+      zipper.zip(outputZip, contentByEntryName);
+      return createPack(ZipMap.from(outputZip));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Packs all entries which were previously added with provided {@link Zipper} and returns {@link
+   * ModuleEntriesPack} pointing to this pack.
+   *
+   * <p>Entries which are present in {@code cache} for the given {@code compressionProfile} are
+   * copied from the cache as-is, only remaining entries are passed to {@code zipper}. Newly
+   * compressed entries are stored in the cache afterwards.
+   */
+  public ModuleEntriesPack pack(
+      Zipper zipper, CompressedEntriesCache cache, String compressionProfile) {
+    ImmutableMap.Builder<String, Path> cachedEntries = ImmutableMap.builder();
+    ImmutableMap.Builder<String, ByteSource> entriesToCompress = ImmutableMap.builder();
+    ImmutableMap.Builder<String, HashCode> entriesToCache = ImmutableMap.builder();
+    for (Map.Entry<String, ModuleEntry> entry : moduleEntryByEntryName.entrySet()) {
+      String entryName = entry.getKey();
+      ModuleEntry moduleEntry = entry.getValue();
+      if (!CompressedEntriesCache.isCacheable(moduleEntry)) {
+        entriesToCompress.put(entryName, moduleEntry.getContent());
+        continue;
+      }
+      HashCode contentHash = moduleEntry.getContentSha256Hash();
+      Optional<Path> cachedEntry = cache.lookup(contentHash, compressionProfile);
+      if (cachedEntry.isPresent()) {
+        cachedEntries.put(entryName, cachedEntry.get());
+      } else {
+        entriesToCompress.put(entryName, moduleEntry.getContent());
+        entriesToCache.put(entryName, contentHash);
+      }
+    }
+
+    try {
+      ImmutableMap<String, ByteSource> contentToCompress = entriesToCompress.build();
+      if (contentToCompress.isEmpty()) {
+        // Some zippers (e.g. 7zip) fail on an empty input, create an empty archive instead.
+        new ZipArchive(outputZip).close();
+      } else {
+        zipper.zip(outputZip, contentToCompress);
+      }
+      ImmutableMap.Builder<String, ByteSource> evictedEntries = ImmutableMap.builder();
+      try (ZipArchive archive = new ZipArchive(outputZip)) {
+        for (Map.Entry<String, Path> cachedEntry : cachedEntries.build().entrySet()) {
+          String entryName = cachedEntry.getKey();
+          try {
+            archive.add(CompressedEntriesCache.select(cachedEntry.getValue(), entryName));
+          } catch (IOException e) {
+            // Removed by a concurrent invocation trimming the cache since it was looked up.
+            ModuleEntry moduleEntry = moduleEntryByEntryName.get(entryName);
+            evictedEntries.put(entryName, moduleEntry.getContent());
+            entriesToCache.put(entryName, moduleEntry.getContentSha256Hash());
+          }
+        }
+        addCompressedEntries(archive, zipper, evictedEntries.build());
+      }
 
-      IdentityHashMap<ModuleEntry, String> copyOfEntryNameByModuleEntry = Maps.newIdentityHashMap();
-      copyOfEntryNameByModuleEntry.putAll(entryNameByModuleEntry);
-      return new ModuleEntriesPack(
-          ImmutableSet.of(namePrefix), ZipMap.from(outputZip), copyOfEntryNameByModuleEntry);
+      ZipMap zipMap = ZipMap.from(outputZip);
+      entriesToCache
+          .build()
+          .forEach(
+              (entryName, contentHash) ->
+                  cache.store(contentHash, compressionProfile, zipMap, entryName));
+      return createPack(zipMap);
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
   }
 
+  /** Compresses {@code entries} with {@code zipper} and adds them to {@code archive}. */
+  private void addCompressedEntries(
+      ZipArchive archive, Zipper zipper, ImmutableMap<String, ByteSource> entries)
+      throws IOException {
+    if (entries.isEmpty()) {
+      return;
+    }
+    Path compressedEntriesZip = outputZip.resolveSibling(outputZip.getFileName() + ".evicted");
+    try {
+      zipper.zip(compressedEntriesZip, entries);
+      archive.add(ZipSource.selectAll(compressedEntriesZip));
+    } finally {
+      Files.deleteIfExists(compressedEntriesZip);
+    }
+  }
+
+  /**
+   * Packs all entries which were previously added by copying them from the bundles they were read
+   * from as-is, without decompressing and compressing them again. Returns {@link
+   * ModuleEntriesPack} pointing to this pack.
+   *
+   * <p>All added entries must have a {@link ModuleEntryBundleLocation}.
+   */
+  public ModuleEntriesPack packFromBundles() {
+    try {
+      try (ZipArchive archive = new ZipArchive(outputZip)) {
+        Map<Path, ZipSource> bundleSources = new HashMap<>();
+        for (Map.Entry<String, ModuleEntry> entry : moduleEntryByEntryName.entrySet()) {
+          Optional<ModuleEntryBundleLocation> location = entry.getValue().getBundleLocation();
+          checkState(
+              location.isPresent(),
+              "Entry '%s' is not read from a bundle.",
+              entry.getValue().getPath());
+          Path pathToBundle = location.get().pathToBundle();
+          // We cannot use computeIfAbsent because new ZipSource may throw.
+          ZipSource bundleSource =
+              bundleSources.containsKey(pathToBundle)
+                  ? bundleSources.get(pathToBundle)
+                  : new ZipSource(pathToBundle);
+          bundleSources.putIfAbsent(pathToBundle, bundleSource);
+          bundleSource.select(location.get().entryPathInBundle().toString(), entry.getKey());
+        }
+        for (ZipSource bundleSource : bundleSources.values()) {
+          archive.add(bundleSource);
+        }
+      }
+      return createPack(ZipMap.from(outputZip));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private ModuleEntriesPack createPack(ZipMap zipMap) {
+    IdentityHashMap<ModuleEntry, String> copyOfEntryNameByModuleEntry = Maps.newIdentityHashMap();
+    copyOfEntryNameByModuleEntry.putAll(entryNameByModuleEntry);
+    return new ModuleEntriesPack(ImmutableSet.of(namePrefix), zipMap, copyOfEntryNameByModuleEntry);
+  }
+
   private String assignedByBundleLocation(ModuleEntry entry) {
     return assignedEntryNameByBundleLocation.computeIfAbsent(
         entry.getBundleLocation().get(), (location) -> nameAssigner.nextName());
@@ -21,43 +21,61 @@ import static com.android.tools.build.bundletool.model.version.VersionGuardedFea
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableMap.toImmutableMap;
-import static java.util.function.Function.identity;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.android.bundle.Commands.ApkDescription;
 import com.android.bundle.Commands.SigningDescription;
 import com.android.bundle.Config.BundleConfig;
 import com.android.bundle.Config.Compression.ApkCompressionAlgorithm;
 import com.android.tools.build.bundletool.androidtools.P7ZipCommand;
+import com.android.tools.build.bundletool.commands.BuildApksModule.CompressionCacheDirectory;
+import com.android.tools.build.bundletool.commands.BuildApksModule.IncrementalFromApkSet;
+import com.android.tools.build.bundletool.commands.BuildApksModule.ReuseBundleCompression;
 import com.android.tools.build.bundletool.commands.BuildApksModule.VerboseLogs;
 import com.android.tools.build.bundletool.model.ApkListener;
 import com.android.tools.build.bundletool.model.BundleModule.SpecialModuleEntry;
 import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.model.ModuleEntry.ModuleEntryBundleLocation;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.model.utils.PathMatcher;
+import com.android.tools.build.bundletool.model.utils.ZipUtils;
 import com.android.tools.build.bundletool.model.utils.files.FileUtils;
+import com.android.tools.build.bundletool.model.version.BundleToolVersion;
 import com.android.tools.build.bundletool.model.version.Version;
 import com.android.zipflinger.Entry;
 import com.android.zipflinger.ZipArchive;
+import com.android.zipflinger.ZipMap;
 import com.android.zipflinger.ZipSource;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Streams;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import java.util.zip.Deflater;
 import javax.inject.Inject;
 
 /** Serializes module splits on disk. */
 public class ModuleSplitSerializer extends ApkSerializer {
+  private static final Logger logger = Logger.getLogger(ModuleSplitSerializer.class.getName());
+
   /** Suffix for native libraries. */
   private static final String NATIVE_LIBRARIES_SUFFIX = ".so";
 
@@ -68,8 +86,14 @@ public class ModuleSplitSerializer extends ApkSerializer {
   private final CacheablePathMatcher uncompressedPathMatchers;
   private final Version bundletoolVersion;
   private final ListeningExecutorService executorService;
+  private final MemoryBudget memoryBudget;
+  private final Tracer tracer;
   private final boolean use7ZipCompression;
   private final Optional<P7ZipCommand> p7ZipCommand;
+  private final Optional<CompressedEntriesCache> compressionCache;
+  private final boolean reuseBundleCompression;
+  private final BundleConfig bundleConfig;
+  private final Optional<Path> incrementalFromApkSet;
 
   @Inject
   ModuleSplitSerializer(
@@ -80,7 +104,12 @@ public class ModuleSplitSerializer extends ApkSerializer {
       BundleConfig bundleConfig,
       Version bundletoolVersion,
       ListeningExecutorService executorService,
-      Optional<P7ZipCommand> p7ZipCommand) {
+      MemoryBudget memoryBudget,
+      Tracer tracer,
+      Optional<P7ZipCommand> p7ZipCommand,
+      @CompressionCacheDirectory Optional<Path> compressionCacheDirectory,
+      @ReuseBundleCompression boolean reuseBundleCompression,
+      @IncrementalFromApkSet Optional<Path> incrementalFromApkSet) {
     super(apkListener, verbose);
     this.aapt2ResourceConverter = aapt2ResourceConverterFactory;
     this.apkSigner = apkSigner;
@@ -96,139 +125,398 @@ public class ModuleSplitSerializer extends ApkSerializer {
             .equals(ApkCompressionAlgorithm.P7ZIP);
     this.bundletoolVersion = bundletoolVersion;
     this.executorService = executorService;
+    this.memoryBudget = memoryBudget;
+    this.tracer = tracer;
     this.p7ZipCommand = p7ZipCommand;
+    this.compressionCache = compressionCacheDirectory.map(CompressedEntriesCache::new);
+    this.reuseBundleCompression = reuseBundleCompression;
+    this.bundleConfig = bundleConfig;
+    this.incrementalFromApkSet = incrementalFromApkSet;
   }
 
   /**
-   * Serializes module splits on disk under {@code outputDirectory}.
+   * Serializes module splits on disk under {@link ApkSetWriter#getSplitsDirectory()}.
+   *
+   * <p>Each APK is added to {@code apkSetWriter} as soon as it is signed, in the order of relative
+   * paths, while the remaining APKs are still being serialized. If one of them fails, the others
+   * are cancelled and the failure is thrown once they have all stopped.
+   *
+   * <p>In incremental mode, APKs whose inputs are unchanged since the previous APK set are copied
+   * from it instead, and the fingerprints of the inputs of all APKs are added to {@code
+   * apkSetWriter}.
    *
    * <p>Returns {@link ApkDescription} for each serialized split keyed by relative path of module
    * split.
    */
+  @Override
   public ImmutableMap<ZipPath, ApkDescription> serialize(
-      Path outputDirectory, ImmutableMap<ZipPath, ModuleSplit> splitsByRelativePath) {
+      ApkSetWriter apkSetWriter, ImmutableMap<ZipPath, ModuleSplit> splitsByRelativePath) {
+    Path outputDirectory = apkSetWriter.getSplitsDirectory();
+    ImmutableMap<ZipPath, HashCode> apkFingerprints = computeApkFingerprints(splitsByRelativePath);
+
+    TaskGroup tasks = new TaskGroup(executorService);
+    try (SerializationFilesManager filesManager = new SerializationFilesManager();
+        IncrementalApkSet previousApkSet =
+            apkFingerprints.isEmpty()
+                ? IncrementalApkSet.empty()
+                : IncrementalApkSet.open(incrementalFromApkSet.get())) {
+      try {
+        Map<ZipPath, ListenableFuture<ApkDescription>> apkDescriptions = new HashMap<>();
+        ImmutableMap.Builder<ZipPath, ModuleSplit> splitsToSerialize = ImmutableMap.builder();
+        splitsByRelativePath.forEach(
+            (relativePath, split) -> {
+              HashCode apkFingerprint = apkFingerprints.get(relativePath);
+              if (apkFingerprint != null && previousApkSet.hasApk(apkFingerprint)) {
+                apkDescriptions.put(
+                    relativePath,
+                    tasks.submit(
+                        () ->
+                            copyPreviousApk(
+                                previousApkSet,
+                                apkFingerprint,
+                                outputDirectory,
+                                relativePath,
+                                split)));
+              } else {
+                splitsToSerialize.put(relativePath, split);
+              }
+            });
+        apkDescriptions.putAll(
+            serializeAndSignSplits(
+                outputDirectory, splitsToSerialize.build(), filesManager, tasks));
+
+        // Hand over APKs to the writer in a deterministic order, each one as soon as it is ready.
+        ImmutableMap.Builder<ZipPath, ApkDescription> apkDescriptionsByRelativePath =
+            ImmutableMap.builder();
+        for (ZipPath relativePath : ImmutableList.sortedCopyOf(apkDescriptions.keySet())) {
+          ApkDescription apkDescription =
+              ConcurrencyUtils.waitFor(apkDescriptions.get(relativePath));
+          apkSetWriter.addApk(relativePath);
+          if (apkFingerprints.containsKey(relativePath)) {
+            apkSetWriter.addApkFingerprint(relativePath, apkFingerprints.get(relativePath));
+          }
+          apkDescriptionsByRelativePath.put(relativePath, apkDescription);
+        }
+        return apkDescriptionsByRelativePath.build();
+      } catch (RuntimeException | Error e) {
+        // The other tasks must stop before the files they use are removed. The failure of a task
+        // is reported rather than the cancellation of the others which it caused.
+        tasks.cancelAndAwait();
+        tasks.rethrowFirstFailure();
+        throw e;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Removes least recently used entries from the compression cache until it fits into its maximum
+   * size.
+   *
+   * <p>Listing the cache is costly and would evict entries looked up by a later serialization of
+   * the same command, so this is done once per command after all APKs are serialized.
+   */
+  public void trimCompressionCache() {
+    compressionCache.ifPresent(CompressedEntriesCache::trim);
+  }
+
+  /**
+   * Serializes and signs the given splits, returning futures of their {@link ApkDescription} keyed
+   * by relative path of module split.
+   *
+   * <p>Tasks are submitted to {@code tasks}, which must have stopped before {@code filesManager} is
+   * closed.
+   */
+  private ImmutableMap<ZipPath, ListenableFuture<ApkDescription>> serializeAndSignSplits(
+      Path outputDirectory,
+      ImmutableMap<ZipPath, ModuleSplit> splitsByRelativePath,
+      SerializationFilesManager filesManager,
+      TaskGroup tasks) {
+    if (splitsByRelativePath.isEmpty()) {
+      return ImmutableMap.of();
+    }
     // Prepare original splits by:
     //  * signing embedded APKs
-    //  * injecting manifest and resource table as module entries.
+    //  * injecting manifest and resource table as module entries
+    //  * applying uncompressed globs specified in BundleConfig.
     ImmutableList<ModuleSplit> preparedSplits =
         splitsByRelativePath.values().stream()
             .map(apkSigner::signEmbeddedApks)
             .map(ModuleSplitSerializer::injectManifestAndResourceTableAsEntries)
+            .map(this::applyUncompressedGlobsAndUncompressedNativeLibraries)
             .collect(toImmutableList());
 
-    try (SerializationFilesManager filesManager = new SerializationFilesManager()) {
-      // Convert module splits to binary format and apply uncompressed globs specified in
-      // BundleConfig. We do it in this order because as specified in documentation the matching
-      // for uncompressed globs is done against paths in final APKs.
-      ImmutableList<ModuleSplit> binarySplits =
-          aapt2ResourceConverter.convert(preparedSplits, filesManager).stream()
-              .map(this::applyUncompressedGlobsAndUncompressedNativeLibraries)
-              .collect(toImmutableList());
-
-      // Build a pack from entries which may be compressed inside final APKs. 'May be
-      // compressed' means that for these entries we will decide later should they be compressed
-      // or not based on whether we gain enough savings from compression.
-      ModuleEntriesPack maybeCompressedEntriesPack =
-          buildCompressedEntriesPack(filesManager, binarySplits);
-
-      // Build a pack with entries that are uncompressed in final APKs: force uncompressed entries
-      // + entries that have very low compression ratio.
-      ModuleEntriesPack uncompressedEntriesPack =
+    // Convert module splits to binary format in the background. Uncompressed globs are applied
+    // again to the converted resources, because as specified in documentation the matching for
+    // uncompressed globs is done against paths in final APKs.
+    ListenableFuture<ImmutableList<ModuleSplit>> binarySplitsFuture =
+        Futures.transform(
+            aapt2ResourceConverter.convert(preparedSplits, filesManager, tasks),
+            splits ->
+                splits.stream()
+                    .map(this::applyUncompressedGlobsAndUncompressedNativeLibraries)
+                    .collect(toImmutableList()),
+            directExecutor());
+
+    // Build a pack from entries which may be compressed inside final APKs. 'May be
+    // compressed' means that for these entries we will decide later should they be compressed
+    // or not based on whether we gain enough savings from compression. Entries other than
+    // resources are left as-is by the conversion, so they are compressed in the meantime.
+    ModuleEntriesPack otherEntriesPack;
+    try (Tracer.Span span = tracer.startSpan("compress-other-entries")) {
+      otherEntriesPack = buildCompressedOtherEntriesPack(filesManager, preparedSplits);
+    }
+    ImmutableList<ModuleSplit> binarySplits = ConcurrencyUtils.waitFor(binarySplitsFuture);
+    ModuleEntriesPack maybeCompressedEntriesPack;
+    try (Tracer.Span span = tracer.startSpan("compress-resource-entries")) {
+      maybeCompressedEntriesPack =
+          buildCompressedResourceEntriesPack(filesManager, binarySplits)
+              .mergeWith(otherEntriesPack);
+    }
+
+    // Build a pack with entries that are uncompressed in final APKs: force uncompressed entries
+    // + entries that have very low compression ratio.
+    ModuleEntriesPack uncompressedEntriesPack;
+    try (Tracer.Span span = tracer.startSpan("pack-uncompressed-entries")) {
+      uncompressedEntriesPack =
           buildUncompressedEntriesPack(
               filesManager.getUncompressedEntriesPackPath(),
               binarySplits,
               maybeCompressedEntriesPack);
+    }
 
-      // Now content of all binary apks is already moved to compressed/uncompressed packs. Delete
-      // them to free space.
+    // Now content of all binary apks is already moved to compressed/uncompressed packs. Delete
+    // them to free space.
+    try {
       filesManager.closeAndRemoveBinaryApks();
-
-      // Merge two packs together, so we have all entries for final APKs inside one pack. If the
-      // same entry is in both packs we prefer uncompressed one, because it means this entry
-      // has very low compression ratio, it makes no sense to put it in compressed form.
-      ModuleEntriesPack allEntriesPack =
-          maybeCompressedEntriesPack.mergeWith(uncompressedEntriesPack);
-
-      // Serialize and sign final APKs.
-      ImmutableList<ListenableFuture<ApkDescription>> apkDescriptions =
-          Streams.zip(
-                  splitsByRelativePath.keySet().stream(),
-                  binarySplits.stream(),
-                  (relativePath, split) ->
-                      executorService.submit(
-                          () ->
-                              serializeAndSignSplit(
-                                  outputDirectory,
-                                  relativePath,
-                                  split,
-                                  allEntriesPack,
-                                  uncompressedEntriesPack)))
-              .collect(toImmutableList());
-
-      return ConcurrencyUtils.waitForAll(apkDescriptions).stream()
-          .collect(toImmutableMap(apk -> ZipPath.create(apk.getPath()), identity()));
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
+
+    // Merge two packs together, so we have all entries for final APKs inside one pack. If the
+    // same entry is in both packs we prefer uncompressed one, because it means this entry
+    // has very low compression ratio, it makes no sense to put it in compressed form.
+    ModuleEntriesPack allEntriesPack =
+        maybeCompressedEntriesPack.mergeWith(uncompressedEntriesPack);
+
+    // Serialize and sign final APKs.
+    return Streams.zip(
+            splitsByRelativePath.keySet().stream(),
+            binarySplits.stream(),
+            (relativePath, split) ->
+                Maps.immutableEntry(
+                    relativePath,
+                    tasks.submit(
+                        () ->
+                            serializeAndSignSplit(
+                                outputDirectory,
+                                relativePath,
+                                split,
+                                allEntriesPack,
+                                uncompressedEntriesPack))))
+        .collect(toImmutableMap(Map.Entry::getKey, Map.Entry::getValue));
   }
 
-  private ModuleEntriesPack buildCompressedEntriesPack(
-      SerializationFilesManager filesManager, Collection<ModuleSplit> splits) {
-    return use7ZipCompression
-        ? build7ZipCompressedEntriesPack(filesManager, splits)
-        : buildDeflateCompressedEntriesPack(filesManager, splits);
+  /**
+   * Returns the fingerprint of the inputs of each APK, keyed by relative path of module split.
+   *
+   * <p>The fingerprint covers everything the bytes of the APK depend on: the split itself, the
+   * signing configuration, the bundle config, the compression and resource conversion settings
+   * and the versions of bundletool and aapt2. Returns an empty map if not running in incremental
+   * mode, or if the version of aapt2 is unknown since the APKs then can't be safely reused.
+   */
+  private ImmutableMap<ZipPath, HashCode> computeApkFingerprints(
+      ImmutableMap<ZipPath, ModuleSplit> splitsByRelativePath) {
+    if (!incrementalFromApkSet.isPresent()) {
+      return ImmutableMap.of();
+    }
+    Optional<String> aapt2Version = aapt2ResourceConverter.getAapt2Version();
+    if (!aapt2Version.isPresent()) {
+      logger.warning("Version of aapt2 is unknown, all APKs are generated again.");
+      return ImmutableMap.of();
+    }
+    byte[] bundleConfigBytes = bundleConfig.toByteArray();
+    HashCode serializationFingerprint =
+        Hashing.sha256()
+            .newHasher()
+            .putString(BundleToolVersion.getCurrentVersion().toString(), UTF_8)
+            .putByte((byte) 0)
+            .putString(aapt2Version.get(), UTF_8)
+            .putByte((byte) 0)
+            .putInt(bundleConfigBytes.length)
+            .putBytes(bundleConfigBytes)
+            .putBoolean(reuseBundleCompression)
+            .putBoolean(use7ZipCompression)
+            .putBoolean(aapt2ResourceConverter.isInProcessResourceConversion())
+            .hash();
+    return ImmutableMap.copyOf(
+        Maps.transformValues(
+            splitsByRelativePath,
+            split ->
+                Hashing.combineOrdered(
+                    ImmutableList.of(
+                        serializationFingerprint,
+                        split.getFingerprint(),
+                        apkSigner.getSigningFingerprint(split)))));
   }
 
-  /** Builds pack with compressed entries using 7zip native tool. */
-  private ModuleEntriesPack build7ZipCompressedEntriesPack(
+  /** Copies the APK of the split from the previous APK set. */
+  private ApkDescription copyPreviousApk(
+      IncrementalApkSet previousApkSet,
+      HashCode apkFingerprint,
+      Path outputDirectory,
+      ZipPath apkRelativePath,
+      ModuleSplit split) {
+    try (Tracer.Span span =
+        tracer.startSpan("copy-previous-apk").addArg("apk", apkRelativePath.toString())) {
+      checkState(
+          previousApkSet.copyApk(
+              apkFingerprint, outputDirectory.resolve(apkRelativePath.toString())),
+          "APK '%s' not found in the previous APK set.",
+          apkRelativePath);
+    }
+    ApkDescription apkDescription =
+        ApkDescriptionHelper.createApkDescription(
+            apkRelativePath, split, apkSigner.getSigningDescription(split));
+    notifyApkSerialized(apkDescription, split.getSplitType());
+    return apkDescription;
+  }
+
+  /**
+   * Builds pack with compressed resource entries, including the manifest and the resource table.
+   *
+   * <p>With deflate, they are compressed with the best compression level (9).
+   */
+  private ModuleEntriesPack buildCompressedResourceEntriesPack(
       SerializationFilesManager filesManager, Collection<ModuleSplit> splits) {
-    checkState(
-        p7ZipCommand.isPresent(), "'p7ZipCommand' is required when 7zip compression is used.");
-    ModuleEntriesPacker entriesPacker =
+    ModuleEntriesPacker resourceEntriesPacker =
         new ModuleEntriesPacker(
-            filesManager.getCompressedEntriesPackPath(), /* namePrefix= */ "c_");
+            filesManager.getCompressedResourceEntriesPackPath(), /* namePrefix= */ "r_");
     splits.stream()
         .flatMap(split -> split.getEntries().stream())
         .filter(entry -> !entry.getForceUncompressed())
-        .forEach(entriesPacker::add);
+        .filter(entry -> requiresAapt2Conversion(toApkEntryPath(entry.getPath())))
+        .forEach(resourceEntriesPacker::add);
 
-    try (TempDirectory tempDirectory = new TempDirectory()) {
-      return entriesPacker.pack(Zipper.compressedZip(p7ZipCommand.get(), tempDirectory.getPath()));
-    }
+    return use7ZipCompression
+        ? packWith7Zip(resourceEntriesPacker)
+        : pack(
+            resourceEntriesPacker,
+            Zipper.compressedZip(executorService, memoryBudget, Deflater.BEST_COMPRESSION),
+            CompressedEntriesCache.deflateProfile(Deflater.BEST_COMPRESSION));
   }
 
   /**
-   * Builds pack with compressed entries, resource entries are compressed with the best compression
-   * level (9) and all others with default compression level (6).
+   * Builds pack with compressed entries other than resources.
+   *
+   * <p>With deflate, they are compressed with default compression level (6). If reusing
+   * compression of the bundle is enabled, entries which are already deflated inside the bundle are
+   * copied from it as-is instead.
    */
-  private ModuleEntriesPack buildDeflateCompressedEntriesPack(
+  private ModuleEntriesPack buildCompressedOtherEntriesPack(
       SerializationFilesManager filesManager, Collection<ModuleSplit> splits) {
     ModuleEntriesPacker otherEntriesPacker =
         new ModuleEntriesPacker(
             filesManager.getCompressedEntriesPackPath(), /* namePrefix= */ "c_");
-    ModuleEntriesPacker resourceEntriesPacker =
+    ModuleEntriesPacker bundleEntriesPacker =
         new ModuleEntriesPacker(
-            filesManager.getCompressedResourceEntriesPackPath(), /* namePrefix= */ "r_");
+            filesManager.getBundleCompressedEntriesPackPath(), /* namePrefix= */ "b_");
+    Map<Path, ZipMap> bundleZipMaps = new HashMap<>();
     splits.stream()
         .flatMap(split -> split.getEntries().stream())
         .filter(entry -> !entry.getForceUncompressed())
+        .filter(entry -> !requiresAapt2Conversion(toApkEntryPath(entry.getPath())))
         .forEach(
             entry -> {
-              if (requiresAapt2Conversion(toApkEntryPath(entry.getPath()))) {
-                resourceEntriesPacker.add(entry);
+              if (!use7ZipCompression
+                  && reuseBundleCompression
+                  && isDeflatedInBundle(entry, bundleZipMaps)) {
+                bundleEntriesPacker.add(entry);
               } else {
                 otherEntriesPacker.add(entry);
               }
             });
 
-    ModuleEntriesPack resourceEntriesPack =
-        resourceEntriesPacker.pack(
-            Zipper.compressedZip(executorService, Deflater.BEST_COMPRESSION));
+    if (use7ZipCompression) {
+      return packWith7Zip(otherEntriesPacker);
+    }
     ModuleEntriesPack otherEntriesPack =
-        otherEntriesPacker.pack(
-            Zipper.compressedZip(executorService, Deflater.DEFAULT_COMPRESSION));
+        pack(
+            otherEntriesPacker,
+            Zipper.compressedZip(executorService, memoryBudget, Deflater.DEFAULT_COMPRESSION),
+            CompressedEntriesCache.deflateProfile(Deflater.DEFAULT_COMPRESSION));
+    ModuleEntriesPack bundleEntriesPack = bundleEntriesPacker.packFromBundles();
+    return otherEntriesPack.mergeWith(bundleEntriesPack);
+  }
+
+  /** Packs compressed entries using 7zip native tool. */
+  private ModuleEntriesPack packWith7Zip(ModuleEntriesPacker entriesPacker) {
+    checkState(
+        p7ZipCommand.isPresent(), "'p7ZipCommand' is required when 7zip compression is used.");
+    try (TempDirectory tempDirectory = new TempDirectory()) {
+      return pack(
+          entriesPacker,
+          Zipper.compressedZip(p7ZipCommand.get(), tempDirectory.getPath()),
+          CompressedEntriesCache.P7ZIP_PROFILE);
+    }
+  }
+
+  /**
+   * Whether the entry is stored inside the bundle it was read from in compressed form, so that its
+   * compressed bytes can be copied into APKs as-is.
+   *
+   * <p>Entries stored uncompressed inside the bundle, or whose compressed form is not smaller than
+   * the content, are compressed by bundletool as usual. So are entries whose content was replaced
+   * after they were read, since {@link ModuleEntry.Builder#setContent(ByteSource)} keeps their
+   * bundle location.
+   */
+  private static boolean isDeflatedInBundle(ModuleEntry entry, Map<Path, ZipMap> bundleZipMaps) {
+    if (!entry.getBundleLocation().isPresent()) {
+      return false;
+    }
+    ModuleEntryBundleLocation location = entry.getBundleLocation().get();
+    try {
+      // We cannot use computeIfAbsent because ZipMap.from may throw.
+      ZipMap bundleZipMap =
+          bundleZipMaps.containsKey(location.pathToBundle())
+              ? bundleZipMaps.get(location.pathToBundle())
+              : ZipMap.from(location.pathToBundle());
+      bundleZipMaps.putIfAbsent(location.pathToBundle(), bundleZipMap);
+      Entry zipEntry = bundleZipMap.getEntries().get(location.entryPathInBundle().toString());
+      return zipEntry != null
+          && zipEntry.getCompressedSize() < zipEntry.getUncompressedSize()
+          && hasContentOf(entry, zipEntry);
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Failed to read entries of bundle '%s'.", location.pathToBundle()), e);
+    }
+  }
+
+  /**
+   * Whether the content of the entry is the one of the given bundle entry, compared by size and
+   * CRC-32. The checksum of entries read from the bundle is known without reading their content.
+   */
+  private static boolean hasContentOf(ModuleEntry entry, Entry zipEntry) throws IOException {
+    ByteSource content = entry.getContent();
+    Optional<Long> size = content.sizeIfKnown().toJavaUtil();
+    if (size.isPresent() && size.get() != zipEntry.getUncompressedSize()) {
+      return false;
+    }
+    Optional<Long> crc = ZipUtils.crc32IfKnown(content).toJavaUtil();
+    long contentCrc = crc.isPresent() ? crc.get() : content.hash(Hashing.crc32()).padToLong();
+    return contentCrc == Integer.toUnsignedLong(zipEntry.getCrc());
+  }
 
-    return resourceEntriesPack.mergeWith(otherEntriesPack);
+  /**
+   * Packs compressed entries, reusing compressed content from the compression cache when it is
+   * enabled.
+   */
+  private ModuleEntriesPack pack(
+      ModuleEntriesPacker packer, Zipper zipper, String compressionProfile) {
+    return compressionCache.isPresent()
+        ? packer.pack(zipper, compressionCache.get(), compressionProfile)
+        : packer.pack(zipper);
   }
 
   private ModuleEntriesPack buildUncompressedEntriesPack(
@@ -252,8 +540,24 @@ public class ModuleSplitSerializer extends ApkSerializer {
       ModuleEntriesPack uncompressedEntriesPack) {
     Path outputPath = outputDirectory.resolve(apkRelativePath.toString());
 
-    serializeSplit(outputPath, split, allEntriesPack, uncompressedEntriesPack);
-    Optional<SigningDescription> signingDescription = apkSigner.signApk(outputPath, split);
+    try (Tracer.Span span =
+        tracer
+            .startSpan("serialize-apk")
+            .addArg("apk", apkRelativePath.toString())
+            .addArg("entries", split.getEntries().size())) {
+      serializeSplit(outputPath, split, allEntriesPack, uncompressedEntriesPack);
+      if (tracer.isEnabled()) {
+        span.addArg("unsignedBytes", getFileSize(outputPath));
+      }
+    }
+    Optional<SigningDescription> signingDescription;
+    try (Tracer.Span span =
+        tracer.startSpan("sign-apk").addArg("apk", apkRelativePath.toString())) {
+      signingDescription = apkSigner.signApk(outputPath, split);
+      if (tracer.isEnabled()) {
+        span.addArg("bytes", getFileSize(outputPath));
+      }
+    }
 
     ApkDescription apkDescription =
         ApkDescriptionHelper.createApkDescription(apkRelativePath, split, signingDescription);
@@ -262,6 +566,14 @@ public class ModuleSplitSerializer extends ApkSerializer {
     return apkDescription;
   }
 
+  private static long getFileSize(Path path) {
+    try {
+      return Files.size(path);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   private void serializeSplit(
       Path outputPath,
       ModuleSplit split,
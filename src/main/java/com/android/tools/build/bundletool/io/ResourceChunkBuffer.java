@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Growable little-endian buffer used to write chunks of the Android binary resource formats.
+ *
+ * <p>Every chunk starts with a {@code ResChunk_header} (type, header size and total size). The
+ * total size is only known once the chunk is complete, so it is written by {@link
+ * #finishChunk(int)}. Similarly, indices of strings are only known once the string pool is sorted,
+ * so they are written by {@link #resolveStringRefs()}.
+ */
+final class ResourceChunkBuffer {
+  private static final int TYPE_STRING = 0x03;
+  private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+
+  private byte[] bytes;
+  private int size = 0;
+
+  /** Offsets of string references to resolve, with the referenced strings. */
+  private final List<Integer> stringRefOffsets = new ArrayList<>();
+  private final List<ResourceStringPool.Ref> stringRefs = new ArrayList<>();
+
+  ResourceChunkBuffer() {
+    this(DEFAULT_INITIAL_CAPACITY);
+  }
+
+  ResourceChunkBuffer(int initialCapacity) {
+    this.bytes = new byte[initialCapacity];
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Writes the header of a new chunk and returns its offset, to be passed to {@link
+   * #finishChunk(int)}.
+   *
+   * <p>Only the common {@code ResChunk_header} is written, the remaining {@code headerSize - 8}
+   * bytes of the header are written by the caller.
+   */
+  int startChunk(int type, int headerSize) {
+    int chunkStart = size;
+    putShort(type);
+    putShort(headerSize);
+    putInt(0);
+    return chunkStart;
+  }
+
+  /** Pads the chunk started at {@code chunkStart} to 4 bytes and writes its total size. */
+  void finishChunk(int chunkStart) {
+    align4();
+    putIntAt(chunkStart + 4, size - chunkStart);
+  }
+
+  void putByte(int value) {
+    ensureCapacity(1);
+    bytes[size++] = (byte) value;
+  }
+
+  void putShort(int value) {
+    ensureCapacity(2);
+    bytes[size++] = (byte) value;
+    bytes[size++] = (byte) (value >>> 8);
+  }
+
+  void putInt(int value) {
+    ensureCapacity(4);
+    writeInt(size, value);
+    size += 4;
+  }
+
+  void putBytes(byte[] value) {
+    ensureCapacity(value.length);
+    System.arraycopy(value, 0, bytes, size, value.length);
+    size += value.length;
+  }
+
+  void putZeros(int count) {
+    ensureCapacity(count);
+    // The buffer is zeroed on allocation and never written beyond its size.
+    size += count;
+  }
+
+  /** Writes a reference to a string whose index is written by {@link #resolveStringRefs()}. */
+  void putStringRef(ResourceStringPool.Ref ref) {
+    stringRefOffsets.add(size);
+    stringRefs.add(ref);
+    putInt(0);
+  }
+
+  /** Writes a {@code Res_value}. */
+  void putResValue(int dataType, int data) {
+    putShort(8);
+    putByte(0);
+    putByte(dataType);
+    putInt(data);
+  }
+
+  /** Writes a {@code Res_value} of type string. */
+  void putStringResValue(ResourceStringPool.Ref ref) {
+    putShort(8);
+    putByte(0);
+    putByte(TYPE_STRING);
+    putStringRef(ref);
+  }
+
+  /** Writes the indices of all referenced strings, whose string pools must be sorted. */
+  void resolveStringRefs() {
+    for (int i = 0; i < stringRefs.size(); i++) {
+      putIntAt(stringRefOffsets.get(i), stringRefs.get(i).getIndex());
+    }
+    stringRefOffsets.clear();
+    stringRefs.clear();
+  }
+
+  void putShortAt(int offset, int value) {
+    bytes[offset] = (byte) value;
+    bytes[offset + 1] = (byte) (value >>> 8);
+  }
+
+  void putIntAt(int offset, int value) {
+    writeInt(offset, value);
+  }
+
+  /** Pads the buffer with zeros to a multiple of 4 bytes. */
+  void align4() {
+    putZeros((4 - size % 4) % 4);
+  }
+
+  void append(ResourceChunkBuffer other) {
+    for (int i = 0; i < other.stringRefs.size(); i++) {
+      stringRefOffsets.add(size + other.stringRefOffsets.get(i));
+      stringRefs.add(other.stringRefs.get(i));
+    }
+    ensureCapacity(other.size);
+    System.arraycopy(other.bytes, 0, bytes, size, other.size);
+    size += other.size;
+  }
+
+  byte[] toByteArray() {
+    checkState(stringRefs.isEmpty(), "String references are not resolved.");
+    return Arrays.copyOf(bytes, size);
+  }
+
+  private void writeInt(int offset, int value) {
+    bytes[offset] = (byte) value;
+    bytes[offset + 1] = (byte) (value >>> 8);
+    bytes[offset + 2] = (byte) (value >>> 16);
+    bytes[offset + 3] = (byte) (value >>> 24);
+  }
+
+  private void ensureCapacity(int additionalBytes) {
+    if (size + additionalBytes > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2 + 16, size + additionalBytes));
+    }
+  }
+}
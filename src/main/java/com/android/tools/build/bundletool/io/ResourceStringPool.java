@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.UnsignedBytes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builder of a {@code ResStringPool} chunk, mirroring the string pools of aapt2.
+ *
+ * <p>Strings are deduplicated by their value and priority, styled strings are never deduplicated.
+ * Once all strings are added, the pool is either sorted by priority, configuration and value, or
+ * kept in insertion order, which assigns the final indices of the strings.
+ */
+final class ResourceStringPool {
+
+  /** Priority of file paths, placed first in resource tables. */
+  static final long HIGH_PRIORITY = 1;
+  /** Default priority of strings. */
+  static final long NORMAL_PRIORITY = 0x7fffffffL;
+  /** Priority of strings placed after strings associated with resource ids in XML files. */
+  static final long LOW_PRIORITY = 0xffffffffL;
+
+  private static final int RES_STRING_POOL_TYPE = 0x0001;
+  private static final int HEADER_SIZE = 28;
+  private static final int UTF8_FLAG = 1 << 8;
+  private static final int SPAN_END = 0xffffffff;
+  private static final int MAX_UTF8_LENGTH = 0x7fff;
+
+  private static final Comparator<Ref> REF_ORDER =
+      Comparator.<Ref>comparingLong(ref -> ref.priority)
+          .thenComparing(ref -> ref.config)
+          .thenComparing(ref -> ref.utf8Value, UnsignedBytes.lexicographicalComparator());
+
+  private final boolean utf8;
+  private final Map<String, List<Ref>> stringsByValue = new HashMap<>();
+  private final List<Ref> strings = new ArrayList<>();
+  private final List<Ref> styles = new ArrayList<>();
+  private boolean indicesAssigned = false;
+
+  /** Creates a pool whose strings are encoded in UTF-8, or in UTF-16 otherwise. */
+  ResourceStringPool(boolean utf8) {
+    this.utf8 = utf8;
+  }
+
+  /** Adds the string with the default configuration, unless already present. */
+  Ref makeRef(String value, long priority) {
+    return makeRef(value, priority, ResourceTableConfig.DEFAULT);
+  }
+
+  /**
+   * Adds the string, unless already present with the same priority.
+   *
+   * <p>The configuration of the first added string is kept, it is only used by {@link #sort()}.
+   */
+  Ref makeRef(String value, long priority, ResourceTableConfig config) {
+    checkState(!indicesAssigned, "Indices of the pool are already assigned.");
+    List<Ref> sameValueRefs = stringsByValue.computeIfAbsent(value, v -> new ArrayList<>());
+    for (Ref ref : sameValueRefs) {
+      if (ref.priority == priority) {
+        return ref;
+      }
+    }
+    Ref ref = new Ref(value, encode(value), priority, config, /* spans= */ ImmutableList.of());
+    sameValueRefs.add(ref);
+    strings.add(ref);
+    return ref;
+  }
+
+  /** Returns the string previously added with the given priority. */
+  Ref getRef(String value, long priority) {
+    for (Ref ref : stringsByValue.getOrDefault(value, ImmutableList.of())) {
+      if (ref.priority == priority) {
+        return ref;
+      }
+    }
+    throw new IllegalArgumentException(
+        String.format("String '%s' with priority %d is not in the pool.", value, priority));
+  }
+
+  /** Adds a styled string, whose span names must be strings of this pool. */
+  Ref makeStyleRef(
+      String value, ImmutableList<Span> spans, long priority, ResourceTableConfig config) {
+    checkState(!indicesAssigned, "Indices of the pool are already assigned.");
+    Ref ref = new Ref(value, encode(value), priority, config, spans);
+    styles.add(ref);
+    return ref;
+  }
+
+  /** Sorts the pool, after which the indices of strings are known and no string can be added. */
+  void sort() {
+    strings.sort(REF_ORDER);
+    styles.sort(REF_ORDER);
+    assignIndices();
+  }
+
+  /**
+   * Keeps the strings in the order they were added, after which the indices of strings are known
+   * and no string can be added.
+   */
+  void assignIndices() {
+    for (int i = 0; i < styles.size(); i++) {
+      styles.get(i).index = i;
+    }
+    for (int i = 0; i < strings.size(); i++) {
+      strings.get(i).index = styles.size() + i;
+    }
+    indicesAssigned = true;
+  }
+
+  /** Returns the strings of the pool in their final order, without the styled strings. */
+  ImmutableList<Ref> getStrings() {
+    checkState(indicesAssigned, "Indices of the pool are not assigned yet.");
+    return ImmutableList.copyOf(strings);
+  }
+
+  /** Writes the pool as a {@code ResStringPool} chunk. */
+  void writeTo(ResourceChunkBuffer buffer) {
+    checkState(indicesAssigned, "Indices of the pool are not assigned yet.");
+    int chunkStart = buffer.startChunk(RES_STRING_POOL_TYPE, HEADER_SIZE);
+    buffer.putInt(styles.size() + strings.size());
+    buffer.putInt(styles.size());
+    buffer.putInt(utf8 ? UTF8_FLAG : 0);
+    int stringsStartOffset = buffer.size();
+    buffer.putInt(0);
+    int stylesStartOffset = buffer.size();
+    buffer.putInt(0);
+
+    int stringIndicesOffset = buffer.size();
+    buffer.putZeros(4 * (styles.size() + strings.size()));
+    int styleIndicesOffset = buffer.size();
+    buffer.putZeros(4 * styles.size());
+
+    // Values of styled strings always come first.
+    int stringsStart = buffer.size();
+    buffer.putIntAt(stringsStartOffset, stringsStart - chunkStart);
+    int stringIndex = 0;
+    for (Ref ref : styles) {
+      buffer.putIntAt(stringIndicesOffset + 4 * stringIndex++, buffer.size() - stringsStart);
+      buffer.putBytes(ref.encodedValue);
+    }
+    for (Ref ref : strings) {
+      buffer.putIntAt(stringIndicesOffset + 4 * stringIndex++, buffer.size() - stringsStart);
+      buffer.putBytes(ref.encodedValue);
+    }
+    buffer.align4();
+
+    if (!styles.isEmpty()) {
+      int stylesStart = buffer.size();
+      buffer.putIntAt(stylesStartOffset, stylesStart - chunkStart);
+      int styleIndex = 0;
+      for (Ref ref : styles) {
+        buffer.putIntAt(styleIndicesOffset + 4 * styleIndex++, buffer.size() - stylesStart);
+        for (Span span : ref.spans) {
+          buffer.putInt(span.name.getIndex());
+          buffer.putInt(span.firstChar);
+          buffer.putInt(span.lastChar);
+        }
+        buffer.putInt(SPAN_END);
+      }
+      // The platform expects a whole span of END values at the end of the styles.
+      buffer.putInt(SPAN_END);
+      buffer.putInt(SPAN_END);
+    }
+    buffer.finishChunk(chunkStart);
+  }
+
+  /**
+   * Encodes the string with its length prefix and null terminator.
+   *
+   * @throws UnsupportedResourceException if the string is too long to be encoded in UTF-8
+   */
+  private byte[] encode(String value) {
+    // Large enough for the longest encoding of the string.
+    ResourceChunkBuffer encoded = new ResourceChunkBuffer(3 * value.length() + 8);
+    if (utf8) {
+      // Modified UTF-8: characters outside of the BMP are encoded as surrogate pairs.
+      byte[] bytes = encodeModifiedUtf8(value);
+      if (value.length() > MAX_UTF8_LENGTH || bytes.length > MAX_UTF8_LENGTH) {
+        throw new UnsupportedResourceException("String too long: %d bytes", bytes.length);
+      }
+      putUtf8Length(encoded, value.length());
+      putUtf8Length(encoded, bytes.length);
+      encoded.putBytes(bytes);
+      encoded.putByte(0);
+    } else {
+      int length = value.length();
+      if (length > 0x7fff) {
+        encoded.putShort(0x8000 | (length >>> 16));
+      }
+      encoded.putShort(length);
+      for (int i = 0; i < length; i++) {
+        encoded.putShort(value.charAt(i));
+      }
+      encoded.putShort(0);
+    }
+    return encoded.toByteArray();
+  }
+
+  private static void putUtf8Length(ResourceChunkBuffer buffer, int length) {
+    if (length > 0x7f) {
+      buffer.putByte(0x80 | (length >>> 8));
+    }
+    buffer.putByte(length);
+  }
+
+  private static byte[] encodeModifiedUtf8(String value) {
+    if (value.chars().allMatch(c -> c < 0x80)) {
+      return value.getBytes(UTF_8);
+    }
+    ResourceChunkBuffer bytes = new ResourceChunkBuffer(3 * value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        bytes.putByte(c);
+      } else if (c < 0x800) {
+        bytes.putByte(0xc0 | (c >>> 6));
+        bytes.putByte(0x80 | (c & 0x3f));
+      } else {
+        bytes.putByte(0xe0 | (c >>> 12));
+        bytes.putByte(0x80 | ((c >>> 6) & 0x3f));
+        bytes.putByte(0x80 | (c & 0x3f));
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Reference to a string of the pool. */
+  static final class Ref {
+    /** Value in standard UTF-8, by which the pool is sorted. */
+    private final byte[] utf8Value;
+    /** Value as written in the pool. */
+    private final byte[] encodedValue;
+    private final long priority;
+    private final ResourceTableConfig config;
+    private final ImmutableList<Span> spans;
+    private int index = -1;
+
+    private Ref(
+        String value,
+        byte[] encodedValue,
+        long priority,
+        ResourceTableConfig config,
+        ImmutableList<Span> spans) {
+      this.utf8Value = value.getBytes(UTF_8);
+      this.encodedValue = encodedValue;
+      this.priority = priority;
+      this.config = config;
+      this.spans = spans;
+    }
+
+    long getPriority() {
+      return priority;
+    }
+
+    /** Returns the index of the string, only known once indices of the pool are assigned. */
+    int getIndex() {
+      checkState(index >= 0, "Indices of the pool are not assigned yet.");
+      return index;
+    }
+  }
+
+  /** Span of a styled string. */
+  static final class Span {
+    private final Ref name;
+    private final int firstChar;
+    private final int lastChar;
+
+    Span(Ref name, int firstChar, int lastChar) {
+      this.name = name;
+      this.firstChar = firstChar;
+      this.lastChar = lastChar;
+    }
+  }
+}
@@ -0,0 +1,613 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.io.ResourceStringPool.HIGH_PRIORITY;
+import static com.android.tools.build.bundletool.io.ResourceStringPool.NORMAL_PRIORITY;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.android.aapt.Resources.Array;
+import com.android.aapt.Resources.Attribute;
+import com.android.aapt.Resources.CompoundValue;
+import com.android.aapt.Resources.ConfigValue;
+import com.android.aapt.Resources.Entry;
+import com.android.aapt.Resources.Item;
+import com.android.aapt.Resources.Package;
+import com.android.aapt.Resources.Plural;
+import com.android.aapt.Resources.Primitive;
+import com.android.aapt.Resources.Reference;
+import com.android.aapt.Resources.ResourceTable;
+import com.android.aapt.Resources.Style;
+import com.android.aapt.Resources.Styleable;
+import com.android.aapt.Resources.StyledString;
+import com.android.aapt.Resources.Type;
+import com.android.aapt.Resources.Value;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Converts a resource table from proto format to the binary format ("resources.arsc"), producing
+ * the same output as "aapt2 convert".
+ *
+ * <p>Only the subset of resource tables which is common in app bundles is supported: tables of a
+ * single app package without locale or product qualifiers, overlayables or shared libraries are
+ * left to aapt2.
+ */
+final class ResourceTableChunkWriter {
+
+  private static final int RES_TABLE_TYPE = 0x0002;
+  private static final int RES_TABLE_PACKAGE_TYPE = 0x0200;
+  private static final int RES_TABLE_TYPE_TYPE = 0x0201;
+  private static final int RES_TABLE_TYPE_SPEC_TYPE = 0x0202;
+
+  private static final int TABLE_HEADER_SIZE = 12;
+  private static final int PACKAGE_HEADER_SIZE = 288;
+  private static final int TYPE_SPEC_HEADER_SIZE = 16;
+  private static final int TYPE_HEADER_SIZE = 84;
+  private static final int ENTRY_SIZE = 8;
+  private static final int MAP_ENTRY_SIZE = 16;
+  private static final int PACKAGE_NAME_LENGTH = 128;
+
+  private static final int APP_PACKAGE_ID = 0x7f;
+  private static final int FRAMEWORK_PACKAGE_ID = 0x01;
+  private static final int NO_ENTRY = 0xffffffff;
+  private static final int SPEC_PUBLIC = 0x40000000;
+  private static final int VISIBILITY_PUBLIC = 2;
+
+  private static final int FLAG_COMPLEX = 0x0001;
+  private static final int FLAG_PUBLIC = 0x0002;
+  private static final int FLAG_WEAK = 0x0004;
+
+  private static final int TYPE_NULL = 0x00;
+  private static final int TYPE_REFERENCE = 0x01;
+  private static final int TYPE_ATTRIBUTE = 0x02;
+  private static final int TYPE_FLOAT = 0x04;
+  private static final int TYPE_DIMENSION = 0x05;
+  private static final int TYPE_FRACTION = 0x06;
+  private static final int TYPE_DYNAMIC_REFERENCE = 0x07;
+  private static final int TYPE_DYNAMIC_ATTRIBUTE = 0x08;
+  private static final int TYPE_INT_DEC = 0x10;
+  private static final int TYPE_INT_HEX = 0x11;
+  private static final int TYPE_INT_BOOLEAN = 0x12;
+  private static final int TYPE_INT_COLOR_ARGB8 = 0x1c;
+  private static final int TYPE_INT_COLOR_RGB8 = 0x1d;
+  private static final int TYPE_INT_COLOR_ARGB4 = 0x1e;
+  private static final int TYPE_INT_COLOR_RGB4 = 0x1f;
+  private static final int DATA_NULL_UNDEFINED = 0;
+  private static final int DATA_NULL_EMPTY = 1;
+
+  private static final int ATTR_TYPE = 0x01000000;
+  private static final int ATTR_MIN = 0x01000001;
+  private static final int ATTR_MAX = 0x01000002;
+  /** Keys of plural quantities, indexed by {@link Plural.Arity} values. */
+  private static final ImmutableList<Integer> PLURAL_ARITY_KEYS =
+      ImmutableList.of(
+          /* ZERO */ 0x01000005,
+          /* ONE */ 0x01000006,
+          /* TWO */ 0x01000007,
+          /* FEW */ 0x01000008,
+          /* MANY */ 0x01000009,
+          /* OTHER */ 0x01000004);
+
+  /** Framework attributes come before attributes of shared libraries, then ordered by id. */
+  private static final Comparator<Style.Entry> STYLE_ENTRY_ORDER =
+      Comparator.comparing(
+          (Style.Entry entry) -> entry.getKey().getId(),
+          (id1, id2) -> {
+            int package1 = id1 >>> 24;
+            int package2 = id2 >>> 24;
+            if (package1 == FRAMEWORK_PACKAGE_ID && package2 == 0) {
+              return -1;
+            }
+            if (package1 == 0 && package2 == FRAMEWORK_PACKAGE_ID) {
+              return 1;
+            }
+            return Integer.compareUnsigned(id1, id2);
+          });
+
+  private final ResourceStringPool valuePool = new ResourceStringPool(/* utf8= */ true);
+  private final ResourceStringPool typePool = new ResourceStringPool(/* utf8= */ false);
+  private final ResourceStringPool keyPool = new ResourceStringPool(/* utf8= */ true);
+  /** Styled strings are never deduplicated, so their references are kept per value. */
+  private final Map<StyledString, ResourceStringPool.Ref> styledStringRefs =
+      new IdentityHashMap<>();
+
+  private ResourceTableChunkWriter() {}
+
+  /**
+   * Converts the resource table.
+   *
+   * @return the table in binary format, or empty if the table isn't supported and must be
+   *     converted by aapt2
+   */
+  static Optional<byte[]> write(ResourceTable table) {
+    try {
+      return Optional.of(new ResourceTableChunkWriter().writeTable(table));
+    } catch (UnsupportedResourceException e) {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Writes the {@code Res_value} of an item which doesn't reference a string pool.
+   *
+   * @throws UnsupportedResourceException if the item references a string pool
+   */
+  static void writeNonStringItem(ResourceChunkBuffer buffer, Item item) {
+    switch (item.getValueCase()) {
+      case REF:
+        writeReference(buffer, item.getRef());
+        return;
+      case ID:
+        buffer.putResValue(TYPE_INT_BOOLEAN, 0);
+        return;
+      case PRIM:
+        writePrimitive(buffer, item.getPrim());
+        return;
+      default:
+        throw new UnsupportedResourceException("Unsupported item: %s", item.getValueCase());
+    }
+  }
+
+  private byte[] writeTable(ResourceTable table) {
+    if (table.getPackageCount() != 1
+        || table.getOverlayableCount() != 0
+        || table.getDynamicRefTableCount() != 0) {
+      throw new UnsupportedResourceException("Only tables with a single package are supported.");
+    }
+    Package pkg = table.getPackage(0);
+    if (pkg.getPackageId().getId() != APP_PACKAGE_ID) {
+      throw new UnsupportedResourceException(
+          "Unsupported package id: %d", pkg.getPackageId().getId());
+    }
+
+    // The value pool is filled in the order of the proto, which determines the configuration
+    // associated with deduplicated strings and thus their order in the sorted pool.
+    for (Type type : pkg.getTypeList()) {
+      for (Entry entry : type.getEntryList()) {
+        for (ConfigValue configValue : entry.getConfigValueList()) {
+          addStrings(
+              configValue.getValue(), ResourceTableConfig.fromProto(configValue.getConfig()));
+        }
+      }
+    }
+    valuePool.sort();
+
+    ResourceChunkBuffer buffer = new ResourceChunkBuffer(table.getSerializedSize());
+    int tableStart = buffer.startChunk(RES_TABLE_TYPE, TABLE_HEADER_SIZE);
+    buffer.putInt(/* packageCount= */ 1);
+    valuePool.writeTo(buffer);
+    writePackage(buffer, pkg);
+    buffer.finishChunk(tableStart);
+    buffer.resolveStringRefs();
+    return buffer.toByteArray();
+  }
+
+  private void addStrings(Value value, ResourceTableConfig config) {
+    switch (value.getValueCase()) {
+      case ITEM:
+        addStrings(value.getItem(), config);
+        return;
+      case COMPOUND_VALUE:
+        CompoundValue compoundValue = value.getCompoundValue();
+        switch (compoundValue.getValueCase()) {
+          case STYLE:
+            compoundValue.getStyle().getEntryList().forEach(e -> addStrings(e.getItem(), config));
+            return;
+          case ARRAY:
+            compoundValue
+                .getArray()
+                .getElementList()
+                .forEach(element -> addStrings(element.getItem(), config));
+            return;
+          case PLURAL:
+            compoundValue.getPlural().getEntryList().forEach(e -> addStrings(e.getItem(), config));
+            return;
+          default:
+            return;
+        }
+      default:
+        throw new UnsupportedResourceException("Unsupported value: %s", value.getValueCase());
+    }
+  }
+
+  private void addStrings(Item item, ResourceTableConfig config) {
+    switch (item.getValueCase()) {
+      case STR:
+        valuePool.makeRef(item.getStr().getValue(), NORMAL_PRIORITY, config);
+        return;
+      case RAW_STR:
+        valuePool.makeRef(item.getRawStr().getValue(), NORMAL_PRIORITY);
+        return;
+      case STYLED_STR:
+        StyledString styledString = item.getStyledStr();
+        ImmutableList<ResourceStringPool.Span> spans =
+            styledString.getSpanList().stream()
+                .map(
+                    span ->
+                        new ResourceStringPool.Span(
+                            valuePool.makeRef(span.getTag(), NORMAL_PRIORITY),
+                            span.getFirstChar(),
+                            span.getLastChar()))
+                .collect(toImmutableList());
+        styledStringRefs.put(
+            styledString,
+            valuePool.makeStyleRef(styledString.getValue(), spans, NORMAL_PRIORITY, config));
+        return;
+      case FILE:
+        valuePool.makeRef(item.getFile().getPath(), HIGH_PRIORITY, config);
+        return;
+      default:
+        return;
+    }
+  }
+
+  private void writePackage(ResourceChunkBuffer buffer, Package pkg) {
+    int packageStart = buffer.startChunk(RES_TABLE_PACKAGE_TYPE, PACKAGE_HEADER_SIZE);
+    buffer.putInt(pkg.getPackageId().getId());
+    // The name is truncated to fit in the header, including its null terminator.
+    String name = pkg.getPackageName();
+    for (int i = 0; i < PACKAGE_NAME_LENGTH; i++) {
+      buffer.putShort(i < Math.min(name.length(), PACKAGE_NAME_LENGTH - 1) ? name.charAt(i) : 0);
+    }
+    int typeStringsOffset = buffer.size();
+    buffer.putInt(0);
+    // Last public type.
+    buffer.putInt(0);
+    int keyStringsOffset = buffer.size();
+    buffer.putInt(0);
+    // Last public key and type id offset.
+    buffer.putInt(0);
+    buffer.putInt(0);
+
+    // Types are written first, as they fill the type and key pools which precede them.
+    ResourceChunkBuffer typesBuffer = new ResourceChunkBuffer();
+    ImmutableList<Type> sortedTypes =
+        pkg.getTypeList().stream()
+            .sorted(Comparator.comparingInt(type -> type.getTypeId().getId()))
+            .collect(toImmutableList());
+    int expectedTypeId = 1;
+    for (Type type : sortedTypes) {
+      int typeId = type.getTypeId().getId();
+      if (!type.hasTypeId() || typeId < expectedTypeId || typeId > 0xff) {
+        throw new UnsupportedResourceException("Unsupported type id: %d", typeId);
+      }
+      // Gaps in type ids are filled with placeholder names.
+      for (; expectedTypeId < typeId; expectedTypeId++) {
+        typePool.makeRef("?" + expectedTypeId, NORMAL_PRIORITY);
+      }
+      expectedTypeId++;
+      typePool.makeRef(type.getName(), NORMAL_PRIORITY);
+      writeType(typesBuffer, type);
+    }
+    typePool.assignIndices();
+    keyPool.assignIndices();
+
+    buffer.putIntAt(typeStringsOffset, buffer.size() - packageStart);
+    typePool.writeTo(buffer);
+    buffer.putIntAt(keyStringsOffset, buffer.size() - packageStart);
+    keyPool.writeTo(buffer);
+    buffer.append(typesBuffer);
+    buffer.finishChunk(packageStart);
+  }
+
+  private void writeType(ResourceChunkBuffer buffer, Type type) {
+    ImmutableList<Entry> sortedEntries =
+        type.getEntryList().stream()
+            .sorted(Comparator.comparingInt(entry -> entry.getEntryId().getId()))
+            .collect(toImmutableList());
+    if (sortedEntries.isEmpty()) {
+      throw new UnsupportedResourceException("Type '%s' has no entries.", type.getName());
+    }
+    int entryCount = sortedEntries.get(sortedEntries.size() - 1).getEntryId().getId() + 1;
+    if (entryCount > 0x10000) {
+      throw new UnsupportedResourceException("Unsupported entry count: %d", entryCount);
+    }
+
+    int[] configMasks = new int[entryCount];
+    // Values of each configuration, ordered as the binary configurations.
+    Map<ResourceTableConfig, List<FlatEntry>> entriesByConfig = new TreeMap<>();
+    int previousEntryId = -1;
+    for (Entry entry : sortedEntries) {
+      int entryId = entry.getEntryId().getId();
+      if (!entry.hasEntryId() || entryId == previousEntryId || entry.hasOverlayableItem()) {
+        throw new UnsupportedResourceException("Unsupported entry: %s", entry.getName());
+      }
+      previousEntryId = entryId;
+      boolean isPublic = entry.getVisibility().getLevelValue() == VISIBILITY_PUBLIC;
+      if (isPublic) {
+        configMasks[entryId] |= SPEC_PUBLIC;
+      }
+      ResourceStringPool.Ref key = keyPool.makeRef(entry.getName(), NORMAL_PRIORITY);
+
+      ImmutableList<ResourceTableConfig> configs =
+          entry.getConfigValueList().stream()
+              .map(configValue -> ResourceTableConfig.fromProto(configValue.getConfig()))
+              .collect(toImmutableList());
+      for (int i = 0; i < configs.size(); i++) {
+        for (int j = i + 1; j < configs.size(); j++) {
+          configMasks[entryId] |= configs.get(i).diff(configs.get(j));
+        }
+        FlatEntry flatEntry =
+            new FlatEntry(entryId, key, isPublic, entry.getConfigValue(i).getValue());
+        List<FlatEntry> configEntries =
+            entriesByConfig.computeIfAbsent(configs.get(i), config -> new ArrayList<>());
+        if (!configEntries.isEmpty()
+            && configEntries.get(configEntries.size() - 1).entryId == entryId) {
+          throw new UnsupportedResourceException("Duplicate configuration: %s", entry.getName());
+        }
+        configEntries.add(flatEntry);
+      }
+    }
+
+    int specStart = buffer.startChunk(RES_TABLE_TYPE_SPEC_TYPE, TYPE_SPEC_HEADER_SIZE);
+    buffer.putByte(type.getTypeId().getId());
+    buffer.putByte(0);
+    buffer.putShort(0);
+    buffer.putInt(entryCount);
+    for (int configMask : configMasks) {
+      buffer.putInt(configMask);
+    }
+    buffer.finishChunk(specStart);
+
+    for (Map.Entry<ResourceTableConfig, List<FlatEntry>> configEntries :
+        entriesByConfig.entrySet()) {
+      int typeStart = buffer.startChunk(RES_TABLE_TYPE_TYPE, TYPE_HEADER_SIZE);
+      buffer.putByte(type.getTypeId().getId());
+      // Flags and reserved bytes, entries are never sparse.
+      buffer.putByte(0);
+      buffer.putShort(0);
+      buffer.putInt(entryCount);
+      int entriesStartOffset = buffer.size();
+      buffer.putInt(0);
+      configEntries.getKey().writeTo(buffer);
+
+      int offsetsStart = buffer.size();
+      for (int i = 0; i < entryCount; i++) {
+        buffer.putInt(NO_ENTRY);
+      }
+      int entriesStart = buffer.size();
+      buffer.putIntAt(entriesStartOffset, entriesStart - typeStart);
+      for (FlatEntry flatEntry : configEntries.getValue()) {
+        buffer.putIntAt(offsetsStart + 4 * flatEntry.entryId, buffer.size() - entriesStart);
+        writeEntry(buffer, flatEntry, configEntries.getKey());
+      }
+      buffer.finishChunk(typeStart);
+    }
+  }
+
+  private void writeEntry(ResourceChunkBuffer buffer, FlatEntry entry, ResourceTableConfig config) {
+    int flags = (entry.isPublic ? FLAG_PUBLIC : 0) | (entry.value.getWeak() ? FLAG_WEAK : 0);
+    if (entry.value.hasItem()) {
+      buffer.putShort(ENTRY_SIZE);
+      buffer.putShort(flags);
+      buffer.putStringRef(entry.key);
+      writeItem(buffer, entry.value.getItem(), config);
+      return;
+    }
+
+    CompoundValue compoundValue = entry.value.getCompoundValue();
+    buffer.putShort(MAP_ENTRY_SIZE);
+    buffer.putShort(flags | FLAG_COMPLEX);
+    buffer.putStringRef(entry.key);
+    int parentOffset = buffer.size();
+    buffer.putInt(0);
+    int countOffset = buffer.size();
+    buffer.putInt(0);
+    int count = 0;
+    switch (compoundValue.getValueCase()) {
+      case ATTR:
+        Attribute attribute = compoundValue.getAttr();
+        putMapEntryKey(buffer, ATTR_TYPE);
+        buffer.putResValue(TYPE_INT_DEC, attribute.getFormatFlags());
+        count++;
+        if (attribute.getMinInt() != Integer.MIN_VALUE) {
+          putMapEntryKey(buffer, ATTR_MIN);
+          buffer.putResValue(TYPE_INT_DEC, attribute.getMinInt());
+          count++;
+        }
+        if (attribute.getMaxInt() != Integer.MAX_VALUE) {
+          putMapEntryKey(buffer, ATTR_MAX);
+          buffer.putResValue(TYPE_INT_DEC, attribute.getMaxInt());
+          count++;
+        }
+        for (Attribute.Symbol symbol : attribute.getSymbolList()) {
+          putMapEntryKey(buffer, symbol.getName().getId());
+          buffer.putResValue(
+              symbol.getType() != 0 ? symbol.getType() : TYPE_INT_DEC, symbol.getValue());
+          count++;
+        }
+        break;
+      case STYLE:
+        Style style = compoundValue.getStyle();
+        if (style.hasParent()) {
+          if (style.getParent().getId() == 0) {
+            throw new UnsupportedResourceException("Style parent without id.");
+          }
+          buffer.putIntAt(parentOffset, style.getParent().getId());
+        }
+        ImmutableList<Style.Entry> styleEntries =
+            style.getEntryList().stream().sorted(STYLE_ENTRY_ORDER).collect(toImmutableList());
+        for (int i = 0; i < styleEntries.size(); i++) {
+          int keyId = styleEntries.get(i).getKey().getId();
+          if (i > 0 && keyId == styleEntries.get(i - 1).getKey().getId()) {
+            throw new UnsupportedResourceException("Duplicate style entry: 0x%08x", keyId);
+          }
+          putMapEntryKey(buffer, keyId);
+          writeItem(buffer, styleEntries.get(i).getItem(), config);
+          count++;
+        }
+        break;
+      case STYLEABLE:
+        for (Styleable.Entry styleableEntry : compoundValue.getStyleable().getEntryList()) {
+          putMapEntryKey(buffer, styleableEntry.getAttr().getId());
+          buffer.putResValue(TYPE_NULL, 0);
+          count++;
+        }
+        break;
+      case ARRAY:
+        for (Array.Element element : compoundValue.getArray().getElementList()) {
+          buffer.putInt(ATTR_MIN + count);
+          writeItem(buffer, element.getItem(), config);
+          count++;
+        }
+        break;
+      case PLURAL:
+        Item[] itemsByArity = new Item[PLURAL_ARITY_KEYS.size()];
+        for (Plural.Entry pluralEntry : compoundValue.getPlural().getEntryList()) {
+          int arity = pluralEntry.getArityValue();
+          if (arity < 0 || arity >= itemsByArity.length || itemsByArity[arity] != null) {
+            throw new UnsupportedResourceException("Unsupported plural arity: %d", arity);
+          }
+          itemsByArity[arity] = pluralEntry.getItem();
+        }
+        for (int arity = 0; arity < itemsByArity.length; arity++) {
+          if (itemsByArity[arity] != null) {
+            buffer.putInt(PLURAL_ARITY_KEYS.get(arity));
+            writeItem(buffer, itemsByArity[arity], config);
+            count++;
+          }
+        }
+        break;
+      default:
+        throw new UnsupportedResourceException(
+            "Unsupported compound value: %s", compoundValue.getValueCase());
+    }
+    buffer.putIntAt(countOffset, count);
+  }
+
+  /** Writes the key of a map entry, which must be the id of a resource. */
+  private static void putMapEntryKey(ResourceChunkBuffer buffer, int key) {
+    if (key == 0) {
+      throw new UnsupportedResourceException("Map entry key without id.");
+    }
+    buffer.putInt(key);
+  }
+
+  private void writeItem(ResourceChunkBuffer buffer, Item item, ResourceTableConfig config) {
+    switch (item.getValueCase()) {
+      case STR:
+        buffer.putStringResValue(
+            valuePool.getRef(item.getStr().getValue(), NORMAL_PRIORITY));
+        return;
+      case RAW_STR:
+        buffer.putStringResValue(
+            valuePool.getRef(item.getRawStr().getValue(), NORMAL_PRIORITY));
+        return;
+      case STYLED_STR:
+        buffer.putStringResValue(styledStringRefs.get(item.getStyledStr()));
+        return;
+      case FILE:
+        buffer.putStringResValue(
+            valuePool.getRef(item.getFile().getPath(), HIGH_PRIORITY));
+        return;
+      default:
+        writeNonStringItem(buffer, item);
+    }
+  }
+
+  private static void writeReference(ResourceChunkBuffer buffer, Reference reference) {
+    if (isMacroReference(reference)) {
+      throw new UnsupportedResourceException("Macros are not supported.");
+    }
+    int id = reference.getId();
+    boolean isDynamic = reference.hasIsDynamic() && reference.getIsDynamic().getValue();
+    if (isDynamic && ((id & 0xff000000) == 0 || (id & 0x00ff0000) == 0)) {
+      throw new UnsupportedResourceException("Unsupported dynamic reference: 0x%08x", id);
+    }
+    boolean isAttribute = reference.getTypeValue() == 1;
+    int dataType;
+    if (isAttribute) {
+      dataType = isDynamic ? TYPE_DYNAMIC_ATTRIBUTE : TYPE_ATTRIBUTE;
+    } else {
+      dataType = isDynamic ? TYPE_DYNAMIC_REFERENCE : TYPE_REFERENCE;
+    }
+    buffer.putResValue(dataType, id);
+  }
+
+  private static boolean isMacroReference(Reference reference) {
+    // Names are formatted as "[package:]type/entry".
+    String name = reference.getName();
+    int slashIndex = name.indexOf('/');
+    return slashIndex >= 0
+        && name.substring(name.indexOf(':') + 1, slashIndex).equals("macro");
+  }
+
+  private static void writePrimitive(ResourceChunkBuffer buffer, Primitive primitive) {
+    switch (primitive.getOneofValueCase()) {
+      case NULL_VALUE:
+        buffer.putResValue(TYPE_NULL, DATA_NULL_UNDEFINED);
+        return;
+      case EMPTY_VALUE:
+        buffer.putResValue(TYPE_NULL, DATA_NULL_EMPTY);
+        return;
+      case FLOAT_VALUE:
+        buffer.putResValue(TYPE_FLOAT, Float.floatToRawIntBits(primitive.getFloatValue()));
+        return;
+      case DIMENSION_VALUE:
+        buffer.putResValue(TYPE_DIMENSION, primitive.getDimensionValue());
+        return;
+      case FRACTION_VALUE:
+        buffer.putResValue(TYPE_FRACTION, primitive.getFractionValue());
+        return;
+      case INT_DECIMAL_VALUE:
+        buffer.putResValue(TYPE_INT_DEC, primitive.getIntDecimalValue());
+        return;
+      case INT_HEXADECIMAL_VALUE:
+        buffer.putResValue(TYPE_INT_HEX, primitive.getIntHexadecimalValue());
+        return;
+      case BOOLEAN_VALUE:
+        buffer.putResValue(TYPE_INT_BOOLEAN, primitive.getBooleanValue() ? 0xffffffff : 0);
+        return;
+      case COLOR_ARGB8_VALUE:
+        buffer.putResValue(TYPE_INT_COLOR_ARGB8, primitive.getColorArgb8Value());
+        return;
+      case COLOR_RGB8_VALUE:
+        buffer.putResValue(TYPE_INT_COLOR_RGB8, primitive.getColorRgb8Value());
+        return;
+      case COLOR_ARGB4_VALUE:
+        buffer.putResValue(TYPE_INT_COLOR_ARGB4, primitive.getColorArgb4Value());
+        return;
+      case COLOR_RGB4_VALUE:
+        buffer.putResValue(TYPE_INT_COLOR_RGB4, primitive.getColorRgb4Value());
+        return;
+      default:
+        throw new UnsupportedResourceException(
+            "Unsupported primitive: %s", primitive.getOneofValueCase());
+    }
+  }
+
+  /** Value of an entry in a given configuration. */
+  private static final class FlatEntry {
+    private final int entryId;
+    private final ResourceStringPool.Ref key;
+    private final boolean isPublic;
+    private final Value value;
+
+    FlatEntry(int entryId, ResourceStringPool.Ref key, boolean isPublic, Value value) {
+      this.entryId = entryId;
+      this.key = key;
+      this.isPublic = isPublic;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import com.android.aapt.ConfigurationOuterClass.Configuration;
+import java.util.Objects;
+
+/**
+ * Binary {@code ResTable_config} of a resource configuration.
+ *
+ * <p>Ordering ({@link #compareTo}) and differences ({@link #diff}) of configurations follow the
+ * platform's {@code ResTable_config}, they define the order of type chunks and string pool
+ * entries written by aapt2.
+ */
+final class ResourceTableConfig implements Comparable<ResourceTableConfig> {
+
+  static final ResourceTableConfig DEFAULT = new ResourceTableConfig();
+
+  private static final int SIZE = 64;
+
+  private static final int CONFIG_MCC = 0x0001;
+  private static final int CONFIG_MNC = 0x0002;
+  private static final int CONFIG_TOUCHSCREEN = 0x0008;
+  private static final int CONFIG_KEYBOARD = 0x0010;
+  private static final int CONFIG_KEYBOARD_HIDDEN = 0x0020;
+  private static final int CONFIG_NAVIGATION = 0x0040;
+  private static final int CONFIG_ORIENTATION = 0x0080;
+  private static final int CONFIG_DENSITY = 0x0100;
+  private static final int CONFIG_SCREEN_SIZE = 0x0200;
+  private static final int CONFIG_VERSION = 0x0400;
+  private static final int CONFIG_SCREEN_LAYOUT = 0x0800;
+  private static final int CONFIG_UI_MODE = 0x1000;
+  private static final int CONFIG_SMALLEST_SCREEN_SIZE = 0x2000;
+  private static final int CONFIG_LAYOUTDIR = 0x4000;
+  private static final int CONFIG_SCREEN_ROUND = 0x8000;
+  private static final int CONFIG_COLOR_MODE = 0x10000;
+
+  private static final int MASK_KEYSHIDDEN_AND_NAVHIDDEN = 0x0f;
+  private static final int MASK_LAYOUTDIR = 0xc0;
+  private static final int MASK_SCREENROUND = 0x03;
+  private static final int MASK_WIDE_COLOR_GAMUT = 0x03;
+  private static final int MASK_HDR = 0x0c;
+
+  private int mcc;
+  private int mnc;
+  private int orientation;
+  private int touchscreen;
+  private int density;
+  private int keyboard;
+  private int navigation;
+  private int inputFlags;
+  private int screenWidth;
+  private int screenHeight;
+  private int sdkVersion;
+  private int screenLayout;
+  private int uiMode;
+  private int smallestScreenWidthDp;
+  private int screenWidthDp;
+  private int screenHeightDp;
+  private int screenLayout2;
+  private int colorMode;
+
+  private ResourceTableConfig() {}
+
+  /**
+   * Converts a configuration in proto format.
+   *
+   * @throws UnsupportedResourceException if the configuration has a locale or a product
+   */
+  static ResourceTableConfig fromProto(Configuration proto) {
+    if (!proto.getLocale().isEmpty() || !proto.getProduct().isEmpty()) {
+      throw new UnsupportedResourceException("Unsupported configuration: %s", proto);
+    }
+    ResourceTableConfig config = new ResourceTableConfig();
+    config.mcc = checkShort(proto.getMcc());
+    config.mnc = checkShort(proto.getMnc());
+    config.orientation = toEnumValue(proto.getOrientationValue(), 1, 2, 3);
+    config.touchscreen = toEnumValue(proto.getTouchscreenValue(), 1, 2, 3);
+    config.density = checkShort(proto.getDensity());
+    config.keyboard = toEnumValue(proto.getKeyboardValue(), 1, 2, 3);
+    config.navigation = toEnumValue(proto.getNavigationValue(), 1, 2, 3, 4);
+    config.inputFlags =
+        toEnumValue(proto.getKeysHiddenValue(), 0x01, 0x02, 0x03)
+            | toEnumValue(proto.getNavHiddenValue(), 0x04, 0x08);
+    config.screenWidth = checkShort(proto.getScreenWidth());
+    config.screenHeight = checkShort(proto.getScreenHeight());
+    config.sdkVersion = checkShort(proto.getSdkVersion());
+    config.screenLayout =
+        toEnumValue(proto.getLayoutDirectionValue(), 0x40, 0x80)
+            | toEnumValue(proto.getScreenLayoutSizeValue(), 1, 2, 3, 4)
+            | toEnumValue(proto.getScreenLayoutLongValue(), 0x20, 0x10);
+    config.uiMode =
+        toEnumValue(proto.getUiModeTypeValue(), 1, 2, 3, 4, 5, 6, 7)
+            | toEnumValue(proto.getUiModeNightValue(), 0x20, 0x10);
+    config.smallestScreenWidthDp = checkShort(proto.getSmallestScreenWidthDp());
+    config.screenWidthDp = checkShort(proto.getScreenWidthDp());
+    config.screenHeightDp = checkShort(proto.getScreenHeightDp());
+    config.screenLayout2 = toEnumValue(proto.getScreenRoundValue(), 0x02, 0x01);
+    config.colorMode =
+        toEnumValue(proto.getWideColorGamutValue(), 0x02, 0x01)
+            | toEnumValue(proto.getHdrValue(), 0x08, 0x04);
+    return config;
+  }
+
+  /** Writes the 64 bytes of the {@code ResTable_config}. */
+  void writeTo(ResourceChunkBuffer buffer) {
+    buffer.putInt(SIZE);
+    buffer.putShort(mcc);
+    buffer.putShort(mnc);
+    // Language and country, locales are not supported.
+    buffer.putInt(0);
+    buffer.putByte(orientation);
+    buffer.putByte(touchscreen);
+    buffer.putShort(density);
+    buffer.putByte(keyboard);
+    buffer.putByte(navigation);
+    buffer.putByte(inputFlags);
+    buffer.putByte(0);
+    buffer.putShort(screenWidth);
+    buffer.putShort(screenHeight);
+    buffer.putShort(sdkVersion);
+    // Minor version.
+    buffer.putShort(0);
+    buffer.putByte(screenLayout);
+    buffer.putByte(uiMode);
+    buffer.putShort(smallestScreenWidthDp);
+    buffer.putShort(screenWidthDp);
+    buffer.putShort(screenHeightDp);
+    // Locale script and variant.
+    buffer.putZeros(12);
+    buffer.putByte(screenLayout2);
+    buffer.putByte(colorMode);
+    buffer.putShort(0);
+    // Locale script computed flag, numbering system and padding.
+    buffer.putZeros(12);
+  }
+
+  /** Returns the {@code CONFIG_*} bits of the fields which differ between both configurations. */
+  int diff(ResourceTableConfig other) {
+    int diffs = 0;
+    if (mcc != other.mcc) {
+      diffs |= CONFIG_MCC;
+    }
+    if (mnc != other.mnc) {
+      diffs |= CONFIG_MNC;
+    }
+    if (orientation != other.orientation) {
+      diffs |= CONFIG_ORIENTATION;
+    }
+    if (density != other.density) {
+      diffs |= CONFIG_DENSITY;
+    }
+    if (touchscreen != other.touchscreen) {
+      diffs |= CONFIG_TOUCHSCREEN;
+    }
+    if (((inputFlags ^ other.inputFlags) & MASK_KEYSHIDDEN_AND_NAVHIDDEN) != 0) {
+      diffs |= CONFIG_KEYBOARD_HIDDEN;
+    }
+    if (keyboard != other.keyboard) {
+      diffs |= CONFIG_KEYBOARD;
+    }
+    if (navigation != other.navigation) {
+      diffs |= CONFIG_NAVIGATION;
+    }
+    if (screenWidth != other.screenWidth || screenHeight != other.screenHeight) {
+      diffs |= CONFIG_SCREEN_SIZE;
+    }
+    if (sdkVersion != other.sdkVersion) {
+      diffs |= CONFIG_VERSION;
+    }
+    if ((screenLayout & MASK_LAYOUTDIR) != (other.screenLayout & MASK_LAYOUTDIR)) {
+      diffs |= CONFIG_LAYOUTDIR;
+    }
+    if ((screenLayout & ~MASK_LAYOUTDIR) != (other.screenLayout & ~MASK_LAYOUTDIR)) {
+      diffs |= CONFIG_SCREEN_LAYOUT;
+    }
+    if ((screenLayout2 & MASK_SCREENROUND) != (other.screenLayout2 & MASK_SCREENROUND)) {
+      diffs |= CONFIG_SCREEN_ROUND;
+    }
+    if ((colorMode & MASK_WIDE_COLOR_GAMUT) != (other.colorMode & MASK_WIDE_COLOR_GAMUT)
+        || (colorMode & MASK_HDR) != (other.colorMode & MASK_HDR)) {
+      diffs |= CONFIG_COLOR_MODE;
+    }
+    if (uiMode != other.uiMode) {
+      diffs |= CONFIG_UI_MODE;
+    }
+    if (smallestScreenWidthDp != other.smallestScreenWidthDp) {
+      diffs |= CONFIG_SMALLEST_SCREEN_SIZE;
+    }
+    if (screenWidthDp != other.screenWidthDp || screenHeightDp != other.screenHeightDp) {
+      diffs |= CONFIG_SCREEN_SIZE;
+    }
+    return diffs;
+  }
+
+  @Override
+  public int compareTo(ResourceTableConfig other) {
+    // Fields are compared in groups, each group being read as a single little-endian integer.
+    int result = Integer.compareUnsigned(mcc | mnc << 16, other.mcc | other.mnc << 16);
+    if (result == 0) {
+      result =
+          Integer.compareUnsigned(
+              orientation | touchscreen << 8 | density << 16,
+              other.orientation | other.touchscreen << 8 | other.density << 16);
+    }
+    if (result == 0) {
+      result =
+          Integer.compareUnsigned(
+              keyboard | navigation << 8 | inputFlags << 16,
+              other.keyboard | other.navigation << 8 | other.inputFlags << 16);
+    }
+    if (result == 0) {
+      result =
+          Integer.compareUnsigned(
+              screenWidth | screenHeight << 16, other.screenWidth | other.screenHeight << 16);
+    }
+    if (result == 0) {
+      result = Integer.compare(sdkVersion, other.sdkVersion);
+    }
+    if (result == 0) {
+      result = Integer.compare(screenLayout, other.screenLayout);
+    }
+    if (result == 0) {
+      result = Integer.compare(screenLayout2, other.screenLayout2);
+    }
+    if (result == 0) {
+      result = Integer.compare(colorMode, other.colorMode);
+    }
+    if (result == 0) {
+      result = Integer.compare(uiMode, other.uiMode);
+    }
+    if (result == 0) {
+      result = Integer.compare(smallestScreenWidthDp, other.smallestScreenWidthDp);
+    }
+    if (result == 0) {
+      result =
+          Integer.compareUnsigned(
+              screenWidthDp | screenHeightDp << 16,
+              other.screenWidthDp | other.screenHeightDp << 16);
+    }
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof ResourceTableConfig && compareTo((ResourceTableConfig) obj) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(
+        mcc,
+        mnc,
+        orientation,
+        touchscreen,
+        density,
+        keyboard,
+        navigation,
+        inputFlags,
+        screenWidth,
+        screenHeight,
+        sdkVersion,
+        screenLayout,
+        uiMode,
+        smallestScreenWidthDp,
+        screenWidthDp,
+        screenHeightDp,
+        screenLayout2,
+        colorMode);
+  }
+
+  /**
+   * Maps the value of a proto enum, whose first constant is "unset", to the given binary values.
+   */
+  private static int toEnumValue(int protoValue, int... binaryValues) {
+    if (protoValue == 0) {
+      return 0;
+    }
+    if (protoValue < 0 || protoValue > binaryValues.length) {
+      throw new UnsupportedResourceException("Unknown configuration value: %d", protoValue);
+    }
+    return binaryValues[protoValue - 1];
+  }
+
+  private static int checkShort(int value) {
+    if ((value & 0xffff0000) != 0) {
+      throw new UnsupportedResourceException("Configuration value out of range: %d", value);
+    }
+    return value;
+  }
+}
@@ -30,6 +30,7 @@ class SerializationFilesManager implements AutoCloseable {
   private static final String RESOURCES_ENTRIES_ZIPPED_PACK = "resources-pack.zip";
   private static final String COMPRESSED_ENTRIES_PACK = "compressed.zip";
   private static final String COMPRESSED_RESOURCE_ENTRIES_PACK = "compressed-res.zip";
+  private static final String BUNDLE_COMPRESSED_ENTRIES_PACK = "compressed-bundle.zip";
   private static final String UNCOMPRESSED_ENTRIES_PACK = "uncompressed.zip";
 
   private final TempDirectory tempDirectory = new TempDirectory();
@@ -60,6 +61,10 @@ class SerializationFilesManager implements AutoCloseable {
     return tempDirectory.getPath().resolve(COMPRESSED_ENTRIES_PACK);
   }
 
+  Path getBundleCompressedEntriesPackPath() {
+    return tempDirectory.getPath().resolve(BUNDLE_COMPRESSED_ENTRIES_PACK);
+  }
+
   Path getUncompressedEntriesPackPath() {
     return tempDirectory.getPath().resolve(UNCOMPRESSED_ENTRIES_PACK);
   }
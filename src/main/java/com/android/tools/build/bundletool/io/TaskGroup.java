@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.Nullable;
+
+/**
+ * Tasks submitted to an executor which are cancelled together, as soon as one of them fails or
+ * when {@link #cancelAndAwait()} is called.
+ *
+ * <p>Unlike waiting for a cancelled future, which completes straight away, {@link
+ * #cancelAndAwait()} also waits for the tasks which were already running to stop. Tasks writing
+ * into a temporary directory must have stopped before the directory is removed.
+ */
+final class TaskGroup {
+
+  private final ListeningExecutorService executorService;
+
+  /** Futures of all submitted tasks. Also guards the fields below. */
+  private final List<ListenableFuture<?>> futures = new ArrayList<>();
+
+  private int runningTasks = 0;
+  private boolean cancelled = false;
+
+  /** Future of the task whose failure cancelled the group, if any. */
+  @Nullable private ListenableFuture<?> firstFailedTask;
+
+  TaskGroup(ListeningExecutorService executorService) {
+    this.executorService = executorService;
+  }
+
+  /** Submits a task to the executor. The task is not run if the group is cancelled before. */
+  <T> ListenableFuture<T> submit(Callable<T> task) {
+    ListenableFuture<T> future =
+        executorService.submit(
+            () -> {
+              synchronized (futures) {
+                if (cancelled) {
+                  throw new CancellationException("Another task has failed.");
+                }
+                runningTasks++;
+              }
+              try {
+                return task.call();
+              } finally {
+                synchronized (futures) {
+                  runningTasks--;
+                  futures.notifyAll();
+                }
+              }
+            });
+    synchronized (futures) {
+      futures.add(future);
+    }
+    future.addListener(() -> onTaskDone(future), directExecutor());
+    return future;
+  }
+
+  /**
+   * Cancels all tasks, interrupting the running ones, and waits until none of them runs anymore.
+   */
+  void cancelAndAwait() {
+    cancel();
+    boolean interrupted = false;
+    synchronized (futures) {
+      while (runningTasks > 0) {
+        try {
+          futures.wait();
+        } catch (InterruptedException e) {
+          // The tasks must have stopped before returning, the interrupt is restored below.
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Throws the failure of the task which cancelled the group, if any.
+   *
+   * <p>Failures of the other tasks are usually caused by this one, so it is the one to report.
+   */
+  void rethrowFirstFailure() {
+    ListenableFuture<?> failedTask;
+    synchronized (futures) {
+      failedTask = firstFailedTask;
+    }
+    if (failedTask != null) {
+      ConcurrencyUtils.waitFor(failedTask);
+    }
+  }
+
+  private void onTaskDone(ListenableFuture<?> future) {
+    if (future.isCancelled()) {
+      return;
+    }
+    try {
+      future.get();
+    } catch (ExecutionException e) {
+      synchronized (futures) {
+        if (cancelled) {
+          return;
+        }
+        firstFailedTask = future;
+      }
+      cancel();
+    } catch (InterruptedException e) {
+      // Can't happen, the future is done.
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void cancel() {
+    ImmutableList<ListenableFuture<?>> futuresToCancel;
+    synchronized (futures) {
+      cancelled = true;
+      futuresToCancel = ImmutableList.copyOf(futures);
+    }
+    futuresToCancel.forEach(future -> future.cancel(/* mayInterruptIfRunning= */ true));
+  }
+}
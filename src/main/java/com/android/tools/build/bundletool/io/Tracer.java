@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records how long the phases and tasks of a command take, on which threads, and writes them in
+ * the Chrome trace event format, which can be opened in {@code chrome://tracing} or Perfetto.
+ *
+ * <p>A disabled tracer records nothing, so spans can be opened unconditionally.
+ */
+public final class Tracer {
+
+  private static final Tracer DISABLED = new Tracer(/* enabled= */ false);
+  private static final Span NO_OP_SPAN = DISABLED.new Span("");
+
+  private final boolean enabled;
+  private final long originNanos = System.nanoTime();
+  private final Queue<TraceEvent> events = new ConcurrentLinkedQueue<>();
+
+  private Tracer(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /** Creates a tracer recording spans. */
+  public static Tracer create() {
+    return new Tracer(/* enabled= */ true);
+  }
+
+  /** Returns a tracer which records nothing. */
+  public static Tracer disabled() {
+    return DISABLED;
+  }
+
+  /** Whether spans are recorded, to skip computing costly arguments otherwise. */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Starts a span on the calling thread, which ends when the returned {@link Span} is closed.
+   *
+   * <p>The span must be closed on the thread which started it.
+   */
+  public Span startSpan(String name) {
+    return enabled ? new Span(name) : NO_OP_SPAN;
+  }
+
+  /** Writes the spans recorded so far to {@code outputPath}. */
+  public void writeTo(Path outputPath) throws IOException {
+    ImmutableList<TraceEvent> recordedEvents = ImmutableList.copyOf(events);
+    Map<Long, String> threadNames = new LinkedHashMap<>();
+    recordedEvents.forEach(
+        event -> threadNames.putIfAbsent(event.getThreadId(), event.getThreadName()));
+
+    try (Writer writer = Files.newBufferedWriter(outputPath, UTF_8)) {
+      writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+      String separator = "\n";
+      for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+        writer.write(separator);
+        writer.write(
+            String.format(
+                Locale.ROOT,
+                "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,"
+                    + "\"args\":{\"name\":%s}}",
+                thread.getKey(),
+                toJsonString(thread.getValue())));
+        separator = ",\n";
+      }
+      for (TraceEvent event : recordedEvents) {
+        writer.write(separator);
+        writer.write(toJson(event));
+        separator = ",\n";
+      }
+      writer.write("\n]}\n");
+    }
+  }
+
+  private String toJson(TraceEvent event) {
+    StringBuilder args = new StringBuilder();
+    event
+        .getArgs()
+        .forEach(
+            (key, value) ->
+                args.append(args.length() == 0 ? "" : ",")
+                    .append(toJsonString(key))
+                    .append(':')
+                    .append(value instanceof Number ? value : toJsonString(value.toString())));
+    return String.format(
+        Locale.ROOT,
+        "{\"name\":%s,\"cat\":\"bundletool\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%.3f,"
+            + "\"dur\":%.3f,\"args\":{%s}}",
+        toJsonString(event.getName()),
+        event.getThreadId(),
+        (event.getStartNanos() - originNanos) / 1000.0,
+        event.getDurationNanos() / 1000.0,
+        args);
+  }
+
+  private static String toJsonString(String value) {
+    StringBuilder json = new StringBuilder("\"");
+    for (char c : value.toCharArray()) {
+      switch (c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+          } else {
+            json.append(c);
+          }
+      }
+    }
+    return json.append('"').toString();
+  }
+
+  /** A phase or task being traced. */
+  public final class Span implements AutoCloseable {
+
+    private final String name;
+    private final long startNanos = System.nanoTime();
+    private final Thread thread = Thread.currentThread();
+    private final Map<String, Object> args = new LinkedHashMap<>();
+
+    private Span(String name) {
+      this.name = name;
+    }
+
+    /** Attaches an argument to the span, shown next to it in trace viewers. */
+    public Span addArg(String key, Object value) {
+      if (enabled) {
+        args.put(key, value);
+      }
+      return this;
+    }
+
+    @Override
+    public void close() {
+      if (enabled) {
+        events.add(
+            TraceEvent.create(
+                name,
+                startNanos,
+                System.nanoTime() - startNanos,
+                thread.getId(),
+                thread.getName(),
+                ImmutableMap.copyOf(args)));
+      }
+    }
+  }
+
+  @AutoValue
+  abstract static class TraceEvent {
+    abstract String getName();
+
+    abstract long getStartNanos();
+
+    abstract long getDurationNanos();
+
+    abstract long getThreadId();
+
+    abstract String getThreadName();
+
+    abstract ImmutableMap<String, Object> getArgs();
+
+    static TraceEvent create(
+        String name,
+        long startNanos,
+        long durationNanos,
+        long threadId,
+        String threadName,
+        ImmutableMap<String, Object> args) {
+      return new AutoValue_Tracer_TraceEvent(
+          name, startNanos, durationNanos, threadId, threadName, args);
+    }
+  }
+}
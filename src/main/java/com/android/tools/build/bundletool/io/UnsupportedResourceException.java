@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import com.google.errorprone.annotations.FormatMethod;
+
+/**
+ * Thrown when resources in proto format can't be converted to binary format in-process with the
+ * same output as aapt2, in which case the conversion falls back to aapt2.
+ */
+final class UnsupportedResourceException extends RuntimeException {
+
+  @FormatMethod
+  UnsupportedResourceException(String format, Object... args) {
+    super(String.format(format, args));
+  }
+}
@@ -68,8 +68,14 @@ interface Zipper {
     };
   }
 
-  /** Creates instance of {@link Zipper} which creates ZIP with compressed entries. */
-  static Zipper compressedZip(ListeningExecutorService executorService, int compressionLevel) {
+  /**
+   * Creates instance of {@link Zipper} which creates ZIP with compressed entries.
+   *
+   * <p>Large entries are compressed on {@code executorService}, each one being held in memory
+   * together with its compressed form, which is accounted for in {@code memoryBudget}.
+   */
+  static Zipper compressedZip(
+      ListeningExecutorService executorService, MemoryBudget memoryBudget, int compressionLevel) {
     return (outputZip, entries) -> {
       try (ZipArchive archive = new ZipArchive(outputZip)) {
         ImmutableList.Builder<ListenableFuture<Source>> largeSources = ImmutableList.builder();
@@ -85,9 +91,13 @@ interface Zipper {
           if (smallEntry) {
             archive.add(Sources.from(content.openStream(), path, compressionLevel));
           } else {
+            long estimatedBytes = 2 * content.sizeIfKnown().or(LARGE_ENTRY_SIZE_THRESHOLD_BYTES);
             largeSources.add(
                 executorService.submit(
-                    () -> Sources.from(content.openStream(), path, compressionLevel)));
+                    () ->
+                        memoryBudget.call(
+                            estimatedBytes,
+                            () -> Sources.from(content.openStream(), path, compressionLevel))));
           }
         }
         for (Future<Source> source : Futures.inCompletionOrder(largeSources.build())) {
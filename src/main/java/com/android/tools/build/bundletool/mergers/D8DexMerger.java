@@ -30,18 +30,27 @@ import com.android.tools.r8.DexIndexedConsumer.ForwardingConsumer;
 import com.android.tools.r8.Diagnostic;
 import com.android.tools.r8.DiagnosticsHandler;
 import com.android.tools.r8.OutputMode;
+import com.android.tools.r8.ProgramResource;
+import com.android.tools.r8.ProgramResourceProvider;
+import com.android.tools.r8.ResourceException;
+import com.android.tools.r8.Version;
+import com.android.tools.r8.origin.Origin;
+import com.android.tools.r8.origin.PathOrigin;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Streams;
+import com.google.common.io.ByteSource;
 import com.google.common.io.MoreFiles;
 import com.google.common.io.RecursiveDeleteOption;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Optional;
+import java.util.Set;
 import javax.inject.Inject;
 
 /** Merges dex files using D8. */
@@ -65,9 +74,46 @@ public class D8DexMerger implements DexMerger {
       Optional<Path> proguardMap,
       boolean isDebuggable,
       int minSdkVersion) {
+    validateInput(dexFiles, outputDir);
+    return mergeDexInputs(
+        dexFiles.stream().map(DexInput::fromFile).collect(toImmutableList()),
+        outputDir,
+        mainDexListFile,
+        proguardMap,
+        isDebuggable,
+        minSdkVersion);
+  }
+
+  @Override
+  public ImmutableList<Path> mergeDexContents(
+      ImmutableList<ByteSource> dexContents,
+      Path outputDir,
+      Path tempDir,
+      Optional<Path> mainDexListFile,
+      Optional<Path> proguardMap,
+      boolean isDebuggable,
+      int minSdkVersion) {
+    checkDirectoryExistsAndEmpty(outputDir);
+    return mergeDexInputs(
+        Streams.mapWithIndex(
+                dexContents.stream(),
+                (content, index) -> DexInput.fromContent(content, (int) index))
+            .collect(toImmutableList()),
+        outputDir,
+        mainDexListFile,
+        proguardMap,
+        isDebuggable,
+        minSdkVersion);
+  }
 
+  private ImmutableList<Path> mergeDexInputs(
+      ImmutableList<DexInput> dexFiles,
+      Path outputDir,
+      Optional<Path> mainDexListFile,
+      Optional<Path> proguardMap,
+      boolean isDebuggable,
+      int minSdkVersion) {
     try {
-      validateInput(dexFiles, outputDir);
 
       // Many of the D8 parameters are not being set because those are used when compiling into dex,
       // however we are merging existing dex files. The parameters considered are:
@@ -86,7 +132,7 @@ public class D8DexMerger implements DexMerger {
                     }
                   })
               .setOutput(outputDir, OutputMode.DexIndexed)
-              .addProgramFiles(dexFiles)
+              .addProgramResourceProvider(createProgramResourceProvider(dexFiles))
               .setMinApiLevel(minSdkVersion)
               // Compilation mode affects whether D8 produces minimal main-dex.
               // In debug mode minimal main-dex is always produced, so that the validity of the
@@ -114,7 +160,7 @@ public class D8DexMerger implements DexMerger {
       }
       if (proguardMap.isPresent()) {
         // Try without the proguard map.
-        return merge(
+        return mergeDexInputs(
             dexFiles, outputDir, mainDexListFile, Optional.empty(), isDebuggable, minSdkVersion);
       } else {
         throw translateD8Exception(e);
@@ -122,6 +168,11 @@ public class D8DexMerger implements DexMerger {
     }
   }
 
+  @Override
+  public Optional<String> getVersion() {
+    return Optional.of(Version.getVersionString());
+  }
+
   private static void validateInput(ImmutableList<Path> dexFiles, Path outputDir) {
     checkDirectoryExistsAndEmpty(outputDir);
     dexFiles.forEach(FilePreconditions::checkFileExistsAndReadable);
@@ -159,21 +210,22 @@ public class D8DexMerger implements DexMerger {
   }
 
   private ImmutableList<Path> mergeAppDexFilesAndRenameCoreDesugaringDex(
-      ImmutableList<Path> dexFiles,
+      ImmutableList<DexInput> dexFiles,
       Path outputDir,
       Optional<Path> mainDexListFile,
       Optional<Path> proguardMap,
       boolean isDebuggable,
       int minSdkVersion) {
-    ImmutableList<Path> desugaringDexFiles =
+    ImmutableList<DexInput> desugaringDexFiles =
         dexFiles.stream().filter(D8DexMerger::isCoreDesugaringDex).collect(toImmutableList());
-    ImmutableList<Path> appDexFiles =
+    ImmutableList<DexInput> appDexFiles =
         dexFiles.stream()
             .filter(dex -> !desugaringDexFiles.contains(dex))
             .collect(toImmutableList());
 
     ImmutableList<Path> mergedAppDexFiles =
-        merge(appDexFiles, outputDir, mainDexListFile, proguardMap, isDebuggable, minSdkVersion);
+        mergeDexInputs(
+            appDexFiles, outputDir, mainDexListFile, proguardMap, isDebuggable, minSdkVersion);
     ImmutableList<Path> mergedDesugaringDexFiles =
         Streams.mapWithIndex(
                 desugaringDexFiles.stream(),
@@ -187,23 +239,23 @@ public class D8DexMerger implements DexMerger {
         .build();
   }
 
-  private static Path copyDexToOutput(Path input, Path outputDir, int index) {
+  private static Path copyDexToOutput(DexInput input, Path outputDir, int index) {
     String outputName = index == 1 ? "classes.dex" : String.format("classes%d.dex", index);
     Path output = outputDir.resolve(outputName);
-    try {
-      Files.copy(input, output);
+    try (InputStream inputStream = input.getContent().openStream()) {
+      Files.copy(inputStream, output);
       return output;
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
   }
 
-  private static boolean isCoreDesugaringDex(Path dexFile) {
+  private static boolean isCoreDesugaringDex(DexInput dexFile) {
     try {
       boolean[] isDesugaringDex = new boolean[] {false};
       D8Command.Builder builder =
           D8Command.builder()
-              .addProgramFiles(dexFile)
+              .addProgramResourceProvider(createProgramResourceProvider(ImmutableList.of(dexFile)))
               .setProgramConsumer(new ForwardingConsumer(null));
       builder.addOutputInspection(
           inspection ->
@@ -219,12 +271,23 @@ public class D8DexMerger implements DexMerger {
       return isDesugaringDex[0];
     } catch (CompilationFailedException e) {
       throw CommandExecutionException.builder()
-          .withInternalMessage("Failed to read dex file %s.", dexFile.getFileName().toString())
+          .withInternalMessage("Failed to read dex file %s.", dexFile.getOrigin().part())
           .withCause(e)
           .build();
     }
   }
 
+  /**
+   * Creates a provider of the given dex files which D8 reads from their content directly, without
+   * requiring them to be written to disk first.
+   */
+  private static ProgramResourceProvider createProgramResourceProvider(
+      ImmutableList<DexInput> dexFiles) {
+    ImmutableList<ProgramResource> programResources =
+        dexFiles.stream().map(DexInput::toProgramResource).collect(toImmutableList());
+    return () -> programResources;
+  }
+
   private static void cleanupOutputDir(Path outputDir) {
     try {
       MoreFiles.deleteDirectoryContents(outputDir, RecursiveDeleteOption.ALLOW_INSECURE);
@@ -232,4 +295,67 @@ public class D8DexMerger implements DexMerger {
       throw new UncheckedIOException(e1);
     }
   }
+
+  /** Dex file passed to D8, either from the file system or from its content. */
+  private static final class DexInput {
+    private final ByteSource content;
+    private final Origin origin;
+
+    private DexInput(ByteSource content, Origin origin) {
+      this.content = content;
+      this.origin = origin;
+    }
+
+    static DexInput fromFile(Path dexFile) {
+      return new DexInput(MoreFiles.asByteSource(dexFile), new PathOrigin(dexFile));
+    }
+
+    static DexInput fromContent(ByteSource dexContent, int index) {
+      return new DexInput(
+          dexContent,
+          new Origin(Origin.root()) {
+            @Override
+            public String part() {
+              return String.format("dex input #%d", index);
+            }
+          });
+    }
+
+    ByteSource getContent() {
+      return content;
+    }
+
+    Origin getOrigin() {
+      return origin;
+    }
+
+    ProgramResource toProgramResource() {
+      return new ProgramResource() {
+        @Override
+        public Origin getOrigin() {
+          return origin;
+        }
+
+        @Override
+        public Kind getKind() {
+          return Kind.DEX;
+        }
+
+        @Override
+        public InputStream getByteStream() throws ResourceException {
+          try {
+            return content.openStream();
+          } catch (IOException e) {
+            throw new ResourceException(origin, e);
+          }
+        }
+
+        @Override
+        public Set<String> getClassDescriptors() {
+          // Unknown, D8 reads them from the dex file.
+          return null;
+        }
+      };
+    }
+  }
 }
@@ -17,6 +17,12 @@
 package com.android.tools.build.bundletool.mergers;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Optional;
 
@@ -44,4 +50,58 @@ public interface DexMerger {
       Optional<Path> proguardMap,
       boolean isDebuggable,
       int minSdkVersion);
+
+  /**
+   * Merges dex files given by their content, see {@link #merge}.
+   *
+   * <p>The default implementation writes the dex files to a temporary directory first.
+   * Implementations able to read dex files from memory should override it.
+   *
+   * @param tempDir temporary directory of the command, in which the dex files are written if needed
+   */
+  default ImmutableList<Path> mergeDexContents(
+      ImmutableList<ByteSource> dexContents,
+      Path outputDir,
+      Path tempDir,
+      Optional<Path> mainDexListFile,
+      Optional<Path> proguardMap,
+      boolean isDebuggable,
+      int minSdkVersion) {
+    Path dexInputDir = null;
+    try {
+      dexInputDir = Files.createTempDirectory(tempDir, "dex-merging-in");
+      ImmutableList.Builder<Path> dexFiles = ImmutableList.builder();
+      for (int i = 0; i < dexContents.size(); i++) {
+        Path dexFile = dexInputDir.resolve(i + ".dex");
+        dexContents.get(i).copyTo(MoreFiles.asByteSink(dexFile));
+        dexFiles.add(dexFile);
+      }
+      return merge(
+          dexFiles.build(),
+          outputDir,
+          mainDexListFile,
+          proguardMap,
+          isDebuggable,
+          minSdkVersion);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      if (dexInputDir != null) {
+        try {
+          MoreFiles.deleteRecursively(dexInputDir, RecursiveDeleteOption.ALLOW_INSECURE);
+        } catch (IOException ignored) {
+          // Best effort, the directory is removed with the temporary directory of the command.
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the version of the tool merging dex files, if known.
+   *
+   * <p>Merged dex files are only reused across invocations if the version is known.
+   */
+  default Optional<String> getVersion() {
+    return Optional.empty();
+  }
 }
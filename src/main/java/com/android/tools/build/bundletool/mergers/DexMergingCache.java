@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.mergers;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.model.utils.files.DiskLruCache;
+import com.android.tools.build.bundletool.model.version.Version;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of merged dex files which is shared between bundletool invocations.
+ *
+ * <p>Each cached entry is a directory with the dex files produced by a single merge. It is keyed by
+ * the SHA-256 of the versions of bundletool and of the dex merger, the merge options and the
+ * content of the input dex files, main dex list and proguard map, so the input dex files don't need
+ * to be written when the result is already cached.
+ *
+ * <p>An instance is created per command: the main dex list and the proguard map are the same for
+ * all merges of a command, so they are hashed only once.
+ *
+ * <p>The size of the cache is bounded, least recently used merges are removed by {@link #trim()}.
+ */
+final class DexMergingCache {
+
+  /**
+   * Maximum total size of the cache on disk.
+   *
+   * <p>Can be overridden using the system property "bundletool.dexmerging.cache.maxsize".
+   */
+  static final long MAX_CACHE_SIZE_BYTES =
+      DiskLruCache.readSizeProperty("bundletool.dexmerging.cache.maxsize", 1024L * 1024 * 1024);
+
+  private static final String CACHED_MERGE_EXTENSION = ".dexes";
+
+  private final DiskLruCache cache;
+
+  /** Digest of the parts of the key which are shared by all merges of the command. */
+  private final Supplier<HashCode> commandDigest;
+
+  /**
+   * @param mainDexList content of the main dex list, if any
+   * @param proguardMap content of the proguard map, if any
+   */
+  DexMergingCache(
+      Path cacheDirectory,
+      String dexMergerVersion,
+      Version bundletoolVersion,
+      Optional<ByteSource> mainDexList,
+      Optional<ByteSource> proguardMap) {
+    this(
+        cacheDirectory,
+        dexMergerVersion,
+        bundletoolVersion,
+        mainDexList,
+        proguardMap,
+        MAX_CACHE_SIZE_BYTES);
+  }
+
+  DexMergingCache(
+      Path cacheDirectory,
+      String dexMergerVersion,
+      Version bundletoolVersion,
+      Optional<ByteSource> mainDexList,
+      Optional<ByteSource> proguardMap,
+      long maxCacheSizeBytes) {
+    this.cache = new DiskLruCache(cacheDirectory, CACHED_MERGE_EXTENSION, maxCacheSizeBytes);
+    this.commandDigest =
+        Suppliers.memoize(
+            () ->
+                computeCommandDigest(
+                    dexMergerVersion, bundletoolVersion, mainDexList, proguardMap));
+  }
+
+  /**
+   * Computes the key of the merge of the given dex files.
+   *
+   * @param dexEntries dex files to merge, in the order they are passed to the dex merger
+   */
+  HashCode computeKey(List<ModuleEntry> dexEntries, boolean isDebuggable, int minSdkVersion) {
+    Hasher hasher =
+        Hashing.sha256()
+            .newHasher()
+            .putBytes(commandDigest.get().asBytes())
+            .putBoolean(isDebuggable)
+            .putInt(minSdkVersion);
+    hasher.putInt(dexEntries.size());
+    for (ModuleEntry dexEntry : dexEntries) {
+      hasher.putBytes(dexEntry.getContentSha256Hash().asBytes());
+    }
+    return hasher.hash();
+  }
+
+  /**
+   * Copies the cached dex files of the merge with the given key to {@code outputDir}.
+   *
+   * @return the copied dex files, or empty if the merge was not present in the cache
+   */
+  Optional<ImmutableList<Path>> copyTo(HashCode key, Path outputDir) {
+    Optional<Path> cachedMergePath = cache.lookup(key.toString());
+    if (!cachedMergePath.isPresent()) {
+      return Optional.empty();
+    }
+    ImmutableList.Builder<Path> outputDexFiles = ImmutableList.builder();
+    try {
+      for (Path cachedDexFile : listFiles(cachedMergePath.get())) {
+        Path outputDexFile = outputDir.resolve(cachedDexFile.getFileName().toString());
+        outputDexFiles.add(outputDexFile);
+        Files.copy(cachedDexFile, outputDexFile, StandardCopyOption.REPLACE_EXISTING);
+      }
+      return Optional.of(outputDexFiles.build());
+    } catch (IOException e) {
+      // The merge was evicted concurrently by another process. The dex merger expects an empty
+      // output directory, so files already copied are removed.
+      for (Path outputDexFile : outputDexFiles.build()) {
+        try {
+          Files.deleteIfExists(outputDexFile);
+        } catch (IOException ignored) {
+          // Best effort.
+        }
+      }
+      return Optional.empty();
+    }
+  }
+
+  /** Stores {@code mergedDexFiles} as the result of the merge with the given key. */
+  void store(HashCode key, ImmutableList<Path> mergedDexFiles) {
+    cache.store(
+        key.toString(),
+        directory -> {
+          Files.createDirectories(directory);
+          for (Path mergedDexFile : mergedDexFiles) {
+            Files.copy(mergedDexFile, directory.resolve(mergedDexFile.getFileName().toString()));
+          }
+        });
+  }
+
+  /**
+   * Removes least recently used merges until the total size of the cache fits into the maximum
+   * cache size.
+   */
+  void trim() {
+    cache.trim();
+  }
+
+  private static HashCode computeCommandDigest(
+      String dexMergerVersion,
+      Version bundletoolVersion,
+      Optional<ByteSource> mainDexList,
+      Optional<ByteSource> proguardMap) {
+    // The bundletool version is part of the key as the way D8 is invoked may change between
+    // versions, e.g. retries without the core library desugaring dex files.
+    Hasher hasher =
+        Hashing.sha256()
+            .newHasher()
+            .putString(bundletoolVersion.toString(), UTF_8)
+            .putByte((byte) 0)
+            .putString(dexMergerVersion, UTF_8)
+            .putByte((byte) 0);
+    try {
+      putOptionalContent(hasher, mainDexList);
+      putOptionalContent(hasher, proguardMap);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return hasher.hash();
+  }
+
+  private static void putOptionalContent(Hasher hasher, Optional<ByteSource> content)
+      throws IOException {
+    hasher.putBoolean(content.isPresent());
+    if (content.isPresent()) {
+      hasher.putBytes(content.get().hash(Hashing.sha256()).asBytes());
+    }
+  }
+
+  private static ImmutableList<Path> listFiles(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.sorted(Comparator.comparing(Path::toString)).collect(toImmutableList());
+    }
+  }
+}
@@ -37,6 +37,9 @@ import com.android.bundle.Files.Assets;
 import com.android.bundle.Files.TargetedAssetsDirectory;
 import com.android.bundle.Targeting.ApkTargeting;
 import com.android.bundle.Targeting.VariantTargeting;
+import com.android.tools.build.bundletool.commands.BuildApksModule.DexMergingCacheDirectory;
+import com.android.tools.build.bundletool.commands.BuildApksModule.DexMergingPermits;
+import com.android.tools.build.bundletool.commands.CommandScoped;
 import com.android.tools.build.bundletool.io.TempDirectory;
 import com.android.tools.build.bundletool.model.AndroidManifest;
 import com.android.tools.build.bundletool.model.AppBundle;
@@ -49,6 +52,8 @@ import com.android.tools.build.bundletool.model.exceptions.CommandExecutionExcep
 import com.android.tools.build.bundletool.model.utils.Versions;
 import com.android.tools.build.bundletool.model.version.Version;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableCollection;
@@ -58,9 +63,11 @@ import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Streams;
+import com.google.common.hash.HashCode;
 import com.google.common.io.ByteSource;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
@@ -70,6 +77,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Stream;
 import javax.inject.Inject;
 
@@ -78,30 +86,75 @@ import javax.inject.Inject;
  *
  * <p>Outputs of dex merging are stored as files in the `globalTempDir` and referenced by {@link
  * ModuleEntry} instances that are contained in the produced {@link ModuleSplit} instances.
+ *
+ * <p>Command scoped, so that the main dex list and proguard map of the bundle are written to files
+ * at most once per command.
  */
+@CommandScoped
 public class ModuleSplitsToShardMerger {
 
   private final Version bundletoolVersion;
   private final TempDirectory globalTempDir;
   private final DexMerger dexMerger;
   private final AppBundle appBundle;
+  private final Semaphore dexMergingPermits;
+  private final Optional<DexMergingCache> dexMergingCache;
+  private final Supplier<Optional<Path>> mainDexListFile =
+      Suppliers.memoize(this::writeMainDexListFileIfPresent);
+  private final Supplier<Optional<Path>> proguardMapFile =
+      Suppliers.memoize(this::writeProguardMapFileIfPresent);
 
   @Inject
   public ModuleSplitsToShardMerger(
       Version bundletoolVersion,
       TempDirectory globalTempDir,
       DexMerger dexMerger,
-      AppBundle appBundle) {
+      AppBundle appBundle,
+      @DexMergingPermits Semaphore dexMergingPermits,
+      @DexMergingCacheDirectory Optional<Path> dexMergingCacheDirectory) {
     this.bundletoolVersion = bundletoolVersion;
     this.globalTempDir = globalTempDir;
     this.dexMerger = dexMerger;
     this.appBundle = appBundle;
+    this.dexMergingPermits = dexMergingPermits;
+    this.dexMergingCache =
+        dexMergingCacheDirectory.flatMap(
+            directory ->
+                dexMerger
+                    .getVersion()
+                    .map(
+                        version ->
+                            new DexMergingCache(
+                                directory,
+                                version,
+                                bundletoolVersion,
+                                getMainDexList(),
+                                getProguardMap())));
+  }
+
+  /**
+   * Removes least recently used merges from the dex merging cache until it fits into its maximum
+   * size.
+   *
+   * <p>Listing the cache is costly, so this is done once per command after all shards are merged
+   * rather than after each merge.
+   */
+  public void trimDexMergingCache() {
+    dexMergingCache.ifPresent(DexMergingCache::trim);
   }
 
-  /** Gets a list of splits, and merges them into a single standalone APK (aka shard). */
+  /**
+   * Gets a list of splits, and merges them into a single standalone APK (aka shard).
+   *
+   * <p>Shards can be merged concurrently if they share a {@link
+   * java.util.concurrent.ConcurrentMap} as {@code mergedDexCache}. The map only holds memoizing
+   * suppliers, the merging itself runs outside of it: each set of dex files is merged once by the
+   * first shard needing it, shards needing the same set wait for the result, and shards needing
+   * other sets are not blocked.
+   */
   public ModuleSplit mergeSingleShard(
       ImmutableCollection<ModuleSplit> splitsOfShard,
-      Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> mergedDexCache) {
+      Map<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> mergedDexCache) {
     return mergeSingleShard(
         splitsOfShard,
         mergedDexCache,
@@ -117,7 +170,7 @@ public class ModuleSplitsToShardMerger {
    */
   public ModuleSplit mergeSingleShard(
       ImmutableCollection<ModuleSplit> splitsOfShard,
-      Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> mergedDexCache,
+      Map<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> mergedDexCache,
       SplitType mergedSplitType,
       AndroidManifestMerger manifestMerger) {
 
@@ -274,7 +327,7 @@ public class ModuleSplitsToShardMerger {
   private Collection<ModuleEntry> mergeDexFilesAndCache(
       ListMultimap<BundleModuleName, ModuleEntry> dexFilesToMergeByModule,
       AndroidManifest androidManifest,
-      Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> mergedDexCache) {
+      Map<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> mergedDexCache) {
     if (dexFilesToMergeByModule.size() <= 1 || appBundle.getFeatureModules().size() <= 1) {
       // Don't merge if there is only one dex file or an application doesn't have feature modules.
       // If base module contains multiple dex files, it should have been built with multi-dex
@@ -291,8 +344,11 @@ public class ModuleSplitsToShardMerger {
           ImmutableList.copyOf(dexFilesToMergeByModule.values());
 
       ImmutableList<Path> mergedDexFiles =
-          mergedDexCache.computeIfAbsent(
-              ImmutableSet.copyOf(dexEntries), key -> mergeDexFiles(dexEntries, androidManifest));
+          mergedDexCache
+              .computeIfAbsent(
+                  ImmutableSet.copyOf(dexEntries),
+                  key -> Suppliers.memoize(() -> mergeDexFiles(dexEntries, androidManifest)))
+              .get();
 
       // Names of the merged dex files need to be preserved ("classes.dex", "classes2.dex" etc.).
       return mergedDexFiles.stream()
@@ -355,34 +411,65 @@ public class ModuleSplitsToShardMerger {
   private ImmutableList<Path> mergeDexFiles(
       List<ModuleEntry> dexEntries, AndroidManifest androidManifest) {
     try {
-      Path dexOriginalDir = Files.createTempDirectory(globalTempDir.getPath(), "dex-merging-in");
       // The merged dex files will be written to a sub-directory of the global temp directory
       // that exists throughout execution of a bundletool command.
       Path dexMergedDir = Files.createTempDirectory(globalTempDir.getPath(), "dex-merging-out");
 
-      // The dex merger requires the main dex list represented as a file.
-      Optional<Path> mainDexListFile = writeMainDexListFileIfPresent();
-
-      // The dex merger requires the proguard map represented as a file.
-      Optional<Path> proguardMapFile = writeProguardMapFileIfPresent();
+      Optional<HashCode> cacheKey = Optional.empty();
+      if (dexMergingCache.isPresent()) {
+        cacheKey =
+            Optional.of(
+                dexMergingCache
+                    .get()
+                    .computeKey(
+                        dexEntries,
+                        androidManifest.getEffectiveApplicationDebuggable(),
+                        androidManifest.getEffectiveMinSdkVersion()));
+        Optional<ImmutableList<Path>> cachedDexFiles =
+            dexMergingCache.get().copyTo(cacheKey.get(), dexMergedDir);
+        if (cachedDexFiles.isPresent()) {
+          return cachedDexFiles.get();
+        }
+      }
 
-      // Write input dex data to temporary files "0.dex", "1.dex" etc. The names/order is not
-      // important. The filenames just need to be unique and have the ".dex" extension.
-      ImmutableList<Path> dexFiles =
-          writeModuleEntriesToIndexedFiles(dexEntries, dexOriginalDir, /* fileSuffix= */ ".dex");
+      // Dex files are read by the dex merger from the entries directly, while the main dex list
+      // and the proguard map are required as files which are shared by all merges.
+      ImmutableList<ByteSource> dexContents =
+          dexEntries.stream().map(ModuleEntry::getContent).collect(toImmutableList());
+      Optional<Path> mainDexList = mainDexListFile.get();
+      Optional<Path> proguardMap = proguardMapFile.get();
 
-      ImmutableList<Path> mergedDexFiles =
-          dexMerger.merge(
-              dexFiles,
-              dexMergedDir,
-              mainDexListFile,
-              proguardMapFile,
-              androidManifest.getEffectiveApplicationDebuggable(),
-              androidManifest.getEffectiveMinSdkVersion());
+      // D8 is memory-hungry and multi-threaded itself, so few merges run at the same time.
+      ImmutableList<Path> mergedDexFiles;
+      try {
+        dexMergingPermits.acquire();
+      } catch (InterruptedException e) {
+        // The build was cancelled while waiting for other merges to finish.
+        Thread.currentThread().interrupt();
+        throw CommandExecutionException.builder()
+            .withInternalMessage("Interrupted while waiting to merge dex files.")
+            .withCause(e)
+            .build();
+      }
+      try {
+        mergedDexFiles =
+            dexMerger.mergeDexContents(
+                dexContents,
+                dexMergedDir,
+                globalTempDir.getPath(),
+                mainDexList,
+                proguardMap,
+                androidManifest.getEffectiveApplicationDebuggable(),
+                androidManifest.getEffectiveMinSdkVersion());
+      } finally {
+        dexMergingPermits.release();
+      }
 
+      if (cacheKey.isPresent()) {
+        dexMergingCache.get().store(cacheKey.get(), mergedDexFiles);
+      }
       return mergedDexFiles;
-
-    } catch (IOException e) {
+    } catch (IOException | UncheckedIOException e) {
       throw CommandExecutionException.builder()
           .withCause(e)
           .withInternalMessage("I/O error while merging dex files.")
@@ -433,40 +520,55 @@ public class ModuleSplitsToShardMerger {
     }
   }
 
-  private Optional<Path> writeMainDexListFileIfPresent() throws IOException {
+  private Optional<Path> writeMainDexListFileIfPresent() {
 
-    Optional<ByteSource> mainDexListFile =
-        appBundle
-            .getBundleMetadata()
-            .getFileAsByteSource(BUNDLETOOL_NAMESPACE, MAIN_DEX_LIST_FILE_NAME);
+    Optional<ByteSource> mainDexListFile = getMainDexList();
 
     if (!mainDexListFile.isPresent()) {
       return Optional.empty();
     }
 
-    Path mainDexListFilePath = Files.createTempFile(globalTempDir.getPath(), "mainDexList", ".txt");
-    try (InputStream inputStream = mainDexListFile.get().openStream()) {
-      Files.copy(inputStream, mainDexListFilePath, StandardCopyOption.REPLACE_EXISTING);
+    try {
+      Path mainDexListFilePath =
+          Files.createTempFile(globalTempDir.getPath(), "mainDexList", ".txt");
+      try (InputStream inputStream = mainDexListFile.get().openStream()) {
+        Files.copy(inputStream, mainDexListFilePath, StandardCopyOption.REPLACE_EXISTING);
+      }
+      return Optional.of(mainDexListFilePath);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
-    return Optional.of(mainDexListFilePath);
   }
 
-  private Optional<Path> writeProguardMapFileIfPresent() throws IOException {
+  private Optional<Path> writeProguardMapFileIfPresent() {
 
-    Optional<ByteSource> proguardFile =
-        appBundle
-            .getBundleMetadata()
-            .getFileAsByteSource(OBFUSCATION_NAMESPACE, PROGUARD_MAP_FILE_NAME);
+    Optional<ByteSource> proguardFile = getProguardMap();
 
     if (!proguardFile.isPresent()) {
       return Optional.empty();
     }
 
-    Path proguardMapFilePath = Files.createTempFile(globalTempDir.getPath(), "proguard", ".map");
-    try (InputStream inputStream = proguardFile.get().openStream()) {
-      Files.copy(inputStream, proguardMapFilePath, StandardCopyOption.REPLACE_EXISTING);
+    try {
+      Path proguardMapFilePath = Files.createTempFile(globalTempDir.getPath(), "proguard", ".map");
+      try (InputStream inputStream = proguardFile.get().openStream()) {
+        Files.copy(inputStream, proguardMapFilePath, StandardCopyOption.REPLACE_EXISTING);
+      }
+      return Optional.of(proguardMapFilePath);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
-    return Optional.of(proguardMapFilePath);
+  }
+
+  private Optional<ByteSource> getMainDexList() {
+    return appBundle
+        .getBundleMetadata()
+        .getFileAsByteSource(BUNDLETOOL_NAMESPACE, MAIN_DEX_LIST_FILE_NAME);
+  }
+
+  private Optional<ByteSource> getProguardMap() {
+    return appBundle
+        .getBundleMetadata()
+        .getFileAsByteSource(OBFUSCATION_NAMESPACE, PROGUARD_MAP_FILE_NAME);
   }
 
   private DexMergingStrategy getDexMergingStrategy() {
@@ -485,25 +587,4 @@ public class ModuleSplitsToShardMerger {
         .distinct()
         .collect(toImmutableList());
   }
-
-  /**
-   * Writes given entries to files named {@code "0<fileSuffix>", "1<fileSuffix>", ...} inside the
-   * specified directory.
-   */
-  private static ImmutableList<Path> writeModuleEntriesToIndexedFiles(
-      List<ModuleEntry> moduleEntries, Path toDirectory, String fileSuffix) throws IOException {
-    ImmutableList.Builder<Path> files = ImmutableList.builder();
-    for (int i = 0; i < moduleEntries.size(); i++) {
-      Path fileName = toDirectory.resolve(i + fileSuffix);
-      writeModuleEntryToFile(moduleEntries.get(i), fileName);
-      files.add(fileName);
-    }
-    return files.build();
-  }
-
-  private static void writeModuleEntryToFile(ModuleEntry entry, Path toFile) throws IOException {
-    try (InputStream is = entry.getContent().openStream()) {
-      Files.copy(is, toFile);
-    }
-  }
 }
@@ -17,6 +17,7 @@
 package com.android.tools.build.bundletool.model;
 
 import static com.android.tools.build.bundletool.model.utils.BundleParser.extractModules;
+import static com.android.tools.build.bundletool.model.utils.BundleParser.extractModulesLazily;
 import static com.android.tools.build.bundletool.model.utils.BundleParser.readBundleConfig;
 import static com.android.tools.build.bundletool.model.utils.BundleParser.readBundleMetadata;
 import static com.android.tools.build.bundletool.model.utils.BundleParser.sanitize;
@@ -35,9 +36,12 @@ import com.android.bundle.RuntimeEnabledSdkConfigProto.RuntimeEnabledSdk;
 import com.android.bundle.Targeting.Abi;
 import com.android.bundle.Targeting.NativeDirectoryTargeting;
 import com.android.tools.build.bundletool.model.BundleModule.ModuleType;
+import com.android.tools.build.bundletool.model.utils.BundleZipReader;
 import com.android.tools.build.bundletool.model.version.Version;
 import com.google.auto.value.AutoValue;
 import com.google.auto.value.extension.memoized.Memoized;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -45,6 +49,7 @@ import com.google.common.collect.Maps;
 import com.google.errorprone.annotations.Immutable;
 import java.util.Collection;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Stream;
 import java.util.zip.ZipFile;
 
@@ -83,10 +88,48 @@ public abstract class AppBundle implements Bundle {
         readBundleMetadata(bundleFile));
   }
 
+  /**
+   * Builds an {@link AppBundle} from an App Bundle on disk, whose entries are read from the memory
+   * mapping of the file.
+   *
+   * <p>Modules are loaded lazily: a module is only parsed the first time it is accessed, either
+   * directly via {@link #getModule} or via any method returning multiple modules. Modules that are
+   * never accessed, e.g. after the bundle is narrowed down with {@link #retainModules}, are never
+   * parsed.
+   */
+  public static AppBundle buildFromZip(BundleZipReader bundleFile) {
+    BundleConfig bundleConfig = readBundleConfig(bundleFile);
+    Optional<ApexConfig> apexConfig =
+        bundleConfig.hasApexConfig() ? Optional.of(bundleConfig.getApexConfig()) : Optional.empty();
+    ClassesDexNameSanitizer classesDexNameSanitizer = new ClassesDexNameSanitizer();
+    ImmutableMap<BundleModuleName, Supplier<BundleModule>> moduleSuppliers =
+        ImmutableMap.copyOf(
+            Maps.transformValues(
+                extractModulesLazily(
+                    bundleFile,
+                    bundleConfig.getType(),
+                    Version.of(bundleConfig.getBundletool().getVersion()),
+                    apexConfig,
+                    NON_MODULE_DIRECTORIES),
+                moduleSupplier ->
+                    Suppliers.memoize(
+                        () -> classesDexNameSanitizer.sanitize(moduleSupplier.get()))));
+    return buildFromModules(builder().setModuleSuppliers(moduleSuppliers), bundleConfig)
+        .setBundleMetadata(readBundleMetadata(bundleFile))
+        .build();
+  }
+
   public static AppBundle buildFromModules(
       ImmutableList<BundleModule> modules,
       BundleConfig bundleConfig,
       BundleMetadata bundleMetadata) {
+    return buildFromModules(
+            builder().setModules(Maps.uniqueIndex(modules, BundleModule::getName)), bundleConfig)
+        .setBundleMetadata(bundleMetadata)
+        .build();
+  }
+
+  private static Builder buildFromModules(Builder builder, BundleConfig bundleConfig) {
     ImmutableSet<ResourceId> pinnedResourceIds =
         bundleConfig.getMasterResources().getResourceIdsList().stream()
             .map(ResourceId::create)
@@ -95,16 +138,29 @@ public abstract class AppBundle implements Bundle {
     ImmutableSet<String> pinnedResourceNames =
         ImmutableSet.copyOf(bundleConfig.getMasterResources().getResourceNamesList());
 
-    return builder()
-        .setModules(Maps.uniqueIndex(modules, BundleModule::getName))
+    return builder
         .setMasterPinnedResourceIds(pinnedResourceIds)
         .setMasterPinnedResourceNames(pinnedResourceNames)
-        .setBundleConfig(bundleConfig)
-        .setBundleMetadata(bundleMetadata)
-        .build();
+        .setBundleConfig(bundleConfig);
+  }
+
+  /**
+   * Suppliers of the modules of the bundle, keyed by module name.
+   *
+   * <p>Suppliers of lazily loaded bundles parse the module on their first call only.
+   */
+  abstract ImmutableMap<BundleModuleName, Supplier<BundleModule>> getModuleSuppliers();
+
+  /** Returns all modules of the bundle, parsing the modules that were not accessed yet. */
+  @Memoized
+  public ImmutableMap<BundleModuleName, BundleModule> getModules() {
+    return ImmutableMap.copyOf(Maps.transformValues(getModuleSuppliers(), Supplier::get));
   }
 
-  public abstract ImmutableMap<BundleModuleName, BundleModule> getModules();
+  /** Returns the names of all modules of the bundle, without parsing any module. */
+  public ImmutableSet<BundleModuleName> getModuleNames() {
+    return getModuleSuppliers().keySet();
+  }
 
   /**
    * Resource IDs that must remain in the master split regardless of their targeting configuration.
@@ -145,7 +201,7 @@ public abstract class AppBundle implements Bundle {
   }
 
   public boolean hasBaseModule() {
-    return getModules().containsKey(BundleModuleName.BASE_MODULE_NAME);
+    return getModuleSuppliers().containsKey(BundleModuleName.BASE_MODULE_NAME);
   }
 
   @Override
@@ -161,9 +217,9 @@ public abstract class AppBundle implements Bundle {
 
   @Override
   public BundleModule getModule(BundleModuleName moduleName) {
-    BundleModule module = getModules().get(moduleName);
+    Supplier<BundleModule> module = getModuleSuppliers().get(moduleName);
     checkState(module != null, "Module '%s' not found.", moduleName);
-    return module;
+    return module.get();
   }
 
   public Version getVersion() {
@@ -255,7 +311,25 @@ public abstract class AppBundle implements Bundle {
   /** Builder for App Bundle object */
   @AutoValue.Builder
   public abstract static class Builder {
-    public abstract Builder setModules(ImmutableMap<BundleModuleName, BundleModule> modules);
+    public Builder setModules(ImmutableMap<BundleModuleName, BundleModule> modules) {
+      return setModuleSuppliers(
+          ImmutableMap.copyOf(Maps.transformValues(modules, Suppliers::ofInstance)));
+    }
+
+    abstract Builder setModuleSuppliers(
+        ImmutableMap<BundleModuleName, Supplier<BundleModule>> moduleSuppliers);
+
+    abstract ImmutableMap<BundleModuleName, Supplier<BundleModule>> getModuleSuppliers();
+
+    /**
+     * Keeps only the given modules in the bundle.
+     *
+     * <p>Modules of a lazily loaded bundle that are removed this way are never parsed.
+     */
+    public Builder retainModules(Set<BundleModuleName> moduleNames) {
+      return setModuleSuppliers(
+          ImmutableMap.copyOf(Maps.filterKeys(getModuleSuppliers(), moduleNames::contains)));
+    }
 
     /** Convenience method to extract module names and set module map. */
     public Builder setRawModules(Collection<BundleModule> bundleModules) {
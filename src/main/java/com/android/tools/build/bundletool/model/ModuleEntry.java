@@ -16,6 +16,7 @@
 package com.android.tools.build.bundletool.model;
 
 import com.android.tools.build.bundletool.model.BundleModule.SpecialModuleEntry;
+import com.android.tools.build.bundletool.model.utils.ZipUtils;
 import com.google.auto.value.AutoValue;
 import com.google.auto.value.extension.memoized.Memoized;
 import com.google.common.hash.HashCode;
@@ -90,9 +91,37 @@ public abstract class ModuleEntry {
       return false;
     }
 
+    if (entry1.getContent() == entry2.getContent()) {
+      return true;
+    }
+
+    if (haveDifferentContentChecksums(entry1, entry2)) {
+      return false;
+    }
+
     return entry1.getContentSha256Hash().equals(entry2.getContentSha256Hash());
   }
 
+  /**
+   * Checks whether the content of the given entries is known to be different without reading it,
+   * using their sizes and CRC-32 checksums when available (e.g. from the central directory of the
+   * zip file the entries were read from).
+   *
+   * <p>A {@code false} result doesn't mean that the contents are identical.
+   */
+  public static boolean haveDifferentContentChecksums(ModuleEntry entry1, ModuleEntry entry2) {
+    return differ(
+            entry1.getContent().sizeIfKnown().toJavaUtil(),
+            entry2.getContent().sizeIfKnown().toJavaUtil())
+        || differ(
+            ZipUtils.crc32IfKnown(entry1.getContent()).toJavaUtil(),
+            ZipUtils.crc32IfKnown(entry2.getContent()).toJavaUtil());
+  }
+
+  private static boolean differ(Optional<Long> value1, Optional<Long> value2) {
+    return value1.isPresent() && value2.isPresent() && !value1.get().equals(value2.get());
+  }
+
   @Memoized
   public HashCode getContentSha256Hash() {
     try {
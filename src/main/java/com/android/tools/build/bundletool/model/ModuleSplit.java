@@ -65,8 +65,12 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.errorprone.annotations.CheckReturnValue;
 import com.google.errorprone.annotations.Immutable;
+import com.google.protobuf.MessageLite;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -665,6 +669,55 @@ public abstract class ModuleSplit {
     return getApexConfig().isPresent();
   }
 
+  /**
+   * Returns a digest of everything that makes up the split, except for the master manifest
+   * mutators which can only be compared by identity.
+   *
+   * <p>The digest of each entry is computed from its memoized content hash, so identical splits
+   * can be de-duplicated without reading the content of their entries again.
+   */
+  @Memoized
+  public HashCode getFingerprint() {
+    Hasher hasher = Hashing.sha256().newHasher();
+    putString(hasher, getModuleName().getName());
+    putString(hasher, getSplitType().name());
+    hasher.putBoolean(isMasterSplit());
+    putProto(hasher, Optional.of(getApkTargeting()));
+    putProto(hasher, Optional.of(getVariantTargeting()));
+    putProto(hasher, Optional.of(getAndroidManifest().getManifestRoot().getProto()));
+    putString(hasher, getAndroidManifest().getBundleToolVersion().toString());
+    putProto(hasher, getResourceTable());
+    putProto(hasher, getNativeConfig());
+    putProto(hasher, getAssetsConfig());
+    putProto(hasher, getApexConfig());
+    hasher.putInt(getApexEmbeddedApkConfigs().size());
+    for (ApexEmbeddedApkConfig apexEmbeddedApkConfig : getApexEmbeddedApkConfigs()) {
+      putProto(hasher, Optional.of(apexEmbeddedApkConfig));
+    }
+    hasher.putInt(getEntries().size());
+    for (ModuleEntry entry : getEntries()) {
+      putString(hasher, entry.getPath().toString());
+      hasher.putBoolean(entry.getForceUncompressed());
+      hasher.putBoolean(entry.getShouldSign());
+      hasher.putBytes(entry.getContentSha256Hash().asBytes());
+    }
+    return hasher.hash();
+  }
+
+  private static void putString(Hasher hasher, String value) {
+    // Length-prefixed so that consecutive values can't be confused.
+    hasher.putInt(value.length()).putUnencodedChars(value);
+  }
+
+  private static void putProto(Hasher hasher, Optional<? extends MessageLite> proto) {
+    if (proto.isPresent()) {
+      byte[] bytes = proto.get().toByteArray();
+      hasher.putInt(bytes.length).putBytes(bytes);
+    } else {
+      hasher.putInt(-1);
+    }
+  }
+
   /** Builder for {@link ModuleSplit}. */
   @AutoValue.Builder
   public abstract static class Builder {
@@ -73,6 +73,18 @@ public abstract class AlternativeVariantTargetingPopulator<T extends Message> {
     return GeneratedApks.fromModuleSplits(moduleSplits);
   }
 
+  /**
+   * Populates the alternative SDK version targeting of the given split APK variants, the same way
+   * as it is populated once their APKs are generated.
+   *
+   * @param maxSdkVersion maxSdkVersion of the base module manifest, if any
+   */
+  public static ImmutableList<VariantTargeting> populateAlternativeSdkVersionTargeting(
+      ImmutableList<VariantTargeting> variantTargetings, Optional<Integer> maxSdkVersion) {
+    return new SdkVersionAlternativesPopulator(maxSdkVersion)
+        .addAlternativeVariantTargetingInternal(variantTargetings);
+  }
+
   /**
    * See AlternativeVariantTargetingPopulator#addAlternativeVariantTargeting(ImmutableList...)
    *
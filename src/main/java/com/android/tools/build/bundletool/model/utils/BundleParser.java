@@ -25,6 +25,7 @@ import com.android.bundle.Config.BundleConfig.BundleType;
 import com.android.bundle.SdkModulesConfigOuterClass.SdkModulesConfig;
 import com.android.tools.build.bundletool.model.BundleMetadata;
 import com.android.tools.build.bundletool.model.BundleModule;
+import com.android.tools.build.bundletool.model.BundleModule.SpecialModuleEntry;
 import com.android.tools.build.bundletool.model.BundleModuleName;
 import com.android.tools.build.bundletool.model.ClassesDexNameSanitizer;
 import com.android.tools.build.bundletool.model.ModuleEntry;
@@ -32,8 +33,12 @@ import com.android.tools.build.bundletool.model.ModuleEntry.ModuleEntryBundleLoc
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.model.exceptions.InvalidBundleException;
 import com.android.tools.build.bundletool.model.version.Version;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteSource;
 import com.google.errorprone.annotations.CheckReturnValue;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.io.IOException;
@@ -42,11 +47,14 @@ import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -79,8 +87,15 @@ public class BundleParser {
    */
   public static Optional<BundleModuleName> extractModuleName(
       ZipEntry entry, ImmutableSet<ZipPath> nonModuleDirectories) {
-    ZipPath path = ZipPath.create(entry.getName());
+    return extractModuleName(ZipPath.create(entry.getName()), nonModuleDirectories);
+  }
 
+  /**
+   * Returns the {@link BundleModuleName} corresponding to the provided path in the bundle. If the
+   * path does not belong to a module, an empty {@link Optional} is returned.
+   */
+  public static Optional<BundleModuleName> extractModuleName(
+      ZipPath path, ImmutableSet<ZipPath> nonModuleDirectories) {
     for (ZipPath nonModuleDirectory : nonModuleDirectories) {
       if (path.startsWith(nonModuleDirectory)) {
         return Optional.empty();
@@ -108,56 +123,145 @@ public class BundleParser {
       Optional<ApexConfig> apexConfig,
       ImmutableSet<ZipPath> nonModuleDirectories) {
     Map<BundleModuleName, BundleModule.Builder> moduleBuilders = new HashMap<>();
+    Path bundlePath = Paths.get(bundleFile.getName());
     Enumeration<? extends ZipEntry> entries = bundleFile.entries();
     while (entries.hasMoreElements()) {
       ZipEntry entry = entries.nextElement();
       if (entry.isDirectory()) {
         continue;
       }
+      addModuleEntry(
+          moduleBuilders,
+          bundlePath,
+          ZipPath.create(entry.getName()),
+          ZipUtils.asByteSource(bundleFile, entry),
+          bundleType,
+          bundletoolVersion,
+          apexConfig,
+          nonModuleDirectories);
+    }
+    return buildModules(moduleBuilders);
+  }
 
-      Optional<BundleModuleName> moduleName = extractModuleName(entry, nonModuleDirectories);
+  /**
+   * Extracts all modules from bundle zip file, keyed by module name, without building them.
+   *
+   * <p>Each module is only built, which parses its manifest and other special entries, the first
+   * time its supplier is called. Contents of the module entries are read directly from the memory
+   * mapping of the bundle.
+   *
+   * <p>The presence of the manifest of every module is still verified upfront, from the names of
+   * the entries alone.
+   */
+  public static ImmutableMap<BundleModuleName, Supplier<BundleModule>> extractModulesLazily(
+      BundleZipReader bundleFile,
+      BundleType bundleType,
+      Version bundletoolVersion,
+      Optional<ApexConfig> apexConfig,
+      ImmutableSet<ZipPath> nonModuleDirectories) {
+    Map<BundleModuleName, List<BundleZipReader.Entry>> entriesByModule = new HashMap<>();
+    Set<BundleModuleName> modulesWithManifest = new HashSet<>();
+    for (BundleZipReader.Entry entry : bundleFile.getEntries()) {
+      if (entry.isDirectory()) {
+        continue;
+      }
+      Optional<BundleModuleName> moduleName =
+          extractModuleName(entry.getPath(), nonModuleDirectories);
       if (!moduleName.isPresent()) {
         continue;
       }
+      entriesByModule.computeIfAbsent(moduleName.get(), name -> new ArrayList<>()).add(entry);
+      if (SpecialModuleEntry.getSpecialEntry(ZipUtils.convertBundleToModulePath(entry.getPath()))
+          .equals(Optional.of(SpecialModuleEntry.ANDROID_MANIFEST))) {
+        modulesWithManifest.add(moduleName.get());
+      }
+    }
+    checkModulesHaveManifest(
+        entriesByModule.keySet().stream()
+            .filter(moduleName -> !modulesWithManifest.contains(moduleName))
+            .collect(toImmutableSet()));
 
-      BundleModule.Builder moduleBuilder =
-          moduleBuilders.computeIfAbsent(
-              moduleName.get(),
-              name -> {
-                BundleModule.Builder bundleModuleBuilder =
-                    BundleModule.builder()
-                        .setName(name)
-                        .setBundleType(bundleType)
-                        .setBundletoolVersion(bundletoolVersion);
-                apexConfig.ifPresent(bundleModuleBuilder::setBundleApexConfig);
-                return bundleModuleBuilder;
-              });
-
-      moduleBuilder.addEntry(
-          ModuleEntry.builder()
-              .setBundleLocation(
-                  ModuleEntryBundleLocation.create(
-                      Paths.get(bundleFile.getName()), ZipPath.create(entry.getName())))
-              .setPath(ZipUtils.convertBundleToModulePath(ZipPath.create(entry.getName())))
-              .setContent(ZipUtils.asByteSource(bundleFile, entry))
-              .build());
+    ImmutableMap.Builder<BundleModuleName, Supplier<BundleModule>> modules =
+        ImmutableMap.builder();
+    entriesByModule.forEach(
+        (moduleName, entries) ->
+            modules.put(
+                moduleName,
+                Suppliers.memoize(
+                    () -> {
+                      BundleModule.Builder moduleBuilder =
+                          newModuleBuilder(moduleName, bundleType, bundletoolVersion, apexConfig);
+                      for (BundleZipReader.Entry entry : entries) {
+                        moduleBuilder.addEntry(
+                            newModuleEntry(
+                                bundleFile.getPath(), entry.getPath(), entry.asByteSource()));
+                      }
+                      return moduleBuilder.build();
+                    })));
+    return modules.build();
+  }
+
+  private static void addModuleEntry(
+      Map<BundleModuleName, BundleModule.Builder> moduleBuilders,
+      Path bundlePath,
+      ZipPath entryPath,
+      ByteSource content,
+      BundleType bundleType,
+      Version bundletoolVersion,
+      Optional<ApexConfig> apexConfig,
+      ImmutableSet<ZipPath> nonModuleDirectories) {
+    Optional<BundleModuleName> moduleName = extractModuleName(entryPath, nonModuleDirectories);
+    if (!moduleName.isPresent()) {
+      return;
     }
 
+    BundleModule.Builder moduleBuilder =
+        moduleBuilders.computeIfAbsent(
+            moduleName.get(),
+            name -> newModuleBuilder(name, bundleType, bundletoolVersion, apexConfig));
+    moduleBuilder.addEntry(newModuleEntry(bundlePath, entryPath, content));
+  }
+
+  private static BundleModule.Builder newModuleBuilder(
+      BundleModuleName moduleName,
+      BundleType bundleType,
+      Version bundletoolVersion,
+      Optional<ApexConfig> apexConfig) {
+    BundleModule.Builder bundleModuleBuilder =
+        BundleModule.builder()
+            .setName(moduleName)
+            .setBundleType(bundleType)
+            .setBundletoolVersion(bundletoolVersion);
+    apexConfig.ifPresent(bundleModuleBuilder::setBundleApexConfig);
+    return bundleModuleBuilder;
+  }
+
+  private static ModuleEntry newModuleEntry(
+      Path bundlePath, ZipPath entryPath, ByteSource content) {
+    return ModuleEntry.builder()
+        .setBundleLocation(ModuleEntryBundleLocation.create(bundlePath, entryPath))
+        .setPath(ZipUtils.convertBundleToModulePath(entryPath))
+        .setContent(content)
+        .build();
+  }
+
+  private static ImmutableList<BundleModule> buildModules(
+      Map<BundleModuleName, BundleModule.Builder> moduleBuilders) {
     // We verify the presence of the manifest before building the BundleModule objects because the
     // manifest is a required field of the BundleModule class.
-    checkModulesHaveManifest(moduleBuilders.values());
+    checkModulesHaveManifest(
+        moduleBuilders.values().stream()
+            .filter(bundleModule -> !bundleModule.hasAndroidManifest())
+            .map(BundleModule.Builder::getName)
+            .collect(toImmutableSet()));
 
     return moduleBuilders.values().stream()
         .map(BundleModule.Builder::build)
         .collect(toImmutableList());
   }
 
-  private static void checkModulesHaveManifest(Collection<BundleModule.Builder> bundleModules) {
-    ImmutableSet<String> modulesWithoutManifest =
-        bundleModules.stream()
-            .filter(bundleModule -> !bundleModule.hasAndroidManifest())
-            .map(module -> module.getName().getName())
-            .collect(toImmutableSet());
+  private static void checkModulesHaveManifest(
+      ImmutableSet<BundleModuleName> modulesWithoutManifest) {
     if (!modulesWithoutManifest.isEmpty()) {
       throw InvalidBundleException.builder()
           .withUserMessage(
@@ -168,17 +272,33 @@ public class BundleParser {
   }
 
   /** Loads BundleConfig.pb from zip file into {@link BundleConfig} */
-  @SuppressWarnings("ProtoParseWithRegistry")
   public static BundleConfig readBundleConfig(ZipFile bundleFile) {
     ZipEntry bundleConfigEntry = bundleFile.getEntry(BUNDLE_CONFIG_FILE_NAME);
     if (bundleConfigEntry == null) {
-      throw InvalidBundleException.builder()
-          .withUserMessage("File '%s' was not found.", BUNDLE_CONFIG_FILE_NAME)
-          .build();
+      throw bundleConfigNotFound();
     }
+    return parseBundleConfig(ZipUtils.asByteSource(bundleFile, bundleConfigEntry));
+  }
 
+  /** Loads BundleConfig.pb from zip file into {@link BundleConfig} */
+  public static BundleConfig readBundleConfig(BundleZipReader bundleFile) {
+    return parseBundleConfig(
+        bundleFile
+            .getEntry(BUNDLE_CONFIG_FILE_NAME)
+            .orElseThrow(BundleParser::bundleConfigNotFound)
+            .asByteSource());
+  }
+
+  private static InvalidBundleException bundleConfigNotFound() {
+    return InvalidBundleException.builder()
+        .withUserMessage("File '%s' was not found.", BUNDLE_CONFIG_FILE_NAME)
+        .build();
+  }
+
+  @SuppressWarnings("ProtoParseWithRegistry")
+  private static BundleConfig parseBundleConfig(ByteSource bundleConfigContent) {
     try {
-      return BundleConfig.parseFrom(ZipUtils.asByteSource(bundleFile, bundleConfigEntry).read());
+      return BundleConfig.parseFrom(bundleConfigContent.read());
     } catch (InvalidProtocolBufferException e) {
       throw InvalidBundleException.builder()
           .withCause(e)
@@ -221,15 +341,31 @@ public class BundleParser {
     ZipUtils.allFileEntries(bundleFile)
         .filter(entry -> ZipPath.create(entry.getName()).startsWith(METADATA_DIRECTORY))
         .forEach(
-            zipEntry -> {
-              ZipPath bundlePath = ZipPath.create(zipEntry.getName());
-              // Strip the top-level metadata directory.
-              ZipPath metadataPath = bundlePath.subpath(1, bundlePath.getNameCount());
-              metadata.addFile(metadataPath, ZipUtils.asByteSource(bundleFile, zipEntry));
-            });
+            zipEntry ->
+                addMetadataFile(
+                    metadata,
+                    ZipPath.create(zipEntry.getName()),
+                    ZipUtils.asByteSource(bundleFile, zipEntry)));
     return metadata.build();
   }
 
+  /** Loads BUNDLE-METADATA into {@link BundleMetadata} */
+  public static BundleMetadata readBundleMetadata(BundleZipReader bundleFile) {
+    BundleMetadata.Builder metadata = BundleMetadata.builder();
+    bundleFile.getEntries().stream()
+        .filter(entry -> !entry.isDirectory())
+        .filter(entry -> entry.getPath().startsWith(METADATA_DIRECTORY))
+        .forEach(entry -> addMetadataFile(metadata, entry.getPath(), entry.asByteSource()));
+    return metadata.build();
+  }
+
+  private static void addMetadataFile(
+      BundleMetadata.Builder metadata, ZipPath bundlePath, ByteSource content) {
+    // Strip the top-level metadata directory.
+    ZipPath metadataPath = bundlePath.subpath(1, bundlePath.getNameCount());
+    metadata.addFile(metadataPath, content);
+  }
+
   /**
    * Renames classes1.dex files to classes.dex in the given modules. This is a temporary fix to work
    * around a bug in gradle that creates a file named classes1.dex
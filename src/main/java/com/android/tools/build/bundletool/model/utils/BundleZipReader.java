@@ -0,0 +1,514 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.model.utils;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+import javax.annotation.Nullable;
+
+/**
+ * Read-only view of a zip file, such as an App Bundle, backed by a memory mapping of the file.
+ *
+ * <p>Opening the file only locates the central directory: entries are views over their record in
+ * the central directory, whose fields are decoded when accessed, and the content of an entry is
+ * only located when it is read. Content of stored entries is served as slices of the mapping,
+ * without copying.
+ *
+ * <p>Unlike {@link java.util.zip.ZipFile}, reads don't synchronize on the file and can happen
+ * concurrently from any number of threads.
+ *
+ * <p>Content read through the reader, such as {@link ByteSource}s of entries and raw content
+ * buffers, must not outlive it: reading content after the reader is closed throws an {@link
+ * IllegalStateException}.
+ */
+public final class BundleZipReader implements Closeable {
+
+  private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+  private static final int LOCAL_FILE_HEADER_SIZE = 30;
+  private static final int CENTRAL_DIRECTORY_RECORD_SIGNATURE = 0x02014b50;
+  private static final int CENTRAL_DIRECTORY_RECORD_SIZE = 46;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+  private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+  private static final long ZIP64_MAGIC = 0xffffffffL;
+
+  private static final int METHOD_STORED = 0;
+  private static final int METHOD_DEFLATED = 8;
+
+  private final Path path;
+  private final FileChannel channel;
+  /** Mapping of the whole file, or null if the file is too large to be mapped at once. */
+  @Nullable private final ByteBuffer fileBuffer;
+
+  private final ByteBuffer centralDirectory;
+  private final ImmutableList<Entry> entries;
+  @Nullable private volatile ImmutableMap<String, Entry> entriesByName;
+  private volatile boolean closed = false;
+
+  private BundleZipReader(Path path, FileChannel channel) throws IOException {
+    this.path = path;
+    this.channel = channel;
+    long fileSize = channel.size();
+    this.fileBuffer = fileSize <= Integer.MAX_VALUE ? map(channel, 0, fileSize) : null;
+
+    long[] centralDirectoryLocation = findCentralDirectory(fileSize);
+    long centralDirectoryOffset = centralDirectoryLocation[0];
+    long centralDirectorySize = centralDirectoryLocation[1];
+    long entryCount = centralDirectoryLocation[2];
+    if (centralDirectorySize > Integer.MAX_VALUE
+        || centralDirectoryOffset + centralDirectorySize > fileSize) {
+      throw new ZipException("Invalid central directory in zip file: " + path);
+    }
+    this.centralDirectory = slice(centralDirectoryOffset, centralDirectorySize);
+
+    ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+    int recordOffset = 0;
+    for (long i = 0; i < entryCount; i++) {
+      if (recordOffset + CENTRAL_DIRECTORY_RECORD_SIZE > centralDirectory.limit()
+          || centralDirectory.getInt(recordOffset) != CENTRAL_DIRECTORY_RECORD_SIGNATURE) {
+        throw new ZipException("Invalid central directory record in zip file: " + path);
+      }
+      entries.add(new Entry(recordOffset));
+      recordOffset +=
+          CENTRAL_DIRECTORY_RECORD_SIZE
+              + getUnsignedShort(centralDirectory, recordOffset + 28)
+              + getUnsignedShort(centralDirectory, recordOffset + 30)
+              + getUnsignedShort(centralDirectory, recordOffset + 32);
+    }
+    this.entries = entries.build();
+  }
+
+  /**
+   * Opens the zip file at the given path.
+   *
+   * @throws ZipException if the file is not a valid zip file
+   */
+  public static BundleZipReader open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      return new BundleZipReader(path, channel);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /** Returns the path of the zip file. */
+  public Path getPath() {
+    return path;
+  }
+
+  /** Returns all entries of the zip file, in the order of the central directory. */
+  public ImmutableList<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Returns a hash of the central directory, which holds the name, size and CRC of every entry, to
+   * detect changes of the content without reading the entries.
+   */
+  public HashCode hashCentralDirectory() {
+    checkNotClosed();
+    return Hashing.sha256().hashBytes(centralDirectory.duplicate());
+  }
+
+  /** Returns the entry with the given name, if present. */
+  public Optional<Entry> getEntry(String name) {
+    ImmutableMap<String, Entry> entriesByName = this.entriesByName;
+    if (entriesByName == null) {
+      // Zip files may contain duplicate entries, in which case the first one wins like in ZipFile.
+      entriesByName =
+          entries.stream()
+              .collect(
+                  ImmutableMap.toImmutableMap(
+                      Entry::getName, Function.identity(), (first, second) -> first));
+      this.entriesByName = entriesByName;
+    }
+    return Optional.ofNullable(entriesByName.get(name));
+  }
+
+  /**
+   * Closes the file.
+   *
+   * <p>Content of entries can no longer be read afterwards. Java offers no way to unmap the file,
+   * so the mapping is only released once it is garbage collected, until then the file stays locked
+   * on Windows.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    channel.close();
+  }
+
+  @Override
+  public String toString() {
+    return "BundleZipReader(" + path + ")";
+  }
+
+  /**
+   * Returns the offset, size and number of entries of the central directory, reading the zip64
+   * end of central directory record if present.
+   */
+  private long[] findCentralDirectory(long fileSize) throws IOException {
+    long searchStart = Math.max(0, fileSize - END_OF_CENTRAL_DIRECTORY_SIZE - MAX_COMMENT_SIZE);
+    ByteBuffer tail = slice(searchStart, fileSize - searchStart);
+    for (int offset = tail.limit() - END_OF_CENTRAL_DIRECTORY_SIZE; offset >= 0; offset--) {
+      if (tail.getInt(offset) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        continue;
+      }
+      long entryCount = getUnsignedShort(tail, offset + 10);
+      long centralDirectorySize = getUnsignedInt(tail, offset + 12);
+      long centralDirectoryOffset = getUnsignedInt(tail, offset + 16);
+
+      long locatorOffset = searchStart + offset - ZIP64_LOCATOR_SIZE;
+      if (locatorOffset >= 0) {
+        ByteBuffer locator = slice(locatorOffset, ZIP64_LOCATOR_SIZE);
+        if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+          long zip64RecordOffset = locator.getLong(8);
+          if (zip64RecordOffset < 0
+              || zip64RecordOffset + ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE > fileSize) {
+            throw new ZipException("Invalid zip64 end of central directory in zip file: " + path);
+          }
+          ByteBuffer zip64Record = slice(zip64RecordOffset, ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE);
+          if (zip64Record.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+            throw new ZipException("Invalid zip64 end of central directory in zip file: " + path);
+          }
+          entryCount = zip64Record.getLong(32);
+          centralDirectorySize = zip64Record.getLong(40);
+          centralDirectoryOffset = zip64Record.getLong(48);
+        }
+      }
+      return new long[] {centralDirectoryOffset, centralDirectorySize, entryCount};
+    }
+    throw new ZipException("End of central directory not found in zip file: " + path);
+  }
+
+  /** Returns a little-endian buffer over the given region of the file. */
+  private ByteBuffer slice(long offset, long size) throws IOException {
+    checkNotClosed();
+    if (fileBuffer == null) {
+      return map(channel, offset, size);
+    }
+    ByteBuffer slice = fileBuffer.duplicate();
+    // Cast for compatibility of the bytecode with Java 8, whose ByteBuffer doesn't override them.
+    ((Buffer) slice).position((int) offset);
+    ((Buffer) slice).limit((int) (offset + size));
+    return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private void checkNotClosed() {
+    checkState(!closed, "Zip file '%s' is read after it was closed.", path);
+  }
+
+  private static ByteBuffer map(FileChannel channel, long offset, long size) throws IOException {
+    if (size > Integer.MAX_VALUE) {
+      throw new ZipException("Region of the zip file too large to be read: " + size + " bytes.");
+    }
+    return channel.map(MapMode.READ_ONLY, offset, size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static int getUnsignedShort(ByteBuffer buffer, int offset) {
+    return buffer.getShort(offset) & 0xffff;
+  }
+
+  private static long getUnsignedInt(ByteBuffer buffer, int offset) {
+    return buffer.getInt(offset) & 0xffffffffL;
+  }
+
+  /** View of an entry of the zip file, decoded from its central directory record when accessed. */
+  public final class Entry {
+    /** Offset of the central directory record of the entry. */
+    private final int recordOffset;
+
+    @Nullable private volatile String name;
+    /** Offset of the content of the entry in the file, located on first read. */
+    private volatile long contentOffset = -1;
+
+    private Entry(int recordOffset) {
+      this.recordOffset = recordOffset;
+    }
+
+    /** Returns the name of the entry, which is its full path inside the zip file. */
+    public String getName() {
+      String name = this.name;
+      if (name == null) {
+        byte[] nameBytes = new byte[getNameLength()];
+        ByteBuffer record = centralDirectory.duplicate();
+        ((Buffer) record).position(recordOffset + CENTRAL_DIRECTORY_RECORD_SIZE);
+        record.get(nameBytes);
+        name = new String(nameBytes, UTF_8);
+        this.name = name;
+      }
+      return name;
+    }
+
+    public ZipPath getPath() {
+      return ZipPath.create(getName());
+    }
+
+    public boolean isDirectory() {
+      return getName().endsWith("/");
+    }
+
+    /** Returns the compression method of the entry, as defined by the zip specification. */
+    public int getCompressionMethod() {
+      return getUnsignedShort(centralDirectory, recordOffset + 10);
+    }
+
+    /** Returns the CRC-32 checksum of the uncompressed content. */
+    public long getCrc() {
+      return getUnsignedInt(centralDirectory, recordOffset + 16);
+    }
+
+    /** Returns the size of the content as stored in the file. */
+    public long getCompressedSize() {
+      long size = getUnsignedInt(centralDirectory, recordOffset + 20);
+      // Zip64 values are stored in the order: uncompressed size, compressed size, offset.
+      return size == ZIP64_MAGIC ? getZip64Value(getUncompressedSizeIsZip64() ? 1 : 0) : size;
+    }
+
+    /** Returns the size of the uncompressed content. */
+    public long getSize() {
+      return getUncompressedSizeIsZip64()
+          ? getZip64Value(0)
+          : getUnsignedInt(centralDirectory, recordOffset + 24);
+    }
+
+    /**
+     * Returns the content of the entry as stored in the file, i.e. compressed if the entry is
+     * compressed.
+     *
+     * <p>The returned buffer is a read-only slice of the mapping of the file.
+     */
+    public ByteBuffer getRawContent() {
+      try {
+        return slice(getContentOffset(), getCompressedSize()).asReadOnlyBuffer();
+      } catch (IOException e) {
+        throw new UncheckedIOException(
+            String.format("Error reading entry '%s' of zip file '%s'.", getName(), path), e);
+      }
+    }
+
+    /** Returns a {@link ByteSource} of the uncompressed content of the entry. */
+    public ByteSource asByteSource() {
+      return new EntryByteSource(this);
+    }
+
+    @Override
+    public String toString() {
+      return getName();
+    }
+
+    private boolean getUncompressedSizeIsZip64() {
+      return getUnsignedInt(centralDirectory, recordOffset + 24) == ZIP64_MAGIC;
+    }
+
+    private long getLocalHeaderOffset() {
+      long offset = getUnsignedInt(centralDirectory, recordOffset + 42);
+      if (offset != ZIP64_MAGIC) {
+        return offset;
+      }
+      int index = 0;
+      if (getUncompressedSizeIsZip64()) {
+        index++;
+      }
+      if (getUnsignedInt(centralDirectory, recordOffset + 20) == ZIP64_MAGIC) {
+        index++;
+      }
+      return getZip64Value(index);
+    }
+
+    /** Returns the value at the given index of the zip64 extra field of the entry. */
+    private long getZip64Value(int index) {
+      int extraOffset = recordOffset + CENTRAL_DIRECTORY_RECORD_SIZE + getNameLength();
+      int extraEnd = extraOffset + getUnsignedShort(centralDirectory, recordOffset + 30);
+      while (extraOffset + 4 <= extraEnd) {
+        int fieldId = getUnsignedShort(centralDirectory, extraOffset);
+        int fieldSize = getUnsignedShort(centralDirectory, extraOffset + 2);
+        if (fieldId == ZIP64_EXTRA_FIELD_ID && 8 * (index + 1) <= fieldSize) {
+          return centralDirectory.getLong(extraOffset + 4 + 8 * index);
+        }
+        extraOffset += 4 + fieldSize;
+      }
+      throw new UncheckedIOException(
+          new ZipException(
+              String.format("Missing zip64 field of entry '%s' in zip file: %s", getName(), path)));
+    }
+
+    private Path getZipFilePath() {
+      return path;
+    }
+
+    private int getNameLength() {
+      return getUnsignedShort(centralDirectory, recordOffset + 28);
+    }
+
+    private long getContentOffset() throws IOException {
+      long contentOffset = this.contentOffset;
+      if (contentOffset < 0) {
+        long headerOffset = getLocalHeaderOffset();
+        ByteBuffer header = slice(headerOffset, LOCAL_FILE_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_FILE_HEADER_SIGNATURE) {
+          throw new ZipException(
+              String.format("Invalid local header of entry '%s' in zip file: %s", getName(), path));
+        }
+        // The extra field of the local header may differ from the one of the central directory.
+        contentOffset =
+            headerOffset
+                + LOCAL_FILE_HEADER_SIZE
+                + getUnsignedShort(header, 26)
+                + getUnsignedShort(header, 28);
+        this.contentOffset = contentOffset;
+      }
+      return contentOffset;
+    }
+  }
+
+  /** Uncompressed content of an entry. */
+  static final class EntryByteSource extends ByteSource {
+    private final Entry entry;
+
+    private EntryByteSource(Entry entry) {
+      this.entry = entry;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+      switch (entry.getCompressionMethod()) {
+        case METHOD_STORED:
+          return new ByteBufferInputStream(entry.getRawContent());
+        case METHOD_DEFLATED:
+          Inflater inflater = new Inflater(/* nowrap= */ true);
+          // The inflater needs an extra byte of input when used without the zlib header.
+          InputStream compressedStream =
+              new SequenceInputStream(
+                  new ByteBufferInputStream(entry.getRawContent()),
+                  new ByteArrayInputStream(new byte[1]));
+          return new InflaterInputStream(compressedStream, inflater) {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+              if (!closed) {
+                closed = true;
+                inflater.end();
+              }
+              super.close();
+            }
+          };
+        default:
+          throw new ZipException(
+              String.format(
+                  "Unsupported compression method %d of entry '%s' in zip file: %s",
+                  entry.getCompressionMethod(), entry.getName(), entry.getZipFilePath()));
+      }
+    }
+
+    @Override
+    public byte[] read() throws IOException {
+      if (entry.getCompressionMethod() != METHOD_STORED) {
+        return super.read();
+      }
+      ByteBuffer content = entry.getRawContent();
+      byte[] bytes = new byte[content.remaining()];
+      content.get(bytes);
+      return bytes;
+    }
+
+    @Override
+    public com.google.common.base.Optional<Long> sizeIfKnown() {
+      return com.google.common.base.Optional.of(entry.getSize());
+    }
+
+    long getCrc() {
+      return entry.getCrc();
+    }
+
+    @Override
+    public String toString() {
+      return "BundleZipReader.asByteSource(" + entry.getZipFilePath() + ", " + entry + ")";
+    }
+  }
+
+  /** Stream over the remaining bytes of a buffer. */
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long count) {
+      int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+      ((Buffer) buffer).position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
@@ -25,5 +25,11 @@ public final class FileNames {
    */
   public static final String TABLE_OF_CONTENTS_FILE = "toc.pb";
 
+  /**
+   * File living inside of the archive produced by the build-apks command in incremental mode,
+   * storing the fingerprint of the inputs of each APK.
+   */
+  public static final String APK_FINGERPRINTS_FILE = "apk_fingerprints.txt";
+
   private FileNames() {}
 }
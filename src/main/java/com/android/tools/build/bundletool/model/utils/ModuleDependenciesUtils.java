@@ -34,26 +34,59 @@ import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Set;
 
 /** Helpers related to dependencies of the modules. */
 public final class ModuleDependenciesUtils {
 
-  /** Gets modules including their dependencies for the requested modules. */
+  /**
+   * Gets modules including their dependencies for the requested modules.
+   *
+   * <p>Dependencies are resolved transitively. Only the manifests of the requested modules and of
+   * their dependencies are read, so the other modules of a lazily loaded {@link AppBundle} are
+   * never parsed.
+   */
   public static ImmutableSet<BundleModule> getModulesIncludingDependencies(
       AppBundle appBundle, ImmutableList<BundleModule> modules) {
-    Multimap<String, String> adjacencyMap = buildAdjacencyMap(modules);
-    Set<String> dependencyModules =
-        modules.stream().map(module -> module.getName().getName()).collect(toSet());
-    for (BundleModule requestedModule : modules) {
-      addModuleDependencies(requestedModule.getName().getName(), adjacencyMap, dependencyModules);
+    Set<BundleModuleName> moduleNames = new HashSet<>();
+    for (BundleModule module : modules) {
+      checkArgument(
+          moduleNames.add(module.getName()),
+          "Module named '%s' was passed in multiple times.",
+          module.getName());
     }
-    return dependencyModules.stream()
-        .map(module -> appBundle.getModule(BundleModuleName.create(module)))
+    return getModuleNamesIncludingDependencies(appBundle, moduleNames).stream()
+        .map(appBundle::getModule)
         .collect(toImmutableSet());
   }
 
+  /**
+   * Gets names of the requested modules and of all the modules they transitively depend on.
+   *
+   * <p>Only the manifests of the returned modules are read, so the other modules of a lazily
+   * loaded {@link AppBundle} are never parsed.
+   */
+  public static ImmutableSet<BundleModuleName> getModuleNamesIncludingDependencies(
+      AppBundle appBundle, Collection<BundleModuleName> moduleNames) {
+    Set<String> dependencyModules =
+        moduleNames.stream().map(BundleModuleName::getName).collect(toSet());
+    Deque<String> modulesToVisit = new ArrayDeque<>(dependencyModules);
+    while (!modulesToVisit.isEmpty()) {
+      BundleModule module = appBundle.getModule(BundleModuleName.create(modulesToVisit.pop()));
+      for (String moduleDependency : buildAdjacencyMap(ImmutableList.of(module)).values()) {
+        // We do not examine again the dependency that was previously handled and added.
+        if (dependencyModules.add(moduleDependency)) {
+          modulesToVisit.push(moduleDependency);
+        }
+      }
+    }
+    return dependencyModules.stream().map(BundleModuleName::create).collect(toImmutableSet());
+  }
+
   public static ImmutableSet<String> getModulesIncludingDependencies(
       Variant variant, Set<String> requestedModules) {
     ImmutableMultimap<String, String> adjacencyMap = buildAdjacencyMap(variant);
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.model.utils;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import com.google.protobuf.MessageLite;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.zip.ZipException;
+
+/**
+ * Keeps objects parsed from files in memory across the commands run by the same JVM, e.g. by
+ * {@code bundletool serve}, so that files used by many commands are parsed only once.
+ *
+ * <p>The cache is disabled by default. Once enabled, parsed protos are keyed by the path, size,
+ * last modification time and a hash of the content of their file, so a file modified between two
+ * commands is parsed again even if its size and modification time are unchanged. Only the central
+ * directory of large zip files is hashed, as it holds the CRC of every entry; other large files
+ * are not cached. The total serialized size of the cached protos is bounded, least recently used
+ * protos are evicted first.
+ */
+public final class ParsedFileCache {
+
+  /** Files up to this size are hashed entirely. */
+  private static final long MAX_FULLY_HASHED_FILE_SIZE = 1024 * 1024;
+
+  private static volatile Optional<Cache<Key, MessageLite>> cache = Optional.empty();
+
+  /** Enables the cache, bounding the total serialized size of the cached protos. */
+  public static void enable(long maxSizeBytes) {
+    cache =
+        Optional.of(
+            CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeBytes)
+                .<Key, MessageLite>weigher((key, value) -> value.getSerializedSize())
+                .build());
+  }
+
+  /** Disables the cache and releases all cached objects. */
+  public static void disable() {
+    cache = Optional.empty();
+  }
+
+  /**
+   * Returns the object parsed from {@code file} by {@code parser}, parsing it only if the cache is
+   * disabled or doesn't contain it yet.
+   *
+   * @param parserName identifies the parser, since a file can be parsed differently by commands
+   */
+  @SuppressWarnings("unchecked") // The parser name determines the type of the cached proto.
+  public static <T extends MessageLite> T get(
+      Path file, String parserName, Function<Path, T> parser) {
+    Optional<Cache<Key, MessageLite>> currentCache = cache;
+    if (!currentCache.isPresent()) {
+      return parser.apply(file);
+    }
+    Optional<Key> key = createKey(file, parserName);
+    if (!key.isPresent()) {
+      return parser.apply(file);
+    }
+    MessageLite cached = currentCache.get().getIfPresent(key.get());
+    if (cached != null) {
+      return (T) cached;
+    }
+    // Concurrent commands may parse the same file twice, which is cheaper than blocking them.
+    T parsed = parser.apply(file);
+    currentCache.get().put(key.get(), parsed);
+    return parsed;
+  }
+
+  private static Optional<Key> createKey(Path file, String parserName) {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    } catch (IOException e) {
+      // Let the parser report the error.
+      return Optional.empty();
+    }
+    if (!attributes.isRegularFile()) {
+      return Optional.empty();
+    }
+    Optional<HashCode> contentHash;
+    try {
+      contentHash = hashContent(file, attributes.size());
+    } catch (IOException e) {
+      return Optional.empty();
+    }
+    return contentHash.map(
+        hash ->
+            new AutoValue_ParsedFileCache_Key(
+                file.toAbsolutePath().normalize(),
+                parserName,
+                attributes.size(),
+                attributes.lastModifiedTime(),
+                hash));
+  }
+
+  /**
+   * Hashes the whole file if it is small, or the central directory of a large zip file.
+   *
+   * @return the hash, or empty if the file is large and isn't a zip file
+   */
+  private static Optional<HashCode> hashContent(Path file, long size) throws IOException {
+    if (size <= MAX_FULLY_HASHED_FILE_SIZE) {
+      return Optional.of(MoreFiles.asByteSource(file).hash(Hashing.sha256()));
+    }
+    try (BundleZipReader zipReader = BundleZipReader.open(file)) {
+      return Optional.of(zipReader.hashCentralDirectory());
+    } catch (ZipException e) {
+      return Optional.empty();
+    }
+  }
+
+  /** Identifies a version of a file parsed by a given parser. */
+  @AutoValue
+  abstract static class Key {
+    abstract Path path();
+
+    abstract String parserName();
+
+    abstract long size();
+
+    abstract FileTime lastModifiedTime();
+
+    abstract HashCode contentHash();
+  }
+
+  private ParsedFileCache() {}
+}
@@ -44,7 +44,8 @@ public final class ResultUtils {
       if (Files.isDirectory(apksPath)) {
         return readTableOfContentFromApksDirectory(apksPath);
       } else {
-        return readTableOfContentFromApksArchive(apksPath);
+        return ParsedFileCache.get(
+            apksPath, "table-of-contents", ResultUtils::readTableOfContentFromApksArchive);
       }
     } catch (IOException e) {
       throw new UncheckedIOException(
@@ -52,11 +53,15 @@ public final class ResultUtils {
     }
   }
 
-  private static BuildApksResult readTableOfContentFromApksArchive(Path apksArchivePath)
-      throws IOException {
+  private static BuildApksResult readTableOfContentFromApksArchive(Path apksArchivePath) {
     try (ZipFile apksArchive = new ZipFile(apksArchivePath.toFile())) {
       return BuildApksResult.parseFrom(
           ZipUtils.asByteSource(apksArchive, new ZipEntry(TABLE_OF_CONTENTS_FILE)).read());
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format(
+              "Error while reading the table of contents file from '%s'.", apksArchivePath),
+          e);
     }
   }
 
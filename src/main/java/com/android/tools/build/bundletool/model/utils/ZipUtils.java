@@ -70,6 +70,24 @@ public final class ZipUtils {
     return new ZipEntryByteSource(file, entry);
   }
 
+  /**
+   * Returns the CRC-32 checksum of the content of the given source, if it can be known without
+   * reading the content.
+   *
+   * <p>This is the case for sources created by {@link #asByteSource(ZipFile, ZipEntry)} and {@link
+   * BundleZipReader.Entry#asByteSource()}, whose checksum is read from the central directory of the
+   * zip file.
+   */
+  public static Optional<Long> crc32IfKnown(ByteSource source) {
+    if (source instanceof ZipEntryByteSource) {
+      return ((ZipEntryByteSource) source).crc32IfKnown();
+    }
+    if (source instanceof BundleZipReader.EntryByteSource) {
+      return Optional.of(((BundleZipReader.EntryByteSource) source).getCrc());
+    }
+    return Optional.absent();
+  }
+
   private static final class ZipEntryByteSource extends ByteSource {
     private final ZipFile file;
     private final ZipEntry entry;
@@ -89,6 +107,10 @@ public final class ZipUtils {
       return entry.getSize() == -1 ? Optional.absent() : Optional.of(entry.getSize());
     }
 
+    Optional<Long> crc32IfKnown() {
+      return entry.getCrc() == -1 ? Optional.absent() : Optional.of(entry.getCrc());
+    }
+
     @Override
     public String toString() {
       return "ZipUtils.asByteSource(" + file + ", " + entry + ")";
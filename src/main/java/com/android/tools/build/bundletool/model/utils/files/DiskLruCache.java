@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.model.utils.files;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.android.tools.build.bundletool.model.utils.SystemEnvironmentProvider;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Streams;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Size-bounded on-disk cache which can be shared between concurrent bundletool invocations.
+ *
+ * <p>Items are files or directories named after their key, which starts with a hex-encoded hash.
+ * They are spread across sub-directories named after the first two characters of the key to keep
+ * directory listings short.
+ *
+ * <p>Items are written to a temporary path first and atomically moved into place, so readers never
+ * observe partially written items. The modification time of an item is used as its access time,
+ * least recently used items are removed by {@link #trim()}.
+ */
+public final class DiskLruCache {
+
+  private static final Logger logger = Logger.getLogger(DiskLruCache.class.getName());
+
+  /** Writes an item to the given path, either as a file or as a directory. */
+  public interface ItemWriter {
+    void write(Path path) throws IOException;
+  }
+
+  private final Path directory;
+  private final String itemExtension;
+  private final long maxSizeBytes;
+
+  /**
+   * Creates a cache in {@code directory}, creating the directory if needed.
+   *
+   * @param itemExtension suffix of the names of all items, used to recognize them when trimming
+   * @param maxSizeBytes maximum total size of the items kept by {@link #trim()}
+   */
+  public DiskLruCache(Path directory, String itemExtension, long maxSizeBytes) {
+    checkArgument(!itemExtension.isEmpty(), "Extension of cached items must not be empty.");
+    FileUtils.createDirectories(directory);
+    this.directory = directory;
+    this.itemExtension = itemExtension;
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  /**
+   * Reads a size in bytes from the given system property.
+   *
+   * <p>Falls back to {@code defaultValue} when the property is not set or is not a valid number.
+   */
+  public static long readSizeProperty(String propertyName, long defaultValue) {
+    return readSizeProperty(SystemEnvironmentProvider.DEFAULT_PROVIDER, propertyName, defaultValue);
+  }
+
+  @VisibleForTesting
+  static long readSizeProperty(
+      SystemEnvironmentProvider provider, String propertyName, long defaultValue) {
+    Optional<String> value = provider.getProperty(propertyName);
+    if (!value.isPresent()) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.get().trim());
+    } catch (NumberFormatException e) {
+      logger.warning(
+          String.format(
+              "Ignoring invalid value '%s' of system property '%s', using %d instead.",
+              value.get(), propertyName, defaultValue));
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Returns the path of the item with the given key, and marks it as recently used.
+   *
+   * @return the path of the item, or empty if it is not present in the cache
+   */
+  public Optional<Path> lookup(String key) {
+    Path itemPath = getItemPath(key);
+    if (!Files.exists(itemPath)) {
+      return Optional.empty();
+    }
+    try {
+      Files.setLastModifiedTime(itemPath, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      // The item was evicted concurrently by another process.
+      return Optional.empty();
+    }
+    return Optional.of(itemPath);
+  }
+
+  /**
+   * Stores the item with the given key, unless it is already present.
+   *
+   * <p>{@code writer} is invoked with a temporary path which is then atomically moved into place.
+   * If another process stores the same item in the meantime, its item is kept.
+   */
+  public void store(String key, ItemWriter writer) {
+    Path itemPath = getItemPath(key);
+    if (Files.exists(itemPath)) {
+      return;
+    }
+    // Not ending with the item extension, so that it is never picked up by trim().
+    Path tempPath = itemPath.resolveSibling(itemPath.getFileName() + "." + UUID.randomUUID());
+    try {
+      FileUtils.createDirectories(itemPath.getParent());
+      writer.write(tempPath);
+      Files.move(tempPath, itemPath, StandardCopyOption.ATOMIC_MOVE);
+    } catch (FileAlreadyExistsException e) {
+      // Another process stored the same item in the meantime.
+    } catch (IOException e) {
+      if (!Files.exists(itemPath)) {
+        throw new UncheckedIOException(
+            String.format("Failed to store item '%s' in cache '%s'.", key, directory), e);
+      }
+      // Another process stored the same item in the meantime, moving a directory onto a non-empty
+      // one fails with a DirectoryNotEmptyException on some platforms.
+    } finally {
+      deleteRecursivelyIfExists(tempPath);
+    }
+  }
+
+  /**
+   * Removes least recently used items until the total size of the cache fits into its maximum
+   * size.
+   */
+  public void trim() {
+    ImmutableList<CachedItem> items;
+    try (Stream<Path> paths = Files.walk(directory, /* maxDepth= */ 2)) {
+      items =
+          paths
+              .filter(path -> !path.equals(directory))
+              .filter(path -> path.getFileName().toString().endsWith(itemExtension))
+              .map(CachedItem::read)
+              .flatMap(Streams::stream)
+              .sorted(Comparator.comparing(CachedItem::getLastAccessTime))
+              .collect(toImmutableList());
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Failed to list items of cache '%s'.", directory), e);
+    }
+
+    long totalSize = items.stream().mapToLong(CachedItem::getSize).sum();
+    for (CachedItem item : items) {
+      if (totalSize <= maxSizeBytes) {
+        break;
+      }
+      if (deleteRecursivelyIfExists(item.getPath())) {
+        totalSize -= item.getSize();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  Path getItemPath(String key) {
+    checkArgument(key.length() > 2, "Key of cached item is too short: '%s'.", key);
+    return directory.resolve(key.substring(0, 2)).resolve(key + itemExtension);
+  }
+
+  private static boolean deleteRecursivelyIfExists(Path path) {
+    try {
+      MoreFiles.deleteRecursively(path, RecursiveDeleteOption.ALLOW_INSECURE);
+      return true;
+    } catch (IOException e) {
+      // Already removed, or in use by a concurrent invocation: it will be removed next time.
+      return false;
+    }
+  }
+
+  /** File or directory of a cached item along with its attributes relevant for eviction. */
+  private static final class CachedItem {
+    private final Path path;
+    private final long size;
+    private final FileTime lastAccessTime;
+
+    private CachedItem(Path path, long size, FileTime lastAccessTime) {
+      this.path = path;
+      this.size = size;
+      this.lastAccessTime = lastAccessTime;
+    }
+
+    static Optional<CachedItem> read(Path path) {
+      try {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.isDirectory() ? getDirectorySize(path) : attributes.size();
+        return Optional.of(new CachedItem(path, size, attributes.lastModifiedTime()));
+      } catch (IOException e) {
+        // The item was removed concurrently.
+        return Optional.empty();
+      }
+    }
+
+    private static long getDirectorySize(Path directory) throws IOException {
+      try (Stream<Path> files = Files.list(directory)) {
+        long size = 0;
+        for (Path file : (Iterable<Path>) files::iterator) {
+          size += Files.size(file);
+        }
+        return size;
+      }
+    }
+
+    Path getPath() {
+      return path;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    FileTime getLastAccessTime() {
+      return lastAccessTime;
+    }
+  }
+}
@@ -133,7 +133,7 @@ public class ModuleSplitterForShards {
     return split;
   }
 
-  private static SplittingPipeline createNativeLibrariesSplittingPipeline(
+  private SplittingPipeline createNativeLibrariesSplittingPipeline(
       ImmutableSet<OptimizationDimension> shardingDimensions) {
     ImmutableList.Builder<ModuleSplitSplitter> nativeSplitters = ImmutableList.builder();
     if (shardingDimensions.contains(OptimizationDimension.ABI)) {
@@ -141,7 +141,8 @@ public class ModuleSplitterForShards {
     }
     nativeSplitters.add(new SanitizerNativeLibrariesSplitter());
 
-    return new SplittingPipeline(nativeSplitters.build());
+    return new SplittingPipeline(
+        nativeSplitters.build(), SplittingPipeline.splitsMatchingDevice(deviceSpec));
   }
 
   private SplittingPipeline createResourcesSplittingPipeline(
@@ -161,7 +162,8 @@ public class ModuleSplitterForShards {
       resourceSplitters.add(new LanguageResourcesSplitter());
     }
 
-    return new SplittingPipeline(resourceSplitters.build());
+    return new SplittingPipeline(
+        resourceSplitters.build(), SplittingPipeline.splitsMatchingDevice(deviceSpec));
   }
 
   private SplittingPipeline createAssetsSplittingPipeline(
@@ -19,6 +19,7 @@ package com.android.tools.build.bundletool.shards;
 import static com.android.tools.build.bundletool.model.targeting.TargetingUtils.standaloneApkVariantTargeting;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 
+import com.android.tools.build.bundletool.io.ConcurrencyUtils;
 import com.android.tools.build.bundletool.mergers.ModuleSplitsToShardMerger;
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleModule;
@@ -29,12 +30,14 @@ import com.android.tools.build.bundletool.model.SourceStamp;
 import com.android.tools.build.bundletool.model.SourceStamp.StampType;
 import com.android.tools.build.bundletool.optimizations.ApkOptimizations;
 import com.android.tools.build.bundletool.splitters.CodeTransparencyInjector;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import java.nio.file.Path;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.inject.Inject;
 
 /** Generates standalone APKs sharded by required dimensions. */
@@ -45,6 +48,7 @@ public class StandaloneApksGenerator {
   private final Sharder sharder;
   private final ModuleSplitsToShardMerger shardsMerger;
   private final CodeTransparencyInjector codeTransparencyInjector;
+  private final ListeningExecutorService executorService;
 
   @Inject
   public StandaloneApksGenerator(
@@ -52,12 +56,14 @@ public class StandaloneApksGenerator {
       ModuleSplitterForShards moduleSplitter,
       Sharder sharder,
       ModuleSplitsToShardMerger shardsMerger,
-      AppBundle appBundle) {
+      AppBundle appBundle,
+      ListeningExecutorService executorService) {
     this.stampSource = stampSource;
     this.moduleSplitter = moduleSplitter;
     this.sharder = sharder;
     this.shardsMerger = shardsMerger;
     this.codeTransparencyInjector = new CodeTransparencyInjector(appBundle);
+    this.executorService = executorService;
   }
 
   /**
@@ -80,6 +86,8 @@ public class StandaloneApksGenerator {
    *   <li>ABI splits whose targeting is "abi=X"
    *   <li>Density splits whose targeting is "density=Y"
    * </ul>
+   *
+   * <p>Shards are merged in parallel and returned in the order of their configurations.
    */
   public ImmutableList<ModuleSplit> generateStandaloneApks(
       ImmutableList<BundleModule> modules, ApkOptimizations apkOptimizations) {
@@ -93,13 +101,22 @@ public class StandaloneApksGenerator {
                         .stream())
             .collect(toImmutableList());
 
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexCache = Maps.newHashMap();
-    return sharder.groupSplitsToShards(splits).stream()
-        .map(unfusedShard -> shardsMerger.mergeSingleShard(unfusedShard, dexCache))
-        .map(StandaloneApksGenerator::setVariantTargetingAndSplitType)
-        .map(this::writeSourceStampInManifest)
-        .map(codeTransparencyInjector::inject)
-        .collect(toImmutableList());
+    Map<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> dexCache =
+        new ConcurrentHashMap<>();
+    return ConcurrencyUtils.waitForAll(
+        sharder.groupSplitsToShards(splits).stream()
+            .map(
+                unfusedShard ->
+                    executorService.submit(() -> mergeSingleShard(unfusedShard, dexCache)))
+            .collect(toImmutableList()));
+  }
+
+  private ModuleSplit mergeSingleShard(
+      ImmutableList<ModuleSplit> unfusedShard,
+      Map<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> dexCache) {
+    ModuleSplit shard =
+        setVariantTargetingAndSplitType(shardsMerger.mergeSingleShard(unfusedShard, dexCache));
+    return codeTransparencyInjector.inject(writeSourceStampInManifest(shard));
   }
 
   /** Sets the variant targeting and split type to standalone. */
@@ -17,6 +17,7 @@
 package com.android.tools.build.bundletool.splitters;
 
 import com.android.bundle.Config.SuffixStripping;
+import com.android.bundle.Devices.DeviceSpec;
 import com.android.bundle.Targeting.Abi;
 import com.android.tools.build.bundletool.model.OptimizationDimension;
 import com.android.tools.build.bundletool.model.ResourceId;
@@ -73,6 +74,14 @@ public abstract class ApkGenerationConfiguration {
    */
   public abstract Optional<Integer> getMinSdkForAdditionalVariantWithV3Rotation();
 
+  /**
+   * Device for which the APKs are generated.
+   *
+   * <p>Optional. When set, variants and splits that cannot be served to this device are not
+   * generated.
+   */
+  public abstract Optional<DeviceSpec> getDeviceSpec();
+
   public abstract Builder toBuilder();
 
   public static Builder builder() {
@@ -123,6 +132,8 @@ public abstract class ApkGenerationConfiguration {
     public abstract Builder setMinSdkForAdditionalVariantWithV3Rotation(
         int minSdkForAdditionalVariantWithV3Rotation);
 
+    public abstract Builder setDeviceSpec(DeviceSpec deviceSpec);
+
     public abstract ApkGenerationConfiguration build();
   }
 
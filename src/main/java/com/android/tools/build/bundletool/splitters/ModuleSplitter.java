@@ -75,6 +75,7 @@ public class ModuleSplitter {
   private final Optional<String> stampSource;
   private final StampType stampType;
   private final AppBundle appBundle;
+  private final VariantIndependentSplitsCache variantIndependentSplitsCache;
 
   private final AbiPlaceholderInjector abiPlaceholderInjector;
   private final PinSpecInjector pinSpecInjector;
@@ -93,7 +94,8 @@ public class ModuleSplitter {
         lPlusVariantTargeting(),
         /* allModuleNames= */ ImmutableSet.of(),
         /* stampSource= */ Optional.empty(),
-        /* stampType= */ null);
+        /* stampType= */ null,
+        new VariantIndependentSplitsCache());
   }
 
   public static ModuleSplitter createNoStamp(
@@ -111,7 +113,8 @@ public class ModuleSplitter {
         variantTargeting,
         allModuleNames,
         /* stampSource= */ Optional.empty(),
-        /* stampType= */ null);
+        /* stampType= */ null,
+        new VariantIndependentSplitsCache());
   }
 
   public static ModuleSplitter create(
@@ -123,6 +126,32 @@ public class ModuleSplitter {
       ImmutableSet<String> allModuleNames,
       Optional<String> stampSource,
       StampType stampType) {
+    return create(
+        module,
+        bundleVersion,
+        appBundle,
+        apkGenerationConfiguration,
+        variantTargeting,
+        allModuleNames,
+        stampSource,
+        stampType,
+        new VariantIndependentSplitsCache());
+  }
+
+  /**
+   * Creates a splitter reusing the splits of the module which don't depend on the variant from
+   * {@code variantIndependentSplitsCache}, shared with the splitters of the other variants.
+   */
+  static ModuleSplitter create(
+      BundleModule module,
+      Version bundleVersion,
+      AppBundle appBundle,
+      ApkGenerationConfiguration apkGenerationConfiguration,
+      VariantTargeting variantTargeting,
+      ImmutableSet<String> allModuleNames,
+      Optional<String> stampSource,
+      StampType stampType,
+      VariantIndependentSplitsCache variantIndependentSplitsCache) {
     return new ModuleSplitter(
         module,
         bundleVersion,
@@ -131,7 +160,8 @@ public class ModuleSplitter {
         variantTargeting,
         allModuleNames,
         stampSource,
-        stampType);
+        stampType,
+        variantIndependentSplitsCache);
   }
 
   private ModuleSplitter(
@@ -142,7 +172,8 @@ public class ModuleSplitter {
       VariantTargeting variantTargeting,
       ImmutableSet<String> allModuleNames,
       Optional<String> stampSource,
-      StampType stampType) {
+      StampType stampType,
+      VariantIndependentSplitsCache variantIndependentSplitsCache) {
     this.module = checkNotNull(module);
     this.bundleVersion = checkNotNull(bundleVersion);
     this.appBundle = appBundle;
@@ -155,6 +186,7 @@ public class ModuleSplitter {
     this.allModuleNames = allModuleNames;
     this.stampSource = stampSource;
     this.stampType = stampType;
+    this.variantIndependentSplitsCache = variantIndependentSplitsCache;
   }
 
   public ImmutableList<ModuleSplit> splitModule() {
@@ -225,16 +257,27 @@ public class ModuleSplitter {
     ImmutableList.Builder<ModuleSplit> splits = ImmutableList.builder();
 
     // Resources splits.
-    SplittingPipeline resourcesPipeline = createResourcesSplittingPipeline();
-    splits.addAll(resourcesPipeline.split(ModuleSplit.forResources(module, variantTargeting)));
+    splits.addAll(
+        withVariantTargeting(
+            variantIndependentSplitsCache.getResourceSplits(
+                module.getName(),
+                () ->
+                    ImmutableList.copyOf(
+                        createResourcesSplittingPipeline()
+                            .split(ModuleSplit.forResources(module))))));
 
     // Native libraries splits.
     SplittingPipeline nativePipeline = createNativeLibrariesSplittingPipeline();
     splits.addAll(nativePipeline.split(ModuleSplit.forNativeLibraries(module, variantTargeting)));
 
     // Assets splits.
-    SplittingPipeline assetsPipeline = createAssetsSplittingPipeline();
-    splits.addAll(assetsPipeline.split(ModuleSplit.forAssets(module, variantTargeting)));
+    splits.addAll(
+        withVariantTargeting(
+            variantIndependentSplitsCache.getAssetSplits(
+                module.getName(),
+                () ->
+                    ImmutableList.copyOf(
+                        createAssetsSplittingPipeline().split(ModuleSplit.forAssets(module))))));
 
     // Dex Files.
     SplittingPipeline dexPipeline = createDexSplittingPipeline();
@@ -257,6 +300,16 @@ public class ModuleSplitter {
     return mergedSplits;
   }
 
+  /**
+   * Sets the variant targeting of splits which were generated independently of the variant, and
+   * thus have no variant targeting.
+   */
+  private ImmutableList<ModuleSplit> withVariantTargeting(ImmutableList<ModuleSplit> splits) {
+    return splits.stream()
+        .map(split -> split.toBuilder().setVariantTargeting(variantTargeting).build())
+        .collect(toImmutableList());
+  }
+
   /* Writes the final manifest that reflects the Split ID. */
   public ModuleSplit writeSplitIdInManifest(ModuleSplit moduleSplit) {
     String resolvedSuffix = suffixManager.createSuffix(moduleSplit);
@@ -327,7 +380,9 @@ public class ModuleSplitter {
       resourceSplitters.add(new LanguageResourcesSplitter(pinLangResourceToMaster));
     }
 
-    return new SplittingPipeline(resourceSplitters.build());
+    return new SplittingPipeline(
+        resourceSplitters.build(),
+        SplittingPipeline.splitsMatchingDevice(apkGenerationConfiguration.getDeviceSpec()));
   }
 
   /**
@@ -367,7 +422,9 @@ public class ModuleSplitter {
       nativeSplitters.add(new AbiNativeLibrariesSplitter());
     }
     nativeSplitters.add(new SanitizerNativeLibrariesSplitter());
-    return new SplittingPipeline(nativeSplitters.build());
+    return new SplittingPipeline(
+        nativeSplitters.build(),
+        SplittingPipeline.splitsMatchingDevice(apkGenerationConfiguration.getDeviceSpec()));
   }
 
   private SplittingPipeline createAssetsSplittingPipeline() {
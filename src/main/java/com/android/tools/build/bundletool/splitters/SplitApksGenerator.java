@@ -20,6 +20,7 @@ import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 
 import com.android.bundle.Targeting.VariantTargeting;
+import com.android.tools.build.bundletool.io.ConcurrencyUtils;
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.ModuleSplit;
@@ -28,6 +29,9 @@ import com.android.tools.build.bundletool.model.SourceStamp.StampType;
 import com.android.tools.build.bundletool.model.version.Version;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.util.List;
 import java.util.Optional;
 import javax.inject.Inject;
 
@@ -38,51 +42,75 @@ public final class SplitApksGenerator {
   private final Optional<SourceStamp> stampSource;
   private final VariantTargetingGenerator variantTargetingGenerator;
   private final AppBundle appBundle;
+  private final ListeningExecutorService executorService;
 
   @Inject
   public SplitApksGenerator(
       Version bundletoolVersion,
       Optional<SourceStamp> stampSource,
       VariantTargetingGenerator variantTargetingGenerator,
-      AppBundle appBundle) {
+      AppBundle appBundle,
+      ListeningExecutorService executorService) {
     this.bundletoolVersion = bundletoolVersion;
     this.stampSource = stampSource;
     this.variantTargetingGenerator = variantTargetingGenerator;
     this.appBundle = appBundle;
+    this.executorService = executorService;
   }
 
+  /**
+   * Generates the splits of the given modules for each of their variants.
+   *
+   * <p>Each module is split for each variant in parallel. The splits are returned in the same
+   * order as if they were generated sequentially: grouped by variant, then by module. Splits of a
+   * module which don't depend on the variant are only generated once.
+   */
   public ImmutableList<ModuleSplit> generateSplits(
       ImmutableList<BundleModule> modules, ApkGenerationConfiguration apkGenerationConfiguration) {
-    return variantTargetingGenerator
-        .generateVariantTargetings(modules, apkGenerationConfiguration)
-        .stream()
-        .flatMap(
-            variantTargeting ->
-                generateSplitApks(modules, apkGenerationConfiguration, variantTargeting).stream())
+    ImmutableSet<String> allModuleNames =
+        modules.stream().map(module -> module.getName().getName()).collect(toImmutableSet());
+    VariantIndependentSplitsCache variantIndependentSplitsCache =
+        new VariantIndependentSplitsCache();
+    ImmutableList<ListenableFuture<ImmutableList<ModuleSplit>>> splitsByVariantAndModule =
+        variantTargetingGenerator
+            .generateVariantTargetings(modules, apkGenerationConfiguration)
+            .stream()
+            .flatMap(
+                variantTargeting ->
+                    modules.stream()
+                        .map(
+                            module ->
+                                executorService.submit(
+                                    () ->
+                                        splitModule(
+                                            module,
+                                            apkGenerationConfiguration,
+                                            variantTargeting,
+                                            allModuleNames,
+                                            variantIndependentSplitsCache))))
+            .collect(toImmutableList());
+    return ConcurrencyUtils.waitForAll(splitsByVariantAndModule).stream()
+        .flatMap(List::stream)
         .collect(toImmutableList());
   }
 
-  private ImmutableList<ModuleSplit> generateSplitApks(
-      ImmutableList<BundleModule> modules,
+  private ImmutableList<ModuleSplit> splitModule(
+      BundleModule module,
       ApkGenerationConfiguration apkGenerationConfiguration,
-      VariantTargeting variantTargeting) {
-    ImmutableSet<String> allModuleNames =
-        modules.stream().map(module -> module.getName().getName()).collect(toImmutableSet());
-    ImmutableList.Builder<ModuleSplit> splits = ImmutableList.builder();
-
-    for (BundleModule module : modules) {
-      ModuleSplitter moduleSplitter =
-          ModuleSplitter.create(
-              module,
-              bundletoolVersion,
-              appBundle,
-              apkGenerationConfiguration,
-              variantTargeting,
-              allModuleNames,
-              stampSource.map(SourceStamp::getSource),
-              StampType.STAMP_TYPE_DISTRIBUTION_APK);
-      splits.addAll(moduleSplitter.splitModule());
-    }
-    return splits.build();
+      VariantTargeting variantTargeting,
+      ImmutableSet<String> allModuleNames,
+      VariantIndependentSplitsCache variantIndependentSplitsCache) {
+    ModuleSplitter moduleSplitter =
+        ModuleSplitter.create(
+            module,
+            bundletoolVersion,
+            appBundle,
+            apkGenerationConfiguration,
+            variantTargeting,
+            allModuleNames,
+            stampSource.map(SourceStamp::getSource),
+            StampType.STAMP_TYPE_DISTRIBUTION_APK,
+            variantIndependentSplitsCache);
+    return moduleSplitter.splitModule();
   }
 }
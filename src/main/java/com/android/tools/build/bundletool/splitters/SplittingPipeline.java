@@ -16,20 +16,59 @@
 
 package com.android.tools.build.bundletool.splitters;
 
+import static com.google.common.base.Predicates.alwaysTrue;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 
+import com.android.bundle.Devices.DeviceSpec;
+import com.android.bundle.Targeting.ApkTargeting;
+import com.android.tools.build.bundletool.device.ApkMatcher;
 import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.model.exceptions.IncompatibleDeviceException;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import java.util.Collection;
+import java.util.Optional;
+import java.util.function.Predicate;
 
 /** Pipeline chaining the execution of module splitters. */
 public final class SplittingPipeline {
 
   private final ImmutableList<ModuleSplitSplitter> splitters;
+  private final Predicate<ModuleSplit> splitFilter;
 
   public SplittingPipeline(ImmutableList<ModuleSplitSplitter> splitters) {
+    this(splitters, alwaysTrue());
+  }
+
+  /**
+   * Creates a pipeline which only passes the splits accepted by {@code splitFilter} from one
+   * splitter to the next.
+   */
+  public SplittingPipeline(
+      ImmutableList<ModuleSplitSplitter> splitters, Predicate<ModuleSplit> splitFilter) {
     this.splitters = splitters;
+    this.splitFilter = splitFilter;
+  }
+
+  /**
+   * Returns a filter of the splits that can be served to the given device, if any.
+   *
+   * <p>Only ABI and screen density splits are filtered out: whether they are served doesn't depend
+   * on the other splits, unlike language splits which are listed in the base master split.
+   *
+   * @throws IncompatibleDeviceException if the device is not compatible with the targeting of a
+   *     split
+   */
+  public static Predicate<ModuleSplit> splitsMatchingDevice(Optional<DeviceSpec> deviceSpec) {
+    if (!deviceSpec.isPresent()) {
+      return alwaysTrue();
+    }
+    ApkMatcher apkMatcher = new ApkMatcher(deviceSpec.get());
+    return split -> {
+      ApkTargeting apkTargeting = split.getApkTargeting();
+      return !(apkTargeting.hasAbiTargeting() || apkTargeting.hasScreenDensityTargeting())
+          || apkMatcher.matchesModuleSplitByApkTargeting(split);
+    };
   }
 
   public ImmutableList<ModuleSplitSplitter> getSplitters() {
@@ -44,6 +83,7 @@ public final class SplittingPipeline {
               .stream()
               .map(splitter::split)
               .flatMap(Collection::stream)
+              .filter(splitFilter)
               .collect(toImmutableList());
     }
     return splits;
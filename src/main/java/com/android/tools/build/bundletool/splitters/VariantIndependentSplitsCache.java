@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.splitters;
+
+import com.android.tools.build.bundletool.model.BundleModuleName;
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the splits of each module which are the same for all its variants, so that the splitters
+ * producing them run once per module instead of once per variant.
+ *
+ * <p>Resources and assets are split based on the {@link ApkGenerationConfiguration} only, so their
+ * splits don't depend on the variant they are generated for. Cached splits have no variant
+ * targeting, it is set by each variant.
+ *
+ * <p>A cache must only be shared by splitters using the same {@link ApkGenerationConfiguration}.
+ * It is safe to use from multiple threads, splits of a module being computed only once.
+ */
+final class VariantIndependentSplitsCache {
+
+  private final ConcurrentMap<BundleModuleName, Supplier<ImmutableList<ModuleSplit>>>
+      resourceSplits = new ConcurrentHashMap<>();
+  private final ConcurrentMap<BundleModuleName, Supplier<ImmutableList<ModuleSplit>>>
+      assetSplits = new ConcurrentHashMap<>();
+
+  /** Returns the resource splits of the module, computing them with {@code splitter} if needed. */
+  ImmutableList<ModuleSplit> getResourceSplits(
+      BundleModuleName moduleName, Supplier<ImmutableList<ModuleSplit>> splitter) {
+    return resourceSplits.computeIfAbsent(moduleName, unused -> Suppliers.memoize(splitter)).get();
+  }
+
+  /** Returns the asset splits of the module, computing them with {@code splitter} if needed. */
+  ImmutableList<ModuleSplit> getAssetSplits(
+      BundleModuleName moduleName, Supplier<ImmutableList<ModuleSplit>> splitter) {
+    return assetSplits.computeIfAbsent(moduleName, unused -> Suppliers.memoize(splitter)).get();
+  }
+}
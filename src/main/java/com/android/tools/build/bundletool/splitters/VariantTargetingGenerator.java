@@ -15,12 +15,16 @@
  */
 package com.android.tools.build.bundletool.splitters;
 
+import static com.android.tools.build.bundletool.model.targeting.AlternativeVariantTargetingPopulator.populateAlternativeSdkVersionTargeting;
 import static com.android.tools.build.bundletool.model.targeting.TargetingUtils.generateAllVariantTargetings;
 
+import com.android.bundle.Devices.DeviceSpec;
 import com.android.bundle.Targeting.VariantTargeting;
+import com.android.tools.build.bundletool.device.VariantMatcher;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import java.util.Optional;
 import javax.inject.Inject;
 
 /**
@@ -49,10 +53,58 @@ public class VariantTargetingGenerator {
         generateNonSdkRuntimeVariantTargetings(modules, apkGenerationConfiguration);
     ImmutableSet<VariantTargeting> sdkRuntimeVariantTargetings =
         sdkRuntimeVariantGenerator.generate(nonSdkRuntimeVariantTargetings);
-    return ImmutableSet.<VariantTargeting>builder()
-        .addAll(nonSdkRuntimeVariantTargetings)
-        .addAll(sdkRuntimeVariantTargetings)
-        .build();
+    ImmutableSet<VariantTargeting> variantTargetings =
+        ImmutableSet.<VariantTargeting>builder()
+            .addAll(nonSdkRuntimeVariantTargetings)
+            .addAll(sdkRuntimeVariantTargetings)
+            .build();
+    if (apkGenerationConfiguration.getDeviceSpec().isPresent()) {
+      return retainVariantTargetingsMatchingDevice(
+          variantTargetings,
+          apkGenerationConfiguration.getDeviceSpec().get(),
+          apkGenerationConfiguration.isForInstantAppVariants(),
+          getBaseModuleMaxSdkVersion(modules));
+    }
+    return variantTargetings;
+  }
+
+  /**
+   * Retains the variant targetings of variants that the device would be served, so that splits of
+   * the other variants are never generated.
+   *
+   * <p>Variants of split APKs are matched considering each other as SDK version alternatives, like
+   * they are once generated. Variants of instant APKs have no alternatives.
+   *
+   * <p>Variants are only filtered: no variant is retained for a device which is not compatible with
+   * any of them, e.g. instant variants for a pre-L device. Whether the device is compatible with
+   * the bundle is checked once all APKs are generated.
+   */
+  private static ImmutableSet<VariantTargeting> retainVariantTargetingsMatchingDevice(
+      ImmutableSet<VariantTargeting> variantTargetings,
+      DeviceSpec deviceSpec,
+      boolean forInstantAppVariants,
+      Optional<Integer> maxSdkVersion) {
+    ImmutableList<VariantTargeting> variantTargetingsWithAlternatives =
+        forInstantAppVariants
+            ? variantTargetings.asList()
+            : populateAlternativeSdkVersionTargeting(variantTargetings.asList(), maxSdkVersion);
+    VariantMatcher variantMatcher = new VariantMatcher(deviceSpec);
+    ImmutableSet.Builder<VariantTargeting> matchingVariantTargetings = ImmutableSet.builder();
+    for (int i = 0; i < variantTargetings.size(); i++) {
+      VariantTargeting variantTargetingWithAlternatives = variantTargetingsWithAlternatives.get(i);
+      if (variantMatcher.matchesVariantTargeting(variantTargetingWithAlternatives)) {
+        matchingVariantTargetings.add(variantTargetings.asList().get(i));
+      }
+    }
+    return matchingVariantTargetings.build();
+  }
+
+  /** Returns the maxSdkVersion of the base module, which bounds the SDK range of split APKs. */
+  private static Optional<Integer> getBaseModuleMaxSdkVersion(ImmutableList<BundleModule> modules) {
+    return modules.stream()
+        .filter(BundleModule::isBaseModule)
+        .findFirst()
+        .flatMap(baseModule -> baseModule.getAndroidManifest().getMaxSdkVersion());
   }
 
   private ImmutableSet<VariantTargeting> generateNonSdkRuntimeVariantTargetings(
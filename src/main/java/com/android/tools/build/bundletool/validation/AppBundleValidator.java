@@ -16,9 +16,19 @@
 
 package com.android.tools.build.bundletool.validation;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
 import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.model.BundleModule.SpecialModuleEntry;
+import com.android.tools.build.bundletool.model.BundleModuleName;
+import com.android.tools.build.bundletool.model.utils.BundleParser;
+import com.android.tools.build.bundletool.model.utils.BundleZipReader;
+import com.android.tools.build.bundletool.model.utils.ZipUtils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.zip.ZipFile;
 
 /** Validates the files and configuration for the bundle. */
@@ -63,12 +73,15 @@ public class AppBundleValidator {
 
   private final ImmutableList<SubValidator> allBundleSubValidators;
   private final ImmutableList<SubValidator> allBundleFileSubValidators;
+  private final ImmutableList<SubValidator> extraSubValidators;
 
   private AppBundleValidator(
       ImmutableList<SubValidator> allBundleSubValidators,
-      ImmutableList<SubValidator> allBundleFileSubValidators) {
+      ImmutableList<SubValidator> allBundleFileSubValidators,
+      ImmutableList<SubValidator> extraSubValidators) {
     this.allBundleSubValidators = allBundleSubValidators;
     this.allBundleFileSubValidators = allBundleFileSubValidators;
+    this.extraSubValidators = extraSubValidators;
   }
 
   public static AppBundleValidator create() {
@@ -85,7 +98,8 @@ public class AppBundleValidator {
             ImmutableList.<SubValidator>builder()
                 .addAll(DEFAULT_BUNDLE_FILE_SUB_VALIDATORS)
                 .addAll(extraSubValidators)
-                .build());
+                .build(),
+            extraSubValidators);
     return validator;
   }
 
@@ -98,6 +112,53 @@ public class AppBundleValidator {
     new ValidatorRunner(allBundleFileSubValidators).validateBundleZipFile(bundleFile);
   }
 
+  /**
+   * Validates the given App Bundle zip file, read from its memory mapping.
+   *
+   * <p>Extra sub-validators are given the bundle opened as a {@link ZipFile}, so that those written
+   * against the {@link ZipFile} hooks keep working. The file is only opened if there are any.
+   *
+   * <p>Note that this method performs different checks than {@link #validate(AppBundle)}.
+   */
+  public void validateFile(BundleZipReader bundleFile) {
+    new ValidatorRunner(DEFAULT_BUNDLE_FILE_SUB_VALIDATORS).validateBundleZipFile(bundleFile);
+
+    if (!extraSubValidators.isEmpty()) {
+      try (ZipFile bundleZip = new ZipFile(bundleFile.getPath().toFile())) {
+        new ValidatorRunner(extraSubValidators).validateBundleZipFile(bundleZip);
+      } catch (IOException e) {
+        throw new UncheckedIOException(
+            String.format("Error reading the bundle file '%s'.", bundleFile.getPath()), e);
+      }
+    }
+  }
+
+  /**
+   * Validates the files of the given modules of the App Bundle zip file, from their paths only.
+   * Like in {@link #validate(AppBundle)}, special module files such as the manifest are not
+   * passed to the sub-validators.
+   *
+   * <p>This is what is left to validate of modules which are never parsed, since {@link
+   * #validateFile(BundleZipReader)} already validated all zip entries. Checks that require the
+   * manifest or other protos of the modules are performed by {@link #validate(AppBundle)}.
+   */
+  public void validateModuleFiles(
+      BundleZipReader bundleFile, ImmutableSet<BundleModuleName> moduleNames) {
+    new ValidatorRunner(allBundleSubValidators)
+        .validateModuleFiles(
+            bundleFile.getEntries().stream()
+                .filter(entry -> !entry.isDirectory())
+                .filter(
+                    entry ->
+                        BundleParser.extractModuleName(
+                                entry.getPath(), AppBundle.NON_MODULE_DIRECTORIES)
+                            .filter(moduleNames::contains)
+                            .isPresent())
+                .map(entry -> ZipUtils.convertBundleToModulePath(entry.getPath()))
+                .filter(moduleFile -> !SpecialModuleEntry.getSpecialEntry(moduleFile).isPresent())
+                .collect(toImmutableList()));
+  }
+
   /**
    * Validates the given App Bundle.
    *
@@ -17,6 +17,7 @@
 package com.android.tools.build.bundletool.validation;
 
 import com.android.tools.build.bundletool.model.exceptions.InvalidBundleException;
+import com.android.tools.build.bundletool.model.utils.BundleZipReader;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -25,11 +26,20 @@ public class BundleZipValidator extends SubValidator {
 
   @Override
   public void validateBundleZipEntry(ZipFile bundleFile, ZipEntry zipEntry) {
-    if (zipEntry.isDirectory()) {
+    checkNotDirectory(zipEntry.isDirectory(), zipEntry.getName());
+  }
+
+  @Override
+  public void validateBundleZipEntry(BundleZipReader bundleFile, BundleZipReader.Entry zipEntry) {
+    checkNotDirectory(zipEntry.isDirectory(), zipEntry.getName());
+  }
+
+  private static void checkNotDirectory(boolean isDirectory, String entryName) {
+    if (isDirectory) {
       throw InvalidBundleException.builder()
           .withUserMessage(
               "The bundle zip file contains directory zip entry '%s' which is not allowed.",
-              zipEntry.getName())
+              entryName)
           .build();
     }
   }
@@ -23,9 +23,11 @@ import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleModule.SpecialModuleEntry;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.model.exceptions.InvalidBundleException;
+import com.android.tools.build.bundletool.model.utils.BundleZipReader;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Files;
 import java.util.Collections;
+import java.util.function.Predicate;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -41,31 +43,46 @@ public class MandatoryFilesPresenceValidator extends SubValidator {
   @Override
   public void validateModuleZipFile(ZipFile moduleFile) {
     checkModuleHasAndroidManifest(
-        moduleFile,
+        path -> moduleFile.getEntry(path) != null,
         /* moduleBaseDir= */ ZipPath.create(""),
         /* moduleName= */ Files.getNameWithoutExtension(moduleFile.getName()));
   }
 
   @Override
   public void validateBundleZipFile(ZipFile bundleFile) {
-    ImmutableSet<ZipPath> moduleDirectories =
+    validateBundleEntries(
         Collections.list(bundleFile.entries()).stream()
             .map(ZipEntry::getName)
+            .collect(toImmutableSet()));
+  }
+
+  @Override
+  public void validateBundleZipFile(BundleZipReader bundleFile) {
+    validateBundleEntries(
+        bundleFile.getEntries().stream()
+            .map(BundleZipReader.Entry::getName)
+            .collect(toImmutableSet()));
+  }
+
+  private void validateBundleEntries(ImmutableSet<String> entryNames) {
+    ImmutableSet<ZipPath> moduleDirectories =
+        entryNames.stream()
             .map(ZipPath::create)
             .filter(entryPath -> entryPath.getNameCount() > 1)
             .map(entryPath -> entryPath.getName(0))
             .filter(not(nonModuleDirectories::contains))
             .collect(toImmutableSet());
 
-    checkBundleHasBundleConfig(bundleFile);
+    checkBundleHasBundleConfig(entryNames::contains);
 
     for (ZipPath moduleDir : moduleDirectories) {
-      checkModuleHasAndroidManifest(bundleFile, moduleDir, /* moduleName= */ moduleDir.toString());
+      checkModuleHasAndroidManifest(
+          entryNames::contains, moduleDir, /* moduleName= */ moduleDir.toString());
     }
   }
 
-  private static void checkBundleHasBundleConfig(ZipFile bundleFile) {
-    if (bundleFile.getEntry(AppBundle.BUNDLE_CONFIG_FILE_NAME) == null) {
+  private static void checkBundleHasBundleConfig(Predicate<String> bundleHasEntry) {
+    if (!bundleHasEntry.test(AppBundle.BUNDLE_CONFIG_FILE_NAME)) {
       throw InvalidBundleException.builder()
           .withUserMessage(
               "The archive doesn't seem to be an App Bundle, it is missing required file '%s'.",
@@ -75,12 +92,12 @@ public class MandatoryFilesPresenceValidator extends SubValidator {
   }
 
   private static void checkModuleHasAndroidManifest(
-      ZipFile zipFile, ZipPath moduleBaseDir, String moduleName) {
+      Predicate<String> zipHasEntry, ZipPath moduleBaseDir, String moduleName) {
 
     ZipPath moduleManifestPath =
         moduleBaseDir.resolve(SpecialModuleEntry.ANDROID_MANIFEST.getPath());
 
-    if (zipFile.getEntry(moduleManifestPath.toString()) == null) {
+    if (!zipHasEntry.test(moduleManifestPath.toString())) {
       throw InvalidBundleException.builder()
           .withUserMessage(
               "Module '%s' is missing mandatory file '%s'.",
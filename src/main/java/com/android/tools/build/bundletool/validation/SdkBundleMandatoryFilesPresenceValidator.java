@@ -20,6 +20,7 @@ import static com.android.tools.build.bundletool.model.utils.BundleParser.SDK_MO
 
 import com.android.tools.build.bundletool.model.exceptions.InvalidBundleException;
 import com.android.tools.build.bundletool.model.utils.BundleParser;
+import com.android.tools.build.bundletool.model.utils.BundleZipReader;
 import java.util.zip.ZipFile;
 
 /**
@@ -31,11 +32,22 @@ public class SdkBundleMandatoryFilesPresenceValidator extends SubValidator {
   @Override
   public void validateBundleZipFile(ZipFile bundleFile) {
     if (bundleFile.getEntry(SDK_MODULES_FILE_NAME) == null) {
-      throw InvalidBundleException.builder()
-          .withUserMessage(
-              "The archive doesn't seem to be an SDK Bundle, it is missing required file '%s'.",
-              SDK_MODULES_FILE_NAME)
-          .build();
+      throw missingModulesFile();
     }
   }
+
+  @Override
+  public void validateBundleZipFile(BundleZipReader bundleFile) {
+    if (!bundleFile.getEntry(SDK_MODULES_FILE_NAME).isPresent()) {
+      throw missingModulesFile();
+    }
+  }
+
+  private static InvalidBundleException missingModulesFile() {
+    return InvalidBundleException.builder()
+        .withUserMessage(
+            "The archive doesn't seem to be an SDK Bundle, it is missing required file '%s'.",
+            SDK_MODULES_FILE_NAME)
+        .build();
+  }
 }
@@ -19,6 +19,7 @@ package com.android.tools.build.bundletool.validation;
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.model.utils.BundleZipReader;
 import com.google.common.collect.ImmutableList;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -36,11 +37,20 @@ public abstract class SubValidator {
   public void validateModuleZipFile(ZipFile moduleFile) {}
 
   // Validations of the Bundle zip file.
+  //
+  // Built-in sub-validators are given bundles read through a BundleZipReader where possible.
+  // Extra sub-validators, e.g. passed to build-apks, are always given the bundle as a ZipFile.
 
   public void validateBundleZipFile(ZipFile bundleFile) {}
 
   public void validateBundleZipEntry(ZipFile bundleFile, ZipEntry zipEntry) {}
 
+  /** Validates the given Bundle zip file, read from its memory mapping. */
+  public void validateBundleZipFile(BundleZipReader bundleFile) {}
+
+  /** Validates an entry of the given Bundle zip file, read from its memory mapping. */
+  public void validateBundleZipEntry(BundleZipReader bundleFile, BundleZipReader.Entry zipEntry) {}
+
   /** Validates the given SDK Modules zip file. */
   public void validateSdkModulesZipFile(ZipFile modulesFile) {}
 
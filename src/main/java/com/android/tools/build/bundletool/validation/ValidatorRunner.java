@@ -23,6 +23,7 @@ import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.SdkBundle;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.model.utils.BundleZipReader;
 import com.google.common.collect.ImmutableList;
 import java.util.Enumeration;
 import java.util.zip.ZipEntry;
@@ -49,6 +50,16 @@ public class ValidatorRunner {
     }
   }
 
+  /** Validates the given App Bundle zip file, read from its memory mapping. */
+  public void validateBundleZipFile(BundleZipReader bundleFile) {
+    subValidators.forEach(subValidator -> subValidator.validateBundleZipFile(bundleFile));
+
+    for (BundleZipReader.Entry zipEntry : bundleFile.getEntries()) {
+      subValidators.forEach(
+          subValidator -> subValidator.validateBundleZipEntry(bundleFile, zipEntry));
+    }
+  }
+
   /** Validates the given App Bundle module zip file. */
   public void validateModuleZipFile(ZipFile moduleFile) {
     subValidators.forEach(subValidator -> subValidator.validateModuleZipFile(moduleFile));
@@ -69,6 +80,11 @@ public class ValidatorRunner {
     subValidators.forEach(subValidator -> validateSdkBundleUsingSubValidator(bundle, subValidator));
   }
 
+  /** Validates the given module files from their paths only. */
+  public void validateModuleFiles(ImmutableList<ZipPath> moduleFiles) {
+    subValidators.forEach(subValidator -> moduleFiles.forEach(subValidator::validateModuleFile));
+  }
+
   /** Interprets given modules as a bundle and validates it. */
   public void validateBundleModules(ImmutableList<BundleModule> modules) {
     subValidators.forEach(
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.androidtools;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.build.bundletool.model.exceptions.CommandExecutionException;
+import com.google.common.collect.ImmutableList;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class Aapt2DaemonPoolTest {
+
+  /**
+   * Fake aapt2 implementing the daemon protocol: creates the file passed with "-o", fails commands
+   * on inputs containing "invalid", takes a second on inputs containing "slow" and exits once if
+   * the "crash-once" file exists. Starts and stops of daemons are logged, and the "slow-started"
+   * file is created once a slow command is running.
+   */
+  private static final String FAKE_AAPT2_SCRIPT =
+      String.join(
+          "\n",
+          "#!/bin/sh",
+          "dir=$(dirname \"$0\")",
+          "echo started >> \"$dir/starts.log\"",
+          "echo Ready",
+          "output=''",
+          "next_is_output=false",
+          "fail=false",
+          "slow=false",
+          "while IFS= read -r line; do",
+          "  if [ -z \"$line\" ]; then",
+          "    if [ -f \"$dir/crash-once\" ]; then rm \"$dir/crash-once\"; exit 1; fi",
+          "    if [ \"$slow\" = true ]; then touch \"$dir/slow-started\"; sleep 1; fi",
+          "    if [ \"$fail\" = true ]; then",
+          "      echo \"error: failed to convert $input\"",
+          "      echo Error",
+          "    else",
+          "      touch \"$output\"",
+          "    fi",
+          "    echo Done",
+          "    output=''",
+          "    fail=false",
+          "    slow=false",
+          "  elif [ \"$line\" = quit ]; then",
+          "    echo stopped >> \"$dir/stops.log\"",
+          "    exit 0",
+          "  elif [ \"$next_is_output\" = true ]; then",
+          "    output=\"$line\"",
+          "    next_is_output=false",
+          "  elif [ \"$line\" = -o ]; then",
+          "    next_is_output=true",
+          "  else",
+          "    input=\"$line\"",
+          "    case \"$line\" in *invalid*) fail=true;; esac",
+          "    case \"$line\" in *slow*) slow=true;; esac",
+          "  fi",
+          "done",
+          "");
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path tmpDir;
+  private Path aapt2Path;
+
+  @Before
+  public void setUp() throws Exception {
+    tmpDir = tmp.getRoot().toPath();
+    aapt2Path = tmpDir.resolve("aapt2");
+    Files.write(aapt2Path, FAKE_AAPT2_SCRIPT.getBytes(UTF_8));
+    assertThat(aapt2Path.toFile().setExecutable(true)).isTrue();
+  }
+
+  @Test
+  public void executesCommandsOnSameDaemon() throws Exception {
+    Aapt2Command aapt2Command =
+        Aapt2Command.createDaemonPoolFromExecutablePath(aapt2Path, /* maxDaemons= */ 2);
+
+    aapt2Command.convertApkProtoToBinary(
+        tmpDir.resolve("proto.apk"), tmpDir.resolve("binary.apk"));
+    aapt2Command.optimizeToSparseResourceTables(
+        tmpDir.resolve("binary.apk"), tmpDir.resolve("optimized.apk"));
+
+    assertThat(Files.exists(tmpDir.resolve("binary.apk"))).isTrue();
+    assertThat(Files.exists(tmpDir.resolve("optimized.apk"))).isTrue();
+    assertThat(Files.readAllLines(tmpDir.resolve("starts.log"))).hasSize(1);
+  }
+
+  @Test
+  public void commandFails_throwsAndDaemonIsReused() throws Exception {
+    Aapt2Command aapt2Command =
+        Aapt2Command.createDaemonPoolFromExecutablePath(aapt2Path, /* maxDaemons= */ 2);
+
+    CommandExecutionException exception =
+        assertThrows(
+            CommandExecutionException.class,
+            () ->
+                aapt2Command.convertApkProtoToBinary(
+                    tmpDir.resolve("invalid.apk"), tmpDir.resolve("binary1.apk")));
+    aapt2Command.convertApkProtoToBinary(
+        tmpDir.resolve("proto.apk"), tmpDir.resolve("binary2.apk"));
+
+    assertThat(exception)
+        .hasMessageThat()
+        .contains("error: failed to convert " + tmpDir.resolve("invalid.apk"));
+    assertThat(Files.exists(tmpDir.resolve("binary2.apk"))).isTrue();
+    assertThat(Files.readAllLines(tmpDir.resolve("starts.log"))).hasSize(1);
+  }
+
+  @Test
+  public void daemonDies_commandRetriedOnNewDaemon() throws Exception {
+    Aapt2Command aapt2Command =
+        Aapt2Command.createDaemonPoolFromExecutablePath(aapt2Path, /* maxDaemons= */ 2);
+    Files.createFile(tmpDir.resolve("crash-once"));
+
+    aapt2Command.convertApkProtoToBinary(
+        tmpDir.resolve("proto.apk"), tmpDir.resolve("binary.apk"));
+
+    assertThat(Files.exists(tmpDir.resolve("binary.apk"))).isTrue();
+    assertThat(Files.readAllLines(tmpDir.resolve("starts.log"))).hasSize(2);
+  }
+
+  @Test
+  public void commandInterrupted_nextCommandRunsOnNewDaemon() throws Exception {
+    Aapt2Command aapt2Command =
+        Aapt2Command.createDaemonPoolFromExecutablePath(aapt2Path, /* maxDaemons= */ 1);
+    AtomicReference<Throwable> interruptedCommandFailure = new AtomicReference<>();
+    Thread commandThread =
+        new Thread(
+            () -> {
+              try {
+                aapt2Command.convertApkProtoToBinary(
+                    tmpDir.resolve("slow.apk"), tmpDir.resolve("binary1.apk"));
+              } catch (Throwable t) {
+                interruptedCommandFailure.set(t);
+              }
+            });
+    commandThread.start();
+    while (!Files.exists(tmpDir.resolve("slow-started"))) {
+      Thread.sleep(10);
+    }
+
+    commandThread.interrupt();
+    commandThread.join();
+    aapt2Command.convertApkProtoToBinary(
+        tmpDir.resolve("proto.apk"), tmpDir.resolve("binary2.apk"));
+
+    assertThat(interruptedCommandFailure.get()).isInstanceOf(CommandExecutionException.class);
+    assertThat(interruptedCommandFailure.get())
+        .hasCauseThat()
+        .isInstanceOf(InterruptedException.class);
+    assertThat(Files.exists(tmpDir.resolve("binary2.apk"))).isTrue();
+    assertThat(Files.readAllLines(tmpDir.resolve("starts.log"))).hasSize(2);
+  }
+
+  @Test
+  public void concurrentCommands_atMostMaxDaemonsStarted() throws Exception {
+    Aapt2Command aapt2Command =
+        Aapt2Command.createDaemonPoolFromExecutablePath(aapt2Path, /* maxDaemons= */ 1);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      ImmutableList<Future<?>> futures =
+          IntStream.range(0, 3)
+              .mapToObj(
+                  i ->
+                      executor.submit(
+                          () ->
+                              aapt2Command.convertApkProtoToBinary(
+                                  tmpDir.resolve("slow" + i + ".apk"),
+                                  tmpDir.resolve("binary" + i + ".apk"))))
+              .collect(toImmutableList());
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    for (int i = 0; i < 3; i++) {
+      assertThat(Files.exists(tmpDir.resolve("binary" + i + ".apk"))).isTrue();
+    }
+    assertThat(Files.readAllLines(tmpDir.resolve("starts.log"))).hasSize(1);
+  }
+
+  @Test
+  public void close_stopsDaemons() throws Exception {
+    Aapt2Command aapt2Command =
+        Aapt2Command.createDaemonPoolFromExecutablePath(aapt2Path, /* maxDaemons= */ 2);
+    aapt2Command.convertApkProtoToBinary(
+        tmpDir.resolve("proto.apk"), tmpDir.resolve("binary.apk"));
+
+    aapt2Command.close();
+
+    assertThat(Files.readAllLines(tmpDir.resolve("stops.log"))).hasSize(1);
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            aapt2Command.convertApkProtoToBinary(
+                tmpDir.resolve("proto.apk"), tmpDir.resolve("binary2.apk")));
+  }
+}
@@ -30,12 +30,15 @@ import static com.android.tools.build.bundletool.commands.BuildApksCommand.ApkBu
 import static com.android.tools.build.bundletool.commands.BuildApksCommand.ApkBuildMode.UNIVERSAL;
 import static com.android.tools.build.bundletool.commands.BuildApksCommand.OutputFormat.DIRECTORY;
 import static com.android.tools.build.bundletool.commands.ExtractApksCommand.ALL_MODULES_SHORTCUT;
+import static com.android.tools.build.bundletool.model.AndroidManifest.ANDROID_NAMESPACE_URI;
 import static com.android.tools.build.bundletool.model.AndroidManifest.DEVELOPMENT_SDK_VERSION;
 import static com.android.tools.build.bundletool.model.BundleModule.ASSETS_DIRECTORY;
+import static com.android.tools.build.bundletool.model.BundleModule.MANIFEST_FILENAME;
 import static com.android.tools.build.bundletool.model.OptimizationDimension.ABI;
 import static com.android.tools.build.bundletool.model.OptimizationDimension.LANGUAGE;
 import static com.android.tools.build.bundletool.model.OptimizationDimension.TEXTURE_COMPRESSION_FORMAT;
 import static com.android.tools.build.bundletool.model.SourceStamp.STAMP_SOURCE_METADATA_KEY;
+import static com.android.tools.build.bundletool.model.utils.FileNames.APK_FINGERPRINTS_FILE;
 import static com.android.tools.build.bundletool.model.utils.ResourcesUtils.MDPI_VALUE;
 import static com.android.tools.build.bundletool.model.utils.ResultUtils.apexApkVariants;
 import static com.android.tools.build.bundletool.model.utils.ResultUtils.archivedApkVariants;
@@ -81,6 +84,11 @@ import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.with
 import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withTargetSdkVersion;
 import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withTitle;
 import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withUsesSplit;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlAttribute;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlDecimalIntegerAttribute;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlElement;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlNamespace;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlNode;
 import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.LDPI;
 import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.MDPI;
 import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.TEST_LABEL_RESOURCE_ID;
@@ -125,12 +133,14 @@ import static com.google.common.collect.MoreCollectors.onlyElement;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth8.assertThat;
 import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Comparator.comparing;
 import static junit.framework.TestCase.fail;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import com.android.aapt.ConfigurationOuterClass.Configuration;
+import com.android.aapt.Resources.XmlNode;
 import com.android.apex.ApexManifestProto.ApexManifest;
 import com.android.apksig.ApkVerifier;
 import com.android.bundle.CodeTransparencyOuterClass.CodeRelatedFile;
@@ -154,6 +164,7 @@ import com.android.bundle.Config.BundleConfig;
 import com.android.bundle.Config.BundleConfig.BundleType;
 import com.android.bundle.Config.Bundletool;
 import com.android.bundle.Config.Optimizations;
+import com.android.bundle.Config.ResourceOptimizations.SparseEncoding;
 import com.android.bundle.Config.SplitDimension.Value;
 import com.android.bundle.Config.StandaloneConfig;
 import com.android.bundle.Files.ApexImages;
@@ -174,6 +185,7 @@ import com.android.bundle.Targeting.TextureCompressionFormat;
 import com.android.bundle.Targeting.TextureCompressionFormatTargeting;
 import com.android.bundle.Targeting.VariantTargeting;
 import com.android.tools.build.bundletool.TestData;
+import com.android.tools.build.bundletool.androidtools.Aapt2Command;
 import com.android.tools.build.bundletool.commands.BuildApksCommand.SystemApkOption;
 import com.android.tools.build.bundletool.device.AdbServer;
 import com.android.tools.build.bundletool.io.AppBundleSerializer;
@@ -181,6 +193,7 @@ import com.android.tools.build.bundletool.model.AndroidManifest;
 import com.android.tools.build.bundletool.model.ApkModifier;
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleMetadata;
+import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.SigningConfiguration;
 import com.android.tools.build.bundletool.model.SourceStamp;
 import com.android.tools.build.bundletool.model.ZipPath;
@@ -191,6 +204,7 @@ import com.android.tools.build.bundletool.model.utils.CertificateHelper;
 import com.android.tools.build.bundletool.model.utils.files.FilePreconditions;
 import com.android.tools.build.bundletool.model.version.BundleToolVersion;
 import com.android.tools.build.bundletool.model.version.Version;
+import com.android.tools.build.bundletool.testing.Aapt2Helper;
 import com.android.tools.build.bundletool.testing.ApkSetUtils;
 import com.android.tools.build.bundletool.testing.AppBundleBuilder;
 import com.android.tools.build.bundletool.testing.BundleConfigBuilder;
@@ -201,6 +215,8 @@ import com.android.tools.build.bundletool.testing.FileUtils;
 import com.android.tools.build.bundletool.testing.ResourceTableBuilder;
 import com.android.tools.build.bundletool.testing.TestModule;
 import com.android.tools.build.bundletool.testing.truth.zip.TruthZip;
+import com.android.tools.build.bundletool.validation.SubValidator;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultiset;
@@ -217,13 +233,16 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.Int32Value;
 import dagger.Component;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
@@ -234,9 +253,14 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import javax.inject.Inject;
@@ -964,6 +988,37 @@ public class BuildApksManagerTest {
     assertThat(instantApkVariants(result)).isNotEmpty();
   }
 
+  @Test
+  public void buildApksCommand_instantModule_preLDeviceSpec_generatesStandaloneApks()
+      throws Exception {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                builder -> builder.setManifest(androidManifest("com.app", withInstant(true))))
+            .build();
+
+    TestComponent.useTestModule(
+        this,
+        createTestModuleBuilder()
+            .withAppBundle(appBundle)
+            .withOutputPath(outputFilePath)
+            .withDeviceSpec(
+                mergeSpecs(
+                    sdkVersion(19), abis("x86"), density(DensityAlias.MDPI), locales("en-US")))
+            .build());
+
+    buildApksManager.execute();
+
+    ZipFile apkSetFile = openZipFile(outputFilePath.toFile());
+    BuildApksResult result = extractTocFromApkSetFile(apkSetFile, outputDir);
+
+    // Instant APKs are not served below L, but that doesn't make the device incompatible.
+    assertThat(standaloneApkVariants(result)).isNotEmpty();
+    assertThat(splitApkVariants(result)).isEmpty();
+    assertThat(instantApkVariants(result)).isEmpty();
+  }
+
   @Test
   public void buildApksCommand_persistentMode() throws Exception {
     AppBundle appBundle =
@@ -3297,6 +3352,88 @@ public class BuildApksManagerTest {
     }
   }
 
+  @Test
+  public void concurrentPhasesFail_failureOfFirstPhaseReportedAndPhaseThreadsStopped()
+      throws Exception {
+    CountDownLatch standaloneDexMergingStarted = new CountDownLatch(1);
+    ByteSource invalidDexContent =
+        new ByteSource() {
+          @Override
+          public InputStream openStream() {
+            // Only read by the dex merger of the standalone APKs phase.
+            standaloneDexMergingStarted.countDown();
+            return new ByteArrayInputStream("not a dex file".getBytes(UTF_8));
+          }
+        };
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                builder ->
+                    builder
+                        .addFile("dex/classes.dex", TestData.readBytes("testdata/dex/classes.dex"))
+                        .setManifest(androidManifest("com.test.app"))
+                        .setResourceTable(resourceTableWithTestLabel("Test feature")))
+            .addModule(
+                new BundleModuleBuilder("module")
+                    .setManifest(
+                        androidManifestForFeature(
+                            "com.test.app",
+                            withTitle("@string/test_label", TEST_LABEL_RESOURCE_ID)))
+                    .build()
+                    .toBuilder()
+                    // Merging this dex file into the standalone APK fails.
+                    .addEntry(
+                        ModuleEntry.builder()
+                            .setPath(ZipPath.create("dex/classes.dex"))
+                            .setContent(invalidDexContent)
+                            .build())
+                    .build())
+            .build();
+    // Validation of the bundle merged for split APKs fails, after the standalone APKs failed.
+    SubValidator failingValidator =
+        new SubValidator() {
+          @Override
+          public void validateBundle(AppBundle bundle) {
+            try {
+              assertThat(standaloneDexMergingStarted.await(10, TimeUnit.SECONDS)).isTrue();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            throw InvalidBundleException.builder()
+                .withUserMessage("Split APKs phase failed.")
+                .build();
+          }
+        };
+    TestComponent.useTestModule(
+        this,
+        createTestModuleBuilder()
+            .withAppBundle(appBundle)
+            .withOutputPath(outputFilePath)
+            .withCustomBuildApksCommandSetter(
+                command -> command.setExtraValidators(ImmutableList.of(failingValidator)))
+            .build());
+
+    // Split APKs used to be generated before standalone APKs, so their failure is reported.
+    InvalidBundleException exception =
+        assertThrows(InvalidBundleException.class, () -> buildApksManager.execute());
+    assertThat(exception).hasMessageThat().contains("Split APKs phase failed.");
+
+    long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!buildApksPhaseThreads().isEmpty() && System.nanoTime() < deadlineNanos) {
+      Thread.sleep(10);
+    }
+    assertThat(buildApksPhaseThreads()).isEmpty();
+    assertThat(Files.exists(outputFilePath)).isFalse();
+  }
+
+  private static ImmutableList<Thread> buildApksPhaseThreads() {
+    return Thread.getAllStackTraces().keySet().stream()
+        .filter(thread -> thread.getName().startsWith("build-apks-phase-"))
+        .filter(Thread::isAlive)
+        .collect(toImmutableList());
+  }
+
   @Test
   public void buildApksCommand_standalone_mergesDexFilesUsingMainDexList() throws Exception {
     Path mainDexListFile =
@@ -5113,6 +5250,564 @@ public class BuildApksManagerTest {
     assertThat(listeningExecutorService.isShutdown()).isFalse();
   }
 
+  @Test
+  public void reuseBundleCompression_entriesCopiedFromBundleAsIs() throws Exception {
+    byte[] assetContent = Strings.repeat("reuse bundle compression ", 1_000).getBytes(UTF_8);
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                module ->
+                    module
+                        .addFile("assets/large.txt", assetContent)
+                        .setManifest(androidManifest("com.test.app")))
+            .build();
+    Path bundlePath = createAndStoreBundle(appBundle);
+    Path apksOutputDir = tmp.newFolder("apks").toPath();
+
+    TestComponent.useTestModule(
+        this,
+        createTestModuleBuilder()
+            .withBundlePath(bundlePath)
+            .withOutputPath(apksOutputDir)
+            .withCustomBuildApksCommandSetter(
+                command -> command.setOutputFormat(DIRECTORY).setReuseBundleCompression(true))
+            .build());
+    buildApksManager.execute();
+
+    long compressedSizeInBundle;
+    try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
+      compressedSizeInBundle = bundleZip.getEntry("base/assets/large.txt").getCompressedSize();
+    }
+    BuildApksResult result = parseTocFromFile(apksOutputDir.resolve("toc.pb").toFile());
+    ImmutableList<ApkDescription> apkDescriptions = apkDescriptions(result.getVariantList());
+    assertThat(apkDescriptions).isNotEmpty();
+    for (ApkDescription apkDescription : apkDescriptions) {
+      try (ZipFile apkZip = new ZipFile(apksOutputDir.resolve(apkDescription.getPath()).toFile())) {
+        ZipEntry assetEntry = apkZip.getEntry("assets/large.txt");
+        if (assetEntry == null) {
+          continue;
+        }
+        assertThat(assetEntry.getMethod()).isEqualTo(ZipEntry.DEFLATED);
+        assertThat(assetEntry.getCompressedSize()).isEqualTo(compressedSizeInBundle);
+        assertThat(ByteStreams.toByteArray(apkZip.getInputStream(assetEntry)))
+            .isEqualTo(assetContent);
+      }
+    }
+  }
+
+  @Test
+  public void compressionCache_reusedByNextInvocation() throws Exception {
+    Path cacheDir = tmp.newFolder("compression-cache").toPath();
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                module ->
+                    module
+                        .addFile("assets/large.txt", new byte[10_000])
+                        .setManifest(androidManifest("com.test.app")))
+            .build();
+
+    Path firstOutputDir = tmp.newFolder("first").toPath();
+    executeWithCompressionCache(appBundle, firstOutputDir, cacheDir);
+    ImmutableSet<Path> cachedEntries = filesInDirectory(cacheDir);
+    assertThat(cachedEntries).isNotEmpty();
+    for (Path cachedEntry : cachedEntries) {
+      Files.setLastModifiedTime(cachedEntry, FileTime.fromMillis(0));
+    }
+
+    Path secondOutputDir = tmp.newFolder("second").toPath();
+    executeWithCompressionCache(appBundle, secondOutputDir, cacheDir);
+    assertThat(filesInDirectory(cacheDir)).isEqualTo(cachedEntries);
+    // Entries copied from the cache are marked as recently used.
+    for (Path cachedEntry : cachedEntries) {
+      assertThat(Files.getLastModifiedTime(cachedEntry).toMillis()).isGreaterThan(0L);
+    }
+
+    BuildApksResult result = parseTocFromFile(secondOutputDir.resolve("toc.pb").toFile());
+    for (ApkDescription apkDescription : apkDescriptions(result.getVariantList())) {
+      try (ZipFile firstApk =
+              new ZipFile(firstOutputDir.resolve(apkDescription.getPath()).toFile());
+          ZipFile secondApk =
+              new ZipFile(secondOutputDir.resolve(apkDescription.getPath()).toFile())) {
+        ZipEntry firstEntry = firstApk.getEntry("assets/large.txt");
+        ZipEntry secondEntry = secondApk.getEntry("assets/large.txt");
+        assertThat(secondEntry.getCompressedSize()).isEqualTo(firstEntry.getCompressedSize());
+        assertThat(ByteStreams.toByteArray(secondApk.getInputStream(secondEntry)))
+            .isEqualTo(ByteStreams.toByteArray(firstApk.getInputStream(firstEntry)));
+      }
+    }
+  }
+
+  private void executeWithCompressionCache(AppBundle appBundle, Path outputDir, Path cacheDir)
+      throws Exception {
+    TestComponent.useTestModule(
+        this,
+        createTestModuleBuilder()
+            .withAppBundle(appBundle)
+            .withOutputPath(outputDir)
+            .withCustomBuildApksCommandSetter(
+                command ->
+                    command.setOutputFormat(DIRECTORY).setCompressionCacheDirectory(cacheDir))
+            .build());
+    buildApksManager.execute();
+  }
+
+  @Test
+  public void aapt2Cache_conversionSkippedByNextInvocation() throws Exception {
+    Path cacheDir = tmp.newFolder("aapt2-cache").toPath();
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                module ->
+                    module
+                        .addFile("dex/classes.dex")
+                        .setManifest(androidManifest("com.test.app")))
+            .build();
+    AtomicInteger conversions = new AtomicInteger();
+    Aapt2Command countingAapt2Command = countingAapt2Command(conversions);
+
+    Path firstOutputDir = tmp.newFolder("first").toPath();
+    executeWithAapt2Cache(appBundle, firstOutputDir, cacheDir, countingAapt2Command);
+    assertThat(conversions.get()).isGreaterThan(0);
+    assertThat(filesInDirectory(cacheDir)).isNotEmpty();
+
+    conversions.set(0);
+    Path secondOutputDir = tmp.newFolder("second").toPath();
+    executeWithAapt2Cache(appBundle, secondOutputDir, cacheDir, countingAapt2Command);
+    assertThat(conversions.get()).isEqualTo(0);
+
+    BuildApksResult result = parseTocFromFile(secondOutputDir.resolve("toc.pb").toFile());
+    for (ApkDescription apkDescription : apkDescriptions(result.getVariantList())) {
+      try (ZipFile firstApk =
+              new ZipFile(firstOutputDir.resolve(apkDescription.getPath()).toFile());
+          ZipFile secondApk =
+              new ZipFile(secondOutputDir.resolve(apkDescription.getPath()).toFile())) {
+        assertThat(
+                ByteStreams.toByteArray(
+                    secondApk.getInputStream(secondApk.getEntry(MANIFEST_FILENAME))))
+            .isEqualTo(
+                ByteStreams.toByteArray(
+                    firstApk.getInputStream(firstApk.getEntry(MANIFEST_FILENAME))));
+      }
+    }
+  }
+
+  private void executeWithAapt2Cache(
+      AppBundle appBundle, Path outputDir, Path cacheDir, Aapt2Command aapt2Command)
+      throws Exception {
+    TestComponent.useTestModule(
+        this,
+        createTestModuleBuilder()
+            .withAppBundle(appBundle)
+            .withOutputPath(outputDir)
+            .withCustomBuildApksCommandSetter(
+                command ->
+                    command
+                        .setOutputFormat(DIRECTORY)
+                        .setAapt2Command(aapt2Command)
+                        .setAapt2CacheDirectory(cacheDir))
+            .build());
+    buildApksManager.execute();
+  }
+
+  /** Returns an aapt2 command of known version, counting its invocations of "aapt2 convert". */
+  private static Aapt2Command countingAapt2Command(AtomicInteger conversions) {
+    Aapt2Command aapt2Command = Aapt2Helper.getAapt2Command();
+    return new Aapt2Command() {
+      @Override
+      public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
+        conversions.incrementAndGet();
+        aapt2Command.convertApkProtoToBinary(protoApk, binaryApk);
+      }
+
+      @Override
+      public void optimizeToSparseResourceTables(Path originalApk, Path outputApk) {
+        aapt2Command.optimizeToSparseResourceTables(originalApk, outputApk);
+      }
+
+      @Override
+      public Optional<String> getVersion() {
+        return Optional.of("test-version");
+      }
+    };
+  }
+
+  private static ImmutableSet<Path> filesInDirectory(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      return paths.filter(Files::isRegularFile).collect(toImmutableSet());
+    }
+  }
+
+  @Test
+  public void incremental_unchangedApksCopiedFromPreviousApkSet() throws Exception {
+    AppBundle appBundle = incrementalTestBundle("content");
+    AtomicInteger conversions = new AtomicInteger();
+    Aapt2Command aapt2Command = countingAapt2Command(conversions);
+    Path firstApkSet = tmpDir.resolve("first.apks");
+    executeIncrementally(
+        createTestModuleBuilder().withAppBundle(appBundle),
+        firstApkSet,
+        tmpDir.resolve("missing.apks"),
+        aapt2Command);
+    assertThat(conversions.get()).isGreaterThan(0);
+
+    conversions.set(0);
+    Path secondApkSet = tmpDir.resolve("second.apks");
+    executeIncrementally(
+        createTestModuleBuilder().withAppBundle(appBundle),
+        secondApkSet,
+        firstApkSet,
+        aapt2Command);
+
+    assertThat(conversions.get()).isEqualTo(0);
+    try (ZipFile firstZip = new ZipFile(firstApkSet.toFile());
+        ZipFile secondZip = new ZipFile(secondApkSet.toFile())) {
+      BuildApksResult firstToc =
+          extractTocFromApkSetFile(firstZip, tmp.newFolder("first-toc").toPath());
+      BuildApksResult secondToc =
+          extractTocFromApkSetFile(secondZip, tmp.newFolder("second-toc").toPath());
+      // Copied APKs are described exactly like the APKs generated from scratch.
+      assertThat(secondToc).isEqualTo(firstToc);
+      ImmutableList<ApkDescription> apkDescriptions = apkDescriptions(firstToc.getVariantList());
+      assertThat(apkDescriptions).isNotEmpty();
+      for (ApkDescription apkDescription : apkDescriptions) {
+        assertThat(readZipEntry(secondZip, apkDescription.getPath()))
+            .isEqualTo(readZipEntry(firstZip, apkDescription.getPath()));
+      }
+      assertThat(readZipEntry(secondZip, APK_FINGERPRINTS_FILE))
+          .isEqualTo(readZipEntry(firstZip, APK_FINGERPRINTS_FILE));
+    }
+  }
+
+  @Test
+  public void incremental_splitContentChanged_apksGeneratedAgain() throws Exception {
+    assertAllApksGeneratedAgain(
+        createTestModuleBuilder().withAppBundle(incrementalTestBundle("content")),
+        createTestModuleBuilder().withAppBundle(incrementalTestBundle("changed content")));
+  }
+
+  @Test
+  public void incremental_signingConfigChanged_apksGeneratedAgain() throws Exception {
+    AppBundle appBundle = incrementalTestBundle("content");
+    assertAllApksGeneratedAgain(
+        createTestModuleBuilder().withAppBundle(appBundle),
+        createTestModuleBuilder()
+            .withAppBundle(appBundle)
+            .withSigningConfig(
+                SigningConfiguration.builder().setSignerConfig(privateKey, certificate).build()));
+  }
+
+  @Test
+  public void incremental_bundleConfigChanged_apksGeneratedAgain() throws Exception {
+    AppBundle appBundle = incrementalTestBundle("content");
+    AppBundle appBundleWithUncompressedAssets =
+        appBundle.toBuilder()
+            .setBundleConfig(BundleConfigBuilder.create().addUncompressedGlob("assets/**").build())
+            .build();
+    assertAllApksGeneratedAgain(
+        createTestModuleBuilder().withAppBundle(appBundle),
+        createTestModuleBuilder().withAppBundle(appBundleWithUncompressedAssets));
+  }
+
+  @Test
+  public void incremental_inProcessResourceConversionChanged_fingerprintsChanged()
+      throws Exception {
+    AppBundle appBundle = incrementalTestBundle("content");
+    Aapt2Command aapt2Command = countingAapt2Command(new AtomicInteger());
+    Path previousApkSet = tmpDir.resolve("previous.apks");
+    executeIncrementally(
+        createTestModuleBuilder().withAppBundle(appBundle),
+        previousApkSet,
+        tmpDir.resolve("missing.apks"),
+        aapt2Command);
+    Path apkSet = tmpDir.resolve("next.apks");
+    TestComponent.useTestModule(
+        this,
+        createTestModuleBuilder()
+            .withAppBundle(appBundle)
+            .withOutputPath(apkSet)
+            .withCustomBuildApksCommandSetter(
+                command ->
+                    command
+                        .setAapt2Command(aapt2Command)
+                        .setIncrementalFromApkSet(previousApkSet)
+                        .setInProcessResourceConversion(true))
+            .build());
+    buildApksManager.execute();
+
+    // APKs converted in-process are not copied from APKs converted by aapt2.
+    try (ZipFile previousZip = new ZipFile(previousApkSet.toFile());
+        ZipFile apkSetZip = new ZipFile(apkSet.toFile())) {
+      assertThat(readZipEntry(apkSetZip, APK_FINGERPRINTS_FILE))
+          .isNotEqualTo(readZipEntry(previousZip, APK_FINGERPRINTS_FILE));
+    }
+  }
+
+  @Test
+  public void incremental_previousApkSetWithoutFingerprints_allApksGenerated() throws Exception {
+    AppBundle appBundle = incrementalTestBundle("content");
+    AtomicInteger conversions = new AtomicInteger();
+    Aapt2Command aapt2Command = countingAapt2Command(conversions);
+    Path previousApkSet = tmpDir.resolve("previous.apks");
+    TestComponent.useTestModule(
+        this,
+        createTestModuleBuilder()
+            .withAppBundle(appBundle)
+            .withOutputPath(previousApkSet)
+            .withCustomBuildApksCommandSetter(command -> command.setAapt2Command(aapt2Command))
+            .build());
+    buildApksManager.execute();
+    int fullBuildConversions = conversions.getAndSet(0);
+    try (ZipFile previousZip = new ZipFile(previousApkSet.toFile())) {
+      assertThat(previousZip.getEntry(APK_FINGERPRINTS_FILE)).isNull();
+    }
+
+    Path apkSet = tmpDir.resolve("next.apks");
+    executeIncrementally(
+        createTestModuleBuilder().withAppBundle(appBundle), apkSet, previousApkSet, aapt2Command);
+
+    assertThat(conversions.get()).isEqualTo(fullBuildConversions);
+    try (ZipFile apkSetZip = new ZipFile(apkSet.toFile())) {
+      assertThat(apkSetZip.getEntry(APK_FINGERPRINTS_FILE)).isNotNull();
+    }
+  }
+
+  @Test
+  public void incremental_previousApkSetIsDirectory_throws() throws Exception {
+    Path previousApkSet = tmp.newFolder("previous").toPath();
+    TestComponent.useTestModule(
+        this,
+        createTestModuleBuilder()
+            .withAppBundle(incrementalTestBundle("content"))
+            .withCustomBuildApksCommandSetter(
+                command ->
+                    command
+                        .setAapt2Command(countingAapt2Command(new AtomicInteger()))
+                        .setIncrementalFromApkSet(previousApkSet))
+            .build());
+
+    InvalidCommandException exception =
+        assertThrows(InvalidCommandException.class, () -> buildApksManager.execute());
+
+    assertThat(exception).hasMessageThat().contains("is a directory");
+  }
+
+  private static AppBundle incrementalTestBundle(String assetContent) {
+    return new AppBundleBuilder()
+        .addModule(
+            "base",
+            module ->
+                module
+                    .addFile("dex/classes.dex")
+                    .addFile("assets/asset.txt", assetContent.getBytes(UTF_8))
+                    .setManifest(androidManifest("com.test.app")))
+        .build();
+  }
+
+  /**
+   * Builds an APK set with {@code previousBuild}, then another one from it with {@code build}, and
+   * asserts that all APKs of the latter were generated again rather than copied.
+   */
+  private void assertAllApksGeneratedAgain(
+      TestModule.Builder previousBuild, TestModule.Builder build) throws Exception {
+    AtomicInteger conversions = new AtomicInteger();
+    Aapt2Command aapt2Command = countingAapt2Command(conversions);
+    Path previousApkSet = tmpDir.resolve("previous.apks");
+    executeIncrementally(
+        previousBuild, previousApkSet, tmpDir.resolve("missing.apks"), aapt2Command);
+    int fullBuildConversions = conversions.getAndSet(0);
+    assertThat(fullBuildConversions).isGreaterThan(0);
+
+    executeIncrementally(build, tmpDir.resolve("next.apks"), previousApkSet, aapt2Command);
+
+    assertThat(conversions.get()).isEqualTo(fullBuildConversions);
+  }
+
+  private void executeIncrementally(
+      TestModule.Builder testModule,
+      Path outputFile,
+      Path previousApkSet,
+      Aapt2Command aapt2Command)
+      throws Exception {
+    TestComponent.useTestModule(
+        this,
+        testModule
+            .withOutputPath(outputFile)
+            .withCustomBuildApksCommandSetter(
+                command ->
+                    command
+                        .setAapt2Command(aapt2Command)
+                        .setIncrementalFromApkSet(previousApkSet))
+            .build());
+    buildApksManager.execute();
+  }
+
+  private static byte[] readZipEntry(ZipFile zipFile, String path) throws IOException {
+    try (InputStream entryContent = zipFile.getInputStream(zipFile.getEntry(path))) {
+      return ByteStreams.toByteArray(entryContent);
+    }
+  }
+
+  @Test
+  public void inProcessResourceConversion_sameOutputAsAapt2() throws Exception {
+    XmlNode layout =
+        xmlNode(
+            xmlElement(
+                "LinearLayout",
+                ImmutableList.of(xmlNamespace("android", ANDROID_NAMESPACE_URI)),
+                ImmutableList.of(
+                    xmlDecimalIntegerAttribute(
+                        ANDROID_NAMESPACE_URI, "layout_width", 0x010100f4, -1),
+                    xmlAttribute(ANDROID_NAMESPACE_URI, "text", 0x0101014f, "Hello"),
+                    xmlAttribute("custom", "value"))));
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                module ->
+                    module
+                        .addFile("dex/classes.dex")
+                        .addFile("res/drawable/image.jpg", new byte[] {1, 2, 3})
+                        .addFile("res/xml/layout.xml", layout.toByteArray())
+                        .setResourceTable(
+                            new ResourceTableBuilder()
+                                .addPackage("com.test.app")
+                                .addStringResource("title", "Title")
+                                .addStringResource("other_title", "Other title")
+                                .addDrawableResource("image", "res/drawable/image.jpg")
+                                .addXmlResource("layout", "res/xml/layout.xml")
+                                .build())
+                        .setManifest(
+                            androidManifest(
+                                "com.test.app", withTitle("@string/title", 0x7f010000))))
+            .build();
+
+    AtomicInteger conversions = new AtomicInteger();
+    Path aapt2OutputDir = tmp.newFolder("aapt2").toPath();
+    executeWithInProcessResourceConversion(
+        appBundle, aapt2OutputDir, countingAapt2Command(conversions), false);
+    assertThat(conversions.get()).isGreaterThan(0);
+    conversions.set(0);
+    Path inProcessOutputDir = tmp.newFolder("in-process").toPath();
+    executeWithInProcessResourceConversion(
+        appBundle, inProcessOutputDir, countingAapt2Command(conversions), true);
+    // All splits were converted in process.
+    assertThat(conversions.get()).isEqualTo(0);
+
+    BuildApksResult result = parseTocFromFile(inProcessOutputDir.resolve("toc.pb").toFile());
+    for (ApkDescription apkDescription : apkDescriptions(result.getVariantList())) {
+      try (ZipFile aapt2Apk =
+              new ZipFile(aapt2OutputDir.resolve(apkDescription.getPath()).toFile());
+          ZipFile inProcessApk =
+              new ZipFile(inProcessOutputDir.resolve(apkDescription.getPath()).toFile())) {
+        ImmutableList<String> entryNames =
+            Collections.list(aapt2Apk.entries()).stream()
+                .map(ZipEntry::getName)
+                .filter(name -> !name.startsWith("META-INF/"))
+                .collect(toImmutableList());
+        assertThat(
+                Collections.list(inProcessApk.entries()).stream()
+                    .map(ZipEntry::getName)
+                    .filter(name -> !name.startsWith("META-INF/")))
+            .containsExactlyElementsIn(entryNames);
+        for (String entryName : entryNames) {
+          assertThat(
+                  ByteStreams.toByteArray(
+                      inProcessApk.getInputStream(inProcessApk.getEntry(entryName))))
+              .isEqualTo(
+                  ByteStreams.toByteArray(aapt2Apk.getInputStream(aapt2Apk.getEntry(entryName))));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void inProcessResourceConversion_unsupportedResources_convertedByAapt2()
+      throws Exception {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                module ->
+                    module
+                        .addFile("dex/classes.dex")
+                        .setResourceTable(
+                            new ResourceTableBuilder()
+                                .addPackage("com.test.app")
+                                .addStringResourceForMultipleLocales(
+                                    "title", ImmutableMap.of("", "Title", "fr", "Titre"))
+                                .build())
+                        .setManifest(
+                            androidManifest(
+                                "com.test.app", withTitle("@string/title", 0x7f010000))))
+            .build();
+    AtomicInteger conversions = new AtomicInteger();
+
+    executeWithInProcessResourceConversion(
+        appBundle, tmp.newFolder("output").toPath(), countingAapt2Command(conversions), true);
+
+    // Locales are not supported by the in-process conversion.
+    assertThat(conversions.get()).isGreaterThan(0);
+  }
+
+  @Test
+  public void inProcessResourceConversion_sparseEncodingEnforced_convertedByAapt2()
+      throws Exception {
+    BundleConfig.Builder bundleConfig = BundleConfigBuilder.create().build().toBuilder();
+    bundleConfig
+        .getOptimizationsBuilder()
+        .getResourceOptimizationsBuilder()
+        .setSparseEncoding(SparseEncoding.ENFORCED);
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                module ->
+                    module
+                        .addFile("dex/classes.dex")
+                        .setResourceTable(
+                            new ResourceTableBuilder()
+                                .addPackage("com.test.app")
+                                .addStringResource("title", "Title")
+                                .build())
+                        .setManifest(
+                            androidManifest(
+                                "com.test.app", withTitle("@string/title", 0x7f010000))))
+            .setBundleConfig(bundleConfig.build())
+            .build();
+    AtomicInteger conversions = new AtomicInteger();
+
+    executeWithInProcessResourceConversion(
+        appBundle, tmp.newFolder("output").toPath(), countingAapt2Command(conversions), true);
+
+    // Sparse resource tables are only written by "aapt2 optimize".
+    assertThat(conversions.get()).isGreaterThan(0);
+  }
+
+  private void executeWithInProcessResourceConversion(
+      AppBundle appBundle,
+      Path outputDir,
+      Aapt2Command aapt2Command,
+      boolean inProcessResourceConversion)
+      throws Exception {
+    TestComponent.useTestModule(
+        this,
+        createTestModuleBuilder()
+            .withAppBundle(appBundle)
+            .withOutputPath(outputDir)
+            .withCustomBuildApksCommandSetter(
+                command ->
+                    command
+                        .setOutputFormat(DIRECTORY)
+                        .setAapt2Command(aapt2Command)
+                        .setInProcessResourceConversion(inProcessResourceConversion))
+            .build());
+    buildApksManager.execute();
+  }
+
   @Test
   public void apkModifier_modifyingVersionCode() throws Exception {
     TestComponent.useTestModule(
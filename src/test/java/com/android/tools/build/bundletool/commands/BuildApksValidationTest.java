@@ -17,6 +17,7 @@ package com.android.tools.build.bundletool.commands;
 
 import static com.android.bundle.Targeting.TextureCompressionFormat.TextureCompressionFormatAlias.ATC;
 import static com.android.bundle.Targeting.TextureCompressionFormat.TextureCompressionFormatAlias.ETC1_RGB8;
+import static com.android.tools.build.bundletool.commands.BuildApksCommand.ApkBuildMode.UNIVERSAL;
 import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
 import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifestForFeature;
 import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withInstant;
@@ -40,8 +41,11 @@ import com.android.tools.build.bundletool.testing.AppBundleBuilder;
 import com.android.tools.build.bundletool.testing.BundleConfigBuilder;
 import com.android.tools.build.bundletool.validation.SubValidator;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -212,6 +216,61 @@ public final class BuildApksValidationTest {
     assertThat(e).hasMessageThat().contains("Custom validator");
   }
 
+  @Test
+  public void extraValidatorOfZipEntries_runsValidation() throws Exception {
+    createAppBundle(bundlePath);
+    SubValidator extraValidator =
+        new SubValidator() {
+          @Override
+          public void validateBundleZipEntry(ZipFile bundleFile, ZipEntry zipEntry) {
+            if (zipEntry.getName().equals("BundleConfig.pb")) {
+              throw InvalidBundleException.builder()
+                  .withUserMessage("Custom zip entry validator")
+                  .build();
+            }
+          }
+        };
+
+    BuildApksCommand command =
+        BuildApksCommand.builder()
+            .setBundlePath(bundlePath)
+            .setOutputFile(outputFilePath)
+            .setExtraValidators(ImmutableList.of(extraValidator))
+            .build();
+
+    Exception e = assertThrows(InvalidBundleException.class, command::execute);
+    assertThat(e).hasMessageThat().contains("Custom zip entry validator");
+  }
+
+  @Test
+  public void universalModeWithRequestedModules_invalidFileInUnrequestedModule_throws()
+      throws Exception {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule("base", builder -> builder.setManifest(androidManifest("com.test.app")))
+            .addModule(
+                "unrequested",
+                builder ->
+                    builder
+                        .addFile("dex/classes.txt")
+                        .setManifest(androidManifestForFeature("com.test.app")))
+            .build();
+    new AppBundleSerializer().writeToDisk(appBundle, bundlePath);
+
+    BuildApksCommand command =
+        BuildApksCommand.builder()
+            .setBundlePath(bundlePath)
+            .setOutputFile(outputFilePath)
+            .setApkBuildMode(UNIVERSAL)
+            .setModules(ImmutableSet.of("base"))
+            .build();
+
+    InvalidBundleException exception = assertThrows(InvalidBundleException.class, command::execute);
+    assertThat(exception)
+        .hasMessageThat()
+        .contains("Files under dex/ must have .dex extension, found 'dex/classes.txt'.");
+  }
+
   private static void createAppBundle(Path path) throws IOException {
     AppBundle appBundle =
         new AppBundleBuilder()
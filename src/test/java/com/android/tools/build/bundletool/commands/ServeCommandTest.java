@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.commands;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.build.bundletool.flags.FlagParser;
+import com.android.tools.build.bundletool.model.exceptions.InvalidCommandException;
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ServeCommandTest {
+
+  private final List<ImmutableList<String>> runCommands = new ArrayList<>();
+
+  @Test
+  public void execute_runsEachRequestAndWritesItsOutput() throws Exception {
+    byte[] requests =
+        encodeRequests(
+            ImmutableList.of("version"), ImmutableList.of("dump", "manifest", "--bundle=b.aab"));
+    ByteArrayOutputStream responses = new ByteArrayOutputStream();
+
+    ServeCommand.builder()
+        .setInputStream(new ByteArrayInputStream(requests))
+        .setOutputStream(responses)
+        .setCommandRunner(
+            args -> {
+              runCommands.add(args);
+              System.out.print("out:" + args.get(0));
+              System.err.print("err:" + args.get(0));
+              return runCommands.size() - 1;
+            })
+        .build()
+        .execute();
+
+    assertThat(runCommands)
+        .containsExactly(
+            ImmutableList.of("version"), ImmutableList.of("dump", "manifest", "--bundle=b.aab"))
+        .inOrder();
+    DataInputStream responsesInput =
+        new DataInputStream(new ByteArrayInputStream(responses.toByteArray()));
+    assertResponse(responsesInput, 0, "out:version", "err:version");
+    assertResponse(responsesInput, 1, "out:dump", "err:dump");
+    assertThat(responsesInput.available()).isEqualTo(0);
+  }
+
+  @Test
+  public void execute_failingCommand_keepsServing() throws Exception {
+    byte[] requests = encodeRequests(ImmutableList.of("fail"), ImmutableList.of("version"));
+    ByteArrayOutputStream responses = new ByteArrayOutputStream();
+
+    ServeCommand.builder()
+        .setInputStream(new ByteArrayInputStream(requests))
+        .setOutputStream(responses)
+        .setCommandRunner(
+            args -> {
+              runCommands.add(args);
+              if (args.get(0).equals("fail")) {
+                throw new IllegalStateException("Failure.");
+              }
+              return 0;
+            })
+        .build()
+        .execute();
+
+    assertThat(runCommands).hasSize(2);
+    DataInputStream responsesInput =
+        new DataInputStream(new ByteArrayInputStream(responses.toByteArray()));
+    assertThat(responsesInput.readInt()).isEqualTo(1);
+    assertThat(readString(responsesInput)).isEmpty();
+    assertThat(readString(responsesInput)).contains("Error: Failure.");
+    assertResponse(responsesInput, 0, "", "");
+  }
+
+  @Test
+  public void execute_serveRequest_notRun() throws Exception {
+    byte[] requests = encodeRequests(ImmutableList.of("serve"));
+    ByteArrayOutputStream responses = new ByteArrayOutputStream();
+
+    ServeCommand.builder()
+        .setInputStream(new ByteArrayInputStream(requests))
+        .setOutputStream(responses)
+        .setCommandRunner(
+            args -> {
+              runCommands.add(args);
+              return 0;
+            })
+        .build()
+        .execute();
+
+    assertThat(runCommands).isEmpty();
+    DataInputStream responsesInput =
+        new DataInputStream(new ByteArrayInputStream(responses.toByteArray()));
+    assertResponse(
+        responsesInput,
+        1,
+        "",
+        "Error: The serve command cannot be run from a request." + System.lineSeparator());
+  }
+
+  @Test
+  public void execute_emptyRequest_stopsServing() throws Exception {
+    ByteArrayOutputStream requests = new ByteArrayOutputStream();
+    DataOutputStream requestsOutput = new DataOutputStream(requests);
+    requestsOutput.writeInt(0);
+    requestsOutput.write(encodeRequests(ImmutableList.of("version")));
+    ByteArrayOutputStream responses = new ByteArrayOutputStream();
+
+    ServeCommand.builder()
+        .setInputStream(new ByteArrayInputStream(requests.toByteArray()))
+        .setOutputStream(responses)
+        .setCommandRunner(
+            args -> {
+              runCommands.add(args);
+              return 0;
+            })
+        .build()
+        .execute();
+
+    assertThat(runCommands).isEmpty();
+    assertThat(responses.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void execute_negativeArgumentLength_writesErrorAndStopsServing() throws Exception {
+    ByteArrayOutputStream requests = new ByteArrayOutputStream();
+    DataOutputStream requestsOutput = new DataOutputStream(requests);
+    requestsOutput.writeInt(1);
+    requestsOutput.writeInt(-1);
+    requestsOutput.write(encodeRequests(ImmutableList.of("version")));
+    ByteArrayOutputStream responses = new ByteArrayOutputStream();
+
+    ServeCommand.builder()
+        .setInputStream(new ByteArrayInputStream(requests.toByteArray()))
+        .setOutputStream(responses)
+        .setCommandRunner(
+            args -> {
+              runCommands.add(args);
+              return 0;
+            })
+        .build()
+        .execute();
+
+    assertThat(runCommands).isEmpty();
+    DataInputStream responsesInput =
+        new DataInputStream(new ByteArrayInputStream(responses.toByteArray()));
+    assertThat(responsesInput.readInt()).isEqualTo(1);
+    assertThat(readString(responsesInput)).isEmpty();
+    assertThat(readString(responsesInput))
+        .contains("the length of an argument must be between 0 and");
+    assertThat(responsesInput.available()).isEqualTo(0);
+  }
+
+  @Test
+  public void execute_tooManyArguments_writesErrorAndStopsServing() throws Exception {
+    ByteArrayOutputStream requests = new ByteArrayOutputStream();
+    DataOutputStream requestsOutput = new DataOutputStream(requests);
+    requestsOutput.writeInt(Integer.MAX_VALUE);
+    ByteArrayOutputStream responses = new ByteArrayOutputStream();
+
+    ServeCommand.builder()
+        .setInputStream(new ByteArrayInputStream(requests.toByteArray()))
+        .setOutputStream(responses)
+        .setCommandRunner(
+            args -> {
+              runCommands.add(args);
+              return 0;
+            })
+        .build()
+        .execute();
+
+    assertThat(runCommands).isEmpty();
+    DataInputStream responsesInput =
+        new DataInputStream(new ByteArrayInputStream(responses.toByteArray()));
+    assertThat(responsesInput.readInt()).isEqualTo(1);
+    assertThat(readString(responsesInput)).isEmpty();
+    assertThat(readString(responsesInput))
+        .contains("the number of arguments must be between 0 and");
+    assertThat(responsesInput.available()).isEqualTo(0);
+  }
+
+  @Test
+  public void buildingViaFlagsAndBuilderHasSameResult() {
+    ByteArrayInputStream input = new ByteArrayInputStream(new byte[0]);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ServeCommand.CommandRunner commandRunner = args -> 0;
+
+    ServeCommand commandViaFlags =
+        ServeCommand.fromFlags(
+            new FlagParser().parse("serve", "--cache-size-mb=64"), input, output, commandRunner);
+    ServeCommand commandViaBuilder =
+        ServeCommand.builder()
+            .setInputStream(input)
+            .setOutputStream(output)
+            .setCommandRunner(commandRunner)
+            .setCacheSizeMegabytes(64)
+            .build();
+
+    assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
+  }
+
+  @Test
+  public void nonPositiveCacheSize_throws() {
+    InvalidCommandException exception =
+        assertThrows(
+            InvalidCommandException.class,
+            () ->
+                ServeCommand.builder()
+                    .setInputStream(new ByteArrayInputStream(new byte[0]))
+                    .setOutputStream(new ByteArrayOutputStream())
+                    .setCommandRunner(args -> 0)
+                    .setCacheSizeMegabytes(0)
+                    .build());
+
+    assertThat(exception).hasMessageThat().contains("The cache size must be positive, got 0 MB.");
+  }
+
+  @Test
+  public void printHelp_doesNotCrash() {
+    ServeCommand.help();
+  }
+
+  @SafeVarargs
+  private static byte[] encodeRequests(ImmutableList<String>... requests) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    for (ImmutableList<String> request : requests) {
+      output.writeInt(request.size());
+      for (String arg : request) {
+        byte[] argBytes = arg.getBytes(UTF_8);
+        output.writeInt(argBytes.length);
+        output.write(argBytes);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void assertResponse(
+      DataInputStream responses, int exitCode, String out, String err) throws IOException {
+    assertThat(responses.readInt()).isEqualTo(exitCode);
+    assertThat(readString(responses)).isEqualTo(out);
+    assertThat(readString(responses)).isEqualTo(err);
+  }
+
+  private static String readString(DataInputStream responses) throws IOException {
+    byte[] bytes = new byte[responses.readInt()];
+    responses.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
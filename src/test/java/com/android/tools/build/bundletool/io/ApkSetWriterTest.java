@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.model.utils.FileNames.APK_FINGERPRINTS_FILE;
+import static com.android.tools.build.bundletool.model.utils.FileNames.TABLE_OF_CONTENTS_FILE;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.bundle.Commands.ApkDescription;
+import com.android.bundle.Commands.ApkSet;
+import com.android.bundle.Commands.AssetSliceSet;
+import com.android.bundle.Commands.BuildApksResult;
+import com.android.bundle.Commands.Variant;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ApkSetWriterTest {
+
+  private static final HashCode FINGERPRINT = HashCode.fromString("0123456789abcdef");
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path tempDir;
+  private Path outputFile;
+
+  @Before
+  public void setUp() throws Exception {
+    tempDir = tmp.newFolder("temp").toPath();
+    outputFile = tmp.getRoot().toPath().resolve("app.apks");
+  }
+
+  @Test
+  public void zip_addedApksStreamedFirst_tocLast() throws Exception {
+    writeApk("splits/base-master.apk", "base");
+    writeApk("splits/base-xhdpi.apk", "xhdpi");
+    writeApk("asset-slices/assets-master.apk", "assets");
+
+    try (ApkSetWriter writer = ApkSetWriter.zip(tempDir, outputFile)) {
+      writer.addApk(ZipPath.create("splits/base-xhdpi.apk"));
+      writer.writeApkSet(
+          toc("splits/base-master.apk", "splits/base-xhdpi.apk", "asset-slices/assets-master.apk"));
+    }
+
+    ImmutableMap<String, String> entries = readZipEntries(outputFile);
+    // APKs added while serializing come first, the others in order of path, the toc last.
+    assertThat(entries.keySet())
+        .containsExactly(
+            "splits/base-xhdpi.apk",
+            "asset-slices/assets-master.apk",
+            "splits/base-master.apk",
+            TABLE_OF_CONTENTS_FILE)
+        .inOrder();
+    assertThat(entries).containsEntry("splits/base-xhdpi.apk", "xhdpi");
+    assertThat(entries).containsEntry("asset-slices/assets-master.apk", "assets");
+    assertThat(entries).containsEntry("splits/base-master.apk", "base");
+    assertThat(BuildApksResult.parseFrom(entries.get(TABLE_OF_CONTENTS_FILE).getBytes(ISO_8859_1)))
+        .isEqualTo(
+            toc(
+                "splits/base-master.apk",
+                "splits/base-xhdpi.apk",
+                "asset-slices/assets-master.apk"));
+  }
+
+  @Test
+  public void zip_addedApk_removedFromTempDirectory() throws Exception {
+    Path apk = writeApk("splits/base-master.apk", "base");
+
+    try (ApkSetWriter writer = ApkSetWriter.zip(tempDir, outputFile)) {
+      writer.addApk(ZipPath.create("splits/base-master.apk"));
+
+      assertThat(Files.exists(apk)).isFalse();
+      writer.writeApkSet(toc("splits/base-master.apk"));
+    }
+
+    assertThat(readZipEntries(outputFile)).containsEntry("splits/base-master.apk", "base");
+  }
+
+  @Test
+  public void zip_apkAddedTwice_storedOnce() throws Exception {
+    writeApk("splits/base-master.apk", "base");
+
+    try (ApkSetWriter writer = ApkSetWriter.zip(tempDir, outputFile)) {
+      writer.addApk(ZipPath.create("splits/base-master.apk"));
+      writer.addApk(ZipPath.create("splits/base-master.apk"));
+      writer.writeApkSet(toc("splits/base-master.apk"));
+    }
+
+    assertThat(readZipEntries(outputFile).keySet())
+        .containsExactly("splits/base-master.apk", TABLE_OF_CONTENTS_FILE)
+        .inOrder();
+  }
+
+  @Test
+  public void zip_fingerprintsStoredBeforeToc() throws Exception {
+    writeApk("splits/base-master.apk", "base");
+
+    try (ApkSetWriter writer = ApkSetWriter.zip(tempDir, outputFile)) {
+      writer.addApkFingerprint(ZipPath.create("splits/base-master.apk"), FINGERPRINT);
+      writer.writeApkSet(toc("splits/base-master.apk"));
+    }
+
+    ImmutableMap<String, String> entries = readZipEntries(outputFile);
+    assertThat(entries.keySet())
+        .containsExactly("splits/base-master.apk", APK_FINGERPRINTS_FILE, TABLE_OF_CONTENTS_FILE)
+        .inOrder();
+    assertThat(entries.get(APK_FINGERPRINTS_FILE))
+        .isEqualTo(FINGERPRINT + " splits/base-master.apk\n");
+  }
+
+  @Test
+  public void zip_noFingerprints_noFingerprintsFile() throws Exception {
+    writeApk("splits/base-master.apk", "base");
+
+    try (ApkSetWriter writer = ApkSetWriter.zip(tempDir, outputFile)) {
+      writer.writeApkSet(toc("splits/base-master.apk"));
+    }
+
+    assertThat(readZipEntries(outputFile)).doesNotContainKey(APK_FINGERPRINTS_FILE);
+  }
+
+  @Test
+  public void zip_closedBeforeApkSetWritten_partialOutputRemoved() throws Exception {
+    writeApk("splits/base-master.apk", "base");
+
+    try (ApkSetWriter writer = ApkSetWriter.zip(tempDir, outputFile)) {
+      writer.addApk(ZipPath.create("splits/base-master.apk"));
+    }
+
+    assertThat(Files.exists(outputFile)).isFalse();
+  }
+
+  @Test
+  public void zip_writingApkSetFails_partialOutputRemoved() throws Exception {
+    writeApk("splits/base-master.apk", "base");
+
+    try (ApkSetWriter writer = ApkSetWriter.zip(tempDir, outputFile)) {
+      writer.addApk(ZipPath.create("splits/base-master.apk"));
+      // The second APK was never serialized.
+      assertThrows(
+          IOException.class,
+          () -> writer.writeApkSet(toc("splits/base-master.apk", "splits/base-xhdpi.apk")));
+    }
+
+    assertThat(Files.exists(outputFile)).isFalse();
+  }
+
+  @Test
+  public void zip_nothingAdded_closeDoesNotCreateOutput() throws Exception {
+    ApkSetWriter.zip(tempDir, outputFile).close();
+
+    assertThat(Files.exists(outputFile)).isFalse();
+  }
+
+  @Test
+  public void directory_writesTocAndFingerprints() throws Exception {
+    Path outputDirectory = tmp.newFolder("output").toPath();
+
+    try (ApkSetWriter writer = ApkSetWriter.directory(outputDirectory)) {
+      writer.addApk(ZipPath.create("splits/base-master.apk"));
+      writer.addApkFingerprint(ZipPath.create("splits/base-master.apk"), FINGERPRINT);
+      writer.writeApkSet(toc("splits/base-master.apk"));
+    }
+
+    assertThat(Files.readAllBytes(outputDirectory.resolve(TABLE_OF_CONTENTS_FILE)))
+        .isEqualTo(toc("splits/base-master.apk").toByteArray());
+    assertThat(
+            new String(
+                Files.readAllBytes(outputDirectory.resolve(APK_FINGERPRINTS_FILE)), UTF_8))
+        .isEqualTo(FINGERPRINT + " splits/base-master.apk\n");
+  }
+
+  private Path writeApk(String relativePath, String content) throws IOException {
+    Path apk = tempDir.resolve(relativePath);
+    Files.createDirectories(apk.getParent());
+    Files.write(apk, content.getBytes(UTF_8));
+    return apk;
+  }
+
+  /** Table of contents with APKs in the "asset-slices" directory listed as asset slices. */
+  private static BuildApksResult toc(String... apkPaths) {
+    ApkSet.Builder apkSet = ApkSet.newBuilder();
+    AssetSliceSet.Builder assetSliceSet = AssetSliceSet.newBuilder();
+    for (String apkPath : apkPaths) {
+      ApkDescription apkDescription = ApkDescription.newBuilder().setPath(apkPath).build();
+      if (apkPath.startsWith("asset-slices/")) {
+        assetSliceSet.addApkDescription(apkDescription);
+      } else {
+        apkSet.addApkDescription(apkDescription);
+      }
+    }
+    BuildApksResult.Builder toc =
+        BuildApksResult.newBuilder().addVariant(Variant.newBuilder().addApkSet(apkSet));
+    if (assetSliceSet.getApkDescriptionCount() > 0) {
+      toc.addAssetSliceSet(assetSliceSet);
+    }
+    return toc.build();
+  }
+
+  /**
+   * Returns the contents of the entries of a zip file, in the order in which they are stored.
+   *
+   * <p>Contents are decoded as ISO-8859-1, so that binary contents can be encoded back.
+   */
+  private static ImmutableMap<String, String> readZipEntries(Path zipFile) throws IOException {
+    ImmutableMap.Builder<String, String> entries = ImmutableMap.builder();
+    try (InputStream inputStream = Files.newInputStream(zipFile);
+        ZipInputStream zipInputStream = new ZipInputStream(inputStream)) {
+      ZipEntry entry;
+      while ((entry = zipInputStream.getNextEntry()) != null) {
+        entries.put(
+            entry.getName(), new String(ByteStreams.toByteArray(zipInputStream), ISO_8859_1));
+      }
+    }
+    return entries.build();
+  }
+}
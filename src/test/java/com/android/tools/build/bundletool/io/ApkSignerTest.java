@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.testing.CertificateFactory.buildSelfSignedCertificate;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withMinSdkVersion;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+import com.android.apksig.ApkVerifier;
+import com.android.apksig.SigningCertificateLineage;
+import com.android.bundle.Commands.SigningDescription;
+import com.android.bundle.Targeting.ApkTargeting;
+import com.android.bundle.Targeting.VariantTargeting;
+import com.android.tools.build.bundletool.TestData;
+import com.android.tools.build.bundletool.model.AndroidManifest;
+import com.android.tools.build.bundletool.model.ApksigSigningConfiguration;
+import com.android.tools.build.bundletool.model.BundleModuleName;
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.model.SignerConfig;
+import com.android.tools.build.bundletool.model.SigningConfiguration;
+import com.android.tools.build.bundletool.model.utils.CertificateHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ApkSignerTest {
+
+  /** APK already signed with the v1 scheme, with a key unknown to the tests. */
+  private static final String TEST_APK = "testdata/apk/com.test.app.apk";
+
+  private static final int MIN_SDK_VERSION = 21;
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private static PrivateKey privateKey;
+  private static X509Certificate certificate;
+  private static PrivateKey oldPrivateKey;
+  private static X509Certificate oldCertificate;
+  private static PrivateKey stampPrivateKey;
+  private static X509Certificate stampCertificate;
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    KeyPair keyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
+    privateKey = keyPair.getPrivate();
+    certificate = buildSelfSignedCertificate(keyPair, "CN=ApkSignerTest");
+
+    KeyPair oldKeyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
+    oldPrivateKey = oldKeyPair.getPrivate();
+    oldCertificate = buildSelfSignedCertificate(oldKeyPair, "CN=ApkSignerTest_OldKey");
+
+    KeyPair stampKeyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
+    stampPrivateKey = stampKeyPair.getPrivate();
+    stampCertificate = buildSelfSignedCertificate(stampKeyPair, "CN=ApkSignerTest_Stamp");
+  }
+
+  @Test
+  public void noSigningConfig_apkUnchanged() throws Exception {
+    Path apk = TestData.copyToTempDir(tmp, TEST_APK);
+    byte[] apkBytesBefore = Files.readAllBytes(apk);
+
+    Optional<SigningDescription> signingDescription =
+        new ApkSigner(
+                /* signingConfigProvider= */ Optional.empty(),
+                /* sourceStampSigningConfig= */ Optional.empty(),
+                new TempDirectory())
+            .signApk(apk, createSplit());
+
+    assertThat(signingDescription).isEmpty();
+    assertThat(Files.readAllBytes(apk)).isEqualTo(apkBytesBefore);
+  }
+
+  @Test
+  public void v1SigningOnly() throws Exception {
+    Path apk = TestData.copyToTempDir(tmp, TEST_APK);
+
+    createApkSigner(
+            signingConfig()
+                .setV1SigningEnabled(true)
+                .setV2SigningEnabled(false)
+                .setV3SigningEnabled(false)
+                .build(),
+            /* stampSigningConfig= */ Optional.empty())
+        .signApk(apk, createSplit());
+
+    ApkVerifier.Result result = verify(apk);
+    assertThat(result.isVerified()).isTrue();
+    assertThat(result.isVerifiedUsingV1Scheme()).isTrue();
+    assertThat(result.isVerifiedUsingV2Scheme()).isFalse();
+    assertThat(result.isVerifiedUsingV3Scheme()).isFalse();
+    assertThat(result.getSignerCertificates()).containsExactly(certificate);
+  }
+
+  @Test
+  public void v2SigningOnly() throws Exception {
+    Path apk = TestData.copyToTempDir(tmp, TEST_APK);
+
+    createApkSigner(
+            signingConfig()
+                .setV1SigningEnabled(false)
+                .setV2SigningEnabled(true)
+                .setV3SigningEnabled(false)
+                .build(),
+            /* stampSigningConfig= */ Optional.empty())
+        .signApk(apk, createSplit());
+
+    ApkVerifier.Result result = verify(apk);
+    assertThat(result.isVerified()).isTrue();
+    assertThat(result.isVerifiedUsingV1Scheme()).isFalse();
+    assertThat(result.isVerifiedUsingV2Scheme()).isTrue();
+    assertThat(result.isVerifiedUsingV3Scheme()).isFalse();
+    assertThat(result.getSignerCertificates()).containsExactly(certificate);
+  }
+
+  @Test
+  public void allSchemes() throws Exception {
+    Path apk = TestData.copyToTempDir(tmp, TEST_APK);
+
+    createApkSigner(signingConfig().build(), /* stampSigningConfig= */ Optional.empty())
+        .signApk(apk, createSplit());
+
+    ApkVerifier.Result result = verify(apk);
+    assertThat(result.isVerified()).isTrue();
+    assertThat(result.isVerifiedUsingV1Scheme()).isTrue();
+    assertThat(result.isVerifiedUsingV2Scheme()).isTrue();
+    assertThat(result.isVerifiedUsingV3Scheme()).isTrue();
+    assertThat(result.getSignerCertificates()).containsExactly(certificate);
+  }
+
+  @Test
+  public void previousSignatureReplaced_entriesPreserved() throws Exception {
+    Path apk = TestData.copyToTempDir(tmp, TEST_APK);
+    ImmutableList<String> unsignedEntriesBefore = listEntriesOutsideMetaInf(apk);
+
+    createApkSigner(signingConfig().build(), /* stampSigningConfig= */ Optional.empty())
+        .signApk(apk, createSplit());
+
+    assertThat(listEntriesOutsideMetaInf(apk))
+        .containsExactlyElementsIn(unsignedEntriesBefore)
+        .inOrder();
+    try (ZipFile apkZip = new ZipFile(apk.toFile())) {
+      assertThat(apkZip.getEntry("META-INF/CERT.SF")).isNull();
+      assertThat(apkZip.getEntry("META-INF/CERT.RSA")).isNull();
+      assertThat(apkZip.getEntry("META-INF/BNDLTOOL.SF")).isNotNull();
+      assertThat(apkZip.getEntry("META-INF/BNDLTOOL.RSA")).isNotNull();
+    }
+    assertThat(verify(apk).getSignerCertificates()).containsExactly(certificate);
+  }
+
+  @Test
+  public void signedTwice_stillVerifies() throws Exception {
+    Path apk = TestData.copyToTempDir(tmp, TEST_APK);
+    ApkSigner apkSigner =
+        createApkSigner(signingConfig().build(), Optional.of(stampSigningConfig()));
+
+    apkSigner.signApk(apk, createSplit());
+    apkSigner.signApk(apk, createSplit());
+
+    ApkVerifier.Result result = verify(apk);
+    assertThat(result.isVerified()).isTrue();
+    assertThat(result.isVerifiedUsingV1Scheme()).isTrue();
+    assertThat(result.isVerifiedUsingV2Scheme()).isTrue();
+    assertThat(result.isVerifiedUsingV3Scheme()).isTrue();
+    assertThat(result.isSourceStampVerified()).isTrue();
+    try (ZipFile apkZip = new ZipFile(apk.toFile())) {
+      assertThat(
+              Collections.list(apkZip.entries()).stream()
+                  .filter(entry -> entry.getName().equals("stamp-cert-sha256"))
+                  .count())
+          .isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void signingCertificateLineage() throws Exception {
+    Path apk = TestData.copyToTempDir(tmp, TEST_APK);
+    SigningCertificateLineage lineage =
+        new SigningCertificateLineage.Builder(
+                new SigningCertificateLineage.SignerConfig.Builder(oldPrivateKey, oldCertificate)
+                    .build(),
+                new SigningCertificateLineage.SignerConfig.Builder(privateKey, certificate).build())
+            .build();
+
+    Optional<SigningDescription> signingDescription =
+        createApkSigner(
+                signingConfig().setSigningCertificateLineage(lineage).build(),
+                /* stampSigningConfig= */ Optional.empty())
+            .signApk(apk, createSplit());
+
+    assertThat(signingDescription)
+        .hasValue(SigningDescription.newBuilder().setSignedWithRotatedKey(true).build());
+    ApkVerifier.Result result = verify(apk);
+    assertThat(result.isVerified()).isTrue();
+    assertThat(result.isVerifiedUsingV3Scheme()).isTrue();
+    assertThat(result.getSignerCertificates()).containsExactly(certificate);
+    assertThat(result.getSigningCertificateLineage().getCertificatesInLineage())
+        .containsExactly(oldCertificate, certificate)
+        .inOrder();
+  }
+
+  @Test
+  public void sourceStamp() throws Exception {
+    Path apk = TestData.copyToTempDir(tmp, TEST_APK);
+
+    createApkSigner(signingConfig().build(), Optional.of(stampSigningConfig()))
+        .signApk(apk, createSplit());
+
+    ApkVerifier.Result result = verify(apk);
+    assertThat(result.isVerified()).isTrue();
+    assertThat(result.isSourceStampVerified()).isTrue();
+    assertThat(result.getSourceStampInfo().getCertificate()).isEqualTo(stampCertificate);
+    try (ZipFile apkZip = new ZipFile(apk.toFile())) {
+      ZipEntry stampCertificateHashEntry = apkZip.getEntry("stamp-cert-sha256");
+      assertThat(stampCertificateHashEntry).isNotNull();
+      try (InputStream entryContent = apkZip.getInputStream(stampCertificateHashEntry)) {
+        assertThat(ByteStreams.toByteArray(entryContent))
+            .isEqualTo(CertificateHelper.getSha256Bytes(stampCertificate.getEncoded()));
+      }
+    }
+  }
+
+  private static ApkSigner createApkSigner(
+      ApksigSigningConfiguration signingConfig, Optional<SigningConfiguration> stampSigningConfig) {
+    return new ApkSigner(
+        Optional.of(apkDescription -> signingConfig), stampSigningConfig, new TempDirectory());
+  }
+
+  private static ApksigSigningConfiguration.Builder signingConfig() {
+    return ApksigSigningConfiguration.builder()
+        .setSignerConfigs(
+            ImmutableList.of(
+                SignerConfig.builder()
+                    .setPrivateKey(privateKey)
+                    .setCertificates(ImmutableList.of(certificate))
+                    .build()));
+  }
+
+  private static SigningConfiguration stampSigningConfig() {
+    return SigningConfiguration.builder()
+        .setSignerConfig(stampPrivateKey, stampCertificate)
+        .build();
+  }
+
+  private static ModuleSplit createSplit() {
+    return ModuleSplit.builder()
+        .setModuleName(BundleModuleName.create("base"))
+        .setAndroidManifest(
+            AndroidManifest.create(
+                androidManifest("com.test.app", withMinSdkVersion(MIN_SDK_VERSION))))
+        .setApkTargeting(ApkTargeting.getDefaultInstance())
+        .setVariantTargeting(VariantTargeting.getDefaultInstance())
+        .setMasterSplit(true)
+        .build();
+  }
+
+  private static ApkVerifier.Result verify(Path apk) throws Exception {
+    return new ApkVerifier.Builder(apk.toFile())
+        .setMinCheckedPlatformVersion(MIN_SDK_VERSION)
+        .build()
+        .verify();
+  }
+
+  private static ImmutableList<String> listEntriesOutsideMetaInf(Path apk) throws Exception {
+    try (ZipFile apkZip = new ZipFile(apk.toFile())) {
+      return Collections.list(apkZip.entries()).stream()
+          .map(ZipEntry::getName)
+          .filter(name -> !name.startsWith("META-INF/"))
+          .collect(toImmutableList());
+    }
+  }
+}
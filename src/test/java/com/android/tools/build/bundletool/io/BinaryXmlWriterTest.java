@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.model.AndroidManifest.ANDROID_NAMESPACE_URI;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withMinSdkVersion;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withTitle;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlAttribute;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlBooleanAttribute;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlDecimalIntegerAttribute;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlElement;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlNamespace;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlNode;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlResourceReferenceAttribute;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_16LE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.aapt.Resources.XmlAttribute;
+import com.android.aapt.Resources.XmlNamespace;
+import com.android.aapt.Resources.XmlNode;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.testing.Aapt2Helper;
+import com.android.tools.build.bundletool.testing.ResourceTableBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Bytes;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.zip.ZipFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BinaryXmlWriterTest {
+
+  private static final String TOOLS_NAMESPACE_URI = "http://schemas.android.com/tools";
+  private static final String XML_FILE_PATH = "res/xml/file.xml";
+
+  private static final int LAYOUT_WIDTH_RESOURCE_ID = 0x010100f4;
+  private static final int LAYOUT_HEIGHT_RESOURCE_ID = 0x010100f5;
+  private static final int TEXT_RESOURCE_ID = 0x0101014f;
+  private static final int ENABLED_RESOURCE_ID = 0x0101000e;
+  private static final int ID_RESOURCE_ID = 0x010100d0;
+
+  private static final int UTF8_FLAG = 1 << 8;
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void manifest_utf16_sameAsAapt2() throws Exception {
+    XmlNode manifest =
+        androidManifest(
+            "com.test.app", withMinSdkVersion(21), withTitle("@string/title", 0x7f010000));
+
+    byte[] binaryManifest = BinaryXmlWriter.write(manifest, /* utf16= */ true).get();
+
+    assertThat(readStringPoolFlags(binaryManifest) & UTF8_FLAG).isEqualTo(0);
+    assertThat(binaryManifest).isEqualTo(convertWithAapt2(manifest, "AndroidManifest.xml"));
+  }
+
+  @Test
+  public void resXml_utf8_sameAsAapt2() throws Exception {
+    XmlNode xml = createLayout(layoutAttributes());
+
+    byte[] binaryXml = BinaryXmlWriter.write(xml, /* utf16= */ false).get();
+
+    assertThat(readStringPoolFlags(binaryXml) & UTF8_FLAG).isEqualTo(UTF8_FLAG);
+    assertThat(binaryXml).isEqualTo(convertXmlFileWithAapt2(xml));
+  }
+
+  @Test
+  public void nonAsciiValues_sameAsAapt2() throws Exception {
+    XmlNode xml =
+        createLayout(
+            ImmutableList.of(
+                xmlAttribute(ANDROID_NAMESPACE_URI, "text", TEXT_RESOURCE_ID, "Grüße 😀"),
+                xmlAttribute("custom", "日本語")));
+
+    assertThat(BinaryXmlWriter.write(xml, /* utf16= */ false).get())
+        .isEqualTo(convertXmlFileWithAapt2(xml));
+    assertThat(BinaryXmlWriter.write(xml, /* utf16= */ true).get())
+        .isEqualTo(convertWithAapt2(withManifestRoot(xml), "AndroidManifest.xml"));
+  }
+
+  @Test
+  public void attributes_sortedByResourceIdThenName_sameAsAapt2() throws Exception {
+    XmlNode xml = createLayout(layoutAttributes().reverse());
+
+    byte[] binaryXml = BinaryXmlWriter.write(xml, /* utf16= */ false).get();
+
+    assertThat(binaryXml)
+        .isEqualTo(BinaryXmlWriter.write(createLayout(layoutAttributes()), false).get());
+    assertThat(binaryXml).isEqualTo(convertXmlFileWithAapt2(xml));
+  }
+
+  @Test
+  public void resourceMap_holdsIdsOfAttributesInPoolOrder() throws Exception {
+    XmlNode xml = createLayout(layoutAttributes());
+
+    byte[] binaryXml = BinaryXmlWriter.write(xml, /* utf16= */ false).get();
+
+    // Names of attributes with ids come first in the pool, sorted by id, and the resource map
+    // gives the id of each of them.
+    assertThat(readResourceMap(binaryXml))
+        .containsExactly(
+            ENABLED_RESOURCE_ID,
+            ID_RESOURCE_ID,
+            LAYOUT_WIDTH_RESOURCE_ID,
+            LAYOUT_HEIGHT_RESOURCE_ID,
+            TEXT_RESOURCE_ID)
+        .inOrder();
+  }
+
+  @Test
+  public void noAttributeWithResourceId_emptyResourceMap() throws Exception {
+    XmlNode xml =
+        xmlNode(xmlElement("PreferenceScreen", ImmutableList.of(xmlAttribute("key", "value"))));
+
+    byte[] binaryXml = BinaryXmlWriter.write(xml, /* utf16= */ false).get();
+
+    assertThat(readResourceMap(binaryXml)).isEmpty();
+    assertThat(binaryXml).isEqualTo(convertXmlFileWithAapt2(xml));
+  }
+
+  @Test
+  public void nestedElements_sameAsAapt2() throws Exception {
+    XmlNode xml =
+        xmlNode(
+            xmlElement(
+                "LinearLayout",
+                ImmutableList.of(xmlNamespace("android", ANDROID_NAMESPACE_URI)),
+                ImmutableList.of(
+                    xmlDecimalIntegerAttribute(
+                        ANDROID_NAMESPACE_URI, "layout_width", LAYOUT_WIDTH_RESOURCE_ID, -1)),
+                xmlNode(
+                    xmlElement(
+                        ANDROID_NAMESPACE_URI,
+                        "TextView",
+                        xmlAttribute(ANDROID_NAMESPACE_URI, "text", TEXT_RESOURCE_ID, "First"))),
+                xmlNode(xmlElement("View", xmlAttribute("style", "@style/Custom")))));
+
+    assertThat(BinaryXmlWriter.write(xml, /* utf16= */ false).get())
+        .isEqualTo(convertXmlFileWithAapt2(xml));
+  }
+
+  @Test
+  public void toolsNamespace_stripped() throws Exception {
+    XmlNode xmlWithTools =
+        createLayout(
+            ImmutableList.<XmlAttribute>builder()
+                .addAll(layoutAttributes())
+                .add(xmlAttribute(TOOLS_NAMESPACE_URI, "ignore", "UnusedAttribute"))
+                .build(),
+            xmlNamespace("tools", TOOLS_NAMESPACE_URI));
+    XmlNode xmlWithoutTools = createLayout(layoutAttributes());
+
+    byte[] binaryXml = BinaryXmlWriter.write(xmlWithTools, /* utf16= */ false).get();
+
+    assertThat(binaryXml)
+        .isEqualTo(BinaryXmlWriter.write(xmlWithoutTools, /* utf16= */ false).get());
+    assertThat(Bytes.indexOf(binaryXml, TOOLS_NAMESPACE_URI.getBytes(UTF_8))).isEqualTo(-1);
+    assertThat(Bytes.indexOf(binaryXml, "ignore".getBytes(UTF_8))).isEqualTo(-1);
+    assertThat(binaryXml).isEqualTo(convertXmlFileWithAapt2(xmlWithTools));
+  }
+
+  @Test
+  public void toolsNamespace_strippedFromUtf16Manifest() throws Exception {
+    XmlNode manifest =
+        withManifestRoot(
+            createLayout(
+                ImmutableList.of(xmlAttribute(TOOLS_NAMESPACE_URI, "node", "replace")),
+                xmlNamespace("tools", TOOLS_NAMESPACE_URI)));
+
+    byte[] binaryManifest = BinaryXmlWriter.write(manifest, /* utf16= */ true).get();
+
+    assertThat(Bytes.indexOf(binaryManifest, TOOLS_NAMESPACE_URI.getBytes(UTF_16LE)))
+        .isEqualTo(-1);
+    assertThat(binaryManifest).isEqualTo(convertWithAapt2(manifest, "AndroidManifest.xml"));
+  }
+
+  @Test
+  public void textNode_notSupported() {
+    XmlNode xml =
+        xmlNode(xmlElement("string", XmlNode.newBuilder().setText("Some text").build()));
+
+    assertThat(BinaryXmlWriter.write(xml, /* utf16= */ false)).isEmpty();
+  }
+
+  @Test
+  public void whitespaceTextNode_ignored() {
+    XmlNode xml =
+        xmlNode(xmlElement("LinearLayout", XmlNode.newBuilder().setText("\n    ").build()));
+
+    assertThat(BinaryXmlWriter.write(xml, /* utf16= */ false))
+        .hasValue(BinaryXmlWriter.write(xmlNode(xmlElement("LinearLayout")), false).get());
+  }
+
+  @Test
+  public void attributeValueNeedingEscaping_notSupported() {
+    XmlNode xml =
+        createLayout(
+            ImmutableList.of(xmlAttribute(ANDROID_NAMESPACE_URI, "text", TEXT_RESOURCE_ID, "I'm")));
+
+    assertThat(BinaryXmlWriter.write(xml, /* utf16= */ false)).isEmpty();
+  }
+
+  @Test
+  public void rootNotElement_notSupported() {
+    assertThat(BinaryXmlWriter.write(XmlNode.newBuilder().setText("text").build(), false))
+        .isEmpty();
+  }
+
+  /** Attributes of the layout, in the order written by aapt2. */
+  private static ImmutableList<XmlAttribute> layoutAttributes() {
+    return ImmutableList.of(
+        xmlBooleanAttribute(ANDROID_NAMESPACE_URI, "enabled", ENABLED_RESOURCE_ID, true),
+        xmlResourceReferenceAttribute(ANDROID_NAMESPACE_URI, "id", ID_RESOURCE_ID, 0x7f020000),
+        xmlDecimalIntegerAttribute(
+            ANDROID_NAMESPACE_URI, "layout_width", LAYOUT_WIDTH_RESOURCE_ID, -1),
+        xmlDecimalIntegerAttribute(
+            ANDROID_NAMESPACE_URI, "layout_height", LAYOUT_HEIGHT_RESOURCE_ID, -2),
+        xmlAttribute(ANDROID_NAMESPACE_URI, "text", TEXT_RESOURCE_ID, "Hello"),
+        xmlAttribute("class", "com.test.app.CustomView"),
+        xmlAttribute("custom", "value"),
+        xmlAttribute("style", "@style/Custom"));
+  }
+
+  private static XmlNode createLayout(
+      ImmutableList<XmlAttribute> attributes, XmlNamespace... extra) {
+    return xmlNode(
+        xmlElement(
+            "LinearLayout",
+            ImmutableList.<XmlNamespace>builder()
+                .add(xmlNamespace("android", ANDROID_NAMESPACE_URI))
+                .add(extra)
+                .build(),
+            attributes));
+  }
+
+  /** Renames the root element of the XML file to make it a manifest. */
+  private static XmlNode withManifestRoot(XmlNode xml) {
+    XmlNode.Builder manifest = xml.toBuilder();
+    manifest
+        .getElementBuilder()
+        .setName("manifest")
+        .addAttribute(xmlAttribute("package", "com.test.app"));
+    return manifest.build();
+  }
+
+  private byte[] convertXmlFileWithAapt2(XmlNode xml) throws Exception {
+    return convertWithAapt2(androidManifest("com.test.app"), xml, XML_FILE_PATH);
+  }
+
+  private byte[] convertWithAapt2(XmlNode manifest, String entryName) throws Exception {
+    return convertWithAapt2(manifest, /* xmlFile= */ null, entryName);
+  }
+
+  /**
+   * Converts a proto APK with the manifest and, if not null, an XML file referenced from its
+   * resource table with aapt2, and returns the converted entry.
+   */
+  private byte[] convertWithAapt2(XmlNode manifest, XmlNode xmlFile, String entryName)
+      throws Exception {
+    ZipBuilder protoApk =
+        new ZipBuilder().addFileWithProtoContent(ZipPath.create("AndroidManifest.xml"), manifest);
+    if (xmlFile != null) {
+      protoApk
+          .addFileWithProtoContent(
+              ZipPath.create("resources.pb"),
+              new ResourceTableBuilder()
+                  .addPackage("com.test.app")
+                  .addXmlResource("file", XML_FILE_PATH)
+                  .build())
+          .addFileWithProtoContent(ZipPath.create(XML_FILE_PATH), xmlFile);
+    }
+    Path protoApkPath = protoApk.writeTo(tmp.getRoot().toPath().resolve("proto.apk"));
+    Path binaryApkPath = tmp.getRoot().toPath().resolve("binary.apk");
+    Aapt2Helper.convertProtoApkToBinaryApk(protoApkPath, binaryApkPath);
+    try (ZipFile binaryApk = new ZipFile(binaryApkPath.toFile());
+        InputStream entryContent = binaryApk.getInputStream(binaryApk.getEntry(entryName))) {
+      return ByteStreams.toByteArray(entryContent);
+    }
+  }
+
+  private static int readStringPoolFlags(byte[] binaryXml) {
+    // The string pool follows the 8 bytes header of the XML chunk, its flags are at offset 16.
+    return ByteBuffer.wrap(binaryXml).order(ByteOrder.LITTLE_ENDIAN).getInt(8 + 16);
+  }
+
+  private static ImmutableList<Integer> readResourceMap(byte[] binaryXml) {
+    ByteBuffer buffer = ByteBuffer.wrap(binaryXml).order(ByteOrder.LITTLE_ENDIAN);
+    int resourceMapStart = 8 + buffer.getInt(8 + 4);
+    assertThat(buffer.getShort(resourceMapStart)).isEqualTo((short) 0x0180);
+    int resourceMapEnd = resourceMapStart + buffer.getInt(resourceMapStart + 4);
+    ImmutableList.Builder<Integer> resourceIds = ImmutableList.builder();
+    for (int offset = resourceMapStart + 8; offset < resourceMapEnd; offset += 4) {
+      resourceIds.add(buffer.getInt(offset));
+    }
+    return resourceIds.build();
+  }
+}
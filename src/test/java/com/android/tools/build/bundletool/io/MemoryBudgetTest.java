@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MemoryBudgetTest {
+
+  private static final long KIB = 1024;
+
+  @Test
+  public void nonPositiveBudget_throws() {
+    assertThrows(IllegalArgumentException.class, () -> MemoryBudget.create(0));
+  }
+
+  @Test
+  public void call_returnsResultOfTask() throws Exception {
+    MemoryBudget budget = MemoryBudget.create(10 * KIB);
+
+    assertThat(budget.call(KIB, () -> "result")).isEqualTo("result");
+  }
+
+  @Test
+  public void call_taskFails_memoryReleased() throws Exception {
+    MemoryBudget budget = MemoryBudget.create(10 * KIB);
+
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            budget.call(
+                10 * KIB,
+                () -> {
+                  throw new IllegalStateException();
+                }));
+
+    // Would block forever if the memory of the failed task had not been released.
+    assertThat(budget.call(10 * KIB, () -> "result")).isEqualTo("result");
+  }
+
+  @Test
+  public void estimateLargerThanBudget_cappedToBudget() throws Exception {
+    MemoryBudget budget = MemoryBudget.create(4 * KIB);
+
+    assertThat(budget.call(1024 * 1024 * KIB, () -> "result")).isEqualTo("result");
+    assertThat(budget.getPeakReservedBytes()).isEqualTo(4 * KIB);
+  }
+
+  @Test
+  public void estimate_roundedUpToKibibytes() throws Exception {
+    MemoryBudget budget = MemoryBudget.create(4 * KIB);
+
+    budget.call(1, () -> null);
+    budget.call(0, () -> null);
+
+    assertThat(budget.getPeakReservedBytes()).isEqualTo(KIB);
+  }
+
+  @Test
+  public void statistics_sequentialTasks_noneQueued() throws Exception {
+    MemoryBudget budget = MemoryBudget.create(10 * KIB);
+
+    budget.call(2 * KIB, () -> null);
+    budget.call(3 * KIB, () -> budget.call(4 * KIB, () -> null));
+
+    assertThat(budget.getAdmittedTaskCount()).isEqualTo(3);
+    assertThat(budget.getQueuedTaskCount()).isEqualTo(0);
+    assertThat(budget.getTotalQueueingTime()).isEqualTo(Duration.ZERO);
+    assertThat(budget.getPeakReservedBytes()).isEqualTo(7 * KIB);
+  }
+
+  @Test
+  public void tasksAdmittedInOrderOfRequest_smallTaskDoesNotOvertakeLargeOne() throws Exception {
+    MemoryBudget budget = MemoryBudget.create(10 * KIB);
+    List<String> startedTasks = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch firstTaskStarted = new CountDownLatch(1);
+    CountDownLatch releaseFirstTask = new CountDownLatch(1);
+
+    FutureTask<Void> firstTask =
+        newTask(
+            () ->
+                budget.call(
+                    8 * KIB,
+                    () -> {
+                      startedTasks.add("first");
+                      firstTaskStarted.countDown();
+                      releaseFirstTask.await();
+                      return null;
+                    }));
+    startThread(firstTask);
+    firstTaskStarted.await();
+    FutureTask<Void> largeTask =
+        newTask(() -> budget.call(10 * KIB, recordStart(startedTasks, "large")));
+    awaitWaiting(startThread(largeTask));
+    // Would fit next to the first task, but must wait for the large task requested before.
+    FutureTask<Void> smallTask =
+        newTask(() -> budget.call(KIB, recordStart(startedTasks, "small")));
+    awaitWaiting(startThread(smallTask));
+
+    assertThat(startedTasks).containsExactly("first");
+
+    releaseFirstTask.countDown();
+    firstTask.get();
+    largeTask.get();
+    smallTask.get();
+
+    assertThat(startedTasks).containsExactly("first", "large", "small").inOrder();
+    assertThat(budget.getAdmittedTaskCount()).isEqualTo(3);
+    assertThat(budget.getQueuedTaskCount()).isEqualTo(2);
+    assertThat(budget.getTotalQueueingTime()).isGreaterThan(Duration.ZERO);
+    assertThat(budget.getPeakReservedBytes()).isEqualTo(10 * KIB);
+  }
+
+  @Test
+  public void interruptedWhileWaiting_throwsAndTaskNotRun() throws Exception {
+    MemoryBudget budget = MemoryBudget.create(10 * KIB);
+    List<String> startedTasks = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch firstTaskStarted = new CountDownLatch(1);
+    CountDownLatch releaseFirstTask = new CountDownLatch(1);
+
+    FutureTask<Void> firstTask =
+        newTask(
+            () ->
+                budget.call(
+                    10 * KIB,
+                    () -> {
+                      firstTaskStarted.countDown();
+                      releaseFirstTask.await();
+                      return null;
+                    }));
+    startThread(firstTask);
+    firstTaskStarted.await();
+    FutureTask<Void> waitingTask =
+        newTask(() -> budget.call(KIB, recordStart(startedTasks, "waiting")));
+    Thread waitingTaskThread = startThread(waitingTask);
+    awaitWaiting(waitingTaskThread);
+
+    waitingTaskThread.interrupt();
+
+    ExecutionException exception = assertThrows(ExecutionException.class, waitingTask::get);
+    assertThat(exception).hasCauseThat().isInstanceOf(InterruptedException.class);
+    assertThat(startedTasks).isEmpty();
+    releaseFirstTask.countDown();
+    firstTask.get();
+    // The interrupted task did not hold on to any memory.
+    assertThat(budget.call(10 * KIB, () -> "result")).isEqualTo("result");
+    assertThat(budget.getAdmittedTaskCount()).isEqualTo(2);
+  }
+
+  private static Callable<Void> recordStart(List<String> startedTasks, String name) {
+    return () -> {
+      startedTasks.add(name);
+      return null;
+    };
+  }
+
+  private static FutureTask<Void> newTask(Callable<?> callable) {
+    return new FutureTask<>(
+        () -> {
+          callable.call();
+          return null;
+        });
+  }
+
+  private static Thread startThread(Runnable runnable) {
+    Thread thread = new Thread(runnable);
+    thread.start();
+    return thread;
+  }
+
+  /** Waits until {@code thread} blocks waiting for memory. */
+  private static void awaitWaiting(Thread thread) throws InterruptedException {
+    while (thread.getState() != Thread.State.WAITING) {
+      Thread.sleep(10);
+    }
+  }
+}
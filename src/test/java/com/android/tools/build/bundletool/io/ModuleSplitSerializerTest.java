@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.testing.ModuleSplitUtils.createModuleSplitBuilder;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.bundle.Config.BundleConfig;
+import com.android.tools.build.bundletool.androidtools.Aapt2Command;
+import com.android.tools.build.bundletool.model.BundleModuleName;
+import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.model.ModuleEntry.ModuleEntryBundleLocation;
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.model.exceptions.CommandExecutionException;
+import com.android.tools.build.bundletool.model.version.BundleToolVersion;
+import com.android.tools.build.bundletool.testing.BundleConfigBuilder;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ModuleSplitSerializerTest {
+
+  private static final BundleConfig BUNDLE_CONFIG = BundleConfigBuilder.create().build();
+  private static final String BUNDLE_ASSET_PATH = "base/assets/large.txt";
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private final ListeningExecutorService executorService =
+      MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+  private final TempDirectory signerTempDirectory = new TempDirectory();
+  private Path outputDirectory;
+
+  @Before
+  public void setUp() {
+    outputDirectory = tmp.getRoot().toPath();
+  }
+
+  @After
+  public void tearDown() {
+    executorService.shutdownNow();
+    signerTempDirectory.close();
+  }
+
+  @Test
+  public void serialize_apksContainConvertedResourcesAndOtherEntries() throws Exception {
+    createSerializer(copyingAapt2Command())
+        .serialize(
+            ApkSetWriter.directory(outputDirectory),
+            ImmutableMap.of(
+                ZipPath.create("a.apk"),
+                createSplit("a"),
+                ZipPath.create("b.apk"),
+                createSplit("b")));
+
+    for (String apk : ImmutableList.of("a.apk", "b.apk")) {
+      try (ZipFile apkZip = new ZipFile(outputDirectory.resolve(apk).toFile())) {
+        assertThat(apkZip.getEntry("AndroidManifest.xml")).isNotNull();
+        assertThat(apkZip.getEntry("classes.dex")).isNotNull();
+      }
+    }
+  }
+
+  @Test
+  public void conversionFails_otherConversionsStopBeforeTheirFilesAreRemoved() throws Exception {
+    CountDownLatch blockedConversionStarted = new CountDownLatch(1);
+    AtomicInteger conversions = new AtomicInteger();
+    AtomicBoolean blockedConversionInterrupted = new AtomicBoolean(false);
+    AtomicBoolean filesPresentWhenInterrupted = new AtomicBoolean(false);
+    AtomicReference<Path> conversionDirectory = new AtomicReference<>();
+    Aapt2Command failingAapt2Command =
+        new FakeAapt2Command() {
+          @Override
+          public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
+            conversionDirectory.set(protoApk.getParent());
+            try {
+              if (conversions.incrementAndGet() == 1) {
+                blockedConversionStarted.countDown();
+                new CountDownLatch(1).await();
+              }
+              blockedConversionStarted.await();
+            } catch (InterruptedException e) {
+              blockedConversionInterrupted.set(true);
+              filesPresentWhenInterrupted.set(Files.exists(protoApk));
+              throw CommandExecutionException.builder()
+                  .withInternalMessage("Conversion interrupted.")
+                  .withCause(e)
+                  .build();
+            }
+            throw CommandExecutionException.builder()
+                .withInternalMessage("Conversion failed.")
+                .build();
+          }
+        };
+
+    CommandExecutionException exception =
+        assertThrows(
+            CommandExecutionException.class,
+            () ->
+                createSerializer(failingAapt2Command)
+                    .serialize(
+                        ApkSetWriter.directory(outputDirectory),
+                        ImmutableMap.of(
+                            ZipPath.create("a.apk"),
+                            createSplit("a"),
+                            ZipPath.create("b.apk"),
+                            createSplit("b"))));
+
+    assertThat(exception).hasMessageThat().contains("Conversion failed.");
+    assertThat(blockedConversionInterrupted.get()).isTrue();
+    assertThat(filesPresentWhenInterrupted.get()).isTrue();
+    assertThat(Files.exists(conversionDirectory.get())).isFalse();
+    assertThat(Files.exists(outputDirectory.resolve("a.apk"))).isFalse();
+    assertThat(Files.exists(outputDirectory.resolve("b.apk"))).isFalse();
+  }
+
+  @Test
+  public void reuseBundleCompression_entryUnchanged_copiedFromBundle() throws Exception {
+    byte[] content = Strings.repeat("bundle content ", 1_000).getBytes(UTF_8);
+    Path bundlePath = createBundleWithDeflatedAsset(content);
+
+    ModuleEntry entry = bundleAssetEntry(bundlePath, content);
+    serializeWithReusedBundleCompression(entry);
+
+    long compressedSizeInBundle;
+    try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
+      compressedSizeInBundle = bundleZip.getEntry(BUNDLE_ASSET_PATH).getCompressedSize();
+    }
+    try (ZipFile apkZip = new ZipFile(outputDirectory.resolve("a.apk").toFile())) {
+      ZipEntry assetEntry = apkZip.getEntry("assets/large.txt");
+      assertThat(assetEntry.getCompressedSize()).isEqualTo(compressedSizeInBundle);
+      assertThat(ByteStreams.toByteArray(apkZip.getInputStream(assetEntry))).isEqualTo(content);
+    }
+  }
+
+  @Test
+  public void reuseBundleCompression_contentReplacedAfterRead_replacedContentWritten()
+      throws Exception {
+    byte[] bundleContent = Strings.repeat("bundle content ", 1_000).getBytes(UTF_8);
+    byte[] replacedContent = Strings.repeat("replaced content ", 1_000).getBytes(UTF_8);
+    Path bundlePath = createBundleWithDeflatedAsset(bundleContent);
+
+    // The bundle location is kept when the content is replaced.
+    ModuleEntry entry =
+        bundleAssetEntry(bundlePath, bundleContent)
+            .toBuilder()
+            .setContent(ByteSource.wrap(replacedContent))
+            .build();
+    serializeWithReusedBundleCompression(entry);
+
+    try (ZipFile apkZip = new ZipFile(outputDirectory.resolve("a.apk").toFile())) {
+      ZipEntry assetEntry = apkZip.getEntry("assets/large.txt");
+      assertThat(ByteStreams.toByteArray(apkZip.getInputStream(assetEntry)))
+          .isEqualTo(replacedContent);
+    }
+  }
+
+  private void serializeWithReusedBundleCompression(ModuleEntry entry) {
+    createSerializer(copyingAapt2Command(), /* reuseBundleCompression= */ true)
+        .serialize(
+            ApkSetWriter.directory(outputDirectory),
+            ImmutableMap.of(
+                ZipPath.create("a.apk"),
+                createModuleSplitBuilder()
+                    .setModuleName(BundleModuleName.create("a"))
+                    .setEntries(ImmutableList.of(entry))
+                    .build()));
+  }
+
+  private Path createBundleWithDeflatedAsset(byte[] content) throws IOException {
+    Path bundlePath = tmp.newFolder("bundle").toPath().resolve("bundle.aab");
+    try (ZipOutputStream bundleZip = new ZipOutputStream(Files.newOutputStream(bundlePath))) {
+      bundleZip.putNextEntry(new ZipEntry(BUNDLE_ASSET_PATH));
+      bundleZip.write(content);
+      bundleZip.closeEntry();
+    }
+    return bundlePath;
+  }
+
+  private static ModuleEntry bundleAssetEntry(Path bundlePath, byte[] content) {
+    return ModuleEntry.builder()
+        .setPath(ZipPath.create("assets/large.txt"))
+        .setBundleLocation(
+            ModuleEntryBundleLocation.create(bundlePath, ZipPath.create(BUNDLE_ASSET_PATH)))
+        .setContent(ByteSource.wrap(content))
+        .build();
+  }
+
+  private ModuleSplitSerializer createSerializer(Aapt2Command aapt2Command) {
+    return createSerializer(aapt2Command, /* reuseBundleCompression= */ false);
+  }
+
+  private ModuleSplitSerializer createSerializer(
+      Aapt2Command aapt2Command, boolean reuseBundleCompression) {
+    MemoryBudget memoryBudget = MemoryBudget.createDefault();
+    return new ModuleSplitSerializer(
+        /* apkListener= */ Optional.empty(),
+        /* verbose= */ false,
+        new Aapt2ResourceConverter(
+            aapt2Command,
+            memoryBudget,
+            Tracer.disabled(),
+            BUNDLE_CONFIG,
+            /* cacheDirectory= */ Optional.empty(),
+            /* inProcessResourceConversion= */ false),
+        new ApkSigner(
+            /* signingConfigProvider= */ Optional.empty(),
+            /* sourceStampSigningConfig= */ Optional.empty(),
+            signerTempDirectory),
+        BUNDLE_CONFIG,
+        BundleToolVersion.getCurrentVersion(),
+        executorService,
+        memoryBudget,
+        Tracer.disabled(),
+        /* p7ZipCommand= */ Optional.empty(),
+        /* compressionCacheDirectory= */ Optional.empty(),
+        reuseBundleCompression,
+        /* incrementalFromApkSet= */ Optional.empty());
+  }
+
+  private static ModuleSplit createSplit(String moduleName) {
+    return createModuleSplitBuilder()
+        .setModuleName(BundleModuleName.create(moduleName))
+        .setEntries(
+            ImmutableList.of(
+                ModuleEntry.builder()
+                    .setPath(ZipPath.create("dex/classes.dex"))
+                    .setContent(ByteSource.wrap(new byte[1000]))
+                    .build()))
+        .build();
+  }
+
+  /** Proto and binary formats are not told apart by the serializer. */
+  private static Aapt2Command copyingAapt2Command() {
+    return new FakeAapt2Command() {
+      @Override
+      public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
+        try {
+          Files.copy(protoApk, binaryApk);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
+  }
+
+  private abstract static class FakeAapt2Command implements Aapt2Command {
+    @Override
+    public void optimizeToSparseResourceTables(Path originalApk, Path outputApk) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
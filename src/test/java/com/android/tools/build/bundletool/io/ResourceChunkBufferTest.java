@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.io.ResourceStringPool.NORMAL_PRIORITY;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.common.io.BaseEncoding;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ResourceChunkBufferTest {
+
+  @Test
+  public void values_writtenInLittleEndian() {
+    ResourceChunkBuffer buffer = new ResourceChunkBuffer();
+
+    buffer.putByte(0x12);
+    buffer.putShort(0x3456);
+    buffer.putInt(0x789abcde);
+    buffer.putBytes(new byte[] {1, 2});
+    buffer.putZeros(3);
+
+    assertThat(buffer.size()).isEqualTo(12);
+    assertThat(buffer.toByteArray()).isEqualTo(hex("12 5634 debc9a78 0102 000000"));
+  }
+
+  @Test
+  public void putAt_overwritesValues() {
+    ResourceChunkBuffer buffer = new ResourceChunkBuffer();
+    buffer.putZeros(8);
+
+    buffer.putShortAt(0, 0xabcd);
+    buffer.putIntAt(4, 0x01020304);
+
+    assertThat(buffer.size()).isEqualTo(8);
+    assertThat(buffer.toByteArray()).isEqualTo(hex("cdab 0000 04030201"));
+  }
+
+  @Test
+  public void chunk_paddedAndSizeWritten() {
+    ResourceChunkBuffer buffer = new ResourceChunkBuffer();
+    buffer.putInt(0xffffffff);
+
+    int chunkStart = buffer.startChunk(0x0201, 12);
+    buffer.putInt(7);
+    buffer.putByte(1);
+    buffer.finishChunk(chunkStart);
+
+    assertThat(chunkStart).isEqualTo(4);
+    assertThat(buffer.toByteArray())
+        .isEqualTo(
+            hex(
+                "ffffffff"
+                    // Type, header size and size of the chunk, including its padding.
+                    + "0102 0c00 10000000"
+                    + "07000000 01 000000"));
+  }
+
+  @Test
+  public void align4() {
+    ResourceChunkBuffer buffer = new ResourceChunkBuffer();
+
+    buffer.align4();
+    assertThat(buffer.size()).isEqualTo(0);
+    buffer.putShort(1);
+    buffer.align4();
+    assertThat(buffer.size()).isEqualTo(4);
+  }
+
+  @Test
+  public void resValues() {
+    ResourceChunkBuffer buffer = new ResourceChunkBuffer();
+
+    buffer.putResValue(/* dataType= */ 0x10, /* data= */ -1);
+
+    assertThat(buffer.toByteArray()).isEqualTo(hex("0800 00 10 ffffffff"));
+  }
+
+  @Test
+  public void stringRefs_resolvedToIndicesOfSortedPool() {
+    ResourceStringPool pool = new ResourceStringPool(/* utf8= */ true);
+    ResourceStringPool.Ref refB = pool.makeRef("b", NORMAL_PRIORITY);
+    pool.makeRef("a", NORMAL_PRIORITY);
+    ResourceChunkBuffer buffer = new ResourceChunkBuffer();
+
+    buffer.putStringRef(refB);
+    buffer.putStringResValue(refB);
+    pool.sort();
+    buffer.resolveStringRefs();
+
+    assertThat(buffer.toByteArray()).isEqualTo(hex("01000000 0800 00 03 01000000"));
+  }
+
+  @Test
+  public void unresolvedStringRefs_throws() {
+    ResourceStringPool pool = new ResourceStringPool(/* utf8= */ true);
+    ResourceChunkBuffer buffer = new ResourceChunkBuffer();
+    buffer.putStringRef(pool.makeRef("a", NORMAL_PRIORITY));
+
+    assertThrows(IllegalStateException.class, buffer::toByteArray);
+  }
+
+  @Test
+  public void append_shiftsStringRefs() {
+    ResourceStringPool pool = new ResourceStringPool(/* utf8= */ true);
+    pool.makeRef("a", NORMAL_PRIORITY);
+    ResourceStringPool.Ref refB = pool.makeRef("b", NORMAL_PRIORITY);
+    ResourceChunkBuffer buffer = new ResourceChunkBuffer();
+    buffer.putShort(0xffff);
+    ResourceChunkBuffer otherBuffer = new ResourceChunkBuffer();
+    otherBuffer.putShort(0xeeee);
+    otherBuffer.putStringRef(refB);
+
+    buffer.append(otherBuffer);
+    pool.sort();
+    buffer.resolveStringRefs();
+
+    assertThat(buffer.toByteArray()).isEqualTo(hex("ffff eeee 01000000"));
+  }
+
+  @Test
+  public void growsBeyondInitialCapacity() {
+    ResourceChunkBuffer buffer = new ResourceChunkBuffer(/* initialCapacity= */ 1);
+
+    for (int i = 0; i < 1000; i++) {
+      buffer.putInt(i);
+    }
+    buffer.putZeros(5000);
+
+    byte[] bytes = buffer.toByteArray();
+    assertThat(bytes).hasLength(9000);
+    ByteBuffer byteBuffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < 1000; i++) {
+      assertThat(byteBuffer.getInt(4 * i)).isEqualTo(i);
+    }
+    assertThat(Arrays.copyOfRange(bytes, 4000, 9000)).isEqualTo(new byte[5000]);
+  }
+
+  private static byte[] hex(String hex) {
+    return BaseEncoding.base16().lowerCase().decode(hex.replace(" ", ""));
+  }
+}
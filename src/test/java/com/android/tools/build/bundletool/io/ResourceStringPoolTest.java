@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.io.ResourceStringPool.HIGH_PRIORITY;
+import static com.android.tools.build.bundletool.io.ResourceStringPool.LOW_PRIORITY;
+import static com.android.tools.build.bundletool.io.ResourceStringPool.NORMAL_PRIORITY;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.aapt.ConfigurationOuterClass.Configuration;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Bytes;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ResourceStringPoolTest {
+
+  /** Size of the header of a pool, which is followed by the indices of the strings. */
+  private static final int HEADER_SIZE = 28;
+
+  @Test
+  public void utf8Pool_singleString() {
+    ResourceStringPool pool = new ResourceStringPool(/* utf8= */ true);
+    pool.makeRef("a", NORMAL_PRIORITY);
+    pool.sort();
+
+    assertThat(write(pool))
+        .isEqualTo(
+            hex(
+                // Chunk type, header size and chunk size.
+                "0100 1c00 24000000"
+                    // String count, style count, UTF-8 flag, strings start and styles start.
+                    + "01000000 00000000 00010000 20000000 00000000"
+                    // Index of the string.
+                    + "00000000"
+                    // Length in characters, length in bytes, value and null terminator.
+                    + "01 01 61 00"));
+  }
+
+  @Test
+  public void utf16Pool_singleString() {
+    ResourceStringPool pool = new ResourceStringPool(/* utf8= */ false);
+    pool.makeRef("a", NORMAL_PRIORITY);
+    pool.sort();
+
+    assertThat(write(pool))
+        .isEqualTo(
+            hex(
+                "0100 1c00 28000000"
+                    + "01000000 00000000 00000000 20000000 00000000"
+                    + "00000000"
+                    // Length, value and null terminator, padded to 4 bytes.
+                    + "0100 6100 0000 0000"));
+  }
+
+  @Test
+  public void utf8Pool_nonAsciiString_encodedWithLengthInCharacters() {
+    assertThat(encodeSingleString(/* utf8= */ true, "é")).isEqualTo(hex("01 02 c3a9 00 000000"));
+  }
+
+  @Test
+  public void utf8Pool_supplementaryCharacter_encodedAsSurrogatePair() {
+    // Modified UTF-8 encodes each surrogate of the pair on 3 bytes, as aapt2 does.
+    assertThat(encodeSingleString(/* utf8= */ true, "😀"))
+        .isEqualTo(hex("02 06 eda0bd edb880 00 000000"));
+  }
+
+  @Test
+  public void utf16Pool_supplementaryCharacter_encodedAsSurrogatePair() {
+    assertThat(encodeSingleString(/* utf8= */ false, "😀"))
+        .isEqualTo(hex("0200 3dd8 00de 0000"));
+  }
+
+  @Test
+  public void utf8Pool_longString_twoBytesLength() {
+    String value = Strings.repeat("x", 200);
+
+    byte[] encoded = encodeSingleString(/* utf8= */ true, value);
+
+    assertThat(Arrays.copyOf(encoded, 4)).isEqualTo(hex("80c8 80c8"));
+    // Lengths, value and null terminator, padded to 4 bytes.
+    assertThat(encoded).hasLength(208);
+  }
+
+  @Test
+  public void utf8Pool_tooLongString_throws() {
+    ResourceStringPool pool = new ResourceStringPool(/* utf8= */ true);
+
+    assertThrows(
+        UnsupportedResourceException.class,
+        () -> pool.makeRef(Strings.repeat("x", 0x8000), NORMAL_PRIORITY));
+  }
+
+  @Test
+  public void makeRef_sameValueAndPriority_deduplicated() {
+    ResourceStringPool pool = new ResourceStringPool(/* utf8= */ true);
+
+    ResourceStringPool.Ref ref1 = pool.makeRef("a", NORMAL_PRIORITY);
+    ResourceStringPool.Ref ref2 = pool.makeRef("a", NORMAL_PRIORITY);
+    ResourceStringPool.Ref ref3 = pool.makeRef("a", LOW_PRIORITY);
+    pool.sort();
+
+    assertThat(ref2).isSameInstanceAs(ref1);
+    assertThat(ref3).isNotSameInstanceAs(ref1);
+    assertThat(pool.getStrings()).containsExactly(ref1, ref3).inOrder();
+    assertThat(pool.getRef("a", LOW_PRIORITY)).isSameInstanceAs(ref3);
+  }
+
+  @Test
+  public void getRef_unknownString_throws() {
+    ResourceStringPool pool = new ResourceStringPool(/* utf8= */ true);
+    pool.makeRef("a", NORMAL_PRIORITY);
+
+    assertThrows(IllegalArgumentException.class, () -> pool.getRef("a", HIGH_PRIORITY));
+    assertThrows(IllegalArgumentException.class, () -> pool.getRef("b", NORMAL_PRIORITY));
+  }
+
+  @Test
+  public void sort_byPriorityThenConfigurationThenValue() {
+    ResourceStringPool pool = new ResourceStringPool(/* utf8= */ true);
+    ResourceTableConfig xhdpi =
+        ResourceTableConfig.fromProto(Configuration.newBuilder().setDensity(320).build());
+    ResourceStringPool.Ref xhdpiValue = pool.makeRef("a_xhdpi", NORMAL_PRIORITY, xhdpi);
+    ResourceStringPool.Ref lowPriority = pool.makeRef("0", LOW_PRIORITY);
+    ResourceStringPool.Ref valueB = pool.makeRef("b", NORMAL_PRIORITY);
+    ResourceStringPool.Ref valueA = pool.makeRef("a", NORMAL_PRIORITY);
+    ResourceStringPool.Ref file = pool.makeRef("res/drawable/z.png", HIGH_PRIORITY);
+
+    pool.sort();
+
+    assertThat(pool.getStrings())
+        .containsExactly(file, valueA, valueB, xhdpiValue, lowPriority)
+        .inOrder();
+    assertThat(file.getIndex()).isEqualTo(0);
+    assertThat(lowPriority.getIndex()).isEqualTo(4);
+  }
+
+  @Test
+  public void sort_valuesComparedAsUtf8Bytes() {
+    ResourceStringPool pool = new ResourceStringPool(/* utf8= */ false);
+    // U+FF21 sorts before U+1F600 in UTF-8 but after its surrogates in UTF-16.
+    ResourceStringPool.Ref emoji = pool.makeRef("😀", NORMAL_PRIORITY);
+    ResourceStringPool.Ref fullWidth = pool.makeRef("Ａ", NORMAL_PRIORITY);
+
+    pool.sort();
+
+    assertThat(pool.getStrings()).containsExactly(fullWidth, emoji).inOrder();
+  }
+
+  @Test
+  public void assignIndices_keepsInsertionOrder() {
+    ResourceStringPool pool = new ResourceStringPool(/* utf8= */ true);
+    ResourceStringPool.Ref valueB = pool.makeRef("b", NORMAL_PRIORITY);
+    ResourceStringPool.Ref valueA = pool.makeRef("a", HIGH_PRIORITY);
+
+    pool.assignIndices();
+
+    assertThat(valueB.getIndex()).isEqualTo(0);
+    assertThat(valueA.getIndex()).isEqualTo(1);
+  }
+
+  @Test
+  public void indicesAssigned_noStringCanBeAdded() {
+    ResourceStringPool pool = new ResourceStringPool(/* utf8= */ true);
+    ResourceStringPool.Ref ref = pool.makeRef("a", NORMAL_PRIORITY);
+
+    assertThrows(IllegalStateException.class, ref::getIndex);
+    pool.sort();
+
+    assertThrows(IllegalStateException.class, () -> pool.makeRef("b", NORMAL_PRIORITY));
+  }
+
+  @Test
+  public void styledStrings_comeFirstWithTheirSpans() {
+    ResourceStringPool pool = new ResourceStringPool(/* utf8= */ true);
+    ResourceStringPool.Ref plain = pool.makeRef("plain", NORMAL_PRIORITY);
+    ResourceStringPool.Ref tag = pool.makeRef("b", NORMAL_PRIORITY);
+    ResourceStringPool.Ref styled =
+        pool.makeStyleRef(
+            "styled",
+            ImmutableList.of(new ResourceStringPool.Span(tag, 1, 3)),
+            NORMAL_PRIORITY,
+            ResourceTableConfig.DEFAULT);
+    pool.sort();
+
+    assertThat(styled.getIndex()).isEqualTo(0);
+    assertThat(tag.getIndex()).isEqualTo(1);
+    assertThat(plain.getIndex()).isEqualTo(2);
+    assertThat(pool.getStrings()).containsExactly(tag, plain).inOrder();
+
+    byte[] bytes = write(pool);
+    ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    assertThat(buffer.getInt(8)).isEqualTo(3);
+    assertThat(buffer.getInt(12)).isEqualTo(1);
+    int stringsStart = buffer.getInt(20);
+    // The styled string is the first string of the pool.
+    assertThat(stringsStart).isEqualTo(HEADER_SIZE + 4 * 3 + 4);
+    assertThat(Bytes.indexOf(bytes, hex("0606 7374796c6564 00"))).isEqualTo(stringsStart);
+    int stylesStart = buffer.getInt(24);
+    buffer.position(stylesStart);
+    ImmutableList.Builder<Integer> styleData = ImmutableList.builder();
+    while (buffer.hasRemaining()) {
+      styleData.add(buffer.getInt());
+    }
+    // Name, first and last character of the span, end of the style, and end of the styles.
+    assertThat(styleData.build()).containsExactly(1, 1, 3, -1, -1, -1).inOrder();
+  }
+
+  private static byte[] write(ResourceStringPool pool) {
+    ResourceChunkBuffer buffer = new ResourceChunkBuffer();
+    pool.writeTo(buffer);
+    return buffer.toByteArray();
+  }
+
+  /** Returns the encoded string of a pool made of this single string, with its padding. */
+  private static byte[] encodeSingleString(boolean utf8, String value) {
+    ResourceStringPool pool = new ResourceStringPool(utf8);
+    pool.makeRef(value, NORMAL_PRIORITY);
+    pool.sort();
+    byte[] bytes = write(pool);
+    return Arrays.copyOfRange(bytes, HEADER_SIZE + 4, bytes.length);
+  }
+
+  private static byte[] hex(String hex) {
+    return BaseEncoding.base16().lowerCase().decode(hex.replace(" ", ""));
+  }
+}
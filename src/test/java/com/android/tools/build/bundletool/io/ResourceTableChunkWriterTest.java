@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+import com.android.aapt.ConfigurationOuterClass.Configuration;
+import com.android.aapt.ConfigurationOuterClass.Configuration.LayoutDirection;
+import com.android.aapt.ConfigurationOuterClass.Configuration.Orientation;
+import com.android.aapt.ConfigurationOuterClass.Configuration.UiModeNight;
+import com.android.aapt.Resources;
+import com.android.aapt.Resources.Array;
+import com.android.aapt.Resources.Attribute;
+import com.android.aapt.Resources.CompoundValue;
+import com.android.aapt.Resources.ConfigValue;
+import com.android.aapt.Resources.FileReference;
+import com.android.aapt.Resources.Item;
+import com.android.aapt.Resources.Plural;
+import com.android.aapt.Resources.Primitive;
+import com.android.aapt.Resources.RawString;
+import com.android.aapt.Resources.Reference;
+import com.android.aapt.Resources.ResourceTable;
+import com.android.aapt.Resources.Style;
+import com.android.aapt.Resources.StyledString;
+import com.android.aapt.Resources.TypeId;
+import com.android.aapt.Resources.Value;
+import com.android.aapt.Resources.XmlElement;
+import com.android.aapt.Resources.XmlNode;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.testing.Aapt2Helper;
+import com.android.tools.build.bundletool.testing.ResourceTableBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+import java.util.zip.ZipFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ResourceTableChunkWriterTest {
+
+  private static final String PACKAGE_NAME = "com.test.app";
+
+  private static final int RES_TABLE_PACKAGE_TYPE = 0x0200;
+  private static final int RES_TABLE_TYPE_TYPE = 0x0201;
+
+  private static final int TEXT_COLOR_ATTR_ID = 0x01010098;
+  private static final int TEXT_SIZE_ATTR_ID = 0x01010095;
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void stringsAndFiles_sameAsAapt2() throws Exception {
+    ResourceTable table =
+        new ResourceTableBuilder()
+            .addPackage(PACKAGE_NAME)
+            .addStringResource("app_name", "Test app")
+            .addStringResource("welcome", "Grüße 😀")
+            .addStringResource("duplicate", "Test app")
+            .addDrawableResource("icon", "res/drawable/icon.png")
+            .addXmlResource("prefs", "res/xml/prefs.xml")
+            .build();
+
+    assertThat(ResourceTableChunkWriter.write(table).get()).isEqualTo(convertWithAapt2(table));
+  }
+
+  @Test
+  public void multipleDensities_sameAsAapt2() throws Exception {
+    ResourceTable table =
+        new ResourceTableBuilder()
+            .addPackage(PACKAGE_NAME)
+            .addDrawableResourceForMultipleDensities(
+                "image",
+                ImmutableMap.of(
+                    0, "res/drawable/image.png",
+                    480, "res/drawable-xxhdpi/image.png",
+                    160, "res/drawable-mdpi/image.png",
+                    320, "res/drawable-xhdpi/image.png"))
+            .addDrawableResourceForMultipleDensities(
+                "other_image", ImmutableMap.of(320, "res/drawable-xhdpi/other_image.png"))
+            .addStringResource("label", "Label")
+            .build();
+
+    byte[] arsc = ResourceTableChunkWriter.write(table).get();
+
+    assertThat(arsc).isEqualTo(convertWithAapt2(table));
+    // One type chunk per density of the drawables, and one for the string.
+    assertThat(findTypeChunks(arsc)).hasSize(5);
+  }
+
+  @Test
+  public void qualifiers_sameAsAapt2() throws Exception {
+    ResourceTable table =
+        new ResourceTableBuilder()
+            .addPackage(PACKAGE_NAME)
+            .addResource(
+                "string",
+                "label",
+                stringValue(Configuration.getDefaultInstance(), "default"),
+                stringValue(Configuration.newBuilder().setSdkVersion(21).build(), "v21"),
+                stringValue(
+                    Configuration.newBuilder()
+                        .setUiModeNight(UiModeNight.UI_MODE_NIGHT_NIGHT)
+                        .build(),
+                    "night"),
+                stringValue(
+                    Configuration.newBuilder()
+                        .setOrientation(Orientation.ORIENTATION_LAND)
+                        .build(),
+                    "land"),
+                stringValue(
+                    Configuration.newBuilder()
+                        .setLayoutDirection(LayoutDirection.LAYOUT_DIRECTION_RTL)
+                        .setSdkVersion(17)
+                        .build(),
+                    "rtl"),
+                stringValue(
+                    Configuration.newBuilder()
+                        .setDensity(480)
+                        .setScreenWidthDp(600)
+                        .setSmallestScreenWidthDp(600)
+                        .setSdkVersion(13)
+                        .build(),
+                    "large"))
+            .build();
+
+    assertThat(ResourceTableChunkWriter.write(table).get()).isEqualTo(convertWithAapt2(table));
+  }
+
+  @Test
+  public void entryIdGaps_nonSparseTypeSameAsAapt2() throws Exception {
+    ResourceTable.Builder table =
+        new ResourceTableBuilder()
+            .addPackage(PACKAGE_NAME)
+            .addStringResource("first", "First")
+            .addStringResource("second", "Second")
+            .addStringResource("third", "Third")
+            .build()
+            .toBuilder();
+    table.getPackageBuilder(0).getTypeBuilder(0).getEntryBuilder(1).getEntryIdBuilder().setId(5);
+    table.getPackageBuilder(0).getTypeBuilder(0).getEntryBuilder(2).getEntryIdBuilder().setId(40);
+
+    byte[] arsc = ResourceTableChunkWriter.write(table.build()).get();
+
+    assertThat(arsc).isEqualTo(convertWithAapt2(table.build()));
+    ByteBuffer buffer = ByteBuffer.wrap(arsc).order(ByteOrder.LITTLE_ENDIAN);
+    int typeChunk = findTypeChunks(arsc).get(0);
+    // Flags of the type chunk, and its number of entries including the missing ones.
+    assertThat((int) buffer.get(typeChunk + 9)).isEqualTo(0);
+    assertThat(buffer.getInt(typeChunk + 12)).isEqualTo(41);
+  }
+
+  @Test
+  public void typeIdGaps_sameAsAapt2() throws Exception {
+    ResourceTable.Builder table =
+        new ResourceTableBuilder()
+            .addPackage(PACKAGE_NAME)
+            .addStringResource("label", "Label")
+            .addDrawableResource("icon", "res/drawable/icon.png")
+            .build()
+            .toBuilder();
+    table.getPackageBuilder(0).getTypeBuilder(0).setTypeId(TypeId.newBuilder().setId(2));
+    table.getPackageBuilder(0).getTypeBuilder(1).setTypeId(TypeId.newBuilder().setId(5));
+
+    assertThat(ResourceTableChunkWriter.write(table.build()).get())
+        .isEqualTo(convertWithAapt2(table.build()));
+  }
+
+  @Test
+  public void primitivesAndReferences_sameAsAapt2() throws Exception {
+    ResourceTable table =
+        new ResourceTableBuilder()
+            .addPackage(PACKAGE_NAME)
+            .addResource("color", "argb8", itemValue(prim(p -> p.setColorArgb8Value(0x80ff0000))))
+            .addResource("color", "rgb8", itemValue(prim(p -> p.setColorRgb8Value(0xff00ff00))))
+            .addResource("color", "rgb4", itemValue(prim(p -> p.setColorRgb4Value(0xff0000ff))))
+            .addResource("dimen", "size", itemValue(prim(p -> p.setDimensionValue(0x00001001))))
+            .addResource("fraction", "ratio", itemValue(prim(p -> p.setFractionValue(0x00000800))))
+            .addResource("integer", "count", itemValue(prim(p -> p.setIntDecimalValue(-42))))
+            .addResource("integer", "mask", itemValue(prim(p -> p.setIntHexadecimalValue(0xf0))))
+            .addResource("bool", "enabled", itemValue(prim(p -> p.setBooleanValue(true))))
+            .addResource("bool", "disabled", itemValue(prim(p -> p.setBooleanValue(false))))
+            .addResource("dimen", "scale", itemValue(prim(p -> p.setFloatValue(1.5f))))
+            .addResource(
+                "string",
+                "empty",
+                itemValue(prim(p -> p.setEmptyValue(Primitive.EmptyType.getDefaultInstance()))))
+            .addResource(
+                "string",
+                "raw",
+                itemValue(Item.newBuilder().setRawStr(RawString.newBuilder().setValue("raw"))))
+            .addResource(
+                "color",
+                "alias",
+                itemValue(Item.newBuilder().setRef(Reference.newBuilder().setId(0x7f010000))))
+            .addResource(
+                "color",
+                "themed",
+                itemValue(
+                    Item.newBuilder()
+                        .setRef(
+                            Reference.newBuilder()
+                                .setType(Reference.Type.ATTRIBUTE)
+                                .setId(TEXT_COLOR_ATTR_ID))))
+            .build();
+
+    assertThat(ResourceTableChunkWriter.write(table).get()).isEqualTo(convertWithAapt2(table));
+  }
+
+  @Test
+  public void compoundValues_sameAsAapt2() throws Exception {
+    ResourceTable table =
+        new ResourceTableBuilder()
+            .addPackage(PACKAGE_NAME)
+            .addResource(
+                "attr",
+                "customColor",
+                compoundValue(
+                    CompoundValue.newBuilder()
+                        .setAttr(
+                            Attribute.newBuilder()
+                                .setFormatFlags(Attribute.FormatFlags.COLOR_VALUE)
+                                .setMinInt(Integer.MIN_VALUE)
+                                .setMaxInt(Integer.MAX_VALUE))))
+            .addResource(
+                "attr",
+                "customMode",
+                compoundValue(
+                    CompoundValue.newBuilder()
+                        .setAttr(
+                            Attribute.newBuilder()
+                                .setFormatFlags(Attribute.FormatFlags.ENUM_VALUE)
+                                .setMinInt(0)
+                                .setMaxInt(10)
+                                .addSymbol(
+                                    Attribute.Symbol.newBuilder()
+                                        .setName(Reference.newBuilder().setId(0x7f020000))
+                                        .setValue(1)))))
+            .addResource(
+                "style",
+                "AppTheme",
+                compoundValue(
+                    CompoundValue.newBuilder()
+                        .setStyle(
+                            Style.newBuilder()
+                                .setParent(Reference.newBuilder().setId(0x01030005))
+                                // Entries are written ordered by id, framework attributes first.
+                                .addEntry(
+                                    styleEntry(0x7f010000, prim(p -> p.setColorRgb8Value(0))))
+                                .addEntry(
+                                    styleEntry(
+                                        TEXT_SIZE_ATTR_ID,
+                                        prim(p -> p.setDimensionValue(0x00001001))))
+                                .addEntry(
+                                    styleEntry(
+                                        TEXT_COLOR_ATTR_ID,
+                                        prim(p -> p.setColorArgb8Value(0xff000000)))))))
+            .addResource(
+                "array",
+                "planets",
+                compoundValue(
+                    CompoundValue.newBuilder()
+                        .setArray(
+                            Array.newBuilder()
+                                .addElement(arrayElement("Mercury"))
+                                .addElement(arrayElement("Venus"))
+                                .addElement(
+                                    Array.Element.newBuilder()
+                                        .setItem(prim(p -> p.setIntDecimalValue(3)))))))
+            .addResource(
+                "plurals",
+                "songs",
+                compoundValue(
+                    CompoundValue.newBuilder()
+                        .setPlural(
+                            Plural.newBuilder()
+                                .addEntry(pluralEntry(Plural.Arity.OTHER, "%d songs"))
+                                .addEntry(pluralEntry(Plural.Arity.ONE, "One song"))
+                                .addEntry(pluralEntry(Plural.Arity.ZERO, "No song")))))
+            .addResource(
+                "string",
+                "styled",
+                itemValue(
+                    Item.newBuilder()
+                        .setStyledStr(
+                            StyledString.newBuilder()
+                                .setValue("Bold text")
+                                .addSpan(
+                                    StyledString.Span.newBuilder()
+                                        .setTag("b")
+                                        .setFirstChar(0)
+                                        .setLastChar(3)))))
+            .build();
+
+    assertThat(ResourceTableChunkWriter.write(table).get()).isEqualTo(convertWithAapt2(table));
+  }
+
+  @Test
+  public void locale_notSupported() {
+    ResourceTable table =
+        new ResourceTableBuilder()
+            .addPackage(PACKAGE_NAME)
+            .addStringResourceForMultipleLocales(
+                "label", ImmutableMap.of("", "Label", "fr", "Nom"))
+            .build();
+
+    assertThat(ResourceTableChunkWriter.write(table)).isEmpty();
+  }
+
+  @Test
+  public void multiplePackages_notSupported() {
+    ResourceTable table =
+        new ResourceTableBuilder()
+            .addPackage(PACKAGE_NAME)
+            .addStringResource("label", "Label")
+            .addPackage("com.test.app.feature")
+            .addStringResource("feature_label", "Feature")
+            .build();
+
+    assertThat(ResourceTableChunkWriter.write(table)).isEmpty();
+  }
+
+  @Test
+  public void featurePackageId_notSupported() {
+    ResourceTable table =
+        new ResourceTableBuilder()
+            .addPackage(PACKAGE_NAME, 0x7e)
+            .addStringResource("label", "Label")
+            .build();
+
+    assertThat(ResourceTableChunkWriter.write(table)).isEmpty();
+  }
+
+  @Test
+  public void macroReference_notSupported() {
+    ResourceTable table =
+        new ResourceTableBuilder()
+            .addPackage(PACKAGE_NAME)
+            .addResource(
+                "string",
+                "macro",
+                itemValue(Item.newBuilder().setRef(Reference.newBuilder().setName("macro/name"))))
+            .build();
+
+    assertThat(ResourceTableChunkWriter.write(table)).isEmpty();
+  }
+
+  private static ConfigValue stringValue(Configuration config, String value) {
+    return ConfigValue.newBuilder()
+        .setConfig(config)
+        .setValue(
+            Value.newBuilder()
+                .setItem(
+                    Item.newBuilder()
+                        .setStr(Resources.String.newBuilder().setValue(value))))
+        .build();
+  }
+
+  private static ConfigValue itemValue(Item.Builder item) {
+    return itemValue(item.build());
+  }
+
+  private static ConfigValue itemValue(Item item) {
+    return ConfigValue.newBuilder().setValue(Value.newBuilder().setItem(item)).build();
+  }
+
+  private static ConfigValue compoundValue(CompoundValue.Builder compoundValue) {
+    return ConfigValue.newBuilder()
+        .setValue(Value.newBuilder().setCompoundValue(compoundValue))
+        .build();
+  }
+
+  private static Item prim(Consumer<Primitive.Builder> primitiveSetter) {
+    Primitive.Builder primitive = Primitive.newBuilder();
+    primitiveSetter.accept(primitive);
+    return Item.newBuilder().setPrim(primitive).build();
+  }
+
+  private static Item str(String value) {
+    return Item.newBuilder()
+        .setStr(Resources.String.newBuilder().setValue(value))
+        .build();
+  }
+
+  private static Style.Entry styleEntry(int attrId, Item item) {
+    return Style.Entry.newBuilder()
+        .setKey(Reference.newBuilder().setId(attrId))
+        .setItem(item)
+        .build();
+  }
+
+  private static Array.Element arrayElement(String value) {
+    return Array.Element.newBuilder().setItem(str(value)).build();
+  }
+
+  private static Plural.Entry pluralEntry(Plural.Arity arity, String value) {
+    return Plural.Entry.newBuilder().setArity(arity).setItem(str(value)).build();
+  }
+
+  /**
+   * Converts a proto APK with the resource table and the files it references with aapt2, and
+   * returns the converted resource table.
+   */
+  private byte[] convertWithAapt2(ResourceTable table) throws Exception {
+    ZipBuilder protoApk =
+        new ZipBuilder()
+            .addFileWithProtoContent(
+                ZipPath.create("AndroidManifest.xml"), androidManifest(PACKAGE_NAME))
+            .addFileWithProtoContent(ZipPath.create("resources.pb"), table);
+    table.getPackageList().stream()
+        .flatMap(pkg -> pkg.getTypeList().stream())
+        .flatMap(type -> type.getEntryList().stream())
+        .flatMap(entry -> entry.getConfigValueList().stream())
+        .filter(configValue -> configValue.getValue().getItem().hasFile())
+        .map(configValue -> configValue.getValue().getItem().getFile())
+        .forEach(file -> addReferencedFile(protoApk, file));
+    Path protoApkPath = protoApk.writeTo(tmp.getRoot().toPath().resolve("proto.apk"));
+    Path binaryApkPath = tmp.getRoot().toPath().resolve("binary.apk");
+    Aapt2Helper.convertProtoApkToBinaryApk(protoApkPath, binaryApkPath);
+    try (ZipFile binaryApk = new ZipFile(binaryApkPath.toFile());
+        InputStream arsc = binaryApk.getInputStream(binaryApk.getEntry("resources.arsc"))) {
+      return ByteStreams.toByteArray(arsc);
+    }
+  }
+
+  private static void addReferencedFile(ZipBuilder protoApk, FileReference file) {
+    ZipPath path = ZipPath.create(file.getPath());
+    if (file.getPath().endsWith(".xml")) {
+      protoApk.addFileWithProtoContent(
+          path,
+          XmlNode.newBuilder()
+              .setElement(XmlElement.newBuilder().setName("root"))
+              .build());
+    } else {
+      protoApk.addFileWithContent(path, new byte[] {1, 2, 3});
+    }
+  }
+
+  /** Returns the offsets of the type chunks of the single package of the table. */
+  private static ImmutableList<Integer> findTypeChunks(byte[] arsc) {
+    ByteBuffer buffer = ByteBuffer.wrap(arsc).order(ByteOrder.LITTLE_ENDIAN);
+    // The table header is followed by the value string pool and the package.
+    int packageStart = buffer.getShort(2) + buffer.getInt(buffer.getShort(2) + 4);
+    assertThat(buffer.getShort(packageStart)).isEqualTo((short) RES_TABLE_PACKAGE_TYPE);
+    int packageEnd = packageStart + buffer.getInt(packageStart + 4);
+    ImmutableList.Builder<Integer> typeChunks = ImmutableList.builder();
+    for (int chunk = packageStart + buffer.getShort(packageStart + 2);
+        chunk < packageEnd;
+        chunk += buffer.getInt(chunk + 4)) {
+      if (buffer.getShort(chunk) == RES_TABLE_TYPE_TYPE) {
+        typeChunks.add(chunk);
+      }
+    }
+    return typeChunks.build();
+  }
+}
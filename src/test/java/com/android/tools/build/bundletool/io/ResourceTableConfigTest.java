@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.aapt.ConfigurationOuterClass.Configuration;
+import com.android.aapt.ConfigurationOuterClass.Configuration.LayoutDirection;
+import com.android.aapt.ConfigurationOuterClass.Configuration.Orientation;
+import com.android.aapt.ConfigurationOuterClass.Configuration.ScreenRound;
+import com.android.aapt.ConfigurationOuterClass.Configuration.UiModeNight;
+import com.google.common.collect.ImmutableList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ResourceTableConfigTest {
+
+  private static final int CONFIG_ORIENTATION = 0x0080;
+  private static final int CONFIG_DENSITY = 0x0100;
+  private static final int CONFIG_VERSION = 0x0400;
+  private static final int CONFIG_UI_MODE = 0x1000;
+  private static final int CONFIG_LAYOUTDIR = 0x4000;
+
+  @Test
+  public void defaultConfig_onlySizeWritten() {
+    byte[] bytes = write(ResourceTableConfig.DEFAULT);
+
+    assertThat(bytes).hasLength(64);
+    assertThat(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt(0)).isEqualTo(64);
+    assertThat(Arrays.copyOfRange(bytes, 4, 64)).isEqualTo(new byte[60]);
+    assertThat(write(fromProto(Configuration.getDefaultInstance()))).isEqualTo(bytes);
+  }
+
+  @Test
+  public void numericQualifiers_writtenAtTheirOffsets() {
+    ByteBuffer bytes =
+        writeToBuffer(
+            fromProto(
+                Configuration.newBuilder()
+                    .setMcc(310)
+                    .setMnc(4)
+                    .setDensity(480)
+                    .setScreenWidth(1080)
+                    .setScreenHeight(1920)
+                    .setSdkVersion(21)
+                    .setSmallestScreenWidthDp(360)
+                    .setScreenWidthDp(400)
+                    .setScreenHeightDp(700)
+                    .build()));
+
+    assertThat(bytes.getShort(4)).isEqualTo((short) 310);
+    assertThat(bytes.getShort(6)).isEqualTo((short) 4);
+    assertThat(bytes.getShort(14)).isEqualTo((short) 480);
+    assertThat(bytes.getShort(20)).isEqualTo((short) 1080);
+    assertThat(bytes.getShort(22)).isEqualTo((short) 1920);
+    assertThat(bytes.getShort(24)).isEqualTo((short) 21);
+    assertThat(bytes.getShort(30)).isEqualTo((short) 360);
+    assertThat(bytes.getShort(32)).isEqualTo((short) 400);
+    assertThat(bytes.getShort(34)).isEqualTo((short) 700);
+  }
+
+  @Test
+  public void enumQualifiers_mappedToBinaryValues() {
+    ByteBuffer bytes =
+        writeToBuffer(
+            fromProto(
+                Configuration.newBuilder()
+                    .setOrientation(Orientation.ORIENTATION_LAND)
+                    .setLayoutDirection(LayoutDirection.LAYOUT_DIRECTION_RTL)
+                    .setUiModeNight(UiModeNight.UI_MODE_NIGHT_NIGHT)
+                    .setScreenRound(ScreenRound.SCREEN_ROUND_ROUND)
+                    .build()));
+
+    assertThat(bytes.get(12)).isEqualTo((byte) 0x02);
+    assertThat(bytes.get(28)).isEqualTo((byte) 0x80);
+    assertThat(bytes.get(29)).isEqualTo((byte) 0x20);
+    assertThat(bytes.get(48)).isEqualTo((byte) 0x02);
+  }
+
+  @Test
+  public void compareTo_followsPlatformOrder() {
+    ResourceTableConfig mdpi = fromProto(Configuration.newBuilder().setDensity(160).build());
+    ResourceTableConfig xhdpi = fromProto(Configuration.newBuilder().setDensity(320).build());
+    ResourceTableConfig v21 = fromProto(Configuration.newBuilder().setSdkVersion(21).build());
+    ResourceTableConfig mcc = fromProto(Configuration.newBuilder().setMcc(310).build());
+    ResourceTableConfig night =
+        fromProto(
+            Configuration.newBuilder().setUiModeNight(UiModeNight.UI_MODE_NIGHT_NIGHT).build());
+
+    ImmutableList<ResourceTableConfig> sorted =
+        ImmutableList.sortedCopyOf(
+            ImmutableList.of(mcc, xhdpi, night, ResourceTableConfig.DEFAULT, v21, mdpi));
+
+    // Densities are compared before the sdk version, which is compared before the UI mode.
+    assertThat(sorted)
+        .containsExactly(ResourceTableConfig.DEFAULT, night, v21, mdpi, xhdpi, mcc)
+        .inOrder();
+  }
+
+  @Test
+  public void equalConfigs() {
+    ResourceTableConfig config1 =
+        fromProto(Configuration.newBuilder().setDensity(320).setSdkVersion(21).build());
+    ResourceTableConfig config2 =
+        fromProto(Configuration.newBuilder().setSdkVersion(21).setDensity(320).build());
+
+    assertThat(config1).isEqualTo(config2);
+    assertThat(config1.hashCode()).isEqualTo(config2.hashCode());
+    assertThat(config1.compareTo(config2)).isEqualTo(0);
+    assertThat(config1.diff(config2)).isEqualTo(0);
+  }
+
+  @Test
+  public void diff_bitsOfDifferingFields() {
+    ResourceTableConfig xhdpiV21 =
+        fromProto(Configuration.newBuilder().setDensity(320).setSdkVersion(21).build());
+    ResourceTableConfig rtlNightLand =
+        fromProto(
+            Configuration.newBuilder()
+                .setLayoutDirection(LayoutDirection.LAYOUT_DIRECTION_RTL)
+                .setUiModeNight(UiModeNight.UI_MODE_NIGHT_NIGHT)
+                .setOrientation(Orientation.ORIENTATION_LAND)
+                .build());
+
+    assertThat(xhdpiV21.diff(ResourceTableConfig.DEFAULT))
+        .isEqualTo(CONFIG_DENSITY | CONFIG_VERSION);
+    assertThat(rtlNightLand.diff(ResourceTableConfig.DEFAULT))
+        .isEqualTo(CONFIG_LAYOUTDIR | CONFIG_UI_MODE | CONFIG_ORIENTATION);
+    assertThat(xhdpiV21.diff(rtlNightLand)).isEqualTo(rtlNightLand.diff(xhdpiV21));
+  }
+
+  @Test
+  public void locale_notSupported() {
+    assertThrows(
+        UnsupportedResourceException.class,
+        () -> fromProto(Configuration.newBuilder().setLocale("fr").build()));
+  }
+
+  @Test
+  public void product_notSupported() {
+    assertThrows(
+        UnsupportedResourceException.class,
+        () -> fromProto(Configuration.newBuilder().setProduct("tablet").build()));
+  }
+
+  @Test
+  public void valueOutOfRange_notSupported() {
+    assertThrows(
+        UnsupportedResourceException.class,
+        () -> fromProto(Configuration.newBuilder().setDensity(0x10000).build()));
+  }
+
+  @Test
+  public void unknownEnumValue_notSupported() {
+    assertThrows(
+        UnsupportedResourceException.class,
+        () -> fromProto(Configuration.newBuilder().setOrientationValue(42).build()));
+  }
+
+  private static ResourceTableConfig fromProto(Configuration config) {
+    return ResourceTableConfig.fromProto(config);
+  }
+
+  private static byte[] write(ResourceTableConfig config) {
+    ResourceChunkBuffer buffer = new ResourceChunkBuffer();
+    config.writeTo(buffer);
+    return buffer.toByteArray();
+  }
+
+  private static ByteBuffer writeToBuffer(ResourceTableConfig config) {
+    return ByteBuffer.wrap(write(config)).order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
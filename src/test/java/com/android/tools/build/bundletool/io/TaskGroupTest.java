@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TaskGroupTest {
+
+  private final ListeningExecutorService executorService =
+      MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+
+  @After
+  public void tearDown() {
+    executorService.shutdownNow();
+  }
+
+  @Test
+  public void tasksSucceed_resultsReturned() throws Exception {
+    TaskGroup tasks = new TaskGroup(executorService);
+
+    ListenableFuture<String> future = tasks.submit(() -> "result");
+
+    assertThat(future.get()).isEqualTo("result");
+    tasks.rethrowFirstFailure();
+  }
+
+  @Test
+  public void cancelAndAwait_waitsForRunningTasksToStop() throws Exception {
+    TaskGroup tasks = new TaskGroup(executorService);
+    CountDownLatch taskStarted = new CountDownLatch(1);
+    AtomicBoolean taskStopped = new AtomicBoolean(false);
+    tasks.submit(
+        () -> {
+          taskStarted.countDown();
+          try {
+            new CountDownLatch(1).await();
+          } catch (InterruptedException e) {
+            taskStopped.set(true);
+          }
+          return null;
+        });
+    taskStarted.await();
+
+    tasks.cancelAndAwait();
+
+    assertThat(taskStopped.get()).isTrue();
+  }
+
+  @Test
+  public void taskFails_otherTasksCancelledAndFailureRethrown() throws Exception {
+    TaskGroup tasks = new TaskGroup(executorService);
+    CountDownLatch taskStarted = new CountDownLatch(1);
+    AtomicBoolean taskInterrupted = new AtomicBoolean(false);
+    ListenableFuture<Object> blockedTask =
+        tasks.submit(
+            () -> {
+              taskStarted.countDown();
+              try {
+                new CountDownLatch(1).await();
+              } catch (InterruptedException e) {
+                taskInterrupted.set(true);
+                throw new IOException("Interrupted.", e);
+              }
+              return null;
+            });
+    taskStarted.await();
+
+    tasks.submit(
+        () -> {
+          throw new IOException("First failure.");
+        });
+    assertThrows(CancellationException.class, blockedTask::get);
+    AtomicBoolean lateTaskRun = new AtomicBoolean(false);
+    ListenableFuture<Object> lateTask =
+        tasks.submit(
+            () -> {
+              lateTaskRun.set(true);
+              return null;
+            });
+    tasks.cancelAndAwait();
+
+    assertThat(taskInterrupted.get()).isTrue();
+    assertThat(lateTask.isDone()).isTrue();
+    assertThat(lateTaskRun.get()).isFalse();
+    UncheckedIOException exception =
+        assertThrows(UncheckedIOException.class, tasks::rethrowFirstFailure);
+    assertThat(exception).hasMessageThat().isEqualTo("First failure.");
+  }
+}
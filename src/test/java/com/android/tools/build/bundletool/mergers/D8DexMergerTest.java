@@ -28,6 +28,7 @@ import com.android.tools.build.bundletool.model.exceptions.CommandExecutionExcep
 import com.android.tools.build.bundletool.testing.FileUtils;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.MoreFiles;
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -161,6 +162,29 @@ public class D8DexMergerTest {
         .isEqualTo(listClassesInDexFiles(dexFile1, dexFile2));
   }
 
+  @Test
+  public void mergeDexContents_sameClassesAsMergedFiles() throws Exception {
+    Path dexFile1 = writeTestDataToFile("testdata/dex/classes.dex");
+    Path dexFile2 = writeTestDataToFile("testdata/dex/classes-other.dex");
+
+    ImmutableList<Path> mergedDexFiles =
+        new D8DexMerger()
+            .mergeDexContents(
+                ImmutableList.of(
+                    MoreFiles.asByteSource(dexFile1), MoreFiles.asByteSource(dexFile2)),
+                outputDir,
+                tmpDir,
+                /* mainDexListFile= */ NO_FILE,
+                /* proguardMap= */ NO_FILE,
+                /* isDebuggable= */ false,
+                /* minSdkVersion= */ ANDROID_K_API_VERSION);
+
+    assertThat(mergedDexFiles).hasSize(1);
+    assertThat(listDirectory(outputDir)).containsExactlyElementsIn(mergedDexFiles);
+    assertThat(listClassesInDexFiles(mergedDexFiles))
+        .isEqualTo(listClassesInDexFiles(dexFile1, dexFile2));
+  }
+
   @Test
   public void mergeDoesNotFitIntoSingleDex_withoutMainDexList_preL_throws() throws Exception {
     // The two input dex files cannot fit into a single dex file.
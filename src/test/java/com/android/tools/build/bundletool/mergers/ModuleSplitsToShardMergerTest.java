@@ -91,6 +91,7 @@ import com.android.tools.build.bundletool.model.utils.Versions;
 import com.android.tools.build.bundletool.testing.AppBundleBuilder;
 import com.android.tools.build.bundletool.testing.BundleConfigBuilder;
 import com.android.tools.build.bundletool.testing.TestModule;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -99,6 +100,12 @@ import dagger.Component;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import javax.inject.Inject;
 import org.junit.Before;
 import org.junit.Test;
@@ -325,7 +332,7 @@ public class ModuleSplitsToShardMergerTest {
     TestComponent.useTestModule(
         this, TestModule.builder().withAppBundle(BUNDLE_WITH_BASE_ONLY_NO_MAIN_DEX_LIST).build());
 
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    Map<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> dexMergingCache = createCache();
     ModuleSplit baseSplit =
         createModuleSplitBuilder()
             .setModuleName(BundleModuleName.create("base"))
@@ -349,7 +356,7 @@ public class ModuleSplitsToShardMergerTest {
 
   @Test
   public void dexFiles_inMultipleModules_areMerged() throws Exception {
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    Map<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> dexMergingCache = createCache();
     ModuleEntry dexEntry1 = createModuleEntryForFile("dex/classes.dex", CLASSES_DEX_CONTENT);
     ModuleSplit baseSplit =
         createModuleSplitBuilder()
@@ -377,14 +384,14 @@ public class ModuleSplitsToShardMergerTest {
     assertThat(dexMergingCache).hasSize(1);
     ImmutableSet<ModuleEntry> cacheKey = getOnlyElement(dexMergingCache.keySet());
     assertThat(cacheKey).containsExactly(dexEntry1, dexEntry2);
-    ImmutableList<Path> cacheValue = getOnlyElement(dexMergingCache.values());
+    ImmutableList<Path> cacheValue = getOnlyElement(dexMergingCache.values()).get();
     assertThat(cacheValue.stream().allMatch(cachedFile -> cachedFile.startsWith(tmpDir.getPath())))
         .isTrue();
   }
 
   @Test
   public void dexFiles_allInOneModule_areMerged() throws Exception {
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    Map<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> dexMergingCache = createCache();
     ModuleSplit baseSplit =
         createModuleSplitBuilder()
             .setModuleName(BundleModuleName.create("base"))
@@ -410,7 +417,7 @@ public class ModuleSplitsToShardMergerTest {
 
   @Test
   public void dexFiles_inMultipleModules_areRenamedForLPlus() throws Exception {
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    Map<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> dexMergingCache = createCache();
 
     ModuleEntry dexEntry1 = createModuleEntryForFile("dex/classes.dex", CLASSES_DEX_CONTENT);
     ModuleSplit baseSplit =
@@ -445,7 +452,7 @@ public class ModuleSplitsToShardMergerTest {
 
   @Test
   public void dexFiles_inMultipleModules_areRenamedForLPlusNoBaseModuleDex() throws Exception {
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    Map<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> dexMergingCache = createCache();
 
     ModuleSplit baseSplit =
         createModuleSplitBuilder()
@@ -480,7 +487,7 @@ public class ModuleSplitsToShardMergerTest {
     TestComponent.useTestModule(
         this, TestModule.builder().withAppBundle(BUNDLE_WITH_ONE_FEATURE_DISABLED_MERGING).build());
 
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    Map<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> dexMergingCache = createCache();
 
     ModuleEntry dexEntry1 = createModuleEntryForFile("dex/classes.dex", CLASSES_DEX_CONTENT);
     ModuleSplit baseSplit =
@@ -866,10 +873,17 @@ public class ModuleSplitsToShardMergerTest {
     DexMerger spyDexMerger = Mockito.spy(d8DexMerger);
 
     new ModuleSplitsToShardMerger(
-            getCurrentVersion(), tmpDir, spyDexMerger, BUNDLE_WITH_ONE_FEATURE_NO_MAIN_DEX_LIST)
+            getCurrentVersion(),
+            tmpDir,
+            spyDexMerger,
+            BUNDLE_WITH_ONE_FEATURE_NO_MAIN_DEX_LIST,
+            new Semaphore(1),
+            /* dexMergingCacheDirectory= */ Optional.empty())
         .mergeSingleShard(ImmutableList.of(baseModuleSplit, featureModuleSplit), createCache());
 
-    verify(spyDexMerger).merge(any(), any(), any(), any(), /* isDebuggable= */ eq(false), anyInt());
+    verify(spyDexMerger)
+        .mergeDexContents(
+            any(), any(), any(), any(), any(), /* isDebuggable= */ eq(false), anyInt());
     verifyNoMoreInteractions(spyDexMerger);
   }
 
@@ -894,11 +908,17 @@ public class ModuleSplitsToShardMergerTest {
     DexMerger spyDexMerger = Mockito.spy(d8DexMerger);
 
     new ModuleSplitsToShardMerger(
-            getCurrentVersion(), tmpDir, spyDexMerger, BUNDLE_WITH_ONE_FEATURE_NO_MAIN_DEX_LIST)
+            getCurrentVersion(),
+            tmpDir,
+            spyDexMerger,
+            BUNDLE_WITH_ONE_FEATURE_NO_MAIN_DEX_LIST,
+            new Semaphore(1),
+            /* dexMergingCacheDirectory= */ Optional.empty())
         .mergeSingleShard(ImmutableList.of(baseModuleSplit, featureModuleSplit), createCache());
 
     verify(spyDexMerger)
-        .merge(any(), any(), any(), any(), anyBoolean(), /* minSdkVersion= */ eq(20));
+        .mergeDexContents(
+            any(), any(), any(), any(), any(), anyBoolean(), /* minSdkVersion= */ eq(20));
     verifyNoMoreInteractions(spyDexMerger);
   }
 
@@ -923,11 +943,161 @@ public class ModuleSplitsToShardMergerTest {
     DexMerger spyDexMerger = Mockito.spy(d8DexMerger);
 
     new ModuleSplitsToShardMerger(
-            getCurrentVersion(), tmpDir, spyDexMerger, BUNDLE_WITH_ONE_FEATURE_NO_MAIN_DEX_LIST)
+            getCurrentVersion(),
+            tmpDir,
+            spyDexMerger,
+            BUNDLE_WITH_ONE_FEATURE_NO_MAIN_DEX_LIST,
+            new Semaphore(1),
+            /* dexMergingCacheDirectory= */ Optional.empty())
         .mergeSingleShard(ImmutableList.of(baseModuleSplit, featureModuleSplit), createCache());
 
-    verify(spyDexMerger).merge(any(), any(), any(), any(), /* isDebuggable= */ eq(true), anyInt());
+    verify(spyDexMerger)
+        .mergeDexContents(
+            any(), any(), any(), any(), any(), /* isDebuggable= */ eq(true), anyInt());
+    verifyNoMoreInteractions(spyDexMerger);
+  }
+
+  @Test
+  public void dexFiles_sameShardMergedConcurrently_mergedOnce() throws Exception {
+    ModuleSplit baseModuleSplit =
+        createModuleSplitBuilder()
+            .setModuleName(BundleModuleName.create("base"))
+            .setEntries(
+                ImmutableList.of(createModuleEntryForFile("dex/classes.dex", CLASSES_DEX_CONTENT)))
+            .build();
+    ModuleSplit featureModuleSplit =
+        createModuleSplitBuilder()
+            .setModuleName(BundleModuleName.create(FEATURE_MODULE_NAME))
+            .setEntries(
+                ImmutableList.of(
+                    createModuleEntryForFile("dex/classes.dex", CLASSES_OTHER_DEX_CONTENT)))
+            .build();
+    DexMerger spyDexMerger = Mockito.spy(d8DexMerger);
+    ModuleSplitsToShardMerger merger =
+        new ModuleSplitsToShardMerger(
+            getCurrentVersion(),
+            tmpDir,
+            spyDexMerger,
+            BUNDLE_WITH_ONE_FEATURE_NO_MAIN_DEX_LIST,
+            new Semaphore(2),
+            /* dexMergingCacheDirectory= */ Optional.empty());
+    Map<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> dexMergingCache =
+        new ConcurrentHashMap<>();
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<ModuleSplit> merged1 =
+          executor.submit(
+              () ->
+                  merger.mergeSingleShard(
+                      ImmutableList.of(baseModuleSplit, featureModuleSplit), dexMergingCache));
+      Future<ModuleSplit> merged2 =
+          executor.submit(
+              () ->
+                  merger.mergeSingleShard(
+                      ImmutableList.of(baseModuleSplit, featureModuleSplit), dexMergingCache));
+
+      assertThat(dexData(merged1.get(), "dex/classes.dex"))
+          .isEqualTo(dexData(merged2.get(), "dex/classes.dex"));
+    } finally {
+      executor.shutdownNow();
+    }
+    verify(spyDexMerger)
+        .mergeDexContents(any(), any(), any(), any(), any(), anyBoolean(), anyInt());
+    verifyNoMoreInteractions(spyDexMerger);
+  }
+
+  @Test
+  public void dexFiles_interruptedWhileWaitingForOtherMerges_throws() throws Exception {
+    ModuleSplit baseModuleSplit =
+        createModuleSplitBuilder()
+            .setModuleName(BundleModuleName.create("base"))
+            .setEntries(
+                ImmutableList.of(createModuleEntryForFile("dex/classes.dex", CLASSES_DEX_CONTENT)))
+            .build();
+    ModuleSplit featureModuleSplit =
+        createModuleSplitBuilder()
+            .setModuleName(BundleModuleName.create(FEATURE_MODULE_NAME))
+            .setEntries(
+                ImmutableList.of(
+                    createModuleEntryForFile("dex/classes.dex", CLASSES_OTHER_DEX_CONTENT)))
+            .build();
+    DexMerger spyDexMerger = Mockito.spy(d8DexMerger);
+    // All permits are held by other merges.
+    ModuleSplitsToShardMerger merger =
+        new ModuleSplitsToShardMerger(
+            getCurrentVersion(),
+            tmpDir,
+            spyDexMerger,
+            BUNDLE_WITH_ONE_FEATURE_NO_MAIN_DEX_LIST,
+            new Semaphore(0),
+            /* dexMergingCacheDirectory= */ Optional.empty());
+
+    Thread.currentThread().interrupt();
+    CommandExecutionException exception;
+    try {
+      exception =
+          assertThrows(
+              CommandExecutionException.class,
+              () ->
+                  merger.mergeSingleShard(
+                      ImmutableList.of(baseModuleSplit, featureModuleSplit), createCache()));
+    } finally {
+      assertThat(Thread.interrupted()).isTrue();
+    }
+
+    assertThat(exception)
+        .hasMessageThat()
+        .contains("Interrupted while waiting to merge dex files.");
+    verifyNoMoreInteractions(spyDexMerger);
+  }
+
+  @Test
+  public void dexFiles_mergedByPreviousInvocation_copiedFromPersistentCache() throws Exception {
+    ModuleSplit baseModuleSplit =
+        createModuleSplitBuilder()
+            .setModuleName(BundleModuleName.create("base"))
+            .setEntries(
+                ImmutableList.of(createModuleEntryForFile("dex/classes.dex", CLASSES_DEX_CONTENT)))
+            .build();
+    ModuleSplit featureModuleSplit =
+        createModuleSplitBuilder()
+            .setModuleName(BundleModuleName.create(FEATURE_MODULE_NAME))
+            .setEntries(
+                ImmutableList.of(
+                    createModuleEntryForFile("dex/classes.dex", CLASSES_OTHER_DEX_CONTENT)))
+            .build();
+    Path cacheDir = tmpDir.getPath().resolve("dex-merging-cache");
+    DexMerger spyDexMerger = Mockito.spy(d8DexMerger);
+
+    ModuleSplit firstMerged =
+        new ModuleSplitsToShardMerger(
+                getCurrentVersion(),
+                tmpDir,
+                spyDexMerger,
+                BUNDLE_WITH_ONE_FEATURE_NO_MAIN_DEX_LIST,
+                new Semaphore(1),
+                Optional.of(cacheDir))
+            .mergeSingleShard(ImmutableList.of(baseModuleSplit, featureModuleSplit), createCache());
+    verify(spyDexMerger)
+        .mergeDexContents(any(), any(), any(), any(), any(), anyBoolean(), anyInt());
+
+    Mockito.clearInvocations(spyDexMerger);
+    ModuleSplit secondMerged =
+        new ModuleSplitsToShardMerger(
+                getCurrentVersion(),
+                tmpDir,
+                spyDexMerger,
+                BUNDLE_WITH_ONE_FEATURE_NO_MAIN_DEX_LIST,
+                new Semaphore(1),
+                Optional.of(cacheDir))
+            .mergeSingleShard(ImmutableList.of(baseModuleSplit, featureModuleSplit), createCache());
+
+    verify(spyDexMerger).getVersion();
     verifyNoMoreInteractions(spyDexMerger);
+    assertThat(extractPaths(secondMerged.getEntries())).containsExactly("dex/classes.dex");
+    assertThat(dexData(secondMerged, "dex/classes.dex"))
+        .isEqualTo(dexData(firstMerged, "dex/classes.dex"));
   }
 
   /** Creates {@link ModuleSplit.Builder} with fields pre-populated to default values. */
@@ -941,7 +1111,7 @@ public class ModuleSplitsToShardMergerTest {
         .setVariantTargeting(lPlusVariantTargeting());
   }
 
-  private static Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> createCache() {
+  private static Map<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> createCache() {
     return new HashMap<>();
   }
 
@@ -38,10 +38,13 @@ import com.android.bundle.Targeting.Abi.AbiAlias;
 import com.android.tools.build.bundletool.io.ZipBuilder;
 import com.android.tools.build.bundletool.model.ModuleEntry.ModuleEntryBundleLocation;
 import com.android.tools.build.bundletool.model.exceptions.InvalidBundleException;
+import com.android.tools.build.bundletool.model.utils.BundleZipReader;
 import com.android.tools.build.bundletool.testing.AppBundleBuilder;
 import com.android.tools.build.bundletool.testing.BundleConfigBuilder;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Optional;
 import java.util.zip.ZipFile;
@@ -57,6 +60,7 @@ import org.junit.runners.JUnit4;
 public class AppBundleTest {
 
   private static final byte[] DUMMY_CONTENT = new byte[1];
+  private static final byte[] INVALID_PROTO = new byte[] {(byte) 0xff};
   private static final String PACKAGE_NAME = "com.test.app.detail";
   private static final BundleConfig BUNDLE_CONFIG = BundleConfigBuilder.create().build();
   public static final XmlNode MANIFEST = androidManifest(PACKAGE_NAME);
@@ -224,6 +228,62 @@ public class AppBundleTest {
     }
   }
 
+  @Test
+  public void manifestRequired_bundleZipReader() throws Exception {
+    createBasicZipBuilderWithManifest()
+        .addFileWithContent(ZipPath.create("detail/dex/classes.dex"), DUMMY_CONTENT)
+        .writeTo(bundleFile);
+
+    try (BundleZipReader appBundleZip = BundleZipReader.open(bundleFile)) {
+      assertThrows(InvalidBundleException.class, () -> AppBundle.buildFromZip(appBundleZip));
+    }
+  }
+
+  @Test
+  public void bundleZipReader_modulesParsedOnFirstAccess() throws Exception {
+    createBasicZipBuilderWithManifest()
+        .addFileWithProtoContent(
+            ZipPath.create("detail/manifest/AndroidManifest.xml"),
+            androidManifestForFeature(PACKAGE_NAME))
+        .addFileWithContent(ZipPath.create("detail/resources.pb"), INVALID_PROTO)
+        .writeTo(bundleFile);
+
+    try (BundleZipReader appBundleZip = BundleZipReader.open(bundleFile)) {
+      AppBundle appBundle = AppBundle.buildFromZip(appBundleZip);
+
+      assertThat(appBundle.getModuleNames())
+          .containsExactly(BundleModuleName.create("base"), BundleModuleName.create("detail"));
+      assertThat(appBundle.getBaseModule().getAndroidManifest().getPackageName())
+          .isEqualTo(PACKAGE_NAME);
+      assertThrows(
+          UncheckedIOException.class,
+          () -> appBundle.getModule(BundleModuleName.create("detail")));
+    }
+  }
+
+  @Test
+  public void retainModules_removedModulesNeverParsed() throws Exception {
+    createBasicZipBuilderWithManifest()
+        .addFileWithContent(ZipPath.create("base/dex/classes.dex"), DUMMY_CONTENT)
+        .addFileWithProtoContent(
+            ZipPath.create("detail/manifest/AndroidManifest.xml"),
+            androidManifestForFeature(PACKAGE_NAME))
+        .addFileWithContent(ZipPath.create("detail/resources.pb"), INVALID_PROTO)
+        .writeTo(bundleFile);
+
+    try (BundleZipReader appBundleZip = BundleZipReader.open(bundleFile)) {
+      AppBundle appBundle =
+          AppBundle.buildFromZip(appBundleZip).toBuilder()
+              .retainModules(ImmutableSet.of(BundleModuleName.create("base")))
+              .build();
+
+      assertThat(appBundle.getModules().keySet())
+          .containsExactly(BundleModuleName.create("base"));
+      assertThat(appBundle.getBaseModule().getEntry(ZipPath.create("dex/classes.dex")))
+          .isPresent();
+    }
+  }
+
   @Test
   public void targetedAbis_noNativeCode() throws Exception {
     AppBundle appBundle =
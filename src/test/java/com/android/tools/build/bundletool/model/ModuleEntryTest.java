@@ -18,6 +18,7 @@ package com.android.tools.build.bundletool.model;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import com.google.common.base.Optional;
 import com.google.common.io.ByteSource;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -101,6 +102,33 @@ public class ModuleEntryTest {
     assertThat(content2.getOpenStreamCount()).isEqualTo(1);
   }
 
+  @Test
+  public void equals_differentKnownSizes_contentNotRead() throws Exception {
+    ZipPath zipPath = ZipPath.create("a");
+    CountingByteSource content1 = new CountingByteSource(new byte[] {'a'});
+    CountingByteSource content2 = new CountingByteSource(new byte[] {'a', 'b'});
+
+    ModuleEntry entry1 = ModuleEntry.builder().setPath(zipPath).setContent(content1).build();
+    ModuleEntry entry2 = ModuleEntry.builder().setPath(zipPath).setContent(content2).build();
+
+    assertThat(entry1.equals(entry2)).isFalse();
+    assertThat(content1.getOpenStreamCount()).isEqualTo(0);
+    assertThat(content2.getOpenStreamCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void equals_sameContentSource_contentNotRead() throws Exception {
+    CountingByteSource content = new CountingByteSource(new byte[] {'a'});
+
+    ModuleEntry entry1 =
+        ModuleEntry.builder().setPath(ZipPath.create("a")).setContent(content).build();
+    ModuleEntry entry2 =
+        ModuleEntry.builder().setPath(ZipPath.create("a")).setContent(content).build();
+
+    assertThat(entry1.equals(entry2)).isTrue();
+    assertThat(content.getOpenStreamCount()).isEqualTo(0);
+  }
+
   private static ModuleEntry createEntry(ZipPath path, byte[] content) throws Exception {
     return ModuleEntry.builder().setPath(path).setContent(ByteSource.wrap(content)).build();
   }
@@ -117,6 +145,11 @@ public class ModuleEntryTest {
       return count;
     }
 
+    @Override
+    public Optional<Long> sizeIfKnown() {
+      return Optional.of((long) content.length);
+    }
+
     @Override
     public InputStream openStream() throws IOException {
       count++;
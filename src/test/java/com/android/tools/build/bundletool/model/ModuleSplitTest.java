@@ -166,6 +166,52 @@ public class ModuleSplitTest {
     assertThat(masterSplit.getAndroidManifest().getSplitId()).hasValue("moduleA");
   }
 
+  @Test
+  public void equals_sameContentInDifferentEntryInstances_equal() {
+    ModuleSplit split1 =
+        createSplitWithEntries(createModuleEntryForFile("dex/classes.dex", new byte[] {1, 2}));
+    ModuleSplit split2 =
+        createSplitWithEntries(createModuleEntryForFile("dex/classes.dex", new byte[] {1, 2}));
+
+    assertThat(split1).isEqualTo(split2);
+    assertThat(split1.hashCode()).isEqualTo(split2.hashCode());
+    assertThat(split1.getFingerprint()).isEqualTo(split2.getFingerprint());
+  }
+
+  @Test
+  public void equals_differentEntryContent_notEqual() {
+    ModuleSplit split1 =
+        createSplitWithEntries(createModuleEntryForFile("dex/classes.dex", new byte[] {1, 2}));
+    ModuleSplit split2 =
+        createSplitWithEntries(createModuleEntryForFile("dex/classes.dex", new byte[] {1, 3}));
+
+    assertThat(split1).isNotEqualTo(split2);
+    assertThat(split1.getFingerprint()).isNotEqualTo(split2.getFingerprint());
+  }
+
+  @Test
+  public void equals_differentTargeting_notEqual() {
+    ModuleSplit split =
+        createSplitWithEntries(createModuleEntryForFile("dex/classes.dex", new byte[] {1, 2}));
+    ModuleSplit abiSplit =
+        split.toBuilder().setApkTargeting(apkAbiTargeting(AbiAlias.X86)).build();
+
+    assertThat(split).isNotEqualTo(abiSplit);
+  }
+
+  @Test
+  public void equals_differentManifestMutators_notEqual() {
+    ModuleSplit split =
+        createSplitWithEntries(createModuleEntryForFile("dex/classes.dex", new byte[] {1, 2}));
+    ModuleSplit splitWithMutator =
+        split.toBuilder()
+            .addMasterManifestMutator(ManifestMutator.withExtractNativeLibs(false))
+            .build();
+
+    assertThat(split).isNotEqualTo(splitWithMutator);
+    assertThat(split.getFingerprint()).isEqualTo(splitWithMutator.getFingerprint());
+  }
+
   @Test
   public void testAbiSplitIdContainsModuleName() {
     ModuleSplit abiSplit =
@@ -641,6 +687,17 @@ public class ModuleSplitTest {
         .isEqualTo(certDigest);
   }
 
+  private static ModuleSplit createSplitWithEntries(ModuleEntry... entries) {
+    return ModuleSplit.builder()
+        .setModuleName(BundleModuleName.create("base"))
+        .setApkTargeting(ApkTargeting.getDefaultInstance())
+        .setVariantTargeting(lPlusVariantTargeting())
+        .setMasterSplit(true)
+        .setAndroidManifest(AndroidManifest.create(androidManifest("com.test.app")))
+        .setEntries(ImmutableList.copyOf(entries))
+        .build();
+  }
+
   private ImmutableList<ModuleEntry> fakeEntriesOf(String... entries) {
     return Arrays.stream(entries)
         .map(entry -> createModuleEntryForFile(entry, DUMMY_CONTENT))
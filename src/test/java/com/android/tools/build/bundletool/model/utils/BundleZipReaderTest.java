@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.model.utils;
+
+import static com.android.tools.build.bundletool.io.ZipBuilder.EntryOption.UNCOMPRESSED;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.build.bundletool.io.ZipBuilder;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BundleZipReaderTest {
+
+  private static final byte[] CONTENT =
+      "content of the entry, content of the entry".getBytes(UTF_8);
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void getEntries_inCentralDirectoryOrder() throws Exception {
+    Path zipPath =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("b"), CONTENT)
+            .addFileWithContent(ZipPath.create("a/c"), CONTENT)
+            .writeTo(tmp.getRoot().toPath().resolve("output.zip"));
+
+    try (BundleZipReader zip = BundleZipReader.open(zipPath)) {
+      assertThat(zip.getEntries().stream().map(BundleZipReader.Entry::getName))
+          .containsExactly("b", "a/c")
+          .inOrder();
+    }
+  }
+
+  @Test
+  public void compressedEntry_contentAndMetadata() throws Exception {
+    Path zipPath =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("compressed"), CONTENT)
+            .writeTo(tmp.getRoot().toPath().resolve("output.zip"));
+
+    try (BundleZipReader zip = BundleZipReader.open(zipPath)) {
+      BundleZipReader.Entry entry = zip.getEntry("compressed").get();
+
+      assertThat(entry.getCompressionMethod()).isEqualTo(ZipEntry.DEFLATED);
+      assertThat(entry.getSize()).isEqualTo(CONTENT.length);
+      assertThat(entry.getCompressedSize()).isLessThan((long) CONTENT.length);
+      assertThat(entry.getCrc()).isEqualTo(crc32(CONTENT));
+      assertThat(entry.asByteSource().read()).isEqualTo(CONTENT);
+      assertThat(ByteStreams.toByteArray(entry.asByteSource().openStream())).isEqualTo(CONTENT);
+    }
+  }
+
+  @Test
+  public void storedEntry_rawContentIsContent() throws Exception {
+    Path zipPath =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("stored"), CONTENT, UNCOMPRESSED)
+            .writeTo(tmp.getRoot().toPath().resolve("output.zip"));
+
+    try (BundleZipReader zip = BundleZipReader.open(zipPath)) {
+      BundleZipReader.Entry entry = zip.getEntry("stored").get();
+      ByteBuffer rawContent = entry.getRawContent();
+      byte[] rawBytes = new byte[rawContent.remaining()];
+      rawContent.get(rawBytes);
+
+      assertThat(entry.getCompressionMethod()).isEqualTo(ZipEntry.STORED);
+      assertThat(rawBytes).isEqualTo(CONTENT);
+      assertThat(entry.asByteSource().read()).isEqualTo(CONTENT);
+      assertThat(entry.asByteSource().sizeIfKnown()).isEqualTo(Optional.of((long) CONTENT.length));
+      assertThat(ZipUtils.crc32IfKnown(entry.asByteSource()))
+          .isEqualTo(Optional.of(crc32(CONTENT)));
+    }
+  }
+
+  @Test
+  public void readAfterClose_throws() throws Exception {
+    Path zipPath =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("compressed"), CONTENT)
+            .addFileWithContent(ZipPath.create("stored"), CONTENT, UNCOMPRESSED)
+            .writeTo(tmp.getRoot().toPath().resolve("output.zip"));
+    BundleZipReader zip = BundleZipReader.open(zipPath);
+    BundleZipReader.Entry compressedEntry = zip.getEntry("compressed").get();
+    BundleZipReader.Entry storedEntry = zip.getEntry("stored").get();
+
+    zip.close();
+
+    IllegalStateException exception =
+        assertThrows(IllegalStateException.class, () -> compressedEntry.asByteSource().read());
+    assertThat(exception).hasMessageThat().contains("is read after it was closed");
+    assertThrows(IllegalStateException.class, () -> storedEntry.asByteSource().openStream());
+    assertThrows(IllegalStateException.class, storedEntry::getRawContent);
+    assertThrows(IllegalStateException.class, zip::hashCentralDirectory);
+  }
+
+  @Test
+  public void getEntry_missing_empty() throws Exception {
+    Path zipPath =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("a"), CONTENT)
+            .writeTo(tmp.getRoot().toPath().resolve("output.zip"));
+
+    try (BundleZipReader zip = BundleZipReader.open(zipPath)) {
+      assertThat(zip.getEntry("b")).isEmpty();
+    }
+  }
+
+  @Test
+  public void directoryEntry() throws Exception {
+    Path zipPath =
+        new ZipBuilder()
+            .addDirectory(ZipPath.create("dir"))
+            .writeTo(tmp.getRoot().toPath().resolve("output.zip"));
+
+    try (BundleZipReader zip = BundleZipReader.open(zipPath)) {
+      assertThat(zip.getEntries()).hasSize(1);
+      assertThat(zip.getEntries().get(0).isDirectory()).isTrue();
+    }
+  }
+
+  @Test
+  public void moreEntriesThanZip32Supports_readsZip64Directory() throws Exception {
+    Path zipPath = tmp.getRoot().toPath().resolve("output.zip");
+    int entryCount = 0x10000 + 10;
+    try (OutputStream outputStream = Files.newOutputStream(zipPath);
+        ZipOutputStream zipStream = new ZipOutputStream(outputStream)) {
+      for (int i = 0; i < entryCount; i++) {
+        zipStream.putNextEntry(new ZipEntry("entry" + i));
+        zipStream.write(Integer.toString(i).getBytes(UTF_8));
+        zipStream.closeEntry();
+      }
+    }
+
+    try (BundleZipReader zip = BundleZipReader.open(zipPath)) {
+      assertThat(zip.getEntries()).hasSize(entryCount);
+      assertThat(zip.getEntry("entry" + (entryCount - 1)).get().asByteSource().read())
+          .isEqualTo(Integer.toString(entryCount - 1).getBytes(UTF_8));
+    }
+  }
+
+  @Test
+  public void notAZipFile_throws() throws Exception {
+    Path path = tmp.newFile("not-a-zip.aab").toPath();
+    Files.write(path, CONTENT);
+
+    assertThrows(ZipException.class, () -> BundleZipReader.open(path));
+  }
+
+  @Test
+  public void entriesReadConcurrently() throws Exception {
+    ZipBuilder zipBuilder = new ZipBuilder();
+    for (int i = 0; i < 100; i++) {
+      zipBuilder.addFileWithContent(ZipPath.create("entry" + i), contentOfEntry(i));
+    }
+    Path zipPath = zipBuilder.writeTo(tmp.getRoot().toPath().resolve("output.zip"));
+
+    try (BundleZipReader zip = BundleZipReader.open(zipPath)) {
+      assertThat(
+              zip.getEntries().parallelStream()
+                  .filter(
+                      entry -> {
+                        int index = Integer.parseInt(entry.getName().substring("entry".length()));
+                        try {
+                          return Arrays.equals(
+                              entry.asByteSource().read(), contentOfEntry(index));
+                        } catch (Exception e) {
+                          throw new IllegalStateException(e);
+                        }
+                      })
+                  .collect(toImmutableList()))
+          .hasSize(100);
+    }
+  }
+
+  private static byte[] contentOfEntry(int index) {
+    byte[] content = new byte[1000 + index];
+    Arrays.fill(content, (byte) index);
+    return content;
+  }
+
+  private static long crc32(byte[] content) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(content);
+    return crc32.getValue();
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.model.utils;
+
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifestForFeature;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withUsesSplit;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.build.bundletool.io.ZipBuilder;
+import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.model.BundleModule;
+import com.android.tools.build.bundletool.model.BundleModuleName;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.model.exceptions.InvalidBundleException;
+import com.android.tools.build.bundletool.testing.AppBundleBuilder;
+import com.android.tools.build.bundletool.testing.BundleConfigBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ModuleDependenciesUtilsTest {
+
+  private static final String PACKAGE_NAME = "com.test.app";
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void getModulesIncludingDependencies_transitiveDependencies() {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule("base", module -> module.setManifest(androidManifest(PACKAGE_NAME)))
+            .addModule(
+                "a", module -> module.setManifest(androidManifestForFeature(PACKAGE_NAME)))
+            .addModule(
+                "b",
+                module ->
+                    module.setManifest(androidManifestForFeature(PACKAGE_NAME, withUsesSplit("a"))))
+            .addModule(
+                "c",
+                module ->
+                    module.setManifest(androidManifestForFeature(PACKAGE_NAME, withUsesSplit("b"))))
+            .addModule(
+                "unrelated", module -> module.setManifest(androidManifestForFeature(PACKAGE_NAME)))
+            .build();
+
+    ImmutableSet<BundleModule> modules =
+        ModuleDependenciesUtils.getModulesIncludingDependencies(
+            appBundle, ImmutableList.of(appBundle.getModule(BundleModuleName.create("c"))));
+
+    assertThat(modules.stream().map(module -> module.getName().getName()).collect(toImmutableSet()))
+        .containsExactly("base", "a", "b", "c");
+  }
+
+  @Test
+  public void getModulesIncludingDependencies_explicitDependencyOnBase_throws() {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule("base", module -> module.setManifest(androidManifest(PACKAGE_NAME)))
+            .addModule(
+                "a",
+                module ->
+                    module.setManifest(
+                        androidManifestForFeature(PACKAGE_NAME, withUsesSplit("base"))))
+            .build();
+
+    assertThrows(
+        InvalidBundleException.class,
+        () ->
+            ModuleDependenciesUtils.getModuleNamesIncludingDependencies(
+                appBundle, ImmutableSet.of(BundleModuleName.create("a"))));
+  }
+
+  @Test
+  public void getModuleNamesIncludingDependencies_lazyBundle_otherModulesNotParsed()
+      throws Exception {
+    Path bundlePath =
+        new ZipBuilder()
+            .addFileWithContent(
+                ZipPath.create("BundleConfig.pb"),
+                BundleConfigBuilder.create().build().toByteArray())
+            .addFileWithProtoContent(
+                ZipPath.create("base/manifest/AndroidManifest.xml"), androidManifest(PACKAGE_NAME))
+            .addFileWithProtoContent(
+                ZipPath.create("a/manifest/AndroidManifest.xml"),
+                androidManifestForFeature(PACKAGE_NAME))
+            .addFileWithProtoContent(
+                ZipPath.create("b/manifest/AndroidManifest.xml"),
+                androidManifestForFeature(PACKAGE_NAME, withUsesSplit("a")))
+            .addFileWithProtoContent(
+                ZipPath.create("unrelated/manifest/AndroidManifest.xml"),
+                androidManifestForFeature(PACKAGE_NAME))
+            // Parsing this module would fail.
+            .addFileWithContent(ZipPath.create("unrelated/resources.pb"), new byte[] {(byte) 0xff})
+            .writeTo(tmp.getRoot().toPath().resolve("bundle.aab"));
+
+    try (BundleZipReader bundleZip = BundleZipReader.open(bundlePath)) {
+      AppBundle appBundle = AppBundle.buildFromZip(bundleZip);
+
+      assertThat(
+              ModuleDependenciesUtils.getModuleNamesIncludingDependencies(
+                  appBundle, ImmutableSet.of(BundleModuleName.create("b"))))
+          .containsExactly(
+              BundleModuleName.create("base"),
+              BundleModuleName.create("a"),
+              BundleModuleName.create("b"));
+    }
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.model.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.android.tools.build.bundletool.io.ZipBuilder;
+import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.google.protobuf.StringValue;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ParsedFileCacheTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private final AtomicInteger parseCount = new AtomicInteger();
+  private final Function<Path, StringValue> parser =
+      file -> {
+        parseCount.incrementAndGet();
+        try {
+          return StringValue.newBuilder()
+              .setValue(new String(Files.readAllBytes(file), UTF_8))
+              .build();
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      };
+  /** Parses only the size of the file, to get a proto much smaller than the file. */
+  private final Function<Path, StringValue> sizeParser =
+      file -> {
+        parseCount.incrementAndGet();
+        try {
+          return StringValue.newBuilder().setValue(String.valueOf(Files.size(file))).build();
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      };
+
+  private Path file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = tmp.newFile("file.txt").toPath();
+    Files.write(file, "content".getBytes(UTF_8));
+  }
+
+  @After
+  public void tearDown() {
+    ParsedFileCache.disable();
+  }
+
+  @Test
+  public void disabled_parsesEachTime() {
+    assertThat(ParsedFileCache.get(file, "text", parser).getValue()).isEqualTo("content");
+    assertThat(ParsedFileCache.get(file, "text", parser).getValue()).isEqualTo("content");
+
+    assertThat(parseCount.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void enabled_parsesOnce() {
+    ParsedFileCache.enable(1024);
+
+    assertThat(ParsedFileCache.get(file, "text", parser).getValue()).isEqualTo("content");
+    assertThat(ParsedFileCache.get(file, "text", parser).getValue()).isEqualTo("content");
+
+    assertThat(parseCount.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void enabled_differentParsers_parsedByEach() {
+    ParsedFileCache.enable(1024);
+
+    ParsedFileCache.get(file, "text", parser);
+    ParsedFileCache.get(file, "other-text", parser);
+
+    assertThat(parseCount.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void enabled_fileModified_parsedAgain() throws Exception {
+    ParsedFileCache.enable(1024);
+    ParsedFileCache.get(file, "text", parser);
+
+    Files.write(file, "new content".getBytes(UTF_8));
+    Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+
+    assertThat(ParsedFileCache.get(file, "text", parser).getValue()).isEqualTo("new content");
+    assertThat(parseCount.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void enabled_fileModifiedWithSameSizeAndTime_parsedAgain() throws Exception {
+    ParsedFileCache.enable(1024);
+    FileTime lastModifiedTime = Files.getLastModifiedTime(file);
+    ParsedFileCache.get(file, "text", parser);
+
+    Files.write(file, "CONTENT".getBytes(UTF_8));
+    Files.setLastModifiedTime(file, lastModifiedTime);
+
+    assertThat(ParsedFileCache.get(file, "text", parser).getValue()).isEqualTo("CONTENT");
+    assertThat(parseCount.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void enabled_largeZipFileEntryModifiedWithSameSizeAndTime_parsedAgain()
+      throws Exception {
+    ParsedFileCache.enable(1024);
+    byte[] content = new byte[2 * 1024 * 1024];
+    Path zipFile = writeZipFile("file.zip", content);
+    FileTime lastModifiedTime = Files.getLastModifiedTime(zipFile);
+    ParsedFileCache.get(zipFile, "size", sizeParser);
+    ParsedFileCache.get(zipFile, "size", sizeParser);
+    assertThat(parseCount.get()).isEqualTo(1);
+
+    Arrays.fill(content, (byte) 1);
+    Path modifiedZipFile = writeZipFile("modified.zip", content);
+    assertThat(Files.size(modifiedZipFile)).isEqualTo(Files.size(zipFile));
+    Files.copy(modifiedZipFile, zipFile, REPLACE_EXISTING);
+    Files.setLastModifiedTime(zipFile, lastModifiedTime);
+    ParsedFileCache.get(zipFile, "size", sizeParser);
+
+    assertThat(parseCount.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void enabled_largeFileNotZip_notCached() throws Exception {
+    ParsedFileCache.enable(1024);
+    Files.write(file, new byte[2 * 1024 * 1024]);
+
+    ParsedFileCache.get(file, "size", sizeParser);
+    ParsedFileCache.get(file, "size", sizeParser);
+
+    assertThat(parseCount.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void enabled_weighedByParsedProto() throws Exception {
+    // The file is larger than the cache, but its parsed proto isn't.
+    Files.write(file, new byte[4096]);
+    ParsedFileCache.enable(1024);
+
+    ParsedFileCache.get(file, "size", sizeParser);
+    ParsedFileCache.get(file, "size", sizeParser);
+
+    assertThat(parseCount.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void enabled_parsedProtoLargerThanCache_notCached() {
+    ParsedFileCache.enable(1);
+
+    ParsedFileCache.get(file, "text", parser);
+    ParsedFileCache.get(file, "text", parser);
+
+    assertThat(parseCount.get()).isEqualTo(2);
+  }
+
+  private Path writeZipFile(String name, byte[] entryContent) throws Exception {
+    return new ZipBuilder()
+        .addFileWithContent(ZipPath.create("data.bin"), entryContent, EntryOption.UNCOMPRESSED)
+        .writeTo(tmp.getRoot().toPath().resolve(name));
+  }
+}
@@ -24,9 +24,12 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import com.android.tools.build.bundletool.io.ZipBuilder;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import org.junit.Rule;
@@ -97,6 +100,23 @@ public class ZipUtilsTest {
     }
   }
 
+  @Test
+  public void crc32IfKnown_zipEntry() throws Exception {
+    try (ZipFile zipFile = createZipFileWithFiles("entry")) {
+      ZipEntry zipEntry = zipFile.getEntry("entry");
+      CRC32 crc32 = new CRC32();
+      crc32.update("entry".getBytes(UTF_8));
+
+      assertThat(ZipUtils.crc32IfKnown(ZipUtils.asByteSource(zipFile, zipEntry)))
+          .isEqualTo(Optional.of(crc32.getValue()));
+    }
+  }
+
+  @Test
+  public void crc32IfKnown_otherSource() {
+    assertThat(ZipUtils.crc32IfKnown(ByteSource.wrap(new byte[] {1}))).isEqualTo(Optional.absent());
+  }
+
   private ZipFile createZipFileWithFiles(String... fileNames) throws IOException {
     ZipBuilder zipBuilder = new ZipBuilder();
     for (String fileName : fileNames) {
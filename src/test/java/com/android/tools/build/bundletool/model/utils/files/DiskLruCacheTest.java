@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.tools.build.bundletool.model.utils.files;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.build.bundletool.testing.FakeSystemEnvironmentProvider;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class DiskLruCacheTest {
+
+  private static final String KEY_A = "aa00";
+  private static final String KEY_B = "bb00";
+  private static final String KEY_C = "cc00";
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path cacheDir;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheDir = tmp.getRoot().toPath().resolve("cache");
+  }
+
+  @Test
+  public void createsCacheDirectory() {
+    new DiskLruCache(cacheDir, ".item", 100);
+
+    assertThat(Files.isDirectory(cacheDir)).isTrue();
+  }
+
+  @Test
+  public void lookup_missingItem_empty() {
+    DiskLruCache cache = new DiskLruCache(cacheDir, ".item", 100);
+
+    assertThat(cache.lookup(KEY_A)).isEmpty();
+  }
+
+  @Test
+  public void storeThenLookup_fileItem() throws Exception {
+    DiskLruCache cache = new DiskLruCache(cacheDir, ".item", 100);
+
+    cache.store(KEY_A, path -> Files.write(path, "content".getBytes(UTF_8)));
+    Optional<Path> item = cache.lookup(KEY_A);
+
+    assertThat(item).hasValue(cacheDir.resolve("aa").resolve("aa00.item"));
+    assertThat(new String(Files.readAllBytes(item.get()), UTF_8)).isEqualTo("content");
+    // No temporary file is left behind.
+    assertThat(listFiles(cacheDir.resolve("aa"))).containsExactly(item.get());
+  }
+
+  @Test
+  public void storeThenLookup_directoryItem() throws Exception {
+    DiskLruCache cache = new DiskLruCache(cacheDir, ".item", 100);
+
+    cache.store(
+        KEY_A,
+        path -> {
+          Files.createDirectories(path);
+          Files.write(path.resolve("1"), new byte[1]);
+          Files.write(path.resolve("2"), new byte[2]);
+        });
+    Optional<Path> item = cache.lookup(KEY_A);
+
+    assertThat(item).isPresent();
+    assertThat(Files.isDirectory(item.get())).isTrue();
+    assertThat(listFiles(item.get()))
+        .containsExactly(item.get().resolve("1"), item.get().resolve("2"));
+  }
+
+  @Test
+  public void store_itemAlreadyPresent_kept() throws Exception {
+    DiskLruCache cache = new DiskLruCache(cacheDir, ".item", 100);
+    cache.store(KEY_A, path -> Files.write(path, "first".getBytes(UTF_8)));
+
+    cache.store(KEY_A, path -> Files.write(path, "second".getBytes(UTF_8)));
+
+    assertThat(new String(Files.readAllBytes(cache.lookup(KEY_A).get()), UTF_8))
+        .isEqualTo("first");
+  }
+
+  @Test
+  public void store_itemStoredConcurrently_kept() throws Exception {
+    DiskLruCache cache = new DiskLruCache(cacheDir, ".item", 100);
+    Path itemPath = cache.getItemPath(KEY_A);
+
+    cache.store(
+        KEY_A,
+        path -> {
+          Files.createDirectories(path);
+          Files.write(path.resolve("dex"), "ours".getBytes(UTF_8));
+          // Another process stores the same item while this one is being written.
+          Files.createDirectories(itemPath);
+          Files.write(itemPath.resolve("dex"), "theirs".getBytes(UTF_8));
+        });
+
+    assertThat(new String(Files.readAllBytes(itemPath.resolve("dex")), UTF_8))
+        .isEqualTo("theirs");
+    assertThat(listFiles(itemPath.getParent())).containsExactly(itemPath);
+  }
+
+  @Test
+  public void store_writerFails_throwsAndCleansUp() throws Exception {
+    DiskLruCache cache = new DiskLruCache(cacheDir, ".item", 100);
+
+    assertThrows(
+        UncheckedIOException.class,
+        () ->
+            cache.store(
+                KEY_A,
+                path -> {
+                  Files.write(path, new byte[1]);
+                  throw new IOException("Disk full.");
+                }));
+
+    assertThat(cache.lookup(KEY_A)).isEmpty();
+    assertThat(listFiles(cacheDir.resolve("aa"))).isEmpty();
+  }
+
+  @Test
+  public void lookup_marksItemAsRecentlyUsed() throws Exception {
+    DiskLruCache cache = new DiskLruCache(cacheDir, ".item", 100);
+    cache.store(KEY_A, path -> Files.write(path, new byte[1]));
+    Path item = cache.getItemPath(KEY_A);
+    Files.setLastModifiedTime(item, FileTime.fromMillis(1000));
+
+    cache.lookup(KEY_A);
+
+    assertThat(Files.getLastModifiedTime(item).toMillis()).isGreaterThan(1000L);
+  }
+
+  @Test
+  public void trim_underMaxSize_keepsAllItems() throws Exception {
+    DiskLruCache cache = new DiskLruCache(cacheDir, ".item", 30);
+    storeFile(cache, KEY_A, 10, /* lastAccessMillis= */ 1000);
+    storeFile(cache, KEY_B, 20, /* lastAccessMillis= */ 2000);
+
+    cache.trim();
+
+    assertThat(Files.exists(cache.getItemPath(KEY_A))).isTrue();
+    assertThat(Files.exists(cache.getItemPath(KEY_B))).isTrue();
+  }
+
+  @Test
+  public void trim_overMaxSize_removesLeastRecentlyUsedItems() throws Exception {
+    DiskLruCache cache = new DiskLruCache(cacheDir, ".item", 25);
+    storeFile(cache, KEY_A, 10, /* lastAccessMillis= */ 2000);
+    storeFile(cache, KEY_B, 10, /* lastAccessMillis= */ 1000);
+    storeFile(cache, KEY_C, 10, /* lastAccessMillis= */ 3000);
+
+    cache.trim();
+
+    assertThat(Files.exists(cache.getItemPath(KEY_A))).isTrue();
+    assertThat(Files.exists(cache.getItemPath(KEY_B))).isFalse();
+    assertThat(Files.exists(cache.getItemPath(KEY_C))).isTrue();
+  }
+
+  @Test
+  public void trim_directoryItems_sizeIsSumOfFiles() throws Exception {
+    DiskLruCache cache = new DiskLruCache(cacheDir, ".item", 20);
+    cache.store(
+        KEY_A,
+        path -> {
+          Files.createDirectories(path);
+          Files.write(path.resolve("1"), new byte[5]);
+          Files.write(path.resolve("2"), new byte[5]);
+        });
+    Files.setLastModifiedTime(cache.getItemPath(KEY_A), FileTime.fromMillis(1000));
+    storeFile(cache, KEY_B, 10, /* lastAccessMillis= */ 2000);
+
+    cache.trim();
+
+    assertThat(Files.exists(cache.getItemPath(KEY_A))).isTrue();
+    assertThat(Files.exists(cache.getItemPath(KEY_B))).isTrue();
+
+    new DiskLruCache(cacheDir, ".item", 15).trim();
+
+    assertThat(Files.exists(cache.getItemPath(KEY_A))).isFalse();
+    assertThat(Files.exists(cache.getItemPath(KEY_B))).isTrue();
+  }
+
+  @Test
+  public void trim_ignoresOtherFiles() throws Exception {
+    DiskLruCache cache = new DiskLruCache(cacheDir, ".item", 0);
+    Path tempFile = cacheDir.resolve("aa").resolve("aa00.item.1234");
+    Files.createDirectories(tempFile.getParent());
+    Files.write(tempFile, new byte[10]);
+
+    cache.trim();
+
+    assertThat(Files.exists(tempFile)).isTrue();
+  }
+
+  @Test
+  public void readSizeProperty_set() {
+    assertThat(
+            DiskLruCache.readSizeProperty(
+                providerWithProperty("bundletool.test.cache.maxsize", "1234"),
+                "bundletool.test.cache.maxsize",
+                42))
+        .isEqualTo(1234);
+  }
+
+  @Test
+  public void readSizeProperty_notSet_default() {
+    assertThat(
+            DiskLruCache.readSizeProperty(
+                providerWithProperty("bundletool.other.cache.maxsize", "1234"),
+                "bundletool.test.cache.maxsize",
+                42))
+        .isEqualTo(42);
+  }
+
+  @Test
+  public void readSizeProperty_malformed_default() {
+    assertThat(
+            DiskLruCache.readSizeProperty(
+                providerWithProperty("bundletool.test.cache.maxsize", "1G"),
+                "bundletool.test.cache.maxsize",
+                42))
+        .isEqualTo(42);
+  }
+
+  private static void storeFile(DiskLruCache cache, String key, int size, long lastAccessMillis)
+      throws IOException {
+    cache.store(key, path -> Files.write(path, new byte[size]));
+    Files.setLastModifiedTime(cache.getItemPath(key), FileTime.fromMillis(lastAccessMillis));
+  }
+
+  private static FakeSystemEnvironmentProvider providerWithProperty(String name, String value) {
+    return new FakeSystemEnvironmentProvider(
+        /* variables= */ ImmutableMap.of(), /* properties= */ ImmutableMap.of(name, value));
+  }
+
+  private static ImmutableList<Path> listFiles(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.collect(toImmutableList());
+    }
+  }
+}
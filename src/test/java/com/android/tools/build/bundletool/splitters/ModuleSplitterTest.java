@@ -36,6 +36,7 @@ import static com.android.tools.build.bundletool.model.utils.Versions.ANDROID_L_
 import static com.android.tools.build.bundletool.model.utils.Versions.ANDROID_M_API_VERSION;
 import static com.android.tools.build.bundletool.model.utils.Versions.ANDROID_Q_API_VERSION;
 import static com.android.tools.build.bundletool.model.utils.Versions.ANDROID_R_API_VERSION;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.lDeviceWithAbis;
 import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
 import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.clearApplication;
 import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withInstant;
@@ -845,6 +846,96 @@ public class ModuleSplitterTest {
     assertThat(abi.findEntry("lib/x86/liba.so").get().getForceUncompressed()).isFalse();
   }
 
+  @Test
+  public void nativeSplits_withDeviceSpec_onlyMatchingAbiSplitGenerated() throws Exception {
+    NativeLibraries nativeConfig =
+        nativeLibraries(
+            targetedNativeDirectory("lib/x86", nativeDirectoryTargeting("x86")),
+            targetedNativeDirectory("lib/arm64-v8a", nativeDirectoryTargeting("arm64-v8a")));
+    BundleModule testModule =
+        new BundleModuleBuilder("testModule")
+            .setManifest(androidManifest("com.test.app"))
+            .setNativeConfig(nativeConfig)
+            .addFile("lib/x86/liba.so")
+            .addFile("lib/arm64-v8a/liba.so")
+            .build();
+
+    ModuleSplitter moduleSplitter =
+        ModuleSplitter.createNoStamp(
+            testModule,
+            BUNDLETOOL_VERSION,
+            APP_BUNDLE,
+            ApkGenerationConfiguration.builder()
+                .setOptimizationDimensions(ImmutableSet.of(ABI))
+                .setDeviceSpec(lDeviceWithAbis("arm64-v8a"))
+                .build(),
+            lPlusVariantTargeting(),
+            ImmutableSet.of("testModule"));
+
+    List<ModuleSplit> splits = moduleSplitter.splitModule();
+    // Base + arm64-v8a Split
+    assertThat(splits).hasSize(2);
+    ModuleSplit abi =
+        splits.stream().filter(not(ModuleSplit::isMasterSplit)).collect(onlyElement());
+    assertThat(abi.findEntry("lib/arm64-v8a/liba.so")).isPresent();
+    assertThat(abi.findEntry("lib/x86/liba.so")).isEmpty();
+  }
+
+  @Test
+  public void languageSplits_cacheSharedByVariants_sameSplitsAsWithoutCache() throws Exception {
+    BundleModule baseModule =
+        new BundleModuleBuilder("base")
+            .setResourceTable(
+                resourceTable(
+                    pkg(
+                        USER_PACKAGE_OFFSET,
+                        "com.test.app",
+                        type(
+                            0x01,
+                            "string",
+                            entry(
+                                0x0001,
+                                "welcome_label",
+                                value("Welcome", locale("en")),
+                                value("Willkommen", locale("de")))))))
+            .setManifest(androidManifest("com.test.app"))
+            .build();
+    ApkGenerationConfiguration apkGenerationConfiguration =
+        ApkGenerationConfiguration.builder()
+            .setOptimizationDimensions(ImmutableSet.of(LANGUAGE))
+            .build();
+    VariantIndependentSplitsCache cache = new VariantIndependentSplitsCache();
+
+    for (VariantTargeting variantTargeting :
+        ImmutableList.of(lPlusVariantTargeting(), variantMinSdkTargeting(ANDROID_Q_API_VERSION))) {
+      ImmutableList<ModuleSplit> splitsWithCache =
+          ModuleSplitter.create(
+                  baseModule,
+                  BUNDLETOOL_VERSION,
+                  APP_BUNDLE,
+                  apkGenerationConfiguration,
+                  variantTargeting,
+                  ImmutableSet.of("base"),
+                  /* stampSource= */ Optional.empty(),
+                  /* stampType= */ null,
+                  cache)
+              .splitModule();
+      ImmutableList<ModuleSplit> splitsWithoutCache =
+          ModuleSplitter.createNoStamp(
+                  baseModule,
+                  BUNDLETOOL_VERSION,
+                  APP_BUNDLE,
+                  apkGenerationConfiguration,
+                  variantTargeting,
+                  ImmutableSet.of("base"))
+              .splitModule();
+
+      assertThat(splitsWithCache).containsExactlyElementsIn(splitsWithoutCache).inOrder();
+      assertThat(splitsWithCache.stream().map(ModuleSplit::getVariantTargeting))
+          .containsExactly(variantTargeting, variantTargeting, variantTargeting);
+    }
+  }
+
   @Test
   public void nativeSplits_mPlusTargeting_withAbiAndUncompressNativeLibsSplitter()
       throws Exception {
@@ -114,6 +114,32 @@ public class SplitApksGeneratorTest {
     assertThat(testModule.getVariantTargeting()).isEqualTo(lPlusVariantTargeting());
   }
 
+  @Test
+  public void manyModules_splitsInModuleOrder() throws Exception {
+    ImmutableList.Builder<BundleModule> bundleModules = ImmutableList.builder();
+    ImmutableList.Builder<String> moduleNames = ImmutableList.builder();
+    for (int i = 0; i < 50; i++) {
+      String moduleName = i == 0 ? "base" : "feature" + i;
+      bundleModules.add(
+          new BundleModuleBuilder(moduleName)
+              .addFile("assets/" + moduleName + ".txt")
+              .setManifest(androidManifest("com.test.app"))
+              .build());
+      moduleNames.add(moduleName);
+    }
+
+    ImmutableList<ModuleSplit> moduleSplits =
+        splitApksGenerator.generateSplits(
+            bundleModules.build(), ApkGenerationConfiguration.getDefaultInstance());
+
+    assertThat(
+            moduleSplits.stream()
+                .map(split -> split.getModuleName().getName())
+                .collect(toImmutableList()))
+        .containsExactlyElementsIn(moduleNames.build())
+        .inOrder();
+  }
+
   @Test
   public void simpleMultipleModules_withTransparencyFile() throws Exception {
     TestComponent.useTestModule(
@@ -17,8 +17,12 @@
 package com.android.tools.build.bundletool.splitters;
 
 import static com.android.tools.build.bundletool.model.utils.Versions.ANDROID_M_API_VERSION;
+import static com.android.tools.build.bundletool.model.utils.Versions.ANDROID_O_API_VERSION;
+import static com.android.tools.build.bundletool.model.utils.Versions.ANDROID_P_API_VERSION;
 import static com.android.tools.build.bundletool.model.utils.Versions.ANDROID_Q_API_VERSION;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.deviceWithSdk;
 import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withMaxSdkVersion;
 import static com.android.tools.build.bundletool.testing.TargetingUtils.lPlusVariantTargeting;
 import static com.android.tools.build.bundletool.testing.TargetingUtils.nativeDirectoryTargeting;
 import static com.android.tools.build.bundletool.testing.TargetingUtils.nativeLibraries;
@@ -91,6 +95,70 @@ public class VariantTargetingGeneratorTest {
             variantMinSdkTargeting(ANDROID_Q_API_VERSION));
   }
 
+  @Test
+  public void generateVariantTargetings_withDeviceSpec_onlyMatchingVariantGenerated() {
+    VariantTargetingGenerator variantTargetingGenerator =
+        new VariantTargetingGenerator(
+            new PerModuleVariantTargetingGenerator(), new SdkRuntimeVariantGenerator(APP_BUNDLE));
+    ApkGenerationConfiguration apkGenerationConfiguration =
+        ApkGenerationConfiguration.builder()
+            .setEnableDexCompressionSplitter(true)
+            .setEnableUncompressedNativeLibraries(true)
+            .setDeviceSpec(deviceWithSdk(ANDROID_O_API_VERSION))
+            .build();
+
+    ImmutableSet<VariantTargeting> splits =
+        variantTargetingGenerator.generateVariantTargetings(
+            ImmutableList.of(SINGLE_LIBRARY_MODULE, SINGLE_DEX_MODULE), apkGenerationConfiguration);
+
+    // L+ and Q+ variants would not be served to the device.
+    assertThat(splits)
+        .comparingExpectedFieldsOnly()
+        .containsExactly(variantMinSdkTargeting(ANDROID_M_API_VERSION));
+  }
+
+  @Test
+  public void generateVariantTargetings_withDeviceSpec_preLDevice_noVariantGenerated() {
+    VariantTargetingGenerator variantTargetingGenerator =
+        new VariantTargetingGenerator(
+            new PerModuleVariantTargetingGenerator(), new SdkRuntimeVariantGenerator(APP_BUNDLE));
+    ApkGenerationConfiguration apkGenerationConfiguration =
+        ApkGenerationConfiguration.builder().setDeviceSpec(deviceWithSdk(19)).build();
+
+    ImmutableSet<VariantTargeting> splits =
+        variantTargetingGenerator.generateVariantTargetings(
+            ImmutableList.of(SINGLE_LIBRARY_MODULE, SINGLE_DEX_MODULE), apkGenerationConfiguration);
+
+    // Incompatibility of the device is reported once the APKs are generated.
+    assertThat(splits).isEmpty();
+  }
+
+  @Test
+  public void generateVariantTargetings_withDeviceSpec_aboveBaseMaxSdkVersion_noVariantGenerated() {
+    BundleModule baseModule =
+        new BundleModuleBuilder("base")
+            .setManifest(androidManifest("com.test.app", withMaxSdkVersion(25)))
+            .setNativeConfig(NATIVE_CONFIG)
+            .addFile("lib/x86/lib.so")
+            .build();
+    AppBundle appBundle = new AppBundleBuilder().addModule(baseModule).build();
+    VariantTargetingGenerator variantTargetingGenerator =
+        new VariantTargetingGenerator(
+            new PerModuleVariantTargetingGenerator(), new SdkRuntimeVariantGenerator(appBundle));
+    ApkGenerationConfiguration apkGenerationConfiguration =
+        ApkGenerationConfiguration.builder()
+            .setEnableUncompressedNativeLibraries(true)
+            .setDeviceSpec(deviceWithSdk(ANDROID_P_API_VERSION))
+            .build();
+
+    ImmutableSet<VariantTargeting> splits =
+        variantTargetingGenerator.generateVariantTargetings(
+            ImmutableList.of(baseModule), apkGenerationConfiguration);
+
+    // The M+ variant is capped by the maxSdkVersion of the base module.
+    assertThat(splits).isEmpty();
+  }
+
   @Test
   public void generateVariantTargetings_generatesSdkRuntimeVariant() {
     BundleModule baseModuleWithSdkRuntimeConfig =
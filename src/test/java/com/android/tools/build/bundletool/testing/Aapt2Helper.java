@@ -40,6 +40,11 @@ public final class Aapt2Helper {
         "convert", "--output-format", "proto", "-o", protoApk.toString(), binaryApk.toString());
   }
 
+  public static void convertProtoApkToBinaryApk(Path protoApk, Path binaryApk) {
+    runAapt2(
+        "convert", "--output-format", "binary", "-o", binaryApk.toString(), protoApk.toString());
+  }
+
   private static void runAapt2(String... command) {
     new DefaultCommandExecutor()
         .execute(
@@ -27,6 +27,7 @@ import com.android.tools.build.bundletool.commands.CommandScoped;
 import com.android.tools.build.bundletool.io.AppBundleSerializer;
 import com.android.tools.build.bundletool.io.SdkBundleSerializer;
 import com.android.tools.build.bundletool.io.TempDirectory;
+import com.android.tools.build.bundletool.io.Tracer;
 import com.android.tools.build.bundletool.model.ApkListener;
 import com.android.tools.build.bundletool.model.ApkModifier;
 import com.android.tools.build.bundletool.model.AppBundle;
@@ -103,6 +104,11 @@ public class TestModule {
     return new TempDirectory();
   }
 
+  @Provides
+  Tracer provideTracer() {
+    return Tracer.disabled();
+  }
+
   public static Builder builder() {
     return new Builder();
   }
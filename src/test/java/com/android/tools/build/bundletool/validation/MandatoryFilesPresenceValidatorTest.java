@@ -23,6 +23,7 @@ import com.android.tools.build.bundletool.io.ZipBuilder;
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.model.exceptions.InvalidBundleException;
+import com.android.tools.build.bundletool.model.utils.BundleZipReader;
 import java.nio.file.Path;
 import java.util.zip.ZipFile;
 import org.junit.Before;
@@ -133,4 +134,40 @@ public class MandatoryFilesPresenceValidatorTest {
           .validateBundleZipFile(bundleZip);
     }
   }
+
+  @Test
+  public void bundleZipReader_withoutAndroidManifestInModule_throws() throws Exception {
+    Path bundlePath =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("base/assets/file.txt"), DUMMY_CONTENT)
+            .addFileWithContent(ZipPath.create("BundleConfig.pb"), DUMMY_CONTENT)
+            .writeTo(tempFolder.resolve("bundle.aab"));
+
+    try (BundleZipReader bundleZip = BundleZipReader.open(bundlePath)) {
+      InvalidBundleException exception =
+          assertThrows(
+              InvalidBundleException.class,
+              () ->
+                  new MandatoryFilesPresenceValidator(AppBundle.NON_MODULE_DIRECTORIES)
+                      .validateBundleZipFile(bundleZip));
+
+      assertThat(exception)
+          .hasMessageThat()
+          .contains("Module 'base' is missing mandatory file 'manifest/AndroidManifest.xml'");
+    }
+  }
+
+  @Test
+  public void bundleZipReader_withAllMandatoryFiles_ok() throws Exception {
+    Path bundlePath =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("base/manifest/AndroidManifest.xml"), DUMMY_CONTENT)
+            .addFileWithContent(ZipPath.create("BundleConfig.pb"), DUMMY_CONTENT)
+            .writeTo(tempFolder.resolve("bundle.aab"));
+
+    try (BundleZipReader bundleZip = BundleZipReader.open(bundlePath)) {
+      new MandatoryFilesPresenceValidator(AppBundle.NON_MODULE_DIRECTORIES)
+          .validateBundleZipFile(bundleZip);
+    }
+  }
 }
@@ -35,6 +35,7 @@ import com.android.tools.build.bundletool.io.ZipBuilder;
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.model.utils.BundleZipReader;
 import com.android.tools.build.bundletool.testing.BundleConfigBuilder;
 import com.google.common.collect.ImmutableList;
 import java.nio.file.Path;
@@ -93,6 +94,30 @@ public class ValidatorRunnerTest {
     }
   }
 
+  @Test
+  public void validateBundleZipReader_invokesRightSubValidatorMethods() throws Exception {
+    Path bundlePath =
+        new ZipBuilder()
+            .addDirectory(ZipPath.create("directory"))
+            .addFileWithContent(ZipPath.create("file.txt"), DUMMY_CONTENT)
+            .writeTo(tempFolder.resolve("bundle.aab"));
+
+    try (BundleZipReader bundleZip = BundleZipReader.open(bundlePath)) {
+      new ValidatorRunner(ImmutableList.of(validator)).validateBundleZipFile(bundleZip);
+
+      ArgumentCaptor<BundleZipReader.Entry> zipEntryArgs =
+          ArgumentCaptor.forClass(BundleZipReader.Entry.class);
+
+      verify(validator).validateBundleZipFile(eq(bundleZip));
+      verify(validator, atLeastOnce())
+          .validateBundleZipEntry(eq(bundleZip), zipEntryArgs.capture());
+      verifyNoMoreInteractions(validator);
+
+      assertThat(zipEntryArgs.getAllValues().stream().map(BundleZipReader.Entry::getName))
+          .containsExactly("directory/", "file.txt");
+    }
+  }
+
   @Test
   public void validateSdkBundleZipFile_invokesRightSubValidatorMethods() throws Exception {
     Path bundlePath =
@@ -163,6 +188,17 @@ public class ValidatorRunnerTest {
     }
   }
 
+  @Test
+  public void validateModuleFiles_invokesRightSubValidatorMethods() throws Exception {
+    new ValidatorRunner(ImmutableList.of(validator))
+        .validateModuleFiles(
+            ImmutableList.of(ZipPath.create("assets/file.txt"), ZipPath.create("dex/classes.dex")));
+
+    verify(validator).validateModuleFile(ZipPath.create("assets/file.txt"));
+    verify(validator).validateModuleFile(ZipPath.create("dex/classes.dex"));
+    verifyNoMoreInteractions(validator);
+  }
+
   @Test
   public void validateBundle_invokesSubValidatorsInSequence() throws Exception {
     Path bundlePath =